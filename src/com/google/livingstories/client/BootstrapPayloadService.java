@@ -0,0 +1,29 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.client;
+
+import com.google.gwt.user.client.rpc.RemoteService;
+
+/**
+ * Declares the {@link LivingStoryBootstrap} as an RPC result type, so that GWT generates a
+ * serializer for it. Its proxy is only used as the SerializationStreamFactory that reads the
+ * bootstrap embedded in the story page; see ClientCaches. There's no servlet behind it, and its
+ * method is never called.
+ */
+public interface BootstrapPayloadService extends RemoteService {
+  LivingStoryBootstrap readBootstrap();
+}
@@ -17,10 +17,15 @@
 package com.google.livingstories.client;
 
 import com.google.gwt.core.client.GWT;
+import com.google.gwt.user.client.Command;
+import com.google.gwt.user.client.DeferredCommand;
 import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.client.rpc.SerializationStreamFactory;
 import com.google.livingstories.client.util.LivingStoryData;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -29,9 +34,15 @@ import java.util.Set;
  * Class that manages data on the client side.  Having a centralized place
  * for all data means that different widgets can share the same backing
  * data without having to pass it around to each other or doing multiple requests.
+ *
+ * On the living story page, the results of the startup calls are embedded in the page as a
+ * {@link LivingStoryBootstrap}, and are taken from there when they're available, rather than
+ * fetched.
  */
 public class ClientCaches {
   private static final ContentRpcServiceAsync contentService = GWT.create(ContentRpcService.class);
+  private static final LivingStoryRpcServiceAsync livingStoryService =
+      GWT.create(LivingStoryRpcService.class);
   
   private static class Request<T> implements AsyncCallback<T>{
     private Boolean succeeded;
@@ -78,8 +89,13 @@ public class ClientCaches {
   public static void getImportantEvents(AsyncCallback<List<EventContentItem>> callback) {
     if (importantEventsCache == null) {
       importantEventsCache = new Request<List<EventContentItem>>(callback);
-      contentService.getImportantEventsForLivingStory(LivingStoryData.getLivingStoryId(),
-          importantEventsCache);
+      LivingStoryBootstrap bootstrap = getBootstrap();
+      if (bootstrap != null && bootstrap.getImportantEvents() != null) {
+        succeedLater(importantEventsCache, bootstrap.getImportantEvents());
+      } else {
+        contentService.getImportantEventsForLivingStory(LivingStoryData.getLivingStoryId(),
+            importantEventsCache);
+      }
     } else {
       importantEventsCache.getResult(callback);
     }
@@ -90,8 +106,13 @@ public class ClientCaches {
   public static void getImportantPlayers(AsyncCallback<List<PlayerContentItem>> callback) {
     if (importantPlayersCache == null) {
       importantPlayersCache = new Request<List<PlayerContentItem>>(callback);
-      contentService.getImportantPlayersForLivingStory(LivingStoryData.getLivingStoryId(),
-          importantPlayersCache);
+      LivingStoryBootstrap bootstrap = getBootstrap();
+      if (bootstrap != null && bootstrap.getImportantPlayers() != null) {
+        succeedLater(importantPlayersCache, bootstrap.getImportantPlayers());
+      } else {
+        contentService.getImportantPlayersForLivingStory(LivingStoryData.getLivingStoryId(),
+            importantPlayersCache);
+      }
     } else {
       importantPlayersCache.getResult(callback);
     }
@@ -102,8 +123,13 @@ public class ClientCaches {
   public static void getContributors(AsyncCallback<Map<Long, PlayerContentItem>> callback) {
     if (contributorsCache == null) {
       contributorsCache = new Request<Map<Long, PlayerContentItem>>(callback);
-      contentService.getContributorsByIdForLivingStory(LivingStoryData.getLivingStoryId(),
-          contributorsCache);
+      LivingStoryBootstrap bootstrap = getBootstrap();
+      if (bootstrap != null && bootstrap.getContributors() != null) {
+        succeedLater(contributorsCache, bootstrap.getContributors());
+      } else {
+        contentService.getContributorsByIdForLivingStory(LivingStoryData.getLivingStoryId(),
+            contributorsCache);
+      }
     } else {
       contributorsCache.getResult(callback);
     }
@@ -131,4 +157,96 @@ public class ClientCaches {
       };
     getContributors(contributorsCallback);
   }
+  
+  private static Request<Map<Long, ContentItemTypesBundle>> themeInfoCache;
+  
+  public static void getThemeInfo(AsyncCallback<Map<Long, ContentItemTypesBundle>> callback) {
+    if (themeInfoCache == null) {
+      themeInfoCache = new Request<Map<Long, ContentItemTypesBundle>>(callback);
+      LivingStoryBootstrap bootstrap = getBootstrap();
+      if (bootstrap != null && bootstrap.getThemeInfo() != null) {
+        succeedLater(themeInfoCache, bootstrap.getThemeInfo());
+      } else {
+        livingStoryService.getThemeInfoForLivingStory(LivingStoryData.getLivingStoryId(),
+            themeInfoCache);
+      }
+    } else {
+      themeInfoCache.getResult(callback);
+    }
+  }
+  
+  /**
+   * Passes the first page of content items for filter to callback, and returns true, if the
+   * page was embedded with them. They're only handed out once, since they're only current while
+   * the page is loading.
+   */
+  public static boolean takeInitialContentItems(FilterSpec filter,
+      AsyncCallback<DisplayContentItemBundle> callback) {
+    LivingStoryBootstrap bootstrap = getBootstrap();
+    if (bootstrap == null || bootstrap.getInitialContentItems() == null
+        || !bootstrap.getInitialFilter().equals(filter)) {
+      return false;
+    }
+    DisplayContentItemBundle contentItems = bootstrap.getInitialContentItems();
+    bootstrap.setInitialContentItems(null);
+    succeedLater(callback, contentItems);
+    return true;
+  }
+  
+  /**
+   * Returns the number of updates in the story since lastVisitTime embedded in the page, or
+   * null if it wasn't, or was counted for a different story or from a different time.
+   */
+  public static Integer getBootstrapUpdateCount(long livingStoryId, Date lastVisitTime) {
+    LivingStoryBootstrap bootstrap = getBootstrap();
+    if (bootstrap == null || bootstrap.getLivingStoryId() != livingStoryId
+        || bootstrap.getLastVisitTime() == null || lastVisitTime == null) {
+      return null;
+    }
+    // The time on the page is only accurate to the second.
+    long difference = bootstrap.getLastVisitTime().getTime() - lastVisitTime.getTime();
+    return Math.abs(difference) < 1000 ? bootstrap.getUpdateCountSinceLastVisit() : null;
+  }
+  
+  private static LivingStoryBootstrap bootstrap;
+  private static boolean bootstrapRead = false;
+  
+  /**
+   * Returns the bootstrap embedded in the page, or null if there isn't one for the current
+   * story, or it can't be read.
+   */
+  private static LivingStoryBootstrap getBootstrap() {
+    if (!bootstrapRead) {
+      bootstrapRead = true;
+      String payload = LivingStoryData.getBootstrapPayload();
+      if (payload != null && !payload.isEmpty()) {
+        try {
+          // The bootstrap is encoded as an RPC response, which the proxy of a service that
+          // returns it can read.
+          SerializationStreamFactory factory =
+              (SerializationStreamFactory) GWT.create(BootstrapPayloadService.class);
+          bootstrap = (LivingStoryBootstrap) factory.createStreamReader(payload).readObject();
+        } catch (SerializationException e) {
+          bootstrap = null;
+        }
+      }
+    }
+    if (bootstrap != null && !bootstrap.getLivingStoryId().equals(
+        LivingStoryData.getLivingStoryId())) {
+      return null;
+    }
+    return bootstrap;
+  }
+  
+  /**
+   * Passes result to callback after the current event has been handled, as if it had come back
+   * from an RPC, so that callers don't need to handle results arriving before the call returns.
+   */
+  private static <T> void succeedLater(final AsyncCallback<T> callback, final T result) {
+    DeferredCommand.addCommand(new Command() {
+      public void execute() {
+        callback.onSuccess(result);
+      }
+    });
+  }
 }
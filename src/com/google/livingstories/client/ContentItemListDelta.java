@@ -0,0 +1,69 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.client;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The changes to a story's list of content items, drafts included, since the version of the list
+ * that a client last saw. If the server no longer knows that version, or the client didn't have
+ * one, this is the whole list instead; see {@link #isFullList()}.
+ */
+public class ContentItemListDelta implements Serializable {
+  private String version;
+  private boolean fullList;
+  private List<ContentItemSummary> changedContentItems;
+  private List<Long> deletedContentItemIds;
+
+  public ContentItemListDelta() {}
+
+  public ContentItemListDelta(String version, boolean fullList,
+      List<ContentItemSummary> changedContentItems, List<Long> deletedContentItemIds) {
+    this.version = version;
+    this.fullList = fullList;
+    this.changedContentItems = changedContentItems;
+    this.deletedContentItemIds = deletedContentItemIds;
+  }
+
+  /**
+   * Returns the version of the list that this brings the client up to, to pass in the next
+   * request for changes. May be null, if the server can't track versions at the moment.
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns true if getChangedContentItems is the whole list, and the client should discard
+   * whatever it has.
+   */
+  public boolean isFullList() {
+    return fullList;
+  }
+
+  /**
+   * Returns the items that were added or changed, newest first.
+   */
+  public List<ContentItemSummary> getChangedContentItems() {
+    return changedContentItems;
+  }
+
+  public List<Long> getDeletedContentItemIds() {
+    return deletedContentItemIds;
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.client;
+
+import com.google.livingstories.client.util.Constants;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Just enough of a content item to list it in the content manager: its id, type, title,
+ * timestamp and publish state. The full item is fetched when it's selected.
+ */
+public class ContentItemSummary implements Serializable {
+  private Long id;
+  private ContentItemType contentItemType;
+  private Date timestamp;
+  private PublishState publishState;
+  private String title;
+  // The subtype that the item's type label is taken from, if it has one.
+  private AssetType assetType;
+  private NarrativeType narrativeType;
+  private PlayerType playerType;
+  private boolean concept;
+
+  public ContentItemSummary() {}
+
+  public ContentItemSummary(BaseContentItem contentItem) {
+    this.id = contentItem.getId();
+    this.contentItemType = contentItem.getContentItemType();
+    this.timestamp = contentItem.getTimestamp();
+    this.publishState = contentItem.getPublishState();
+
+    String fullTitle;
+    switch (contentItemType) {
+      case EVENT:
+        fullTitle = ((EventContentItem) contentItem).getEventUpdate();
+        break;
+      case NARRATIVE:
+        NarrativeContentItem narrative = (NarrativeContentItem) contentItem;
+        narrativeType = narrative.getNarrativeType();
+        fullTitle = narrative.getHeadline();
+        break;
+      case PLAYER:
+        PlayerContentItem player = (PlayerContentItem) contentItem;
+        playerType = player.getPlayerType();
+        fullTitle = player.getName();
+        break;
+      case ASSET:
+        AssetContentItem asset = (AssetContentItem) contentItem;
+        assetType = asset.getAssetType();
+        fullTitle = asset.getCaption() + " : " + asset.getContent();
+        break;
+      case BACKGROUND:
+        concept = ((BackgroundContentItem) contentItem).isConcept();
+        fullTitle = contentItem.getContent();
+        break;
+      default:
+        fullTitle = contentItem.getContent();
+        break;
+    }
+    // The list never shows more than this much of the display string, which also includes the
+    // type label, so there's no need to send any more.
+    fullTitle = String.valueOf(fullTitle);
+    this.title = fullTitle.length() > Constants.CONTENT_SNIPPET_LENGTH
+        ? fullTitle.substring(0, Constants.CONTENT_SNIPPET_LENGTH) : fullTitle;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public ContentItemType getContentItemType() {
+    return contentItemType;
+  }
+
+  public Date getTimestamp() {
+    return timestamp;
+  }
+
+  public PublishState getPublishState() {
+    return publishState;
+  }
+
+  /**
+   * Returns the start of the same string that {@link BaseContentItem#getDisplayString()} returns
+   * for the full item. Only call this on the client, since the type labels are translated.
+   */
+  public String getDisplayString() {
+    String typeString;
+    switch (contentItemType) {
+      case NARRATIVE:
+        typeString = narrativeType.toString();
+        break;
+      case PLAYER:
+        typeString = playerType.toString();
+        break;
+      case ASSET:
+        typeString = String.valueOf(assetType);
+        break;
+      case BACKGROUND:
+        typeString = concept ? ClientMessageHolder.consts.contentTypeStringConcept()
+            : contentItemType.toString();
+        break;
+      default:
+        typeString = contentItemType.toString();
+        break;
+    }
+    return "[" + typeString + "] " + title;
+  }
+}
@@ -18,6 +18,7 @@ package com.google.livingstories.client;
 
 import com.google.gwt.user.client.rpc.RemoteService;
 import com.google.gwt.user.client.rpc.RemoteServiceRelativePath;
+import com.google.livingstories.client.contentmanager.SearchResults;
 import com.google.livingstories.client.contentmanager.SearchTerms;
 
 import java.util.Collection;
@@ -34,6 +35,8 @@ public interface ContentRpcService extends RemoteService {
   
   List<BaseContentItem> getContentItemsForLivingStory(Long livingStoryId, boolean onlyPublished);
   
+  ContentItemListDelta getContentItemListChanges(Long livingStoryId, String sinceVersion);
+  
   BaseContentItem getContentItem(Long id, boolean getLinkedContentItems);
   
   List<BaseContentItem> getContentItems(Collection<Long> ids);
@@ -43,7 +46,7 @@ public interface ContentRpcService extends RemoteService {
   DisplayContentItemBundle getRelatedContentItems(Long contentItemId, boolean byContribution,
       Date cutoff);
   
-  List<BaseContentItem> executeSearch(SearchTerms searchTerms);
+  SearchResults executeSearch(SearchTerms searchTerms);
   
   void deleteContentItem(Long id);
   
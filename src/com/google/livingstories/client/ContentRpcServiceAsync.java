@@ -17,6 +17,7 @@
 package com.google.livingstories.client;
 
 import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.livingstories.client.contentmanager.SearchResults;
 import com.google.livingstories.client.contentmanager.SearchTerms;
 
 import java.util.Collection;
@@ -34,6 +35,9 @@ public interface ContentRpcServiceAsync {
   void getContentItemsForLivingStory(Long livingStoryId, boolean onlyPublished, 
       AsyncCallback<List<BaseContentItem>> callback);
   
+  void getContentItemListChanges(Long livingStoryId, String sinceVersion,
+      AsyncCallback<ContentItemListDelta> callback);
+  
   void getContentItem(Long id, boolean getLinkedContentItems,
       AsyncCallback<BaseContentItem> callback);
   
@@ -44,7 +48,7 @@ public interface ContentRpcServiceAsync {
   void getRelatedContentItems(Long contentItemId, boolean byContribution, Date cutoff,
       AsyncCallback<DisplayContentItemBundle> callback);
   
-  void executeSearch(SearchTerms searchTerms, AsyncCallback<List<BaseContentItem>> callback);
+  void executeSearch(SearchTerms searchTerms, AsyncCallback<SearchResults> callback);
   
   void deleteContentItem(Long id, AsyncCallback<Void> callback);
   
@@ -43,6 +43,14 @@ public class LivingStory implements Serializable {
       this.content = content;
       this.timestamp = timestamp;
     }
+
+    public String getContent() {
+      return content;
+    }
+
+    public Date getTimestamp() {
+      return timestamp;
+    }
   }
   
   // GWT needs a zero-argument constructor to be happy.
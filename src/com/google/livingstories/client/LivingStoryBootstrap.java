@@ -0,0 +1,116 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.client;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bundle of the results of the calls that the living story page makes when it starts up, so that
+ * they can be embedded in the page rather than fetched one by one. Any of the results may be
+ * null, e.g. if working it out failed, in which case the page makes the call itself.
+ */
+public class LivingStoryBootstrap implements Serializable {
+  private Long livingStoryId;
+  private Map<Long, ContentItemTypesBundle> themeInfo;
+  private FilterSpec initialFilter;
+  private DisplayContentItemBundle initialContentItems;
+  private Date lastVisitTime;
+  private Integer updateCountSinceLastVisit;
+  private List<EventContentItem> importantEvents;
+  private List<PlayerContentItem> importantPlayers;
+  private Map<Long, PlayerContentItem> contributors;
+
+  public LivingStoryBootstrap() {}
+
+  public LivingStoryBootstrap(Long livingStoryId, FilterSpec initialFilter, Date lastVisitTime) {
+    this.livingStoryId = livingStoryId;
+    this.initialFilter = initialFilter;
+    this.lastVisitTime = lastVisitTime;
+  }
+
+  public Long getLivingStoryId() {
+    return livingStoryId;
+  }
+
+  public Map<Long, ContentItemTypesBundle> getThemeInfo() {
+    return themeInfo;
+  }
+
+  public void setThemeInfo(Map<Long, ContentItemTypesBundle> themeInfo) {
+    this.themeInfo = themeInfo;
+  }
+
+  /**
+   * Returns the filter that getInitialContentItems was worked out for.
+   */
+  public FilterSpec getInitialFilter() {
+    return initialFilter;
+  }
+
+  /**
+   * Returns the first page of content items for the initial filter, with no focused content item.
+   */
+  public DisplayContentItemBundle getInitialContentItems() {
+    return initialContentItems;
+  }
+
+  public void setInitialContentItems(DisplayContentItemBundle initialContentItems) {
+    this.initialContentItems = initialContentItems;
+  }
+
+  /**
+   * Returns the time that getUpdateCountSinceLastVisit counts from.
+   */
+  public Date getLastVisitTime() {
+    return lastVisitTime;
+  }
+
+  public Integer getUpdateCountSinceLastVisit() {
+    return updateCountSinceLastVisit;
+  }
+
+  public void setUpdateCountSinceLastVisit(Integer updateCountSinceLastVisit) {
+    this.updateCountSinceLastVisit = updateCountSinceLastVisit;
+  }
+
+  public List<EventContentItem> getImportantEvents() {
+    return importantEvents;
+  }
+
+  public void setImportantEvents(List<EventContentItem> importantEvents) {
+    this.importantEvents = importantEvents;
+  }
+
+  public List<PlayerContentItem> getImportantPlayers() {
+    return importantPlayers;
+  }
+
+  public void setImportantPlayers(List<PlayerContentItem> importantPlayers) {
+    this.importantPlayers = importantPlayers;
+  }
+
+  public Map<Long, PlayerContentItem> getContributors() {
+    return contributors;
+  }
+
+  public void setContributors(Map<Long, PlayerContentItem> contributors) {
+    this.contributors = contributors;
+  }
+}
@@ -36,6 +36,7 @@ import com.google.gwt.maps.client.geocode.Geocoder;
 import com.google.gwt.maps.client.geocode.LatLngCallback;
 import com.google.gwt.maps.client.geom.LatLng;
 import com.google.gwt.maps.client.overlay.Marker;
+import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.DOM;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.Button;
@@ -1847,12 +1848,21 @@ public class ContentItemManager extends ManagerPane {
   }
 
   private void updatePreview() {
-    BaseContentItem contentItem = contentItemListBox.getSelectedContentItem();
+    final BaseContentItem contentItem = contentItemListBox.getSelectedContentItem();
     if (contentItem.getDisplayString().equals("New Content Item")) {
       previewPanel.clear();
     } else {
-      previewPanel.setWidget(StreamViewFactory.createView(contentItem,
-          contentItemListBox.getLoadedContentItemsMap()));
+      // The list box only has the full content items that have been selected, so fetch the
+      // linked ones first.
+      contentItemListBox.loadLinkedContentItems(contentItem, new Command() {
+        @Override
+        public void execute() {
+          if (contentItem == contentItemListBox.getSelectedContentItem()) {
+            previewPanel.setWidget(StreamViewFactory.createView(contentItem,
+                contentItemListBox.getLoadedContentItemsMap()));
+          }
+        }
+      });
     }
   }
   
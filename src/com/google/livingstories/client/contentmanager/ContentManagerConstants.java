@@ -31,4 +31,13 @@ public interface ContentManagerConstants extends com.google.gwt.i18n.client.Cons
   @DefaultStringValue("No results")
   @Key("noSearchResults")
   String noSearchResults();
+
+  /**
+   * Translated "More results".
+   * 
+   * @return translated "More results"
+   */
+  @DefaultStringValue("More results")
+  @Key("moreSearchResults")
+  String moreSearchResults();
 }
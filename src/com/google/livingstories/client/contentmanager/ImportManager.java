@@ -59,7 +59,8 @@ public class ImportManager extends ManagerPane {
     titleLabel.setStylePrimaryName("header");
     
     HTML instructions = new HTML("<a href=\"/export\">Click here</a> to export all living story" +
-        " data to a JSON file (does not export user data).");
+        " data to a JSON file (does not export user data). For large datastores, use the" +
+        " <a href=\"/export?format=jsonl&gzip=true\">streaming export</a> instead.");
     
     VerticalPanel exportPanel = new VerticalPanel();
     exportPanel.add(titleLabel);
@@ -99,6 +100,12 @@ public class ImportManager extends ManagerPane {
     override.setFormValue("true");
     fileUploadPanel.add(override);
     
+    CheckBox dryRun = new CheckBox("Check this box to only validate the file, without changing " +
+        "any data.");
+    dryRun.setName("dryRun");
+    dryRun.setFormValue("true");
+    fileUploadPanel.add(dryRun);
+    
     Button submit = new Button("Submit");
     submit.addClickHandler(new ClickHandler() {
       public void onClick(ClickEvent e) {
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.client.contentmanager;
+
+import com.google.livingstories.client.BaseContentItem;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of the results of a content item search.
+ */
+public class SearchResults implements Serializable {
+  private List<BaseContentItem> contentItems;
+  private String nextCursor;
+  private int totalMatchCount;
+
+  public SearchResults() {}
+
+  public SearchResults(List<BaseContentItem> contentItems, String nextCursor,
+      int totalMatchCount) {
+    this.contentItems = contentItems;
+    this.nextCursor = nextCursor;
+    this.totalMatchCount = totalMatchCount;
+  }
+
+  public List<BaseContentItem> getContentItems() {
+    return contentItems;
+  }
+
+  /**
+   * Returns the value to set {@link SearchTerms#cursor} to in order to get the next page of
+   * results, or null if this is the last page.
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  /**
+   * Returns the number of items that match the search, across all pages.
+   */
+  public int getTotalMatchCount() {
+    return totalMatchCount;
+  }
+}
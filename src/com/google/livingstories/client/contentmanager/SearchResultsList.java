@@ -49,24 +49,31 @@ public class SearchResultsList extends Composite {
     if (contentItems.isEmpty()) {
       contentItemList.add(new Label(consts.noSearchResults()));
     } else {
-      for (final BaseContentItem contentItem : contentItems) {
-        Label displayString = new Label(contentItem.getContentItemType().toString());
-        displayString.setStylePrimaryName("contentItemHeader");
-  
-        FlowPanel contentItemPanel = new FlowPanel();
-        contentItemPanel.add(displayString);
-        contentItemPanel.add(contentItem.renderTiny());
-        
-        FocusPanel clickPanel = new FocusPanel(contentItemPanel);
-        clickPanel.addClickHandler(new ClickHandler() {
-          @Override
-          public void onClick(ClickEvent event) {
-            handler.onClick(contentItem);
-          }
-        });
-        contentItemList.add(clickPanel);
-        contentItemList.add(new HTML("<hr/>"));
-      }
+      append(contentItems);
+    }
+  }
+
+  /**
+   * Adds the next page of results to the end of the list.
+   */
+  public void append(List<BaseContentItem> contentItems) {
+    for (final BaseContentItem contentItem : contentItems) {
+      Label displayString = new Label(contentItem.getContentItemType().toString());
+      displayString.setStylePrimaryName("contentItemHeader");
+
+      FlowPanel contentItemPanel = new FlowPanel();
+      contentItemPanel.add(displayString);
+      contentItemPanel.add(contentItem.renderTiny());
+      
+      FocusPanel clickPanel = new FocusPanel(contentItemPanel);
+      clickPanel.addClickHandler(new ClickHandler() {
+        @Override
+        public void onClick(ClickEvent event) {
+          handler.onClick(contentItem);
+        }
+      });
+      contentItemList.add(clickPanel);
+      contentItemList.add(new HTML("<hr/>"));
     }
   }
   
@@ -26,6 +26,11 @@ import com.google.livingstories.client.PublishState;
 import java.io.Serializable;
 import java.util.Date;
 
+/**
+ * A content item search. Every field except livingStoryId is optional. If query is set, results
+ * are the items containing any of its words, best matches first; otherwise they're every item
+ * that passes the filters, newest first.
+ */
 public class SearchTerms implements Serializable {
   public Long livingStoryId;
   public ContentItemType contentItemType;
@@ -36,4 +41,7 @@ public class SearchTerms implements Serializable {
   public Date beforeDate;
   public Importance importance;
   public PublishState publishState;
+  public String query;
+  /** Where to continue from, as returned by {@link SearchResults#getNextCursor()}. */
+  public String cursor;
 }
@@ -25,13 +25,12 @@ import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.Label;
 import com.google.gwt.user.client.ui.SimplePanel;
 import com.google.gwt.user.client.ui.Widget;
+import com.google.livingstories.client.ClientCaches;
 import com.google.livingstories.client.ContentItemTypesBundle;
 import com.google.livingstories.client.ContentRpcService;
 import com.google.livingstories.client.ContentRpcServiceAsync;
 import com.google.livingstories.client.DisplayContentItemBundle;
 import com.google.livingstories.client.FilterSpec;
-import com.google.livingstories.client.LivingStoryRpcService;
-import com.google.livingstories.client.LivingStoryRpcServiceAsync;
 import com.google.livingstories.client.lsp.ContentRenderer;
 import com.google.livingstories.client.lsp.FilterWidget;
 import com.google.livingstories.client.lsp.LspContentItemListWidget;
@@ -61,8 +60,6 @@ public class OverviewPage extends Page {
   private static final String SCROLL_POSITION_STATE = "sp";
   
   private final ContentRpcServiceAsync contentService = GWT.create(ContentRpcService.class);
-  private final LivingStoryRpcServiceAsync livingStoryService =
-    GWT.create(LivingStoryRpcService.class);
 
   @UiField Label title; 
   @UiField UpdateCountWidget updateCount;
@@ -86,17 +83,16 @@ public class OverviewPage extends Page {
     
     recentEvents.load();
     
-    livingStoryService.getThemeInfoForLivingStory(LivingStoryData.getLivingStoryId(),
-        new AsyncCallback<Map<Long, ContentItemTypesBundle>>() {
-          @Override
-          public void onFailure(Throwable caught) {}
-          
-          @Override
-          public void onSuccess(Map<Long, ContentItemTypesBundle> results) {
-            themeList.load(results);
-            filterList.load(results, themeList.getSelectedThemeId());
-          }
-        });
+    ClientCaches.getThemeInfo(new AsyncCallback<Map<Long, ContentItemTypesBundle>>() {
+      @Override
+      public void onFailure(Throwable caught) {}
+      
+      @Override
+      public void onSuccess(Map<Long, ContentItemTypesBundle> results) {
+        themeList.load(results);
+        filterList.load(results, themeList.getSelectedThemeId());
+      }
+    });
     
     exportMethods();
   }
@@ -113,11 +109,16 @@ public class OverviewPage extends Page {
       if (simpleReversal) {
         contentItemList.doSimpleReversal(filter.oldestFirst);
       } else {
-        contentService.getDisplayContentItemBundle(LivingStoryData.getLivingStoryId(), filter,
-            focusedContentItemId, null, new ContentItemCallback(focusedContentItemId));
         contentItemList.clear();
         contentItemList.beginLoading();
         beginLoading();
+        ContentItemCallback callback = new ContentItemCallback(focusedContentItemId);
+        // The first page for the initial filter usually comes embedded in the page.
+        if (focusedContentItemId != null
+            || !ClientCaches.takeInitialContentItems(filter, callback)) {
+          contentService.getDisplayContentItemBundle(LivingStoryData.getLivingStoryId(), filter,
+              focusedContentItemId, null, callback);
+        }
       }
     } else if (focusedContentItemId != null) {
       highlightEvent(focusedContentItemId, false);
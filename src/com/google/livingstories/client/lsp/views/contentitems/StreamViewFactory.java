@@ -79,7 +79,10 @@ public class StreamViewFactory {
     for (BaseContentItem narrative : linkedContentItemsByType.get(ContentItemType.NARRATIVE)) {
       List<BaseContentItem> linkedContentItems = new ArrayList<BaseContentItem>();
       for (Long contentItemId : narrative.getLinkedContentItemIds()) {
-        linkedContentItems.add(idToContentItemMap.get(contentItemId));
+        BaseContentItem linkedContentItem = idToContentItemMap.get(contentItemId);
+        if (linkedContentItem != null) {
+          linkedContentItems.add(linkedContentItem);
+        }
       }
       narrative.setLinkedContentItems(linkedContentItems);
     }
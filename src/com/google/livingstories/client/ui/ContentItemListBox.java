@@ -19,19 +19,25 @@ package com.google.livingstories.client.ui;
 import com.google.gwt.core.client.GWT;
 import com.google.gwt.event.dom.client.ChangeEvent;
 import com.google.gwt.event.dom.client.ChangeHandler;
+import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.Composite;
 import com.google.gwt.user.client.ui.HorizontalPanel;
 import com.google.gwt.user.client.ui.Label;
 import com.google.gwt.user.client.ui.VerticalPanel;
-import com.google.livingstories.client.ContentItemType;
 import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.ContentItemListDelta;
+import com.google.livingstories.client.ContentItemSummary;
+import com.google.livingstories.client.ContentItemType;
 import com.google.livingstories.client.ContentRpcService;
 import com.google.livingstories.client.ContentRpcServiceAsync;
 import com.google.livingstories.client.util.Constants;
+import com.google.livingstories.client.util.GlobalUtil;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,7 +46,10 @@ import java.util.Set;
 /**
  * Widget that loads a list of content items based on an living story id, and has a built-in
  * filtering mechanism.
- * The underlying storage for the content items is a LinkedHashMap. To get incrementally-added items
+ * The list is built from summaries of the content items, which are kept up to date by asking the
+ * server only for the changes since the last load. Full content items are fetched when they're
+ * selected, and kept until they change; see {@link #getLoadedContentItemsMap()}.
+ * The underlying storage for the summaries is a LinkedHashMap. To get incrementally-added items
  * to appear at the top of the list, rather than at the bottom, the order in which items are
  * stored in the LinkedHashMap is actually opposite to the display order.
  */
@@ -50,10 +59,16 @@ public class ContentItemListBox extends Composite {
    */
   private final ContentRpcServiceAsync contentService = GWT.create(ContentRpcService.class);
 
-  private ItemList<BaseContentItem> itemList;
+  private ItemList<ContentItemSummary> itemList;
   protected EnumDropdown<ContentItemType> filter;
-  private Map<Long, BaseContentItem> loadedContentItemsMap =
-      new LinkedHashMap<Long, BaseContentItem>();
+  private Map<Long, ContentItemSummary> loadedSummariesMap =
+      new LinkedHashMap<Long, ContentItemSummary>();
+  private Map<Long, BaseContentItem> loadedContentItemsMap = new HashMap<Long, BaseContentItem>();
+  private List<ChangeHandler> selectionChangeHandlers = new ArrayList<ChangeHandler>();
+  
+  // The story whose items are loaded, and the version of its list that they're from.
+  private Long loadedLivingStoryId;
+  private String loadedVersion;
 
   public ContentItemListBox(final boolean multiSelect) {
     filter = EnumDropdown.newInstance(ContentItemType.class, "All");
@@ -68,27 +83,33 @@ public class ContentItemListBox extends Composite {
     filterPanel.add(new Label("Filter:"));
     filterPanel.add(filter);
     
-    itemList = new ItemList<BaseContentItem>(multiSelect) {
+    itemList = new ItemList<ContentItemSummary>(multiSelect) {
       @Override
       public void loadItems() {
-        if (!loadedContentItemsMap.isEmpty()) {
+        if (!loadedSummariesMap.isEmpty()) {
           // loads the items in reverse order from how they're stored.
-          List<BaseContentItem> contentItems =
-              new ArrayList<BaseContentItem>(loadedContentItemsMap.values());
-          Collections.reverse(contentItems);
+          List<ContentItemSummary> summaries =
+              new ArrayList<ContentItemSummary>(loadedSummariesMap.values());
+          Collections.reverse(summaries);
 
-          for (BaseContentItem contentItem : contentItems) {
-            if (testContentItem(contentItem)) {
-              String content = contentItem.getDisplayString();
+          for (ContentItemSummary summary : summaries) {
+            if (testContentItem(summary)) {
+              String content = summary.getDisplayString();
               if (content.length() > Constants.CONTENT_SNIPPET_LENGTH) {
                 content = content.substring(0, Constants.CONTENT_SNIPPET_LENGTH).concat("...");
               }
-              addItem(content, String.valueOf(contentItem.getId()));
+              addItem(content, String.valueOf(summary.getId()));
             }
           }
         }
       }
     };
+    itemList.addChangeHandler(new ChangeHandler() {
+      @Override
+      public void onChange(ChangeEvent event) {
+        onSelectionChange(event);
+      }
+    });
 
     VerticalPanel contentPanel = new VerticalPanel();
     contentPanel.add(filterPanel);
@@ -100,40 +121,171 @@ public class ContentItemListBox extends Composite {
    * Tests whether a content item should be included in the displayed list, based on the filter
    * setting.
    */
-  protected boolean testContentItem(BaseContentItem contentItem) {
+  protected boolean testContentItem(ContentItemSummary summary) {
     ContentItemType type = filter.getSelectedConstant();
-    return type == null || contentItem.getContentItemType().equals(type) || isSelected(contentItem);
+    return type == null || summary.getContentItemType().equals(type) || isSelected(summary);
   }
   
-  public void loadItemsForLivingStory(Long livingStoryId) {
+  /**
+   * Loads the list for the given story. If the list is already loaded for that story, only the
+   * changes since then are fetched.
+   */
+  public void loadItemsForLivingStory(final Long livingStoryId) {
     itemList.setSelectedIndex(-1);
-    loadedContentItemsMap.clear();
-    contentService.getContentItemsForLivingStory(livingStoryId, false,
-        new AsyncCallback<List<BaseContentItem>>() {
+    if (!GlobalUtil.equal(livingStoryId, loadedLivingStoryId)) {
+      loadedSummariesMap.clear();
+      loadedContentItemsMap.clear();
+      loadedLivingStoryId = livingStoryId;
+      loadedVersion = null;
+    }
+    contentService.getContentItemListChanges(livingStoryId, loadedVersion,
+        new AsyncCallback<ContentItemListDelta>() {
           @Override
           public void onFailure(Throwable caught) {
             itemList.clear();
             itemList.addItem("Callback failed, please try again");
           }
           @Override
-          public void onSuccess(List<BaseContentItem> result) {
-            // Put result on loadedAContentItemsMap in reverse order. Can't use useful
-            // Google Collections stuff for it, so:
-            for (int i = result.size() - 1; i >= 0; i--) {
-              BaseContentItem contentItem = result.get(i);
-              loadedContentItemsMap.put(contentItem.getId(), contentItem);
+          public void onSuccess(ContentItemListDelta delta) {
+            if (!GlobalUtil.equal(livingStoryId, loadedLivingStoryId)) {
+              // Another story was chosen while this one was loading.
+              return;
             }
+            applyChanges(delta);
             refresh();
           }
         });
   }
   
+  private void applyChanges(ContentItemListDelta delta) {
+    if (delta.isFullList()) {
+      loadedSummariesMap.clear();
+      loadedContentItemsMap.clear();
+    }
+    for (Long id : delta.getDeletedContentItemIds()) {
+      loadedSummariesMap.remove(id);
+      loadedContentItemsMap.remove(id);
+    }
+    // Put the changes on loadedSummariesMap in reverse order. Changed items keep their places,
+    // and new ones go on the end, which is the top of the list. Can't use useful Google
+    // Collections stuff for it, so:
+    List<ContentItemSummary> changed = delta.getChangedContentItems();
+    for (int i = changed.size() - 1; i >= 0; i--) {
+      ContentItemSummary summary = changed.get(i);
+      loadedSummariesMap.put(summary.getId(), summary);
+      loadedContentItemsMap.remove(summary.getId());
+    }
+    loadedVersion = delta.getVersion();
+  }
+  
+  /**
+   * Makes sure the newly selected content item is loaded before telling the selection change
+   * handlers about it, so that they can call {@link #getSelectedContentItem()}.
+   */
+  private void onSelectionChange(final ChangeEvent event) {
+    if (itemList.isMultipleSelect() || !itemList.hasSelection()) {
+      fireSelectionChange(event);
+      return;
+    }
+    final Long selectedId = getSelectedContentItemId();
+    loadContentItems(Collections.singleton(selectedId), new AsyncCallback<Void>() {
+      @Override
+      public void onFailure(Throwable caught) {
+        itemList.setSelectedIndex(-1);
+      }
+      @Override
+      public void onSuccess(Void result) {
+        if (selectedId.equals(getSelectedContentItemId())) {
+          fireSelectionChange(event);
+        }
+      }
+    });
+  }
+  
+  private void fireSelectionChange(ChangeEvent event) {
+    for (ChangeHandler handler : selectionChangeHandlers) {
+      handler.onChange(event);
+    }
+  }
+  
+  /**
+   * Fetches whichever of the content items with the given ids aren't loaded yet.
+   */
+  public void loadContentItems(Collection<Long> ids, final AsyncCallback<Void> callback) {
+    List<Long> missingIds = new ArrayList<Long>();
+    for (Long id : ids) {
+      if (!loadedContentItemsMap.containsKey(id)) {
+        missingIds.add(id);
+      }
+    }
+    if (missingIds.isEmpty()) {
+      callback.onSuccess(null);
+      return;
+    }
+    final Long livingStoryId = loadedLivingStoryId;
+    contentService.getContentItems(missingIds, new AsyncCallback<List<BaseContentItem>>() {
+      @Override
+      public void onFailure(Throwable caught) {
+        callback.onFailure(caught);
+      }
+      @Override
+      public void onSuccess(List<BaseContentItem> result) {
+        if (GlobalUtil.equal(livingStoryId, loadedLivingStoryId)) {
+          for (BaseContentItem contentItem : result) {
+            loadedContentItemsMap.put(contentItem.getId(), contentItem);
+          }
+        }
+        callback.onSuccess(null);
+      }
+    });
+  }
+  
+  /**
+   * Fetches the content items that contentItem links to, and those that any linked narratives
+   * link to in turn, which is what's needed to preview it. Runs command once they're loaded, or
+   * once loading them has failed, in which case the preview will be missing them.
+   */
+  public void loadLinkedContentItems(final BaseContentItem contentItem, final Command command) {
+    final AsyncCallback<Void> finish = new AsyncCallback<Void>() {
+      @Override
+      public void onFailure(Throwable caught) {
+        command.execute();
+      }
+      @Override
+      public void onSuccess(Void result) {
+        command.execute();
+      }
+    };
+    loadContentItems(contentItem.getLinkedContentItemIds(), new AsyncCallback<Void>() {
+      @Override
+      public void onFailure(Throwable caught) {
+        command.execute();
+      }
+      @Override
+      public void onSuccess(Void result) {
+        List<Long> secondLevelIds = new ArrayList<Long>();
+        for (Long id : contentItem.getLinkedContentItemIds()) {
+          BaseContentItem linkedContentItem = loadedContentItemsMap.get(id);
+          if (linkedContentItem != null
+              && linkedContentItem.getContentItemType() == ContentItemType.NARRATIVE) {
+            secondLevelIds.addAll(linkedContentItem.getLinkedContentItemIds());
+          }
+        }
+        loadContentItems(secondLevelIds, finish);
+      }
+    });
+  }
+  
   public void setVisibleItemCount(int count) {
     itemList.setVisibleItemCount(count);
   }
 
+  /**
+   * Adds a handler to call when the selection changes. In a single-select list, the handler
+   * isn't called until the selected content item has been loaded.
+   */
   public void addSelectionChangeHandler(ChangeHandler handler) {
-    itemList.addChangeHandler(handler);
+    selectionChangeHandlers.add(handler);
   }
   
   public void addFilterChangeHandler(ChangeHandler handler) {
@@ -171,20 +323,33 @@ public class ContentItemListBox extends Composite {
     }
   }
   
+  /**
+   * Returns the selected content items that have been loaded. Use {@link #loadContentItems} first
+   * to make sure that they all are.
+   */
   public List<BaseContentItem> getSelectedContentitems() {
     List<BaseContentItem> result = new ArrayList<BaseContentItem>();
     for (String contentItemId : itemList.getSelectedItemValues()) {
-      result.add(loadedContentItemsMap.get(Long.valueOf(contentItemId)));
+      BaseContentItem contentItem = loadedContentItemsMap.get(Long.valueOf(contentItemId));
+      if (contentItem != null) {
+        result.add(contentItem);
+      }
     }
     return result;
   }
   
+  /**
+   * Returns the full content items that have been loaded so far, by id. This includes the
+   * selected item, and, once {@link #loadLinkedContentItems} has been called for it, the items
+   * it links to, but not necessarily anything else in the list.
+   */
   public Map<Long, BaseContentItem> getLoadedContentItemsMap() {
     return loadedContentItemsMap;
   }
   
   public void addOrUpdateContentItem(BaseContentItem contentItem) {
-    boolean isAdd = !loadedContentItemsMap.containsKey(contentItem.getId());
+    boolean isAdd = !loadedSummariesMap.containsKey(contentItem.getId());
+    loadedSummariesMap.put(contentItem.getId(), new ContentItemSummary(contentItem));
     loadedContentItemsMap.put(contentItem.getId(), contentItem);
     // Change the filter if necessary so that the added/updated content item
     // is visible and selectable.
@@ -200,9 +365,10 @@ public class ContentItemListBox extends Composite {
   }
   
   public void addContentItems(List<BaseContentItem> contentItems) {
-    // Add to loadedContentItemsMap in reverse order to how the items were specified.
+    // Add to loadedSummariesMap in reverse order to how the items were specified.
     for (int i = contentItems.size() - 1; i >= 0; i--) {
       BaseContentItem contentItem = contentItems.get(i);
+      loadedSummariesMap.put(contentItem.getId(), new ContentItemSummary(contentItem));
       loadedContentItemsMap.put(contentItem.getId(), contentItem);
     }
     itemList.refresh();
@@ -210,20 +376,21 @@ public class ContentItemListBox extends Composite {
   
   public void removeContentItem(long contentItemId) {
     itemList.removeItemWithValue(String.valueOf(contentItemId));
+    loadedSummariesMap.remove(contentItemId);
     loadedContentItemsMap.remove(contentItemId);
   }
   
-  private boolean isSelected(BaseContentItem contentItem) {
+  private boolean isSelected(ContentItemSummary summary) {
     if (itemList.isMultipleSelect()) {
       for (String value : itemList.getSelectedItemValues()) {
-        if (Long.valueOf(value).equals(contentItem.getId())) {
+        if (Long.valueOf(value).equals(summary.getId())) {
           return true;
         }
       }
       return false;
     } else {
       return itemList.getSelectedItemValue() != null
-          && Long.valueOf(itemList.getSelectedItemValue()).equals(contentItem.getId());
+          && Long.valueOf(itemList.getSelectedItemValue()).equals(summary.getId());
     }
   }
 }
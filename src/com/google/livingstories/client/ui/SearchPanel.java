@@ -38,6 +38,7 @@ import com.google.livingstories.client.contentmanager.SearchTerms;
 import com.google.livingstories.client.util.DateUtil;
 import com.google.livingstories.client.util.LivingStoryData;
 
+import java.util.Date;
 import java.util.EnumSet;
 
 /**
@@ -63,6 +64,7 @@ public class SearchPanel extends Composite {
   private TextBox afterDate;
   private EnumDropdown<Importance> importance;
   private EnumDropdown<PublishState> publishState;
+  private TextBox query;
   private Button submitButton;
 
   private SearchHandler handler;
@@ -71,6 +73,7 @@ public class SearchPanel extends Composite {
     contentPanel = new VerticalPanel();
     
     filterGrid = new Grid(0, 2);
+    createQueryFilter();
     createPublishStateFilter();
     createContentItemTypeFilter();
     createContentItemSubtypeFilters();
@@ -85,6 +88,14 @@ public class SearchPanel extends Composite {
     initWidget(contentPanel);
   }
 
+  private void createQueryFilter() {
+    query = new TextBox();
+
+    int row = filterGrid.insertRow(filterGrid.getRowCount());
+    filterGrid.setWidget(row, 0, new Label("Containing words:"));
+    filterGrid.setWidget(row, 1, query);
+  }
+
   private void createPublishStateFilter() {
     publishState = EnumDropdown.newInstance(PublishState.class);
     publishState.selectConstant(PublishState.PUBLISHED);
@@ -176,15 +187,22 @@ public class SearchPanel extends Composite {
     SearchTerms searchTerms = new SearchTerms();
     searchTerms.livingStoryId = LivingStoryData.getLivingStoryId();
     searchTerms.contentItemType = contentItemType.getSelectedConstant();
+    searchTerms.playerType = playerType.getSelectedConstant();
     searchTerms.assetType = assetType.getSelectedConstant();
+    searchTerms.narrativeType = narrativeType.getSelectedConstant();
     if (!afterDate.getValue().isEmpty()) {
+      searchTerms.afterDate = new Date();
       DateUtil.parseShortDate(afterDate.getValue(), searchTerms.afterDate);
     }
     if (!beforeDate.getValue().isEmpty()) {
+      searchTerms.beforeDate = new Date();
       DateUtil.parseShortDate(beforeDate.getValue(), searchTerms.beforeDate);
     }
     searchTerms.importance = importance.getSelectedConstant();
     searchTerms.publishState = publishState.getSelectedConstant();
+    if (!query.getValue().trim().isEmpty()) {
+      searchTerms.query = query.getValue();
+    }
     return searchTerms;
   }
 
@@ -17,30 +17,37 @@
 package com.google.livingstories.client.ui;
 
 import com.google.gwt.core.client.GWT;
+import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.dom.client.ClickHandler;
 import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.ui.Button;
 import com.google.gwt.user.client.ui.Composite;
 import com.google.gwt.user.client.ui.VerticalPanel;
 import com.google.gwt.user.client.ui.Widget;
-import com.google.livingstories.client.BaseContentItem;
 import com.google.livingstories.client.ContentRpcService;
 import com.google.livingstories.client.ContentRpcServiceAsync;
 import com.google.livingstories.client.contentitemlist.ContentItemClickHandler;
+import com.google.livingstories.client.contentmanager.ContentManagerConstants;
+import com.google.livingstories.client.contentmanager.SearchResults;
 import com.google.livingstories.client.contentmanager.SearchResultsList;
 import com.google.livingstories.client.contentmanager.SearchTerms;
 import com.google.livingstories.client.ui.SearchPanel.SearchHandler;
 
-import java.util.List;
-
 /**
  * Page that hooks up a search panel to a content item list, allowing search
  * over the entire corpus of content items.
  */
 public class SearchWidget extends Composite {
   private final ContentRpcServiceAsync contentService = GWT.create(ContentRpcService.class);
+  private static ContentManagerConstants consts = GWT.create(ContentManagerConstants.class);
   
   private VerticalPanel contentPanel;
   private SearchPanel searchPanel;
   private SearchResultsList contentItemList;
+  private Button moreButton;
+  
+  // The search whose results are showing, with its cursor set to fetch the next page.
+  private SearchTerms currentSearch;
   
   public SearchWidget(ContentItemClickHandler handler) {
     contentPanel = new VerticalPanel();
@@ -48,6 +55,7 @@ public class SearchWidget extends Composite {
     contentItemList = new SearchResultsList(handler);
     
     contentPanel.add(contentItemList);
+    contentPanel.add(createMoreButton());
     initWidget(contentPanel);
   }
   
@@ -55,20 +63,58 @@ public class SearchWidget extends Composite {
     searchPanel = new SearchPanel();
     searchPanel.addSearchHandler(new SearchHandler() {
       public void onSearch(SearchTerms searchTerms) {
-        contentService.executeSearch(searchTerms, new AsyncCallback<List<BaseContentItem>>() {
-          public void onFailure(Throwable t) {
-            // Ignore;
-          }
-          public void onSuccess(List<BaseContentItem> contentItems) {
-            contentItemList.load(contentItems);
-          }
-        });
+        currentSearch = searchTerms;
+        moreButton.setVisible(false);
+        contentService.executeSearch(searchTerms, new ResultsCallback(searchTerms, true));
       }
     });
     return searchPanel;    
   }
   
+  private Widget createMoreButton() {
+    moreButton = new Button(consts.moreSearchResults());
+    moreButton.setVisible(false);
+    moreButton.addClickHandler(new ClickHandler() {
+      public void onClick(ClickEvent e) {
+        moreButton.setEnabled(false);
+        contentService.executeSearch(currentSearch, new ResultsCallback(currentSearch, false));
+      }
+    });
+    return moreButton;
+  }
+  
   public void clear() {
+    currentSearch = null;
     contentItemList.clear();
+    moreButton.setVisible(false);
+  }
+  
+  private class ResultsCallback implements AsyncCallback<SearchResults> {
+    private final SearchTerms searchTerms;
+    private final boolean firstPage;
+    
+    public ResultsCallback(SearchTerms searchTerms, boolean firstPage) {
+      this.searchTerms = searchTerms;
+      this.firstPage = firstPage;
+    }
+    
+    public void onFailure(Throwable t) {
+      moreButton.setEnabled(true);
+    }
+    
+    public void onSuccess(SearchResults results) {
+      if (searchTerms != currentSearch) {
+        // A newer search has been started since this one.
+        return;
+      }
+      if (firstPage) {
+        contentItemList.load(results.getContentItems());
+      } else {
+        contentItemList.append(results.getContentItems());
+      }
+      searchTerms.cursor = results.getNextCursor();
+      moreButton.setEnabled(true);
+      moreButton.setVisible(searchTerms.cursor != null);
+    }
   }
 }
@@ -16,7 +16,7 @@
 
 package com.google.livingstories.client.ui;
 
-import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.ContentItemSummary;
 import com.google.livingstories.client.util.GlobalUtil;
 
 import java.util.Collections;
@@ -65,9 +65,9 @@ public class SuggestionAwareContentItemListBox extends ContentItemListBox {
   }
   
   @Override
-  protected boolean testContentItem(BaseContentItem contentItem) {
+  protected boolean testContentItem(ContentItemSummary summary) {
     return (SUGGESTIONS_TEXT.equals(filter.getSelectedValue())
-        ? suggestedContentItemIds.contains(contentItem.getId())
-        : super.testContentItem(contentItem));
+        ? suggestedContentItemIds.contains(summary.getId())
+        : super.testContentItem(summary));
   }
 }
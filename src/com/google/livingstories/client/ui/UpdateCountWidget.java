@@ -21,6 +21,7 @@ import com.google.gwt.i18n.client.LocaleInfo;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.Composite;
 import com.google.gwt.user.client.ui.Label;
+import com.google.livingstories.client.ClientCaches;
 import com.google.livingstories.client.ClientMessageHolder;
 import com.google.livingstories.client.ContentRpcService;
 import com.google.livingstories.client.ContentRpcServiceAsync;
@@ -43,21 +44,31 @@ public class UpdateCountWidget extends Composite {
 
   public void load(long livingStoryId, final Date lastVisitTime) {
     if (lastVisitTime != null) {
+      // The count usually comes embedded in the page.
+      Integer bootstrapCount = ClientCaches.getBootstrapUpdateCount(livingStoryId, lastVisitTime);
+      if (bootstrapCount != null) {
+        showCount(bootstrapCount);
+        return;
+      }
       contentService.getUpdateCountSinceTime(livingStoryId, lastVisitTime,
           new AsyncCallback<Integer>() {
             @Override
             public void onFailure(Throwable caught) {}
             @Override
             public void onSuccess(Integer result) {
-              // We use a special "No updates" string if the locale is English here, but this
-              // mechanism won't work in the general case, where we should simply fall back on a
-              // string that may just directly include the numeral 0.
-              label.setText(
-                  (result == 0 && LocaleInfo.getCurrentLocale().getLocaleName().startsWith("en"))
-                  ? "No updates since last visit"
-                  : ClientMessageHolder.msgs.updatesSinceLastVisit(result));
+              showCount(result);
             }
           });
     }
   }
+  
+  private void showCount(int count) {
+    // We use a special "No updates" string if the locale is English here, but this
+    // mechanism won't work in the general case, where we should simply fall back on a
+    // string that may just directly include the numeral 0.
+    label.setText(
+        (count == 0 && LocaleInfo.getCurrentLocale().getLocaleName().startsWith("en"))
+        ? "No updates since last visit"
+        : ClientMessageHolder.msgs.updatesSinceLastVisit(count));
+  }
 }
@@ -131,6 +131,14 @@ public class LivingStoryData {
     return getLivingStoryData().getStringValue("LOGO_LOCATION");
   }
   
+  /**
+   * Returns the GWT-RPC encoded LivingStoryBootstrap embedded in the page, or null if there
+   * isn't one.
+   */
+  public static String getBootstrapPayload() {
+    return getLivingStoryData().getStringValue("BOOTSTRAP");
+  }
+  
   private static final class LivingStoryObject extends JavaScriptObject {
     @SuppressWarnings("unused")
     protected LivingStoryObject() {}
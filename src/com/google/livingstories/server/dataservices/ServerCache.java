@@ -16,6 +16,9 @@
 
 package com.google.livingstories.server.dataservices;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * Interface for a server side caching system.
  */
@@ -23,8 +26,27 @@ public interface ServerCache {
   public <T> T get(String key);
 
   public <T> void put(String key, T value);
+
+  /**
+   * Returns the values stored under any of the keys, fetched together in one round trip if the
+   * cache supports it. Keys with no value are left out of the map.
+   */
+  public Map<String, Object> getAll(Collection<String> keys);
+
+  /**
+   * Stores each of the values under its key, together in one round trip if the cache supports
+   * it. The values aren't written atomically; another writer may see some written and not
+   * others.
+   */
+  public void putAll(Map<String, ?> values);
   
   public void remove(String key);
   
   public void clear();
+
+  /**
+   * Atomically adds delta to the counter stored under key, first setting it to initialValue if
+   * there's no counter there. Returns the new value, or null if the cache couldn't be updated.
+   */
+  public Long increment(String key, long delta, long initialValue);
 }
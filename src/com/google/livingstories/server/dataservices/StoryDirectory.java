@@ -0,0 +1,82 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices;
+
+import com.google.livingstories.client.LivingStory;
+import com.google.livingstories.client.PublishState;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every living story, with only the latest revisions of its summary, indexed by id and by URL
+ * name. This is what page renders look stories up in, so that they don't need to query the
+ * datastore. Instances are cached and shared between requests, so they're immutable.
+ */
+public class StoryDirectory implements Serializable {
+  private final List<LivingStory> stories;
+  private final Map<Long, LivingStory> storiesById;
+  private final Map<String, LivingStory> storiesByUrl;
+
+  /**
+   * @param stories every story, in the order that they should be listed in
+   */
+  public StoryDirectory(List<LivingStory> stories) {
+    this.stories = new ArrayList<LivingStory>(stories);
+    this.storiesById = new HashMap<Long, LivingStory>();
+    this.storiesByUrl = new HashMap<String, LivingStory>();
+    for (LivingStory story : stories) {
+      storiesById.put(story.getId(), story);
+      // Story URLs are meant to be unique. If they're not, the first story wins, as it would
+      // for a datastore query.
+      if (!storiesByUrl.containsKey(story.getUrl())) {
+        storiesByUrl.put(story.getUrl(), story);
+      }
+    }
+  }
+
+  /**
+   * Returns the story with the given id, or null if there isn't one.
+   */
+  public LivingStory getById(Long id) {
+    return storiesById.get(id);
+  }
+
+  /**
+   * Returns the story with the given URL name, or null if there isn't one.
+   */
+  public LivingStory getByUrl(String urlName) {
+    return storiesByUrl.get(urlName);
+  }
+
+  /**
+   * Returns a new list of the stories in the given publish state, or of every story if
+   * publishState is null.
+   */
+  public List<LivingStory> getAll(PublishState publishState) {
+    List<LivingStory> result = new ArrayList<LivingStory>();
+    for (LivingStory story : stories) {
+      if (publishState == null || story.getPublishState() == publishState) {
+        result.add(story);
+      }
+    }
+    return result;
+  }
+}
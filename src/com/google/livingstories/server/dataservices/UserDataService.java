@@ -26,6 +26,14 @@ import java.util.Map;
  */
 public interface UserDataService {
   
+  /**
+   * Return everything stored about the given user, including visits that haven't been saved
+   * yet. Callers that need several pieces of user data for a page should use this, rather than
+   * the individual getters, to fetch it all at once.
+   * @param userId identifier for a user
+   */
+  UserState getUserState(String userId);
+  
   /**
    * Return the last time the given user visited the given living story. If no data exists for 
    * this user and this story, return null.
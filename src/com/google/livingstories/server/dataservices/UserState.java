@@ -0,0 +1,141 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices;
+
+import com.google.livingstories.client.FilterSpec;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Everything stored about one user: their default story view preference, plus their visit and
+ * email subscription data for each story they've visited. Instances are cached and shared
+ * between requests, so they're immutable; {@link #withVisits} returns a modified copy.
+ */
+public class UserState implements Serializable {
+  private String defaultStoryView;
+  private Map<Long, StoryState> storyStates;
+
+  /**
+   * A user's data for one story.
+   */
+  public static class StoryState implements Serializable {
+    private Date lastVisitedTime;
+    private int visitCount;
+    private boolean subscribedToEmails;
+    private String subscriptionLocale;
+
+    public StoryState(Date lastVisitedTime, int visitCount, boolean subscribedToEmails,
+        String subscriptionLocale) {
+      this.lastVisitedTime = lastVisitedTime;
+      this.visitCount = visitCount;
+      this.subscribedToEmails = subscribedToEmails;
+      this.subscriptionLocale = subscriptionLocale;
+    }
+
+    public Date getLastVisitedTime() {
+      return lastVisitedTime;
+    }
+
+    public int getVisitCount() {
+      return visitCount;
+    }
+
+    public boolean isSubscribedToEmails() {
+      return subscribedToEmails;
+    }
+
+    public String getSubscriptionLocale() {
+      return subscriptionLocale;
+    }
+  }
+
+  /**
+   * @param defaultStoryView the filter params of the user's default story view, or null
+   * @param storyStates the user's data for each story they've visited, by living story id
+   */
+  public UserState(String defaultStoryView, Map<Long, StoryState> storyStates) {
+    this.defaultStoryView = defaultStoryView;
+    this.storyStates = new HashMap<Long, StoryState>(storyStates);
+  }
+
+  /**
+   * Returns the state of a user that nothing is stored about.
+   */
+  public static UserState empty() {
+    return new UserState(null, Collections.<Long, StoryState>emptyMap());
+  }
+
+  public FilterSpec getDefaultStoryView() {
+    return defaultStoryView == null ? null : new FilterSpec(defaultStoryView);
+  }
+
+  /**
+   * Returns the user's data for the story, or null if they've never visited it.
+   */
+  public StoryState getStoryState(Long livingStoryId) {
+    return storyStates.get(livingStoryId);
+  }
+
+  public Date getLastVisitTimeForStory(Long livingStoryId) {
+    StoryState storyState = storyStates.get(livingStoryId);
+    return storyState == null ? null : storyState.lastVisitedTime;
+  }
+
+  public boolean isSubscribedToEmails(Long livingStoryId) {
+    StoryState storyState = storyStates.get(livingStoryId);
+    return storyState == null ? false : storyState.subscribedToEmails;
+  }
+
+  public int getVisitCountForStory(Long livingStoryId) {
+    StoryState storyState = storyStates.get(livingStoryId);
+    return storyState == null ? 0 : storyState.visitCount;
+  }
+
+  /**
+   * Returns a map from living story id to last visit time, for every story the user has
+   * visited.
+   */
+  public Map<Long, Date> getAllLastVisitTimes() {
+    Map<Long, Date> visitTimesMap = new HashMap<Long, Date>();
+    for (Map.Entry<Long, StoryState> entry : storyStates.entrySet()) {
+      visitTimesMap.put(entry.getKey(), entry.getValue().lastVisitedTime);
+    }
+    return visitTimesMap;
+  }
+
+  /**
+   * Returns a copy of this state with visitCount more visits to the story, the latest of which
+   * was at lastVisitedTime.
+   */
+  public UserState withVisits(Long livingStoryId, Date lastVisitedTime, int visitCount) {
+    StoryState storyState = storyStates.get(livingStoryId);
+    UserState result = new UserState(defaultStoryView, storyStates);
+    if (storyState == null) {
+      result.storyStates.put(livingStoryId,
+          new StoryState(lastVisitedTime, visitCount, false, null));
+    } else {
+      result.storyStates.put(livingStoryId, new StoryState(lastVisitedTime,
+          storyState.visitCount + visitCount, storyState.subscribedToEmails,
+          storyState.subscriptionLocale));
+    }
+    return result;
+  }
+}
@@ -659,30 +659,59 @@ public class BaseContentEntity
     return sb.toString();
   }
   
+  /**
+   * How much of an entity {@link #toClientObject(Projection)} converts.
+   */
+  public enum Projection {
+    /** Every field, as the client pages and the content manager need. */
+    FULL,
+    /**
+     * Everything except the long html fields and the items they refer to: the content, event
+     * summary and narrative summary are left empty, the source description and location
+     * description aren't read, and the source content item and player photo aren't fetched.
+     * Story players still fetch their parent player, since that's where the name comes from.
+     *
+     * Only for server code that looks at ids, types, dates, names and the like, such as cache
+     * invalidation and auto-linking, or for pages that only show headlines. A summary must never
+     * be cached or returned where a full item is expected.
+     */
+    SUMMARY
+  }
+
   public BaseContentItem toClientObject() {
-    BaseContentItem ret = toClientObjectImpl();
+    return toClientObject(Projection.FULL);
+  }
+
+  public BaseContentItem toClientObject(Projection projection) {
+    boolean full = projection == Projection.FULL;
+    BaseContentItem ret = toClientObjectImpl(projection);
     ret.setPublishState(publishState);
     ret.setThemeIds(themeIds);
     ret.setLinkedContentItemIds(linkedContentEntityIds);
-    ret.setLocation(location.toClientObject());
+    ret.setLocation(full ? location.toClientObject()
+        : new Location(location.getLatitude(), location.getLongitude(), ""));
     ret.setTimeElapsedSinceLastUpdate(TimeUtil.getElapsedTimeString(this.timestamp));
     
-    BaseContentItem sourceContentItem = null;
-    Long sourceContentEntityId = getSourceContentEntityId();
-    if (sourceContentEntityId != null) {
-      try {
-        sourceContentItem = new ContentRpcImpl().getContentItem(sourceContentEntityId, false);
-      } catch (JDOException ex) {
-        // leave sourceContentEntity as null;
+    if (full) {
+      BaseContentItem sourceContentItem = null;
+      Long sourceContentEntityId = getSourceContentEntityId();
+      if (sourceContentEntityId != null) {
+        try {
+          sourceContentItem = new ContentRpcImpl().getContentItem(sourceContentEntityId, false);
+        } catch (JDOException ex) {
+          // leave sourceContentEntity as null;
+        }
       }
+      ret.setSourceContentItem(sourceContentItem);
+      ret.setSourceDescription(getSourceDescription());
     }
-    ret.setSourceContentItem(sourceContentItem);
-    ret.setSourceDescription(getSourceDescription());
     
     return ret;
   }
   
-  private BaseContentItem toClientObjectImpl() {
+  private BaseContentItem toClientObjectImpl(Projection projection) {
+    boolean full = projection == Projection.FULL;
+    String content = full ? getContent() : "";
     switch (getContentItemType()) {
       case EVENT:
         if (getEventUpdate().isEmpty()) {
@@ -690,13 +719,13 @@ public class BaseContentEntity
         } else {
           return new EventContentItem(getId(), getTimestamp(), getContributorIds(),
               getImportance(), getLivingStoryId(), getEventStartDate(), getEventEndDate(), 
-              getEventUpdate(), getEventSummary(), getContent());
+              getEventUpdate(), full ? getEventSummary() : "", content);
         }
       case PLAYER:
         Long livingStoryId = getLivingStoryId();
         if (livingStoryId == null) {
           AssetContentItem photoContentItem = null;
-          if (getPhotoContentEntityId() != null) {
+          if (full && getPhotoContentEntityId() != null) {
             try {
               photoContentItem = (AssetContentItem) new ContentRpcImpl().getContentItem(
                   getPhotoContentEntityId(), false);
@@ -704,35 +733,35 @@ public class BaseContentEntity
               // leave photoContentItem as null;
             }
           }
-          return new PlayerContentItem(getId(), getTimestamp(), getContributorIds(), getContent(), 
+          return new PlayerContentItem(getId(), getTimestamp(), getContributorIds(), content, 
               getImportance(), getName(), getAliases(), getPlayerType(), photoContentItem);
         } else {
           return new StoryPlayerContentItem(getId(), getTimestamp(), getContributorIds(),
-              getContent(), getImportance(), livingStoryId,
+              content, getImportance(), livingStoryId,
               (PlayerContentItem) new ContentRpcImpl().getContentItem(
-                  getParentPlayerContentEntityId(), false));
+                  getParentPlayerContentEntityId(), projection));
         }
       case QUOTE:
         return new QuoteContentItem(getId(), getTimestamp(), getContributorIds(),
-            getContent(), getImportance(), getLivingStoryId());
+            content, getImportance(), getLivingStoryId());
       case BACKGROUND:
         return new BackgroundContentItem(getId(), getTimestamp(), getContributorIds(),
-            getContent(), getImportance(), getLivingStoryId(), getName());
+            content, getImportance(), getLivingStoryId(), getName());
       case DATA:
         return new DataContentItem(getId(), getTimestamp(), getContributorIds(),
-            getContent(), getImportance(), getLivingStoryId());
+            content, getImportance(), getLivingStoryId());
       case ASSET:
         return new AssetContentItem(getId(), getTimestamp(), getContributorIds(),
-            getContent(), getImportance(), getLivingStoryId(),
+            content, getImportance(), getLivingStoryId(),
             getAssetType(), getCaption(), getPreviewUrl());
       case NARRATIVE:
         return new NarrativeContentItem(getId(), getTimestamp(), getContributorIds(),
-            getContent(), getImportance(), getLivingStoryId(),
+            content, getImportance(), getLivingStoryId(),
             getHeadline(), getNarrativeType(), isStandalone(), getNarrativeDate(), 
-            getNarrativeSummary());
+            full ? getNarrativeSummary() : "");
       case REACTION:
         return new ReactionContentItem(getId(), getTimestamp(), getContributorIds(),
-            getContent(), getImportance(), getLivingStoryId());
+            content, getImportance(), getLivingStoryId());
       default:
         throw new IllegalStateException("Unknown Content Item Type");
     }
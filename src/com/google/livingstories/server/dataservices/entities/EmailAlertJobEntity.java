@@ -0,0 +1,225 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices.entities;
+
+import com.google.appengine.api.datastore.Text;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.jdo.annotations.IdGeneratorStrategy;
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * An entry in the email alert outbox: the alert for one published event, to be sent to every
+ * subscriber of its living story. The job records how far through the subscribers it has got,
+ * so that a worker that dies part way through can be resumed without sending to the same
+ * subscribers twice.
+ *
+ * Subscribers are read a page at a time, starting at the datastore cursor in pageCursor. Within
+ * a page, one message is sent per subscription locale, and each locale is added to
+ * sentPageLocales once its message has gone out. When the whole page has been sent, the cursor
+ * moves on and sentPageLocales is cleared.
+ *
+ * A worker claims a lease on the job before working on it, so that workers started by a task
+ * retry, a re-enqueued task and the stalled job sweep can't send the same page at once.
+ */
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
+public class EmailAlertJobEntity {
+  @PrimaryKey
+  @Persistent(valueStrategy = IdGeneratorStrategy.IDENTITY)
+  private Long id;
+
+  @Persistent
+  private Long livingStoryId;
+
+  @Persistent
+  private Long contentItemId;
+
+  // The values for the email template's placeholders, as a JSON object. These are worked out
+  // when the job is created, since some of them depend on the request that published the event.
+  @Persistent
+  private Text placeholders;
+
+  @Persistent
+  private String fromAddress;
+
+  @Persistent
+  private Text pageCursor;
+
+  @Persistent
+  private List<String> sentPageLocales;
+
+  @Persistent
+  private Integer sentCount;
+
+  @Persistent
+  private Integer failedAttempts;
+
+  @Persistent
+  private boolean finished = false;
+
+  @Persistent
+  private Date creationTime;
+
+  @Persistent
+  private Date lastUpdateTime;
+
+  @Persistent
+  private String leaseOwner;
+
+  @Persistent
+  private Date leaseExpiryTime;
+
+  public EmailAlertJobEntity(Long livingStoryId, Long contentItemId, String placeholders,
+      String fromAddress) {
+    this.livingStoryId = livingStoryId;
+    this.contentItemId = contentItemId;
+    this.placeholders = new Text(placeholders);
+    this.fromAddress = fromAddress;
+    this.sentPageLocales = new ArrayList<String>();
+    this.sentCount = 0;
+    this.failedAttempts = 0;
+    this.creationTime = new Date();
+    this.lastUpdateTime = creationTime;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public Long getLivingStoryId() {
+    return livingStoryId;
+  }
+
+  public Long getContentItemId() {
+    return contentItemId;
+  }
+
+  public String getPlaceholders() {
+    return placeholders.getValue();
+  }
+
+  public String getFromAddress() {
+    return fromAddress;
+  }
+
+  /**
+   * Returns the web-safe form of the cursor at the start of the current page of subscribers,
+   * or null for the first page.
+   */
+  public String getPageCursor() {
+    return pageCursor == null ? null : pageCursor.getValue();
+  }
+
+  public List<String> getSentPageLocales() {
+    return sentPageLocales == null ? new ArrayList<String>() : sentPageLocales;
+  }
+
+  /**
+   * Records that the message for locale has been sent to the given number of subscribers on
+   * the current page.
+   */
+  public void addSentPageLocale(String locale, int recipientCount) {
+    // Assign a new list, rather than modifying the persistent one, so that the change is seen.
+    List<String> locales = new ArrayList<String>(getSentPageLocales());
+    locales.add(locale);
+    sentPageLocales = locales;
+    sentCount = getSentCount() + recipientCount;
+    failedAttempts = 0;
+    lastUpdateTime = new Date();
+  }
+
+  /**
+   * Moves on to the page of subscribers starting at nextPageCursor, or finishes the job if
+   * nextPageCursor is null.
+   */
+  public void advancePage(String nextPageCursor) {
+    pageCursor = nextPageCursor == null ? null : new Text(nextPageCursor);
+    sentPageLocales = new ArrayList<String>();
+    finished = nextPageCursor == null;
+    lastUpdateTime = new Date();
+  }
+
+  public int getSentCount() {
+    return sentCount == null ? 0 : sentCount;
+  }
+
+  public int getFailedAttempts() {
+    return failedAttempts == null ? 0 : failedAttempts;
+  }
+
+  public void recordFailedAttempt() {
+    failedAttempts = getFailedAttempts() + 1;
+    lastUpdateTime = new Date();
+  }
+
+  public boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Gives up on the job, e.g. after too many failed attempts.
+   */
+  public void abandon() {
+    finished = true;
+    lastUpdateTime = new Date();
+  }
+
+  public Date getCreationTime() {
+    return creationTime;
+  }
+
+  public Date getLastUpdateTime() {
+    return lastUpdateTime;
+  }
+
+  /**
+   * Claims the job for the given worker for durationMillis, and returns true, unless another
+   * worker's lease on it hasn't run out yet.
+   */
+  public boolean claimLease(String owner, long durationMillis) {
+    Date now = new Date();
+    if (leaseExpiryTime != null && leaseExpiryTime.after(now)) {
+      return false;
+    }
+    leaseOwner = owner;
+    leaseExpiryTime = new Date(now.getTime() + durationMillis);
+    return true;
+  }
+
+  /**
+   * Gives up the given worker's lease, if it still holds it.
+   */
+  public void releaseLease(String owner) {
+    if (owner.equals(leaseOwner)) {
+      leaseOwner = null;
+      leaseExpiryTime = null;
+    }
+  }
+
+  /**
+   * Marks the job as being worked on now, so that it isn't picked up as stalled.
+   */
+  public void touch() {
+    lastUpdateTime = new Date();
+  }
+}
@@ -16,12 +16,17 @@
 
 package com.google.livingstories.server.dataservices.impl;
 
+import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.InvalidValueException;
+import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.memcache.stdimpl.GCacheException;
 import com.google.appengine.api.memcache.stdimpl.GCacheFactory;
 import com.google.livingstories.server.dataservices.ServerCache;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -35,6 +40,10 @@ import javax.cache.CacheManager;
  */
 public class AppEngineCacheImpl implements ServerCache {
   private Cache memcache;
+  // The JCache interface has no atomic increment, so counters go through the low-level API,
+  // which shares the same key space.
+  private MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+  private int expirationSeconds;
 
   /**
    * Configures a cache instance with an expiration of expirationSeconds.
@@ -42,6 +51,7 @@ public class AppEngineCacheImpl implements ServerCache {
    */
   @SuppressWarnings("unchecked")
   public AppEngineCacheImpl(int expirationSeconds) {
+    this.expirationSeconds = expirationSeconds;
     Map properties = new HashMap();
     if (expirationSeconds > 0) {
       properties.put(GCacheFactory.EXPIRATION_DELTA, expirationSeconds);
@@ -78,6 +88,32 @@ public class AppEngineCacheImpl implements ServerCache {
     }
   }
   
+  // The JCache interface has no batch get or put either, so these also go through the low-level
+  // API.
+  public Map<String, Object> getAll(Collection<String> keys) {
+    Map<String, Object> values = new HashMap<String, Object>();
+    try {
+      for (Map.Entry<Object, Object> entry
+          : memcacheService.getAll(new ArrayList<Object>(keys)).entrySet()) {
+        values.put((String) entry.getKey(), entry.getValue());
+      }
+    } catch (InvalidValueException ex) {
+      values.clear();
+    } catch (MemcacheServiceException ex) {
+      values.clear();
+    }
+    return values;
+  }
+
+  public void putAll(Map<String, ?> values) {
+    try {
+      memcacheService.putAll(new HashMap<Object, Object>(values),
+          expirationSeconds > 0 ? Expiration.byDeltaSeconds(expirationSeconds) : null);
+    } catch (MemcacheServiceException ex) {
+      memcacheService.deleteAll(new ArrayList<Object>(values.keySet()));
+    }
+  }
+
   public void remove(String key) {
     memcache.remove(key);
   }
@@ -85,4 +121,14 @@ public class AppEngineCacheImpl implements ServerCache {
   public void clear() {
     memcache.clear();
   }
+
+  public Long increment(String key, long delta, long initialValue) {
+    try {
+      return memcacheService.increment(key, delta, initialValue);
+    } catch (InvalidValueException ex) {
+      return null;
+    } catch (MemcacheServiceException ex) {
+      return null;
+    }
+  }
 }
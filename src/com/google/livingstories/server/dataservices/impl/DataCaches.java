@@ -0,0 +1,161 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices.impl;
+
+import com.google.livingstories.server.dataservices.ServerCache;
+import com.google.livingstories.server.dataservices.StoryDirectory;
+import com.google.livingstories.server.dataservices.UserState;
+import com.google.livingstories.server.util.MetricsRegistry;
+
+/**
+ * Holds the app's shared cache instance, and the cache methods that the data services use.
+ * {@link com.google.livingstories.server.rpcimpl.Caches} keeps the RPC layer's cached values in
+ * the same instance, through {@link #getCache}.
+ */
+public class DataCaches {
+  private static final long NEAR_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+  private static final long NEAR_CACHE_REVALIDATE_MILLIS = 1000;
+  // Value sizes are only recorded for a sample of puts, since it means serializing them again.
+  private static final int VALUE_SIZE_SAMPLE_INTERVAL = 64;
+
+  // Use a no-expiration memcache to store the most commonly used things. Values are also kept
+  // in an in-process near cache, so that hot entries don't need a memcache round trip and
+  // deserialization on every request. Use is recorded both in front of the near cache, under
+  // "app", and between it and memcache, under "memcache", so the two hit rates can be compared.
+  private static final NearCacheImpl nearCache = new NearCacheImpl(
+      new InstrumentedCacheImpl("memcache", new AppEngineCacheImpl(0), 0),
+      NEAR_CACHE_MAX_BYTES, NEAR_CACHE_REVALIDATE_MILLIS);
+  private static final ServerCache noExpirationCache =
+      new InstrumentedCacheImpl("app", nearCache, VALUE_SIZE_SAMPLE_INTERVAL);
+
+  static {
+    MetricsRegistry.registerGauge("nearCache.entries", new MetricsRegistry.Gauge() {
+      public long getValue() {
+        return nearCache.getNearEntryCount();
+      }
+    });
+    MetricsRegistry.registerGauge("nearCache.weightBytes", new MetricsRegistry.Gauge() {
+      public long getValue() {
+        return nearCache.getNearWeightBytes();
+      }
+    });
+    MetricsRegistry.registerGauge("nearCache.maxWeightBytes", new MetricsRegistry.Gauge() {
+      public long getValue() {
+        return NEAR_CACHE_MAX_BYTES;
+      }
+    });
+    MetricsRegistry.registerGauge("nearCache.evictions", new MetricsRegistry.Gauge() {
+      public long getValue() {
+        return nearCache.getNearEvictionCount();
+      }
+    });
+  }
+
+  private DataCaches() {}
+
+  public static ServerCache getCache() {
+    return noExpirationCache;
+  }
+
+  /** Story directory cache methods **/
+  
+  // The directory is stored under a key that includes a generation number, which is bumped
+  // whenever a story is saved or deleted.
+  
+  /**
+   * Returns the current directory generation, or null if it can't be determined, in which case
+   * the directory shouldn't be cached. Read this before building a directory, and store the
+   * directory under it, so that a change made during the build isn't lost.
+   */
+  public static Long getStoryDirectoryGeneration() {
+    return getGeneration(getStoryDirectoryGenerationKey());
+  }
+  
+  public static StoryDirectory getStoryDirectory(Long generation) {
+    return noExpirationCache.get(getStoryDirectoryCacheKey(generation));
+  }
+  
+  public static void setStoryDirectory(Long generation, StoryDirectory directory) {
+    noExpirationCache.put(getStoryDirectoryCacheKey(generation), directory);
+  }
+  
+  public static void clearStoryDirectory() {
+    bumpGeneration(getStoryDirectoryGenerationKey());
+  }
+  
+  private static String getStoryDirectoryGenerationKey() {
+    return "storyDirectoryGeneration";
+  }
+  
+  private static String getStoryDirectoryCacheKey(Long generation) {
+    return "storyDirectory:" + generation;
+  }
+
+  /** User state cache methods **/
+
+  // Each user's state is stored under a per-user generation number, which is bumped whenever
+  // their stored data changes. A state loaded before a change is stored under the old
+  // generation, so it can't overwrite the change's effect, and is never read again.
+
+  /**
+   * Returns the user's current state generation, or null if it can't be determined, in which
+   * case the state shouldn't be cached. Read this before loading the state, and store the state
+   * under it.
+   */
+  public static Long getUserStateGeneration(String userId) {
+    return getGeneration(getUserStateGenerationKey(userId));
+  }
+
+  public static UserState getUserState(String userId, Long generation) {
+    return noExpirationCache.get(getUserStateCacheKey(userId, generation));
+  }
+
+  public static void setUserState(String userId, Long generation, UserState userState) {
+    noExpirationCache.put(getUserStateCacheKey(userId, generation), userState);
+  }
+
+  public static void clearUserState(String userId) {
+    bumpGeneration(getUserStateGenerationKey(userId));
+  }
+
+  private static String getUserStateGenerationKey(String userId) {
+    return "userStateGeneration:" + userId;
+  }
+
+  private static String getUserStateCacheKey(String userId, Long generation) {
+    return "userState:" + userId + ":" + generation;
+  }
+
+  /** Generation counter helpers **/
+  
+  /**
+   * Returns the generation counter stored under key, or null if it can't be determined. If the
+   * counter is missing, e.g. because memcache evicted it, it's restarted from the current time,
+   * which is later than any generation that the old counter could have reached.
+   */
+  public static Long getGeneration(String generationKey) {
+    Long generation = noExpirationCache.get(generationKey);
+    if (generation == null) {
+      generation = noExpirationCache.increment(generationKey, 0, System.currentTimeMillis());
+    }
+    return generation;
+  }
+  
+  public static void bumpGeneration(String generationKey) {
+    noExpirationCache.increment(generationKey, 1, System.currentTimeMillis());
+  }
+}
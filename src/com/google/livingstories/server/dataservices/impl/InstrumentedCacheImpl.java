@@ -0,0 +1,205 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices.impl;
+
+import com.google.livingstories.server.dataservices.ServerCache;
+import com.google.livingstories.server.util.Histogram;
+import com.google.livingstories.server.util.MetricsRegistry;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ServerCache decorator that records how the cache it wraps is used, in the
+ * {@link MetricsRegistry}. Metrics are kept per key family, which is the part of the key before
+ * the first ':', e.g. "displayContentItemBundle". For each family, under
+ * "cache.&lt;name&gt;.&lt;family&gt;.", it records:
+ * <ul>
+ * <li>hits, misses, puts and evictions, where an eviction is a remove or a nonzero increment,
+ *     since generation counters are only incremented to retire the entries stored under them
+ * <li>getMicros, a histogram of the time taken by gets
+ * <li>loadMicros, a histogram of the time from a miss to the put of the same key by the same
+ *     thread, which is how long it took to work out the missing value
+ * <li>valueBytes, a histogram of the serialized size of a sample of the values put, if enabled.
+ *     Only one put in every valueSizeSampleInterval is measured, since measuring means
+ *     serializing the value again.
+ * </ul>
+ */
+public class InstrumentedCacheImpl implements ServerCache {
+  // Misses that aren't followed by a put within this time, e.g. because the load failed, are
+  // forgotten.
+  private static final long MAX_LOAD_NANOS = 60L * 1000 * 1000 * 1000;
+  private static final int MAX_PENDING_LOADS = 64;
+
+  private final String name;
+  private final ServerCache delegate;
+  private final int valueSizeSampleInterval;
+  private final ConcurrentMap<String, FamilyMetrics> families =
+      new ConcurrentHashMap<String, FamilyMetrics>();
+  private final AtomicLong clearCount;
+
+  // The time of each miss on this thread that hasn't been followed by a put yet.
+  private final ThreadLocal<Map<String, Long>> pendingLoads =
+      new ThreadLocal<Map<String, Long>>() {
+        @Override
+        protected Map<String, Long> initialValue() {
+          return new HashMap<String, Long>();
+        }
+      };
+
+  /**
+   * @param name the name under which this cache's metrics are recorded
+   * @param delegate the cache to record the use of
+   * @param valueSizeSampleInterval record the size of the first value put in each family, and
+   *     of every valueSizeSampleInterval-th one after that, or 0 not to record value sizes.
+   *     Each recorded size costs about as much as the put itself, since the value is
+   *     serialized to measure it.
+   */
+  public InstrumentedCacheImpl(String name, ServerCache delegate, int valueSizeSampleInterval) {
+    this.name = name;
+    this.delegate = delegate;
+    this.valueSizeSampleInterval = valueSizeSampleInterval;
+    this.clearCount = MetricsRegistry.counter("cache." + name + ".clears");
+  }
+
+  @Override
+  public <T> T get(String key) {
+    long start = System.nanoTime();
+    T value = delegate.<T>get(key);
+    long end = System.nanoTime();
+    recordGet(key, value != null, end - start, end);
+    return value;
+  }
+
+  @Override
+  public <T> void put(String key, T value) {
+    recordPut(key, value);
+    delegate.put(key, value);
+  }
+
+  /**
+   * Records each key as a separate get, each taking as long as the whole batch did.
+   */
+  @Override
+  public Map<String, Object> getAll(Collection<String> keys) {
+    long start = System.nanoTime();
+    Map<String, Object> values = delegate.getAll(keys);
+    long end = System.nanoTime();
+    for (String key : keys) {
+      recordGet(key, values.get(key) != null, end - start, end);
+    }
+    return values;
+  }
+
+  @Override
+  public void putAll(Map<String, ?> values) {
+    for (Map.Entry<String, ?> entry : values.entrySet()) {
+      recordPut(entry.getKey(), entry.getValue());
+    }
+    delegate.putAll(values);
+  }
+
+  @Override
+  public void remove(String key) {
+    getFamilyMetrics(key).evictions.incrementAndGet();
+    delegate.remove(key);
+  }
+
+  @Override
+  public void clear() {
+    clearCount.incrementAndGet();
+    delegate.clear();
+  }
+
+  @Override
+  public Long increment(String key, long delta, long initialValue) {
+    if (delta != 0) {
+      getFamilyMetrics(key).evictions.incrementAndGet();
+    }
+    return delegate.increment(key, delta, initialValue);
+  }
+
+  private void recordGet(String key, boolean hit, long getNanos, long end) {
+    FamilyMetrics metrics = getFamilyMetrics(key);
+    metrics.getMicros.record(getNanos / 1000);
+    if (hit) {
+      metrics.hits.incrementAndGet();
+    } else {
+      metrics.misses.incrementAndGet();
+      Map<String, Long> loads = pendingLoads.get();
+      if (loads.size() >= MAX_PENDING_LOADS) {
+        loads.clear();
+      }
+      loads.put(key, end);
+    }
+  }
+
+  private void recordPut(String key, Object value) {
+    FamilyMetrics metrics = getFamilyMetrics(key);
+    Long missTime = pendingLoads.get().remove(key);
+    if (missTime != null) {
+      long loadNanos = System.nanoTime() - missTime;
+      if (loadNanos < MAX_LOAD_NANOS) {
+        metrics.loadMicros.record(loadNanos / 1000);
+      }
+    }
+    long puts = metrics.puts.incrementAndGet();
+    if (valueSizeSampleInterval > 0 && (puts - 1) % valueSizeSampleInterval == 0) {
+      long size = NearCacheImpl.getSerializedSize(value);
+      if (size >= 0) {
+        metrics.valueBytes.record(size);
+      }
+    }
+  }
+
+  private FamilyMetrics getFamilyMetrics(String key) {
+    int separator = key.indexOf(':');
+    String family = separator < 0 ? key : key.substring(0, separator);
+    FamilyMetrics metrics = families.get(family);
+    if (metrics == null) {
+      // Several threads may create the same family's metrics, but they all end up sharing the
+      // registry's counters and histograms.
+      metrics = new FamilyMetrics("cache." + name + "." + family + ".");
+      families.putIfAbsent(family, metrics);
+    }
+    return metrics;
+  }
+
+  private static class FamilyMetrics {
+    public final AtomicLong hits;
+    public final AtomicLong misses;
+    public final AtomicLong puts;
+    public final AtomicLong evictions;
+    public final Histogram getMicros;
+    public final Histogram loadMicros;
+    public final Histogram valueBytes;
+
+    public FamilyMetrics(String prefix) {
+      hits = MetricsRegistry.counter(prefix + "hits");
+      misses = MetricsRegistry.counter(prefix + "misses");
+      puts = MetricsRegistry.counter(prefix + "puts");
+      evictions = MetricsRegistry.counter(prefix + "evictions");
+      getMicros = MetricsRegistry.histogram(prefix + "getMicros");
+      loadMicros = MetricsRegistry.histogram(prefix + "loadMicros");
+      valueBytes = MetricsRegistry.histogram(prefix + "valueBytes");
+    }
+  }
+}
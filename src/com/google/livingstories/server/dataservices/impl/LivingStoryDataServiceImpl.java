@@ -19,10 +19,14 @@ package com.google.livingstories.server.dataservices.impl;
 import com.google.livingstories.client.LivingStory;
 import com.google.livingstories.client.PublishState;
 import com.google.livingstories.server.dataservices.LivingStoryDataService;
+import com.google.livingstories.server.dataservices.StoryDirectory;
 import com.google.livingstories.server.dataservices.entities.LivingStoryEntity;
+import com.google.livingstories.server.util.SummaryDiffUtil;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
@@ -30,10 +34,17 @@ import javax.jdo.Query;
 import javax.jdo.Transaction;
 
 /**
- * Implementation of the Living Story data interface using JDO. This implementation references
- * the database on every call and does not handle caching, etc.
+ * Implementation of the Living Story data interface using JDO. Lookups that only need the latest
+ * summary revisions are answered from a cached {@link StoryDirectory} of every story, which is
+ * rebuilt with a single query after a story is saved or deleted. Other lookups go to the
+ * datastore.
  */
 public class LivingStoryDataServiceImpl implements LivingStoryDataService {
+  // The number of earlier summary revisions that a new revision is diffed against when saved.
+  private static final int PRECOMPUTED_DIFF_REVISIONS = 5;
+
+  private static final Logger logger =
+      Logger.getLogger(LivingStoryDataServiceImpl.class.getCanonicalName());
   
   @Override
   public synchronized LivingStory save(Long id, String urlName, String title, 
@@ -51,6 +62,7 @@ public class LivingStoryDataServiceImpl implements LivingStoryDataService {
     
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Transaction tx = null;
+    boolean addedSummaryRevision = false;
     
     try {
       LivingStoryEntity entity = null;
@@ -64,13 +76,26 @@ public class LivingStoryDataServiceImpl implements LivingStoryDataService {
         String previousLatestRevision = entity.getSummary();
         if (!previousLatestRevision.equals(summary)) {
           entity.addSummaryRevision(summary);
+          addedSummaryRevision = true;
         }
       }
       tx = pm.currentTransaction();
       tx.begin();
       pm.makePersistent(entity);
       tx.commit();
-      return entity.toClientObject(false);
+      DataCaches.clearStoryDirectory();
+      LivingStory livingStory = entity.toClientObject(false);
+      if (addedSummaryRevision) {
+        // Diff the new summary against the revisions that returning visitors are most likely
+        // to have seen, so that story pages don't need to do it.
+        try {
+          SummaryDiffUtil.precomputeDiffedSummaries(livingStory, PRECOMPUTED_DIFF_REVISIONS);
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Failed to precompute summary diffs for living story " + id,
+              e);
+        }
+      }
+      return livingStory;
     } finally {
       if (tx != null && tx.isActive()) {
         tx.rollback();
@@ -97,10 +122,14 @@ public class LivingStoryDataServiceImpl implements LivingStoryDataService {
     } finally {
       pm.close();
     }
+    DataCaches.clearStoryDirectory();
   }
   
   @Override
-  public synchronized LivingStory retrieveById(Long id, boolean latestRevisionsOnly) {
+  public LivingStory retrieveById(Long id, boolean latestRevisionsOnly) {
+    if (latestRevisionsOnly) {
+      return getDirectory().getById(id);
+    }
     PersistenceManager pm = PMF.get().getPersistenceManager();
     try {
       return pm.getObjectById(LivingStoryEntity.class, id).toClientObject(latestRevisionsOnly);
@@ -112,7 +141,10 @@ public class LivingStoryDataServiceImpl implements LivingStoryDataService {
   }
 
   @Override
-  public synchronized LivingStory retrieveByUrlName(String urlName, boolean latestRevisionsOnly) {
+  public LivingStory retrieveByUrlName(String urlName, boolean latestRevisionsOnly) {
+    if (latestRevisionsOnly) {
+      return getDirectory().getByUrl(urlName);
+    }
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(LivingStoryEntity.class);
     query.setFilter("url == urlParam");
@@ -133,8 +165,32 @@ public class LivingStoryDataServiceImpl implements LivingStoryDataService {
   }
   
   @Override
-  public synchronized List<LivingStory> retrieveAll(PublishState publishState, 
+  public List<LivingStory> retrieveAll(PublishState publishState, 
       boolean latestRevisionsOnly) {
+    if (latestRevisionsOnly) {
+      return getDirectory().getAll(publishState);
+    }
+    return queryAll(publishState, latestRevisionsOnly);
+  }
+
+  /**
+   * Returns the cached directory of every story, building it if necessary.
+   */
+  private StoryDirectory getDirectory() {
+    // Read the generation before querying, so that a change made during the query isn't lost.
+    Long generation = DataCaches.getStoryDirectoryGeneration();
+    StoryDirectory directory =
+        generation == null ? null : DataCaches.getStoryDirectory(generation);
+    if (directory == null) {
+      directory = new StoryDirectory(queryAll(null, true));
+      if (generation != null) {
+        DataCaches.setStoryDirectory(generation, directory);
+      }
+    }
+    return directory;
+  }
+
+  private List<LivingStory> queryAll(PublishState publishState, boolean latestRevisionsOnly) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(LivingStoryEntity.class);
     if (publishState != null) {
@@ -0,0 +1,324 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.dataservices.impl;
+
+import com.google.livingstories.server.dataservices.ServerCache;
+import com.google.livingstories.server.util.LRUCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A ServerCache decorator that keeps recently used values on the heap, in front of a shared
+ * remote cache such as memcache. The near cache is an {@link LRUCache} bounded by the total
+ * serialized size of its values. A single value may take up to a quarter of that; anything
+ * heavier would crowd out most of the cache by itself, so it's only kept remotely.
+ *
+ * Every value written through this class is serialized once, and stored remotely together with
+ * a random version. The version is also written to a small stamp entry next to the value, in the
+ * same batch put. A near cache entry is served without touching the remote cache for up to
+ * revalidateMillis after it was last checked; after that, only the stamp is fetched, and the
+ * entry is dropped if another instance has since overwritten or removed the value. This means
+ * that a remove() on one instance is seen by every other instance within revalidateMillis. A
+ * miss fetches the stamp and the value together in one batch get.
+ *
+ * Values are only kept on the heap when they're read back from the remote cache with the same
+ * version as the stamp, never straight from put(). A batch put isn't atomic, though, so two
+ * instances writing the same key at once can leave the stamp of one next to the value of the
+ * other, and a near copy read in between could then keep matching its stamp. To bound how long
+ * such a copy can be served, an entry is refetched in full after MAX_REVALIDATIONS stamp checks.
+ *
+ * Values handed out by this cache are shared between requests, so callers must not modify them.
+ */
+public class NearCacheImpl implements ServerCache {
+  private static final String VERSION_KEY_PREFIX = "nearCacheVersion:";
+  private static final int MAX_ENTRIES = 10000;
+  private static final int MAX_REVALIDATIONS = 60;
+
+  private final ServerCache remoteCache;
+  private final long maxValueWeightBytes;
+  private final long revalidateMillis;
+  private final Random random = new Random();
+  private final LRUCache<String, NearEntry> entries;
+
+  /**
+   * @param remoteCache the shared cache that this near cache fronts
+   * @param maxWeightBytes the maximum total serialized size of the values held on the heap
+   * @param revalidateMillis how long a near cache entry may be served before its version stamp
+   *     is checked against the remote cache again
+   */
+  public NearCacheImpl(ServerCache remoteCache, long maxWeightBytes, long revalidateMillis) {
+    this.remoteCache = remoteCache;
+    this.maxValueWeightBytes = maxWeightBytes / 4;
+    this.revalidateMillis = revalidateMillis;
+    this.entries = new LRUCache<String, NearEntry>(
+        MAX_ENTRIES, maxWeightBytes, 0, new NearEntryWeigher());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public <T> T get(String key) {
+    long now = System.currentTimeMillis();
+    String versionKey = getVersionKey(key);
+    NearEntry entry = entries.get(key);
+
+    if (entry != null) {
+      if (now - entry.lastValidatedMillis < revalidateMillis) {
+        return (T) entry.value;
+      }
+      if (entry.revalidations < MAX_REVALIDATIONS) {
+        Long remoteVersion = remoteCache.get(versionKey);
+        if (remoteVersion != null && remoteVersion.longValue() == entry.version) {
+          entry.revalidations++;
+          entry.lastValidatedMillis = now;
+          return (T) entry.value;
+        }
+      }
+      entries.remove(key);
+    }
+
+    Map<String, Object> remoteValues = remoteCache.getAll(Arrays.asList(versionKey, key));
+    Long version = (Long) remoteValues.get(versionKey);
+    Object remoteValue = remoteValues.get(key);
+    if (remoteValue instanceof VersionedValue) {
+      VersionedValue versionedValue = (VersionedValue) remoteValue;
+      Object value = deserialize(versionedValue.bytes);
+      if (value != null && version != null && version.longValue() == versionedValue.version) {
+        putLocally(key, value, versionedValue.bytes.length, version, now);
+      }
+      return (T) value;
+    }
+    // Counters are written by increment() rather than put(). A counter only ever moves forward
+    // and is restamped after each increment, so holding it under an older stamp is safe.
+    if (remoteValue instanceof Long && version != null) {
+      putLocally(key, remoteValue, getSerializedSize(remoteValue), version, now);
+    }
+    return (T) remoteValue;
+  }
+
+  @Override
+  public <T> void put(String key, T value) {
+    entries.remove(key);
+    byte[] bytes = serialize(value);
+    if (bytes == null) {
+      // The remote cache couldn't have stored it either.
+      remove(key);
+      return;
+    }
+    long version = random.nextLong();
+    Map<String, Object> remoteValues = new HashMap<String, Object>();
+    remoteValues.put(key, new VersionedValue(version, bytes));
+    remoteValues.put(getVersionKey(key), version);
+    remoteCache.putAll(remoteValues);
+  }
+
+  /**
+   * Gets each key in turn, since each miss is already a single batch get of its own.
+   */
+  @Override
+  public Map<String, Object> getAll(Collection<String> keys) {
+    Map<String, Object> values = new HashMap<String, Object>();
+    for (String key : keys) {
+      Object value = get(key);
+      if (value != null) {
+        values.put(key, value);
+      }
+    }
+    return values;
+  }
+
+  @Override
+  public void putAll(Map<String, ?> values) {
+    for (Map.Entry<String, ?> entry : values.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public void remove(String key) {
+    entries.remove(key);
+    remoteCache.remove(getVersionKey(key));
+    remoteCache.remove(key);
+  }
+
+  @Override
+  public void clear() {
+    entries.clear();
+    remoteCache.clear();
+  }
+
+  @Override
+  public Long increment(String key, long delta, long initialValue) {
+    entries.remove(key);
+    Long value = remoteCache.increment(key, delta, initialValue);
+    // Restamp the counter, so that other instances drop their near copies of it.
+    remoteCache.put(getVersionKey(key), random.nextLong());
+    return value;
+  }
+
+  /**
+   * Returns the number of values held on the heap.
+   */
+  public int getNearEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the total serialized size of the values held on the heap.
+   */
+  public long getNearWeightBytes() {
+    return entries.getTotalWeight();
+  }
+
+  /**
+   * Returns the number of values dropped from the heap to stay within the size limits.
+   */
+  public long getNearEvictionCount() {
+    return entries.getEvictionCount();
+  }
+
+  private void putLocally(String key, Object value, long weight, long version, long now) {
+    if (weight < 0 || weight > maxValueWeightBytes) {
+      // Values that can't be weighed, or that are too heavy, are only kept remotely.
+      entries.remove(key);
+    } else {
+      entries.put(key, new NearEntry(value, version, weight, now));
+    }
+  }
+
+  private static String getVersionKey(String key) {
+    return VERSION_KEY_PREFIX + key;
+  }
+
+  /**
+   * Returns the number of bytes that value serializes to, which approximates both its heap
+   * footprint and the cost of fetching it from the remote cache. Returns -1 if the value
+   * can't be serialized.
+   */
+  static long getSerializedSize(Object value) {
+    if (!(value instanceof Serializable)) {
+      return -1;
+    }
+    CountingOutputStream counter = new CountingOutputStream();
+    try {
+      ObjectOutputStream out = new ObjectOutputStream(counter);
+      out.writeObject(value);
+      out.close();
+      return counter.count;
+    } catch (IOException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns value serialized, or null if it can't be serialized.
+   */
+  private static byte[] serialize(Object value) {
+    if (!(value instanceof Serializable)) {
+      return null;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(value);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the value that bytes were serialized from, or null if it can't be read back, e.g.
+   * because its class has changed since.
+   */
+  private static Object deserialize(byte[] bytes) {
+    try {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+      try {
+        return in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      return null;
+    } catch (ClassNotFoundException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * What's stored in the remote cache for each value written by put(). The value is kept
+   * serialized, so that its size is known without serializing it again.
+   */
+  private static class VersionedValue implements Serializable {
+    public final long version;
+    public final byte[] bytes;
+
+    public VersionedValue(long version, byte[] bytes) {
+      this.version = version;
+      this.bytes = bytes;
+    }
+  }
+
+  private static class NearEntry {
+    public final Object value;
+    public final long version;
+    public final long weight;
+    public volatile long lastValidatedMillis;
+    // Only counted approximately, since concurrent readers may revalidate at once.
+    public volatile int revalidations = 0;
+
+    public NearEntry(Object value, long version, long weight, long lastValidatedMillis) {
+      this.value = value;
+      this.version = version;
+      this.weight = weight;
+      this.lastValidatedMillis = lastValidatedMillis;
+    }
+  }
+
+  private static class NearEntryWeigher implements LRUCache.Weigher<NearEntry> {
+    @Override
+    public long weigh(NearEntry entry) {
+      return entry.weight;
+    }
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    public long count = 0;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
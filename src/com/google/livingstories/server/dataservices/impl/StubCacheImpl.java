@@ -18,6 +18,10 @@ package com.google.livingstories.server.dataservices.impl;
 
 import com.google.livingstories.server.dataservices.ServerCache;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * Stub implementation of a ServerCache that has a no-op for all the methods,
  * and never returns any results from its get() method.
@@ -25,7 +29,7 @@ import com.google.livingstories.server.dataservices.ServerCache;
  * This can be used to essentially disable the cache if you are running
  * the code against a system that doesn't have an existing cache implementation.
  * Replace the all ServerCache instances with this implementation to do so
- * (Currently only used by Caches.java)
+ * (Currently only used by DataCaches.java)
  */
 public class StubCacheImpl implements ServerCache {
   @Override
@@ -37,6 +41,15 @@ public class StubCacheImpl implements ServerCache {
   public <T> void put(String key, T value) {
   }
 
+  @Override
+  public Map<String, Object> getAll(Collection<String> keys) {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public void putAll(Map<String, ?> values) {
+  }
+
   @Override
   public void remove(String key) {
   }
@@ -44,4 +57,9 @@ public class StubCacheImpl implements ServerCache {
   @Override
   public void clear() {
   }
+
+  @Override
+  public Long increment(String key, long delta, long initialValue) {
+    return null;
+  }
 }
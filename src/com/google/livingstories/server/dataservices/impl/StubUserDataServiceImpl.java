@@ -18,6 +18,7 @@ package com.google.livingstories.server.dataservices.impl;
 
 import com.google.livingstories.client.FilterSpec;
 import com.google.livingstories.server.dataservices.UserDataService;
+import com.google.livingstories.server.dataservices.UserState;
 
 import java.util.Date;
 import java.util.HashMap;
@@ -28,6 +29,11 @@ import java.util.Map;
  * Useful if you don't want to support user login.
  */
 public class StubUserDataServiceImpl implements UserDataService {
+  @Override
+  public UserState getUserState(String userId) {
+    return UserState.empty();
+  }
+
   @Override
   public void deleteVisitTimesForStory(Long livingStoryId) {
   }
@@ -16,17 +16,32 @@
 
 package com.google.livingstories.server.dataservices.impl;
 
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.labs.taskqueue.QueueFactory;
+import com.google.appengine.api.labs.taskqueue.TaskOptions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
 import com.google.livingstories.client.FilterSpec;
 import com.google.livingstories.server.dataservices.UserDataService;
+import com.google.livingstories.server.dataservices.UserState;
 import com.google.livingstories.server.dataservices.entities.UserEntity;
 import com.google.livingstories.server.dataservices.entities.UserLivingStoryEntity;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
@@ -34,31 +49,118 @@ import javax.jdo.Query;
 
 /**
  * Implementation of the user data interface using JDO.
+ * 
+ * Story visits are recorded on every page view, so rather than being written straight away,
+ * they're buffered in memory by user and story, and handed off in a batch once enough have
+ * built up or the oldest one has waited long enough. The request that trips either limit only
+ * adds the batch to the task queue, as a few tasks of up to VISITS_PER_TASK visits each; the
+ * datastore reads and writes happen in {@link #writeVisits}, which is called by
+ * {@link com.google.livingstories.servlet.VisitDataServlet}. Reads of visit data take the
+ * buffer into account, but visits that have been handed off aren't seen until their task has
+ * written them, which is usually a moment later. Visits still in the buffer when an instance
+ * shuts down are lost, as are visits in a task that's retried after a partial write, which may
+ * be counted twice; both are an acceptable price for visit tracking.
+ * 
+ * All reads go through a {@link UserState} per user, which is loaded with one query and kept in
+ * {@link DataCaches} under the user's state generation. Writes bump the generation, so a state
+ * that was loaded before a write can't be read after it.
  */
 public class UserDataServiceImpl implements UserDataService {
+  public static final String VISIT_DATA_URL = "/visitData";
+  public static final String VISIT_PARAM = "visit";
+
+  private static final int MAX_PENDING_VISITS = 200;
+  // Keeps each task well under the task queue's size limit.
+  private static final int VISITS_PER_TASK = 50;
+  private static final long MAX_VISIT_FLUSH_DELAY_MILLIS = 10 * 1000;
+  
+  private static final Logger logger =
+      Logger.getLogger(UserDataServiceImpl.class.getCanonicalName());
+  
+  private final ConcurrentMap<VisitKey, PendingVisit> pendingVisits =
+      new ConcurrentHashMap<VisitKey, PendingVisit>();
+  private final AtomicLong lastVisitFlushTime = new AtomicLong(System.currentTimeMillis());
+  private final AtomicBoolean flushingVisits = new AtomicBoolean(false);
+
+  @Override
+  public UserState getUserState(String userId) {
+    // Read the generation before loading, so that a change made during the load isn't lost.
+    Long generation = DataCaches.getUserStateGeneration(userId);
+    UserState userState = generation == null ? null : DataCaches.getUserState(userId, generation);
+    if (userState == null) {
+      userState = loadUserState(userId);
+      if (generation != null) {
+        DataCaches.setUserState(userId, generation, userState);
+      }
+    }
+    // Buffered visits are always more recent than the stored ones. An entry that another thread
+    // has just added may not have its visit recorded yet, and must not hide the stored one.
+    for (Map.Entry<VisitKey, PendingVisit> entry : pendingVisits.entrySet()) {
+      VisitKey key = entry.getKey();
+      if (key.userEmail.equals(userId)) {
+        PendingVisit pendingVisit = entry.getValue();
+        Date lastVisitedTime = pendingVisit.getLastVisitedTime();
+        int pendingCount = pendingVisit.getPendingCount();
+        if (lastVisitedTime != null && pendingCount > 0) {
+          userState = userState.withVisits(key.livingStoryId, lastVisitedTime, pendingCount);
+        }
+      }
+    }
+    return userState;
+  }
+
+  @Override
+  public Date getLastVisitTimeForStory(String userId, Long livingStoryId) {
+    return getUserState(userId).getLastVisitTimeForStory(livingStoryId);
+  }
+  
+  @Override
+  public Map<Long, Date> getAllLastVisitTimes(String userEmail) {
+    return getUserState(userEmail).getAllLastVisitTimes();
+  }
 
   @Override
-  public synchronized Date getLastVisitTimeForStory(String userId, Long livingStoryId) {
-    UserLivingStoryEntity entity = retrieveUserLivingStoryEntity(userId, livingStoryId);
-    return entity == null ? null : entity.getLastVisitedTime();
+  public boolean isUserSubscribedToEmails(String userId, Long livingStoryId) {
+    return getUserState(userId).isSubscribedToEmails(livingStoryId);
   }
   
   @Override
-  public synchronized Map<Long, Date> getAllLastVisitTimes(String userEmail) {
-    Map<Long, Date> visitTimesMap = new HashMap<Long, Date>();
+  public int getVisitCountForStory(String userId, Long livingStoryId) {
+    return getUserState(userId).getVisitCountForStory(livingStoryId);
+  }
 
+  @Override
+  public FilterSpec getDefaultStoryView(String userId) {
+    return getUserState(userId).getDefaultStoryView();
+  }
+  
+  /**
+   * Reads the user's preferences and all their per-story data from the datastore.
+   */
+  private UserState loadUserState(String userEmail) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(UserLivingStoryEntity.class);
     query.setFilter("parentEmailAddress == emailParam");
     query.declareParameters("java.lang.String emailParam");
     try {
+      String defaultStoryView = null;
+      try {
+        defaultStoryView =
+            pm.getObjectById(UserEntity.class, createKey(userEmail)).getDefaultLspView();
+      } catch (JDOObjectNotFoundException e) {
+        // The user hasn't visited any story or set any preferences yet.
+      }
+      
+      Map<Long, UserState.StoryState> storyStates = new HashMap<Long, UserState.StoryState>();
       @SuppressWarnings("unchecked")
       List<UserLivingStoryEntity> userLivingStoryEntities =
           (List<UserLivingStoryEntity>) query.execute(userEmail);
       for (UserLivingStoryEntity entity : userLivingStoryEntities) {
-        visitTimesMap.put(entity.getLivingStoryId(), entity.getLastVisitedTime());
+        storyStates.put(entity.getLivingStoryId(), new UserState.StoryState(
+            entity.getLastVisitedTime(), entity.getVisitCount(), entity.isSubscribedToEmails(),
+            entity.getSubscriptionLocale()));
       }
-      return visitTimesMap;
+      return new UserState(defaultStoryView, storyStates);
     } finally {
       query.closeAll();
       pm.close();
@@ -66,58 +168,142 @@ public class UserDataServiceImpl implements UserDataService {
   }
 
   @Override
-  public synchronized boolean isUserSubscribedToEmails(String userId, Long livingStoryId) {
-    UserLivingStoryEntity entity = retrieveUserLivingStoryEntity(userId, livingStoryId);
-    return entity == null ? false : entity.isSubscribedToEmails();
+  public void updateVisitDataForStory(String userEmail, Long livingStoryId) {
+    VisitKey key = new VisitKey(userEmail, livingStoryId);
+    Date now = new Date();
+    // Retry if the visit we found was written out and dropped from the buffer in the meantime.
+    boolean added = false;
+    while (!added) {
+      PendingVisit pendingVisit = pendingVisits.get(key);
+      if (pendingVisit == null) {
+        pendingVisit = new PendingVisit();
+        PendingVisit existing = pendingVisits.putIfAbsent(key, pendingVisit);
+        if (existing != null) {
+          pendingVisit = existing;
+        }
+      }
+      added = pendingVisit.addVisit(now);
+    }
+    
+    if (pendingVisits.size() >= MAX_PENDING_VISITS || System.currentTimeMillis()
+        - lastVisitFlushTime.get() >= MAX_VISIT_FLUSH_DELAY_MILLIS) {
+      // Only one request hands the visits off; the others carry on buffering.
+      if (flushingVisits.compareAndSet(false, true)) {
+        try {
+          flushVisitData();
+        } finally {
+          flushingVisits.set(false);
+        }
+      }
+    }
   }
   
-  @Override
-  public synchronized int getVisitCountForStory(String userId, Long livingStoryId) {
-    UserLivingStoryEntity entity = retrieveUserLivingStoryEntity(userId, livingStoryId);
-    return entity == null ? 0 : entity.getVisitCount();
-  }
-
-  @Override
-  public synchronized FilterSpec getDefaultStoryView(String userId) {
-    UserEntity userEntity = retrieveUserEntity(userId);
-    if (userEntity == null) {
-      return null;
-    } else {
-      String defaultStoryView = userEntity.getDefaultLspView();
-      return defaultStoryView == null ? null : new FilterSpec(defaultStoryView);
+  /**
+   * Adds tasks to write all buffered visits, and drops them from the buffer once their task has
+   * been added.
+   */
+  private synchronized void flushVisitData() {
+    lastVisitFlushTime.set(System.currentTimeMillis());
+    
+    List<VisitKey> keys = Lists.newArrayList();
+    List<PendingVisit> visits = Lists.newArrayList();
+    List<Integer> counts = Lists.newArrayList();
+    for (Map.Entry<VisitKey, PendingVisit> entry : pendingVisits.entrySet()) {
+      int count = entry.getValue().startFlush();
+      if (count > 0) {
+        keys.add(entry.getKey());
+        visits.add(entry.getValue());
+        counts.add(count);
+      }
     }
-  }
-
-  @Override
-  public synchronized void updateVisitDataForStory(String userEmail, Long livingStoryId) {
-    UserLivingStoryEntity userLivingStoryEntity =
-        retrieveUserLivingStoryEntity(userEmail, livingStoryId);
-    if (userLivingStoryEntity == null) {
-      // This means the user has not visited this living story before. A new row needs to be added.
-      // Check if a userEntity exists for this user.  If not, we need to create that first.
-      if (retrieveUserEntity(userEmail) == null) {
-        createNewUserEntity(userEmail);
+    
+    for (int start = 0; start < keys.size(); start += VISITS_PER_TASK) {
+      int end = Math.min(start + VISITS_PER_TASK, keys.size());
+      TaskOptions task = TaskOptions.Builder.url(VISIT_DATA_URL);
+      for (int i = start; i < end; i++) {
+        VisitKey key = keys.get(i);
+        task.param(VISIT_PARAM, key.livingStoryId + ":" + counts.get(i) + ":"
+            + visits.get(i).getLastVisitedTime().getTime() + ":" + key.userEmail);
       }
-      createNewUserLivingStoryEntity(userEmail, livingStoryId, false, null);
-    } else {
-      // This means the user has visited this living story before and the timestamp needs to be
-      // updated in place.
-      PersistenceManager pm = PMF.get().getPersistenceManager();
       
-      try { 
-        // This object needs to be queried using its primary key from the same
-        // PeristentManager object as the one that is going to persist it
-        userLivingStoryEntity = pm.getObjectById(
-            UserLivingStoryEntity.class, userLivingStoryEntity.getId());
-        userLivingStoryEntity.setLastVisitedTime(new Date());
-        userLivingStoryEntity.incrementVisitCount();
-        pm.makePersistent(userLivingStoryEntity);
+      boolean added = false;
+      try {
+        QueueFactory.getDefaultQueue().add(task);
+        added = true;
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Failed to add a task for " + (end - start)
+            + " buffered story visits", e);
       } finally {
-        pm.close();
+        for (int i = start; i < end; i++) {
+          // If the task wasn't added, the visits stay in the buffer for the next flush.
+          if (visits.get(i).finishFlush(counts.get(i), added)) {
+            pendingVisits.remove(keys.get(i), visits.get(i));
+          }
+        }
       }
     }
   }
   
+  /**
+   * Writes a batch of visits handed off by flushVisitData, creating user and user-story entities
+   * for first visits. This costs one batch get for the users, plus one query per user.
+   */
+  public static void writeVisits(String[] encodedVisits) {
+    Multimap<String, String[]> visitsByUser = ArrayListMultimap.create();
+    for (String encodedVisit : encodedVisits) {
+      // The email address goes last, so that it can contain anything.
+      String[] parts = encodedVisit.split(":", 4);
+      visitsByUser.put(parts[3], parts);
+    }
+    
+    List<Key> userKeys = Lists.newArrayList();
+    for (String userEmail : visitsByUser.keySet()) {
+      userKeys.add(createKey(userEmail));
+    }
+    Map<Key, Entity> existingUsers = DatastoreServiceFactory.getDatastoreService().get(userKeys);
+    
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      List<Object> entitiesToSave = Lists.newArrayList();
+      for (String userEmail : visitsByUser.keySet()) {
+        if (!existingUsers.containsKey(createKey(userEmail))) {
+          UserEntity userInfo = new UserEntity();
+          userInfo.setEmailAddress(userEmail);
+          entitiesToSave.add(userInfo);
+        }
+        
+        Map<Long, UserLivingStoryEntity> userLivingStoryEntities =
+            retrieveUserLivingStoryEntities(pm, userEmail);
+        for (String[] visit : visitsByUser.get(userEmail)) {
+          Long livingStoryId = Long.valueOf(visit[0]);
+          int count = Integer.parseInt(visit[1]);
+          Date lastVisitedTime = new Date(Long.parseLong(visit[2]));
+          UserLivingStoryEntity userLivingStoryEntity = userLivingStoryEntities.get(livingStoryId);
+          if (userLivingStoryEntity == null) {
+            // This means the user has not visited this living story before. A new row needs to
+            // be added.
+            userLivingStoryEntity =
+                new UserLivingStoryEntity(userEmail, livingStoryId, lastVisitedTime);
+            userLivingStoryEntity.setVisitCount(count);
+          } else {
+            // This means the user has visited this living story before and the timestamp needs
+            // to be updated in place.
+            userLivingStoryEntity.setLastVisitedTime(lastVisitedTime);
+            userLivingStoryEntity.setVisitCount(userLivingStoryEntity.getVisitCount() + count);
+          }
+          entitiesToSave.add(userLivingStoryEntity);
+        }
+      }
+      pm.makePersistentAll(entitiesToSave);
+    } finally {
+      pm.close();
+    }
+    
+    for (String userEmail : visitsByUser.keySet()) {
+      DataCaches.clearUserState(userEmail);
+    }
+  }
+  
   @Override
   public synchronized void setEmailSubscription(String userEmail, Long livingStoryId, 
       boolean subscribe, String localeId) {
@@ -146,6 +332,7 @@ public class UserDataServiceImpl implements UserDataService {
         pm.close();
       }
     }
+    DataCaches.clearUserState(userEmail);
   }
 
   @Override
@@ -164,10 +351,20 @@ public class UserDataServiceImpl implements UserDataService {
     } finally {
       pm.close();
     }
+    DataCaches.clearUserState(userId);
   }
 
   @Override
   public synchronized void deleteVisitTimesForStory(Long livingStoryId) {
+    // Cached user states may still mention the story, but it's being deleted, so nothing will
+    // ask about it. Drop buffered visits too, so that they aren't written back later.
+    Iterator<VisitKey> it = pendingVisits.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().livingStoryId.equals(livingStoryId)) {
+        it.remove();
+      }
+    }
+    
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(UserLivingStoryEntity.class);
     query.setFilter("livingStoryId == livingStoryIdParam");
@@ -205,6 +402,15 @@ public class UserDataServiceImpl implements UserDataService {
   private UserLivingStoryEntity retrieveUserLivingStoryEntity(
       String userEmail, Long livingStoryId) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      return retrieveUserLivingStoryEntity(pm, userEmail, livingStoryId);
+    } finally {
+      pm.close();
+    }
+  }
+  
+  private UserLivingStoryEntity retrieveUserLivingStoryEntity(
+      PersistenceManager pm, String userEmail, Long livingStoryId) {
     Query query = pm.newQuery(UserLivingStoryEntity.class);
     query.setFilter("parentEmailAddress == emailParam && livingStoryId == livingStoryIdParam");
     query.declareParameters("java.lang.String emailParam, java.lang.Long livingStoryIdParam");
@@ -216,7 +422,29 @@ public class UserDataServiceImpl implements UserDataService {
       return userLivingStoryEntities.isEmpty() ? null : userLivingStoryEntities.iterator().next();
     } finally {
       query.closeAll();
-      pm.close();
+    }
+  }
+  
+  /**
+   * Returns all of the user's per-story entities, by living story id.
+   */
+  private static Map<Long, UserLivingStoryEntity> retrieveUserLivingStoryEntities(
+      PersistenceManager pm, String userEmail) {
+    Query query = pm.newQuery(UserLivingStoryEntity.class);
+    query.setFilter("parentEmailAddress == emailParam");
+    query.declareParameters("java.lang.String emailParam");
+    
+    try {
+      Map<Long, UserLivingStoryEntity> entities = new HashMap<Long, UserLivingStoryEntity>();
+      @SuppressWarnings("unchecked")
+      List<UserLivingStoryEntity> userLivingStoryEntities =
+          (List<UserLivingStoryEntity>) query.execute(userEmail);
+      for (UserLivingStoryEntity entity : userLivingStoryEntities) {
+        entities.put(entity.getLivingStoryId(), entity);
+      }
+      return entities;
+    } finally {
+      query.closeAll();
     }
   }
   
@@ -224,7 +452,7 @@ public class UserDataServiceImpl implements UserDataService {
    * Return a unique key that can be created for the {@link UserEntity} class from the
    * email address of a Google Account {@link com.google.appengine.api.users.User} object.
    */
-  private Key createKey(String userEmail) {
+  private static Key createKey(String userEmail) {
     return KeyFactory.createKey(UserEntity.class.getSimpleName(), userEmail);
   }
   
@@ -263,4 +491,83 @@ public class UserDataServiceImpl implements UserDataService {
       pm.close();
     }
   }
+  
+  private static class VisitKey {
+    public final String userEmail;
+    public final Long livingStoryId;
+    
+    public VisitKey(String userEmail, Long livingStoryId) {
+      this.userEmail = userEmail;
+      this.livingStoryId = livingStoryId;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof VisitKey)) {
+        return false;
+      }
+      VisitKey other = (VisitKey) obj;
+      return userEmail.equals(other.userEmail) && livingStoryId.equals(other.livingStoryId);
+    }
+    
+    @Override
+    public int hashCode() {
+      return 31 * userEmail.hashCode() + livingStoryId.hashCode();
+    }
+  }
+  
+  /**
+   * Visits by one user to one story that haven't been written to the datastore yet. Counts
+   * move from unflushed to in-flight while a flush is adding their task, so that they're still
+   * counted by reads until it has been added.
+   */
+  private static class PendingVisit {
+    private Date lastVisitedTime;
+    private int unflushedCount = 0;
+    private int inFlightCount = 0;
+    private boolean removed = false;
+    
+    /**
+     * Records a visit, and returns false if this object has already been dropped from the
+     * buffer, in which case the caller should add the visit to a new one.
+     */
+    public synchronized boolean addVisit(Date time) {
+      if (removed) {
+        return false;
+      }
+      lastVisitedTime = time;
+      unflushedCount++;
+      return true;
+    }
+    
+    public synchronized Date getLastVisitedTime() {
+      return lastVisitedTime;
+    }
+    
+    public synchronized int getPendingCount() {
+      return unflushedCount + inFlightCount;
+    }
+    
+    /**
+     * Marks the unflushed visits as being written, and returns how many there are.
+     */
+    public synchronized int startFlush() {
+      inFlightCount += unflushedCount;
+      unflushedCount = 0;
+      return inFlightCount;
+    }
+    
+    /**
+     * Records the outcome of writing count visits, and returns true if nothing is left to write,
+     * in which case this object is marked as dropped and must be removed from the buffer.
+     */
+    public synchronized boolean finishFlush(int count, boolean written) {
+      inFlightCount -= count;
+      if (!written) {
+        unflushedCount += count;
+      }
+      removed = unflushedCount == 0 && inFlightCount == 0;
+      return removed;
+    }
+  }
 }
@@ -17,6 +17,7 @@
 package com.google.livingstories.server.rpcimpl;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.livingstories.client.AssetType;
 import com.google.livingstories.client.BackgroundContentItem;
@@ -24,9 +25,12 @@ import com.google.livingstories.client.ContentItemType;
 import com.google.livingstories.client.PlayerContentItem;
 import com.google.livingstories.client.PlayerType;
 import com.google.livingstories.server.dataservices.entities.BaseContentEntity;
+import com.google.livingstories.server.util.AhoCorasickMatcher;
 
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -40,23 +44,78 @@ import java.util.regex.Pattern;
  * player will also be added to the linked content entities of contentEntity.
  * New as of 1/15/2010: background content items with a name i.e. concepts are also auto-linked in
  * the content. They are not returned in the suggestions.
+ * 
+ * An instance holds an Aho-Corasick automaton over every name, alias and last name of a story's
+ * players and concepts, so it can be built once per story and reused: each piece of content is
+ * then scanned in a single pass, and link sites are chosen from the occurrences found.
  */
 public class AutoLinkEntitiesInContent {
-  
+  private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+  // A name only matches where it's preceded and followed by a word boundary or a non-word
+  // character. These are the two halves of the regex "(\b|\W)(name)(\b|\W)", which is how
+  // names used to be matched, one at a time.
+  private static final Pattern LEFT_BOUNDARY_PATTERN = Pattern.compile("\\b|(?<=\\W)");
+  private static final Pattern RIGHT_BOUNDARY_PATTERN = Pattern.compile("\\b|(?=\\W)");
+
+  private final List<LinkTarget> conceptTargets = Lists.newArrayList();
+  private final List<LinkTarget> playerTargets = Lists.newArrayList();
+  private final AhoCorasickMatcher nameMatcher;
+
+  /**
+   * Builds the matcher for the given players and concepts. The order of the lists matters:
+   * when two names overlap in the content, the one that comes first gets the link.
+   */
+  public AutoLinkEntitiesInContent(List<PlayerContentItem> playerContentItems,
+      List<BackgroundContentItem> concepts) {
+    List<String> names = Lists.newArrayList();
+    Map<String, Integer> nameIndices = Maps.newHashMap();
+
+    for (BackgroundContentItem concept : concepts) {
+      LinkTarget target = new LinkTarget(concept.getId());
+      target.addName(concept.getConceptName(), names, nameIndices);
+      conceptTargets.add(target);
+    }
+
+    for (PlayerContentItem playerContentItem : playerContentItems) {
+      LinkTarget target = new LinkTarget(playerContentItem.getId());
+      // First look for the player's full name, then for the aliases.
+      String playerName = playerContentItem.getName();
+      target.addName(playerName, names, nameIndices);
+      for (String alias : playerContentItem.getAliases()) {
+        target.addName(alias, names, nameIndices);
+      }
+      if (playerContentItem.getPlayerType() == PlayerType.PERSON) {
+        // If the full name or aliases don't exist, just look for the last part of the name
+        // for people (but not for organizations because the last words in their names are often
+        // common words such as "Group" or "Association")
+        String[] playerNameParts = playerName.split("\\s");
+        if (playerNameParts.length > 1) {
+          target.addName(playerNameParts[playerNameParts.length - 1], names, nameIndices);
+        }
+      }
+      // Note: the order in which the matches are looked for above can lead to a corner case
+      // in which the alias is mentioned first in the text and the full name is mentioned later.
+      // The full name will be linked later on in the text, instead of the alias being linked.
+      // This is acceptable because in writing, they usually put the full name in the
+      // first occurrence followed by shortened versions.
+      playerTargets.add(target);
+    }
+
+    nameMatcher = new AhoCorasickMatcher(names);
+  }
+
   /**
-   * Looks for matches of the names and aliases of each of the given players in the content entity.
+   * Looks for matches of the names and aliases of each of the players in the content entity.
    * If a match is found and a corresponding link is not found around it, creates 1 per
-   * player. Also adds these players to the base content entity as new linked content entities.
+   * player. Returns these players' ids, as suggested new linked content entities.
    * Also looks for matches of the names of concepts and creates a link if one doesn't exist. 
    */
-  public static Set<Long> createLinks(BaseContentEntity contentEntity, 
-      List<PlayerContentItem> playerContentItems, List<BackgroundContentItem> concepts) {
+  public Set<Long> createLinks(BaseContentEntity contentEntity) {
     Set<Long> suggestedAdditionIds = Sets.newHashSet();
     ContentItemType contentItemType = contentEntity.getContentItemType();
     Long contentEntityId = contentEntity.getId();
     if (contentItemType != ContentItemType.ASSET && contentItemType != ContentItemType.PLAYER) {
-      MatchResult matchResult = match(contentEntityId, contentEntity.getContent(),
-          playerContentItems, concepts);
+      MatchResult matchResult = match(contentEntityId, contentEntity.getContent(), true);
       // If matches were found, set the current content string with the new one that contains
       // <contentItem> tags
       if (matchResult.matchesFound) {
@@ -67,8 +126,7 @@ public class AutoLinkEntitiesInContent {
     
     // Do the same for event summary
     if (contentItemType == ContentItemType.EVENT) {
-      MatchResult matchResult = match(contentEntityId, contentEntity.getEventSummary(),
-          playerContentItems, concepts);
+      MatchResult matchResult = match(contentEntityId, contentEntity.getEventSummary(), true);
       if (matchResult.matchesFound) {
         contentEntity.setEventSummary(matchResult.newContent);
       }
@@ -77,8 +135,7 @@ public class AutoLinkEntitiesInContent {
     
     // For narrative summary: (some need for refactoring here!)
     if (contentItemType == ContentItemType.NARRATIVE) {
-      MatchResult matchResult = match(contentEntityId, contentEntity.getNarrativeSummary(),
-          playerContentItems, concepts);
+      MatchResult matchResult = match(contentEntityId, contentEntity.getNarrativeSummary(), true);
       if (matchResult.matchesFound) {
         contentEntity.setNarrativeSummary(matchResult.newContent);
       }
@@ -88,109 +145,167 @@ public class AutoLinkEntitiesInContent {
     // For asset caption, if applicable: (again, refactoring would be very good...)
     if (contentItemType == ContentItemType.ASSET
         && contentEntity.getAssetType() != AssetType.LINK) {
-      // Send an empty concept list here because we are only looking for player names to suggest
-      MatchResult matchResult = match(contentEntityId, contentEntity.getCaption(),
-          playerContentItems, Lists.<BackgroundContentItem>newArrayList());
+      // Skip the concepts here because we are only looking for player names to suggest
+      MatchResult matchResult = match(contentEntityId, contentEntity.getCaption(), false);
       // We _don't_ reset the caption, which is just plain text, not HTML.
       suggestedAdditionIds.addAll(matchResult.suggestedPlayerIds);
     }
     return suggestedAdditionIds;
   }
   
-  
-  private static MatchResult match(Long contentEntityId, String content,
-      List<PlayerContentItem> playerContentItems, List<BackgroundContentItem> concepts) {
+  private MatchResult match(Long contentEntityId, String content, boolean includeConcepts) {
     MatchResult matchResult = new MatchResult();
     // We need to remove the newline characters \n from the string so we can look for matches
-    content = content.replaceAll("\\s+", " ");
+    content = WHITESPACE_PATTERN.matcher(content).replaceAll(" ");
     
-    // First find the concept matches and construct the result partially
-    for (BackgroundContentItem concept : concepts) {
-      Long conceptId = concept.getId();
-      String javascript = "showContentItemPopup(" + conceptId + ", this)";
-      if (!conceptId.equals(contentEntityId) && !content.contains(javascript)) {
-        String conceptName = concept.getConceptName();
-        Pair<Boolean, String> result = matchAndReplace(content, conceptName, javascript);
-        if (result.first) {
-          matchResult.matchesFound = true;
-          content = result.second;
+    List<List<Integer>> occurrences = nameMatcher.findAll(content);
+    LinkSiteFinder finder = new LinkSiteFinder(content, occurrences);
+
+    // First find the concept matches, which take precedence over player matches
+    if (includeConcepts) {
+      for (LinkTarget concept : conceptTargets) {
+        if (!concept.id.equals(contentEntityId) && !content.contains(concept.javascript)) {
+          if (finder.claimFirstLinkSite(concept)) {
+            matchResult.matchesFound = true;
+          }
         }
       }
     }
 
     // Then look for the player matches
     Set<Long> suggestedPlayerIds = Sets.newHashSet();
-    for (PlayerContentItem playerContentItem : playerContentItems) {
-      Long playerId = playerContentItem.getId();
-      String javascript = "showContentItemPopup(" + playerId + ", this)";      
-      if (content.contains(javascript)) {
+    for (LinkTarget player : playerTargets) {
+      if (content.contains(player.javascript)) {
         // If a showContentItemPopup() link for a player is already there, we should consistently
         // and repeatedly suggest that the player content item be linked as well. Note that it's no
         // problem if the suggestion duplicates a content item that has already really been linked
         // up; the frontend treats this as a sane, expected case.
-        suggestedPlayerIds.add(playerId);
-      } else {
-        String playerName = playerContentItem.getName();
-        // If a link to that player doesn't already exist, first look for the player's full
-        // name in the content
-        Pair<Boolean, String> result = matchAndReplace(content, playerName, javascript);
-        // If that doesn't exist, look for the aliases
-        Iterator<String> aliasIterator = playerContentItem.getAliases().iterator();
-        while (!result.first && aliasIterator.hasNext()) {
-          result = matchAndReplace(content, aliasIterator.next(), javascript);
-        }
-        if (!result.first && playerContentItem.getPlayerType() == PlayerType.PERSON) {
-          // If the full name or aliases don't exist, just look for the last part of the name
-          // for people (but not for organizations because the last words in their names are often
-          // common words such as "Group" or "Association")
-          String[] playerNameParts = playerName.split("\\s");
-          if (playerNameParts.length > 1) {
-            result = matchAndReplace(content, playerNameParts[playerNameParts.length - 1], 
-                javascript);
+        suggestedPlayerIds.add(player.id);
+      } else if (finder.claimFirstLinkSite(player)) {
+        matchResult.matchesFound = true;
+        suggestedPlayerIds.add(player.id);
+      }
+    }
+    matchResult.newContent = finder.getLinkedContent();
+    matchResult.suggestedPlayerIds = suggestedPlayerIds;
+    return matchResult;
+  }
+
+  /**
+   * A player or concept that can be linked to, with the indices (into the name matcher's
+   * patterns) of the names to look for, in order of preference.
+   */
+  private static class LinkTarget {
+    public final Long id;
+    public final String javascript;
+    public final List<Integer> nameIndices = Lists.newArrayList();
+
+    public LinkTarget(Long id) {
+      this.id = id;
+      this.javascript = "showContentItemPopup(" + id + ", this)";
+    }
+
+    public void addName(String name, List<String> names, Map<String, Integer> indicesByName) {
+      // a long-standing bug in the Content manager means that players that originally had
+      // the empty string entered for their aliases actually are saved in the datastore as having
+      // one alias, "". We avoid paying attention to this as follows (which should catch some
+      // other cases too).
+      if (name == null || name.trim().isEmpty()) {
+        return;
+      }
+      Integer index = indicesByName.get(name);
+      if (index == null) {
+        index = names.size();
+        names.add(name);
+        indicesByName.put(name, index);
+      }
+      nameIndices.add(index);
+    }
+  }
+
+  /**
+   * Chooses link sites among the name occurrences found in one piece of content. Each target
+   * gets the first acceptable occurrence of its most preferred name that has one; occurrences
+   * that overlap a link site claimed earlier are skipped, so links never nest.
+   */
+  private class LinkSiteFinder {
+    private final String content;
+    private final List<List<Integer>> occurrences;
+    private final Matcher leftBoundaryMatcher;
+    private final Matcher rightBoundaryMatcher;
+    private final List<LinkSite> linkSites = Lists.newArrayList();
+
+    public LinkSiteFinder(String content, List<List<Integer>> occurrences) {
+      this.content = content;
+      this.occurrences = occurrences;
+      leftBoundaryMatcher = LEFT_BOUNDARY_PATTERN.matcher(content)
+          .useTransparentBounds(true).useAnchoringBounds(false);
+      rightBoundaryMatcher = RIGHT_BOUNDARY_PATTERN.matcher(content)
+          .useTransparentBounds(true).useAnchoringBounds(false);
+    }
+
+    public boolean claimFirstLinkSite(LinkTarget target) {
+      for (int nameIndex : target.nameIndices) {
+        int nameLength = nameMatcher.getPatterns().get(nameIndex).length();
+        for (int start : occurrences.get(nameIndex)) {
+          int end = start + nameLength;
+          if (isAtBoundaries(start, end) && !overlapsLinkSite(start, end)) {
+            linkSites.add(new LinkSite(start, end, target.javascript));
+            return true;
           }
         }
-        // Note: the order in which the matches are looked for above can lead to a corner case
-        // in which the alias is mentioned first in the text and the full name is mentioned later.
-        // The full name will be linked later on in the text, instead of the alias being linked.
-        // This is acceptable because in writing, they usually put the full name in the
-        // first occurrence followed by shortened versions.
-        
-        if (result.first) {
-          matchResult.matchesFound = true;
-          suggestedPlayerIds.add(playerId);
-          content = result.second;
+      }
+      return false;
+    }
+
+    private boolean isAtBoundaries(int start, int end) {
+      leftBoundaryMatcher.region(start, content.length());
+      rightBoundaryMatcher.region(end, content.length());
+      return leftBoundaryMatcher.lookingAt() && rightBoundaryMatcher.lookingAt();
+    }
+
+    private boolean overlapsLinkSite(int start, int end) {
+      for (LinkSite linkSite : linkSites) {
+        if (start < linkSite.end && linkSite.start < end) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public String getLinkedContent() {
+      if (linkSites.isEmpty()) {
+        return content;
+      }
+      Collections.sort(linkSites, new Comparator<LinkSite>() {
+        @Override
+        public int compare(LinkSite lhs, LinkSite rhs) {
+          return lhs.start - rhs.start;
         }
+      });
+      StringBuilder sb = new StringBuilder(content.length() + 64 * linkSites.size());
+      int position = 0;
+      for (LinkSite linkSite : linkSites) {
+        sb.append(content, position, linkSite.start)
+            .append("<a href=\"javascript:;\" onclick=\"").append(linkSite.javascript)
+            .append("\">").append(content, linkSite.start, linkSite.end).append("</a>");
+        position = linkSite.end;
       }
+      sb.append(content, position, content.length());
+      return sb.toString();
     }
-    matchResult.newContent = content;
-    matchResult.suggestedPlayerIds = suggestedPlayerIds;
-    return matchResult;
   }
 
-  private static Pair<Boolean, String> matchAndReplace(String content, String playerName, 
-      String javascript) {
-    // a long-standing bug in the Content manager means that players that originally had
-    // the empty string entered for their aliases actually are saved in the datastore as having
-    // one alias, "". We avoid paying attention to this as follows (which should catch some
-    // other cases too).
-    if (playerName.trim().isEmpty()) {
-      return Pair.of(false, content);
+  private static class LinkSite {
+    public final int start;
+    public final int end;
+    public final String javascript;
+
+    public LinkSite(int start, int end, String javascript) {
+      this.start = start;
+      this.end = end;
+      this.javascript = javascript;
     }
-    
-    Matcher matcher = Pattern.compile("(\\b|\\W)(" + Pattern.quote(playerName) + ")(\\b|\\W)")
-        .matcher(content);
-    boolean foundMatch = false;
-    StringBuffer sb = new StringBuffer();
-    if (matcher.find()) {
-      foundMatch = true;
-      String match = matcher.group();
-      String contentItemLink = "<a href=\"javascript:;\" onclick=\"" +
-          javascript + "\">" + matcher.group(2) + "</a>";
-      match = match.replace(playerName, contentItemLink);
-      matcher.appendReplacement(sb, Matcher.quoteReplacement(match));
-    }
-    matcher.appendTail(sb);
-    return Pair.of(foundMatch, sb.toString());
   }
   
   private static class MatchResult {
@@ -198,18 +313,4 @@ public class AutoLinkEntitiesInContent {
     public String newContent;
     public Set<Long> suggestedPlayerIds;
   }
-  
-  private static class Pair<A, B> {
-    public final A first;
-    public final B second;
-    
-    private Pair(A first, B second) {
-      this.first = first;
-      this.second = second;
-    }
-    
-    public static <A, B> Pair<A, B> of (A first, B second) {
-      return new Pair<A, B>(first, second);
-    }
-  }
 }
@@ -18,16 +18,15 @@ package com.google.livingstories.server.rpcimpl;
 
 import com.google.common.base.Joiner;
 import com.google.livingstories.client.BaseContentItem;
-import com.google.livingstories.client.ContentItemTypesBundle;
 import com.google.livingstories.client.DisplayContentItemBundle;
+import com.google.livingstories.client.EventContentItem;
 import com.google.livingstories.client.FilterSpec;
-import com.google.livingstories.client.LivingStory;
 import com.google.livingstories.client.PlayerContentItem;
 import com.google.livingstories.client.StartPageBundle;
 import com.google.livingstories.client.Theme;
 import com.google.livingstories.server.dataservices.ServerCache;
-import com.google.livingstories.server.dataservices.impl.AppEngineCacheImpl;
-import com.google.livingstories.server.util.LRUCache;
+import com.google.livingstories.server.dataservices.impl.DataCaches;
+import com.google.livingstories.server.util.RenderedFeed;
 
 import java.util.Date;
 import java.util.List;
@@ -37,57 +36,101 @@ import java.util.Map;
  * Class that stores references to different cache instances in the app.
  */
 public class Caches {
-  // Use a no-expiration memcache to store the most commonly used things.
-  private static final ServerCache noExpirationCache = new AppEngineCacheImpl(0);
+  // Shared with the data services, which keep the story directory and user states there.
+  private static final ServerCache noExpirationCache = DataCaches.getCache();
 
   public static void clearAll() {
     noExpirationCache.clear();
   }
   
-  /** Living story cache methods */
+  /** ContentItems for livingStory cache methods **/
+
+  // The story's published items are stored under its content generation, and all of its items,
+  // drafts included, under its editor content generation. Clearing either list just bumps its
+  // generation.
 
-  public static List<LivingStory> getLivingStories() {
-    return noExpirationCache.get(getLivingStoryCacheKey());
+  /**
+   * Returns the generation that the story's list of content items is stored under, or null if it
+   * can't be determined, in which case the list shouldn't be cached. Read this before loading the
+   * list, and store the list under it, so that a change made during the load isn't lost.
+   */
+  public static Long getLivingStoryContentItemsGeneration(Long livingStoryId,
+      boolean onlyPublished) {
+    return onlyPublished ? getLivingStoryContentGeneration(livingStoryId)
+        : getEditorContentGeneration(livingStoryId);
   }
 
-  public static synchronized void setLivingStories(List<LivingStory> livingStories) {
-    noExpirationCache.put(getLivingStoryCacheKey(), livingStories);
+  public static List<BaseContentItem> getLivingStoryContentItems(Long livingStoryId,
+      boolean onlyPublished, Long generation) {
+    return noExpirationCache.get(
+        getLivingStoryContentItemsCacheKey(livingStoryId, onlyPublished, generation));
   }
 
-  public static void clearLivingStories() {
-    noExpirationCache.remove(getLivingStoryCacheKey());
+  public static void setLivingStoryContentItems(Long livingStoryId, boolean onlyPublished,
+      Long generation, List<BaseContentItem> livingStoryContentItems) {
+    noExpirationCache.put(
+        getLivingStoryContentItemsCacheKey(livingStoryId, onlyPublished, generation),
+        livingStoryContentItems);
   }
 
-  private static String getLivingStoryCacheKey() {
-    return "allLivingStories";
+  public static void clearLivingStoryContentItems(Long livingStoryId) {
+    clearEditorContentItems(livingStoryId);
+    clearPublishedContentItems(livingStoryId);
+    clearRenderedFeeds(livingStoryId);
+    // also, in case any non-living-story-specific information was changed here; e.g., authorship
+    clearDisplayContentItemBundles(null);
   }
 
+  /**
+   * Clears the list of all the story's content items, drafts included, without touching anything
+   * that readers see. This also moves the list on to a new editor content generation.
+   */
+  public static void clearEditorContentItems(Long livingStoryId) {
+    bumpGeneration(getEditorContentGenerationKey(livingStoryId));
+  }
 
-  /** ContentItems for livingStory cache methods **/
+  /**
+   * Clears the story's published content items and its display bundles, which also moves the
+   * story on to a new content generation.
+   */
+  public static void clearPublishedContentItems(Long livingStoryId) {
+    clearDisplayContentItemBundles(livingStoryId);
+  }
 
-  public static List<BaseContentItem> getLivingStoryContentItems(Long livingStoryId,
-      boolean onlyPublished) {
-    return noExpirationCache.get(getLivingStoryContentItemsCacheKey(livingStoryId, onlyPublished));
+  private static String getLivingStoryContentItemsCacheKey(Long livingStoryId,
+      boolean onlyPublished, Long generation) {
+    return "livingStoryContentItems:" + livingStoryId + ":" + onlyPublished + ":" + generation;
   }
 
-  public static void setLivingStoryContentItems(
-      Long livingStoryId, boolean onlyPublished, List<BaseContentItem> livingStoryContentItems) {
-    noExpirationCache.put(getLivingStoryContentItemsCacheKey(livingStoryId, onlyPublished),
-        livingStoryContentItems);
+  /** Content item list snapshot cache methods **/
+
+  // Snapshots of the content manager's list are stored under the editor content generation they
+  // were built for, which is bumped whenever the list of all the story's items is cleared.
+
+  /**
+   * Returns the story's current editor content generation, or null if it can't be determined.
+   */
+  public static Long getEditorContentGeneration(Long livingStoryId) {
+    return getGeneration(getEditorContentGenerationKey(livingStoryId));
   }
 
-  public static void clearLivingStoryContentItems(Long livingStoryId) {
-    noExpirationCache.remove(getLivingStoryContentItemsCacheKey(livingStoryId, true));
-    noExpirationCache.remove(getLivingStoryContentItemsCacheKey(livingStoryId, false));
-    noExpirationCache.remove(getDisplayContentItemBundleCacheKey(livingStoryId));
-    noExpirationCache.remove(getContributorsForLivingStoryCacheKey(livingStoryId));
-    // also, in case any non-living-story-specific information was changed here; e.g., authorship
-    noExpirationCache.remove(getDisplayContentItemBundleCacheKey(null));
+  public static ContentItemListSnapshot getContentItemListSnapshot(Long livingStoryId,
+      Long generation) {
+    return noExpirationCache.get(getContentItemListSnapshotCacheKey(livingStoryId, generation));
   }
 
-  private static String getLivingStoryContentItemsCacheKey(Long livingStoryId,
-      boolean onlyPublished) {
-    return "livingStoryContentItems:" + livingStoryId + ":" + onlyPublished;
+  public static void setContentItemListSnapshot(Long livingStoryId, Long generation,
+      ContentItemListSnapshot snapshot) {
+    noExpirationCache.put(getContentItemListSnapshotCacheKey(livingStoryId, generation),
+        snapshot);
+  }
+
+  private static String getEditorContentGenerationKey(Long livingStoryId) {
+    return "editorContentGeneration:" + livingStoryId;
+  }
+
+  private static String getContentItemListSnapshotCacheKey(Long livingStoryId, Long generation) {
+    return "contentItemListSnapshot:" + livingStoryId + ":" + generation;
   }
 
 
@@ -109,98 +152,301 @@ public class Caches {
     return "themes:" + String.valueOf(livingStoryId);
   }
 
-  public static Map<Long, ContentItemTypesBundle> getLivingStoryThemeInfo(Long livingStoryId) {
-    return noExpirationCache.get(getLivingStoryThemeInfoCacheKey(livingStoryId));
+  /** Update time cache methods **/
+  
+  // The sorted timestamps of the story's published updates, stored under its content generation
+  // so that counting new updates doesn't need the story's items on every instance.
+  
+  public static long[] getUpdateTimes(Long livingStoryId, Long contentGeneration) {
+    return noExpirationCache.get(getUpdateTimesCacheKey(livingStoryId, contentGeneration));
   }
   
-  public static void setLivingStoryThemeInfo(
-      Long livingStoryId, Map<Long, ContentItemTypesBundle> themeInfo) {
-    noExpirationCache.put(getLivingStoryThemeInfoCacheKey(livingStoryId), themeInfo);
+  public static void setUpdateTimes(Long livingStoryId, Long contentGeneration,
+      long[] updateTimes) {
+    noExpirationCache.put(getUpdateTimesCacheKey(livingStoryId, contentGeneration), updateTimes);
   }
   
-  public static void clearLivingStoryThemeInfo(Long livingStoryId) {
-    noExpirationCache.remove(getLivingStoryThemeInfoCacheKey(livingStoryId));
+  private static String getUpdateTimesCacheKey(Long livingStoryId, Long contentGeneration) {
+    return "updateTimes:" + livingStoryId + ":" + contentGeneration;
   }
-
-  private static String getLivingStoryThemeInfoCacheKey(Long livingStoryId) {
-    return "themeinfo:" + String.valueOf(livingStoryId);
+  
+  /** Important content item cache methods **/
+  
+  // Stored under the story's content generation, since both are lists of its published items.
+  
+  public static List<EventContentItem> getImportantEvents(Long livingStoryId,
+      Long contentGeneration) {
+    return noExpirationCache.get(getImportantEventsCacheKey(livingStoryId, contentGeneration));
   }
   
-  /** Contributor cache methods **/
+  public static void setImportantEvents(Long livingStoryId, Long contentGeneration,
+      List<EventContentItem> events) {
+    noExpirationCache.put(getImportantEventsCacheKey(livingStoryId, contentGeneration), events);
+  }
   
-  public static Map<Long, PlayerContentItem> getContributorsForLivingStory(Long livingStoryId) {
-    return noExpirationCache.get(getContributorsForLivingStoryCacheKey(livingStoryId));
+  public static List<PlayerContentItem> getImportantPlayers(Long livingStoryId,
+      Long contentGeneration) {
+    return noExpirationCache.get(getImportantPlayersCacheKey(livingStoryId, contentGeneration));
   }
   
-  public static void setContributorsForLivingStory(
-      Long livingStoryId, Map<Long, PlayerContentItem> contributors) {
-    noExpirationCache.put(getContributorsForLivingStoryCacheKey(livingStoryId), contributors);
+  public static void setImportantPlayers(Long livingStoryId, Long contentGeneration,
+      List<PlayerContentItem> players) {
+    noExpirationCache.put(getImportantPlayersCacheKey(livingStoryId, contentGeneration),
+        players);
   }
   
-  public static void clearContributorsForLivingStory(Long livingStoryId) {
-    noExpirationCache.remove(getContributorsForLivingStoryCacheKey(livingStoryId));
+  private static String getImportantEventsCacheKey(Long livingStoryId, Long contentGeneration) {
+    return "importantEvents:" + livingStoryId + ":" + contentGeneration;
   }
   
-  private static String getContributorsForLivingStoryCacheKey(Long livingStoryId) {
-    return "contributors:" + livingStoryId;
+  private static String getImportantPlayersCacheKey(Long livingStoryId, Long contentGeneration) {
+    return "importantPlayers:" + livingStoryId + ":" + contentGeneration;
+  }
+  
+  /** Story aggregates cache methods **/
+  
+  // Stored under the story's content generation, like start page updates. A content change
+  // moves the aggregates to the new generation; see ContentRpcImpl.invalidateCache.
+  
+  public static StoryAggregates getStoryAggregates(Long livingStoryId, Long contentGeneration) {
+    return noExpirationCache.get(getStoryAggregatesCacheKey(livingStoryId, contentGeneration));
+  }
+  
+  public static void setStoryAggregates(Long livingStoryId, Long contentGeneration,
+      StoryAggregates aggregates) {
+    noExpirationCache.put(getStoryAggregatesCacheKey(livingStoryId, contentGeneration),
+        aggregates);
+  }
+  
+  private static String getStoryAggregatesCacheKey(Long livingStoryId, Long contentGeneration) {
+    return "storyAggregates:" + livingStoryId + ":" + contentGeneration;
+  }
+  
+  /** Contributor cache methods **/
+  
+  // Stored under the story's auto-link version, which changes whenever a player in the story,
+  // or an unassigned player, is saved or deleted. Changes to which players contribute to the
+  // story don't clear the map; the caller fills in any contributors that are missing. Ids that
+  // were looked up but don't map to a player are kept in the map with a null value, so that
+  // they aren't looked up again.
+  
+  public static Map<Long, PlayerContentItem> getContributorsForLivingStory(Long livingStoryId,
+      String playersVersion) {
+    return noExpirationCache.get(getContributorsForLivingStoryCacheKey(livingStoryId,
+        playersVersion));
+  }
+  
+  public static void setContributorsForLivingStory(Long livingStoryId, String playersVersion,
+      Map<Long, PlayerContentItem> contributors) {
+    noExpirationCache.put(getContributorsForLivingStoryCacheKey(livingStoryId, playersVersion),
+        contributors);
+  }
+  
+  private static String getContributorsForLivingStoryCacheKey(Long livingStoryId,
+      String playersVersion) {
+    return "contributors:" + livingStoryId + ":" + playersVersion;
   }
   
   /** Display content item bundle cache methods **/
   
-  private static final int DISPLAY_CONTENT_ITEM_BUNDLE_CACHE_SIZE = 5;
+  // Each bundle is stored under its own key, which includes a per-story generation number.
+  // Clearing a story's bundles just bumps its generation, so the old entries are never read again
+  // and age out of memcache on their own.
   
   public static DisplayContentItemBundle getDisplayContentItemBundle(Long livingStoryId,
       FilterSpec filter, Long focusedContentItemId, Date cutoff) {
-    LRUCache<String, DisplayContentItemBundle> cache =
-        noExpirationCache.get(getDisplayContentItemBundleCacheKey(livingStoryId));
-    if (cache != null) {
-      return cache.get(getDisplayContentItemBundleMapKey(filter, focusedContentItemId, cutoff));
-    } else {
+    Long generation = getDisplayContentItemBundleGeneration(livingStoryId);
+    if (generation == null) {
       return null;
     }
+    return noExpirationCache.get(getDisplayContentItemBundleCacheKey(livingStoryId, generation,
+        filter, focusedContentItemId, cutoff));
   }
 
   public static void setDisplayContentItemBundle(Long livingStoryId,
       FilterSpec filter, Long focusedContentItemId, Date cutoff, DisplayContentItemBundle bundle) {
-    String cacheKey = getDisplayContentItemBundleCacheKey(livingStoryId);
-    LRUCache<String, DisplayContentItemBundle> cache = noExpirationCache.get(cacheKey);
-    if (cache == null) {
-      cache = new LRUCache<String, DisplayContentItemBundle>(
-          DISPLAY_CONTENT_ITEM_BUNDLE_CACHE_SIZE);
+    Long generation = getDisplayContentItemBundleGeneration(livingStoryId);
+    if (generation != null) {
+      noExpirationCache.put(getDisplayContentItemBundleCacheKey(livingStoryId, generation,
+          filter, focusedContentItemId, cutoff), bundle);
     }
-    cache.put(getDisplayContentItemBundleMapKey(filter, focusedContentItemId, cutoff), bundle);
-    noExpirationCache.put(cacheKey, cache);
   }
 
   public static void clearDisplayContentItemBundles(Long livingStoryId) {
-    noExpirationCache.remove(getDisplayContentItemBundleCacheKey(livingStoryId));
+    bumpGeneration(getDisplayContentItemBundleGenerationKey(livingStoryId));
+  }
+
+  /**
+   * Returns the current bundle generation for the story, or null if it can't be determined, in
+   * which case bundles shouldn't be cached.
+   */
+  private static Long getDisplayContentItemBundleGeneration(Long livingStoryId) {
+    return getGeneration(getDisplayContentItemBundleGenerationKey(livingStoryId));
   }
 
-  private static String getDisplayContentItemBundleCacheKey(Long livingStoryId) {
-    return "displayContentItemBundle:" + String.valueOf(livingStoryId);
-  }  
+  private static String getDisplayContentItemBundleGenerationKey(Long livingStoryId) {
+    return "displayContentItemBundleGeneration:" + String.valueOf(livingStoryId);
+  }
 
-  private static String getDisplayContentItemBundleMapKey(FilterSpec filter,
-      Long focusedContentItemId, Date cutoff) {
-    return Joiner.on(":").useForNull("null").join(filter.getMapKeyString(),
+  private static String getDisplayContentItemBundleCacheKey(Long livingStoryId, Long generation,
+      FilterSpec filter, Long focusedContentItemId, Date cutoff) {
+    return Joiner.on(":").useForNull("null").join("displayContentItemBundle",
+        String.valueOf(livingStoryId), generation, filter.getMapKeyString(),
         focusedContentItemId, (cutoff == null ? null : cutoff.getTime()));
   }
   
   /** Start page cache methods **/
   
-  public static StartPageBundle getStartPageBundle() {
-    return noExpirationCache.get(getStartPageBundleCacheKey());
+  // The bundle is stored under a key that includes a generation number, which is bumped whenever
+  // the list of stories or the content of any story changes. Each story's start page updates are
+  // also cached on their own, keyed by the story's content generation, so that the bundle can be
+  // put back together after a change by querying only the stories that actually changed.
+  
+  /**
+   * Returns the current start page generation, or null if it can't be determined, in which case
+   * the bundle shouldn't be cached. Read this before building a bundle, and store the bundle
+   * under it, so that a change made during the build isn't lost.
+   */
+  public static Long getStartPageGeneration() {
+    return getGeneration(getStartPageGenerationKey());
   }
   
-  public static void setStartPageBundle(StartPageBundle bundle) {
-    noExpirationCache.put(getStartPageBundleCacheKey(), bundle);
+  public static StartPageBundle getStartPageBundle(Long generation) {
+    return noExpirationCache.get(getStartPageBundleCacheKey(generation));
+  }
+  
+  public static void setStartPageBundle(Long generation, StartPageBundle bundle) {
+    noExpirationCache.put(getStartPageBundleCacheKey(generation), bundle);
   }
   
   public static void clearStartPageBundle() {
-    noExpirationCache.remove(getStartPageBundleCacheKey());
+    bumpGeneration(getStartPageGenerationKey());
+  }
+  
+  /**
+   * Returns a number that changes whenever the story's content items change, or null if it
+   * can't be determined.
+   */
+  public static Long getLivingStoryContentGeneration(Long livingStoryId) {
+    // Clearing a story's content items always clears its display bundles too.
+    return getDisplayContentItemBundleGeneration(livingStoryId);
+  }
+  
+  public static List<BaseContentItem> getStartPageUpdates(Long livingStoryId,
+      Long contentGeneration) {
+    return noExpirationCache.get(getStartPageUpdatesCacheKey(livingStoryId, contentGeneration));
+  }
+  
+  public static void setStartPageUpdates(Long livingStoryId, Long contentGeneration,
+      List<BaseContentItem> updates) {
+    noExpirationCache.put(getStartPageUpdatesCacheKey(livingStoryId, contentGeneration), updates);
+  }
+  
+  private static String getStartPageGenerationKey() {
+    return "startPageGeneration";
+  }
+  
+  private static String getStartPageBundleCacheKey(Long generation) {
+    return "startpage:" + generation;
+  }
+  
+  private static String getStartPageUpdatesCacheKey(Long livingStoryId, Long contentGeneration) {
+    return "startPageUpdates:" + livingStoryId + ":" + contentGeneration;
+  }
+  
+  /** Rendered feed cache methods **/
+  
+  // Feeds are looked up by request url, so that polls can be answered without looking up the
+  // story first. Each rendered feed records the story's feed generation at the time it was
+  // rendered, and is only valid while that's still the current generation.
+  
+  public static RenderedFeed getRenderedFeed(String feedUrl) {
+    return noExpirationCache.get(getRenderedFeedCacheKey(feedUrl));
+  }
+  
+  public static void setRenderedFeed(String feedUrl, RenderedFeed feed) {
+    noExpirationCache.put(getRenderedFeedCacheKey(feedUrl), feed);
+  }
+  
+  /**
+   * Returns the current feed generation for the story, or null if it can't be determined, in
+   * which case feeds shouldn't be cached.
+   */
+  public static Long getRenderedFeedGeneration(Long livingStoryId) {
+    return getGeneration(getRenderedFeedGenerationKey(livingStoryId));
+  }
+  
+  public static void clearRenderedFeeds(Long livingStoryId) {
+    bumpGeneration(getRenderedFeedGenerationKey(livingStoryId));
+  }
+  
+  private static String getRenderedFeedCacheKey(String feedUrl) {
+    return "renderedFeed:" + feedUrl;
+  }
+  
+  private static String getRenderedFeedGenerationKey(Long livingStoryId) {
+    return "renderedFeedGeneration:" + String.valueOf(livingStoryId);
+  }
+  
+  /** Diffed summary cache methods **/
+  
+  // Summary revisions are never modified, so these entries never need to be cleared.
+  
+  public static String getDiffedSummary(Long livingStoryId, Date currentRevisionTime,
+      Date lastSeenRevisionTime) {
+    return noExpirationCache.get(
+        getDiffedSummaryCacheKey(livingStoryId, currentRevisionTime, lastSeenRevisionTime));
+  }
+  
+  public static void setDiffedSummary(Long livingStoryId, Date currentRevisionTime,
+      Date lastSeenRevisionTime, String diffedSummary) {
+    noExpirationCache.put(
+        getDiffedSummaryCacheKey(livingStoryId, currentRevisionTime, lastSeenRevisionTime),
+        diffedSummary);
+  }
+  
+  private static String getDiffedSummaryCacheKey(Long livingStoryId, Date currentRevisionTime,
+      Date lastSeenRevisionTime) {
+    return Joiner.on(":").useForNull("null").join("diffedSummary", livingStoryId,
+        currentRevisionTime.getTime(),
+        (lastSeenRevisionTime == null ? null : lastSeenRevisionTime.getTime()));
+  }
+  
+  /** Auto-link matcher version methods **/
+  
+  /**
+   * Returns a version string for the players and concepts that content in the story is
+   * auto-linked to, or null if it can't be determined. Any change to the story's players or
+   * concepts, or to the unassigned players that story players are based on, changes the version.
+   */
+  public static String getAutoLinkVersion(Long livingStoryId) {
+    Long storyGeneration = getGeneration(getAutoLinkGenerationKey(livingStoryId));
+    Long globalGeneration = getGeneration(getAutoLinkGenerationKey(null));
+    if (storyGeneration == null || globalGeneration == null) {
+      return null;
+    }
+    return storyGeneration + ":" + globalGeneration;
+  }
+  
+  /**
+   * Records that a player or concept in the story changed. Pass a null livingStoryId for
+   * unassigned players, which affects every story.
+   */
+  public static void clearAutoLinkVersion(Long livingStoryId) {
+    bumpGeneration(getAutoLinkGenerationKey(livingStoryId));
+  }
+  
+  private static String getAutoLinkGenerationKey(Long livingStoryId) {
+    return "autoLinkGeneration:" + String.valueOf(livingStoryId);
+  }
+  
+  /** Generation counter helpers **/
+  
+  private static Long getGeneration(String generationKey) {
+    return DataCaches.getGeneration(generationKey);
   }
   
-  private static String getStartPageBundleCacheKey() {
-    return "startpage:";
+  private static void bumpGeneration(String generationKey) {
+    DataCaches.bumpGeneration(generationKey);
   }
 }
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.rpcimpl;
+
+import com.google.common.collect.Lists;
+import com.google.livingstories.client.BackgroundContentItem;
+import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.ContentItemType;
+import com.google.livingstories.client.EventContentItem;
+import com.google.livingstories.client.NarrativeContentItem;
+import com.google.livingstories.client.PublishState;
+import com.google.livingstories.server.util.Histogram;
+import com.google.livingstories.server.util.MetricsRegistry;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Works out which cached data could differ after one content item in a story is saved or
+ * deleted, by comparing the item before and after the change, so that only that data is evicted.
+ *
+ * Readers only ever see published items, so a change where the item is a draft both before and
+ * after only affects the content manager's list of the story's items. Otherwise the reader-side
+ * caches for the story are affected. The start page and feeds are only affected if an update
+ * appears, disappears, or changes in one of the fields they show, such as its headline, summary
+ * or date; an edit to an event's details doesn't affect them. The bundles for unassigned content
+ * are affected if the item is a player, isn't in a story, or has contributors or linked items,
+ * since the bundles of a player's contributions and linked items include items from every story.
+ * The story's auto-link matcher is affected by any change to a player, since contributors are
+ * cached under the same version, but only by changes to a concept's name.
+ *
+ * This also records how many entries each save evicted.
+ */
+public class ContentChangeImpact {
+  public enum Region {
+    /** The list of all the story's content items, drafts included, used by the content manager. */
+    EDITOR_CONTENT,
+    /**
+     * The story's published content items, and everything derived from them: display bundles,
+     * the content index and aggregates.
+     */
+    READER_CONTENT,
+    /** The updates shown on the start page and in the story's feeds. */
+    UPDATES,
+    /** Display bundles that aren't specific to a story, e.g. those showing authorship. */
+    UNASSIGNED_CONTENT,
+    /** The players and concepts that content in the story is auto-linked to. */
+    AUTO_LINK_TARGETS
+  }
+
+  private static final AtomicLong saveCount = MetricsRegistry.counter("contentChange.saves");
+  private static final AtomicLong editorOnlySaveCount =
+      MetricsRegistry.counter("contentChange.editorOnlySaves");
+  private static final Histogram evictionsPerSave =
+      MetricsRegistry.histogram("contentChange.evictionsPerSave");
+
+  private final Set<Region> regions;
+
+  private ContentChangeImpact(Set<Region> regions) {
+    this.regions = regions;
+  }
+
+  /**
+   * A summary's long text fields are empty, so changes to them, which the feeds and start page
+   * show, are only seen when both items are full ones.
+   * @param before the item before the change, or null if it was just created
+   * @param after the item after the change, or null if it was deleted
+   */
+  public static ContentChangeImpact analyze(BaseContentItem before, BaseContentItem after) {
+    Set<Region> regions = EnumSet.noneOf(Region.class);
+    if (before == null && after == null) {
+      return new ContentChangeImpact(regions);
+    }
+    regions.add(Region.EDITOR_CONTENT);
+
+    boolean wasPublished = isPublished(before);
+    boolean isPublished = isPublished(after);
+    if (!wasPublished && !isPublished) {
+      return new ContentChangeImpact(regions);
+    }
+    regions.add(Region.READER_CONTENT);
+
+    // Each side of the change only counts if readers could see it.
+    BaseContentItem visibleBefore = wasPublished ? before : null;
+    BaseContentItem visibleAfter = isPublished ? after : null;
+
+    if ((isUpdate(visibleBefore) || isUpdate(visibleAfter))
+        && !getUpdateFields(visibleBefore).equals(getUpdateFields(visibleAfter))) {
+      regions.add(Region.UPDATES);
+    }
+    if (isInUnassignedContent(visibleBefore) || isInUnassignedContent(visibleAfter)) {
+      regions.add(Region.UNASSIGNED_CONTENT);
+    }
+    if (isPlayer(visibleBefore) || isPlayer(visibleAfter)
+        || ((isConcept(visibleBefore) || isConcept(visibleAfter))
+            && !getConceptName(visibleBefore).equals(getConceptName(visibleAfter)))) {
+      regions.add(Region.AUTO_LINK_TARGETS);
+    }
+    return new ContentChangeImpact(regions);
+  }
+
+  public boolean affects(Region region) {
+    return regions.contains(region);
+  }
+
+  /**
+   * Returns whether readers could see any difference from the change.
+   */
+  public boolean isVisibleToReaders() {
+    return regions.contains(Region.READER_CONTENT);
+  }
+
+  /**
+   * Records, in the {@link MetricsRegistry}, that a save or delete evicted the given number of
+   * cache entries. A generation bump counts as one entry, though it retires every entry stored
+   * under it.
+   */
+  public void recordEvictions(int evicted) {
+    saveCount.incrementAndGet();
+    evictionsPerSave.record(evicted);
+    if (!isVisibleToReaders()) {
+      editorOnlySaveCount.incrementAndGet();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return regions.toString();
+  }
+
+  private static boolean isPublished(BaseContentItem contentItem) {
+    return contentItem != null && contentItem.getPublishState() == PublishState.PUBLISHED;
+  }
+
+  private static boolean isUpdate(BaseContentItem contentItem) {
+    if (contentItem == null) {
+      return false;
+    }
+    // The same items that the update queries return.
+    ContentItemType contentItemType = contentItem.getContentItemType();
+    return contentItemType == ContentItemType.EVENT
+        || (contentItemType == ContentItemType.NARRATIVE
+            && ((NarrativeContentItem) contentItem).isStandalone());
+  }
+
+  /**
+   * Returns the fields of the item that the start page and feeds show, or an empty list if it
+   * isn't an update, or isn't visible.
+   */
+  private static List<Object> getUpdateFields(BaseContentItem contentItem) {
+    if (!isUpdate(contentItem)) {
+      return Collections.emptyList();
+    }
+    List<Object> fields = Lists.<Object>newArrayList(contentItem.getId(),
+        contentItem.getContentItemType(), contentItem.getTimestamp(),
+        contentItem.getDateSortKey());
+    if (contentItem.getContentItemType() == ContentItemType.EVENT) {
+      EventContentItem event = (EventContentItem) contentItem;
+      fields.add(event.getEventUpdate());
+      fields.add(event.getEventSummary());
+    } else {
+      NarrativeContentItem narrative = (NarrativeContentItem) contentItem;
+      fields.add(narrative.getHeadline());
+      fields.add(narrative.getNarrativeType());
+      fields.add(narrative.getNarrativeSummary());
+      // Feeds show a snippet of the content when there's no summary.
+      fields.add(narrative.getContent());
+    }
+    return fields;
+  }
+
+  private static boolean isInUnassignedContent(BaseContentItem contentItem) {
+    return contentItem != null && (isPlayer(contentItem)
+        || contentItem.getLivingStoryId() == null
+        || !contentItem.getContributorIds().isEmpty()
+        || !contentItem.getLinkedContentItemIds().isEmpty());
+  }
+
+  private static boolean isPlayer(BaseContentItem contentItem) {
+    return contentItem != null && contentItem.getContentItemType() == ContentItemType.PLAYER;
+  }
+
+  private static boolean isConcept(BaseContentItem contentItem) {
+    return contentItem != null
+        && contentItem.getContentItemType() == ContentItemType.BACKGROUND;
+  }
+
+  /**
+   * Returns the name that the auto-link matcher would match for the item, in a list so that a
+   * missing name compares equal to another missing name.
+   */
+  private static List<String> getConceptName(BaseContentItem contentItem) {
+    return isConcept(contentItem)
+        ? Collections.singletonList(((BackgroundContentItem) contentItem).getConceptName())
+        : Collections.<String>emptyList();
+  }
+}
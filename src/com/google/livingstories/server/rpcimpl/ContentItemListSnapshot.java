@@ -0,0 +1,229 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.rpcimpl;
+
+import com.google.livingstories.client.AssetContentItem;
+import com.google.livingstories.client.BackgroundContentItem;
+import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.ContentItemListDelta;
+import com.google.livingstories.client.ContentItemSummary;
+import com.google.livingstories.client.DefaultContentItem;
+import com.google.livingstories.client.EventContentItem;
+import com.google.livingstories.client.Location;
+import com.google.livingstories.client.NarrativeContentItem;
+import com.google.livingstories.client.PlayerContentItem;
+import com.google.livingstories.client.StoryPlayerContentItem;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * The summaries of a story's content items, drafts included, as sent to one or more content
+ * manager clients, along with a fingerprint of each item's persisted fields. The snapshot a
+ * client last saw is cached under its version, so that the next time the client asks, only the
+ * items whose fingerprints have changed since then need to be sent.
+ *
+ * Versions start with the story's editor content generation, which is bumped whenever the list
+ * changes, followed by a random part. Two instances can build different snapshots for the same
+ * generation if the list changes while they're being built, and the random part stops a client
+ * that saw one from being sent changes worked out against the other.
+ */
+public class ContentItemListSnapshot implements Serializable {
+  private static final Random random = new Random();
+
+  private final String version;
+  private final List<ContentItemSummary> summaries;
+  private final Map<Long, Long> fingerprints;
+
+  /**
+   * @param generation the story's editor content generation, read before contentItems was
+   *     loaded, or null if it's unknown
+   * @param contentItems the story's content items, newest first
+   */
+  public ContentItemListSnapshot(Long generation, List<BaseContentItem> contentItems) {
+    this.version = generation == null ? null
+        : generation + "-" + Long.toHexString(random.nextLong());
+    this.summaries = new ArrayList<ContentItemSummary>(contentItems.size());
+    this.fingerprints = new HashMap<Long, Long>();
+    for (BaseContentItem contentItem : contentItems) {
+      summaries.add(new ContentItemSummary(contentItem));
+      fingerprints.put(contentItem.getId(), getFingerprint(contentItem));
+    }
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns the generation that a version was built for, or null if the version is malformed.
+   */
+  public static Long getGeneration(String version) {
+    if (version == null) {
+      return null;
+    }
+    try {
+      int separator = version.indexOf('-');
+      return Long.valueOf(separator < 0 ? version : version.substring(0, separator));
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the changes from previous to this snapshot, or the whole of this snapshot if
+   * previous is null.
+   */
+  public ContentItemListDelta getChangesSince(ContentItemListSnapshot previous) {
+    if (previous == null) {
+      return new ContentItemListDelta(version, true,
+          new ArrayList<ContentItemSummary>(summaries), new ArrayList<Long>());
+    }
+    List<ContentItemSummary> changed = new ArrayList<ContentItemSummary>();
+    for (ContentItemSummary summary : summaries) {
+      if (!fingerprints.get(summary.getId()).equals(previous.fingerprints.get(summary.getId()))) {
+        changed.add(summary);
+      }
+    }
+    List<Long> deleted = new ArrayList<Long>();
+    for (Long id : previous.fingerprints.keySet()) {
+      if (!fingerprints.containsKey(id)) {
+        deleted.add(id);
+      }
+    }
+    return new ContentItemListDelta(version, false, changed, deleted);
+  }
+
+  /**
+   * Returns a checksum of the item's persisted fields, so that a change to any of them changes
+   * its fingerprint. This leaves out what the client object works out when it's loaded, such as
+   * the time elapsed since the item's timestamp, which would otherwise change the fingerprint as
+   * the clock moves on. Items the item refers to, like a source item or a player's photo, count
+   * by id only.
+   */
+  private static Long getFingerprint(BaseContentItem contentItem) {
+    FieldChecksum checksum = new FieldChecksum();
+    checksum.add(contentItem.getId());
+    checksum.add(contentItem.getContentItemType());
+    // A default item is stamped with the time it was loaded rather than its stored timestamp.
+    checksum.add(contentItem instanceof DefaultContentItem ? null : contentItem.getTimestamp());
+    checksum.add(contentItem.getContent());
+    checksum.add(contentItem.getImportance());
+    checksum.add(contentItem.getLivingStoryId());
+    checksum.add(contentItem.getPublishState());
+    checksum.add(contentItem.getContributorIds());
+    checksum.add(contentItem.getLinkedContentItemIds());
+    checksum.add(contentItem.getThemeIds());
+    Location location = contentItem.getLocation();
+    if (location != null) {
+      checksum.add(location.getLatitude());
+      checksum.add(location.getLongitude());
+      checksum.add(location.getDescription());
+    }
+    checksum.add(contentItem.getSourceDescription());
+    checksum.add(contentItem.getSourceContentItemId());
+
+    if (contentItem instanceof EventContentItem) {
+      EventContentItem event = (EventContentItem) contentItem;
+      checksum.add(event.getEventStartDate());
+      checksum.add(event.getEventEndDate());
+      checksum.add(event.getEventUpdate());
+      checksum.add(event.getEventSummary());
+    } else if (contentItem instanceof NarrativeContentItem) {
+      NarrativeContentItem narrative = (NarrativeContentItem) contentItem;
+      checksum.add(narrative.getHeadline());
+      checksum.add(narrative.getNarrativeType());
+      checksum.add(narrative.isStandalone());
+      checksum.add(narrative.getNarrativeDate());
+      checksum.add(narrative.getNarrativeSummary());
+    } else if (contentItem instanceof StoryPlayerContentItem) {
+      // The name and type shown for a story player come from its parent player.
+      PlayerContentItem parent =
+          ((StoryPlayerContentItem) contentItem).getParentPlayerContentItem();
+      if (parent != null) {
+        checksum.add(parent.getId());
+        checksum.add(parent.getName());
+        checksum.add(parent.getPlayerType());
+      }
+    } else if (contentItem instanceof PlayerContentItem) {
+      PlayerContentItem player = (PlayerContentItem) contentItem;
+      checksum.add(player.getName());
+      checksum.add(player.getAliases());
+      checksum.add(player.getPlayerType());
+      checksum.add(player.getPhotoContentItemId());
+    } else if (contentItem instanceof AssetContentItem) {
+      AssetContentItem asset = (AssetContentItem) contentItem;
+      checksum.add(asset.getAssetType());
+      checksum.add(asset.getCaption());
+      checksum.add(asset.getPreviewUrl());
+    } else if (contentItem instanceof BackgroundContentItem) {
+      checksum.add(((BackgroundContentItem) contentItem).getConceptName());
+    }
+    return checksum.getValue();
+  }
+
+  /**
+   * A CRC of a sequence of field values, each written as its string form and a terminator, so
+   * that moving text from one field to the next changes the checksum. Sets are written in sorted
+   * order, since two equal sets can iterate in different orders.
+   */
+  private static class FieldChecksum {
+    private static final byte NULL_MARKER = 1;
+    private static final byte TERMINATOR = 0;
+
+    private final CRC32 crc = new CRC32();
+
+    public void add(Object value) {
+      if (value == null) {
+        crc.update(NULL_MARKER);
+      } else if (value instanceof Set<?>) {
+        for (Object element : new TreeSet<Object>((Set<?>) value)) {
+          add(element);
+        }
+      } else if (value instanceof Collection<?>) {
+        for (Object element : (Collection<?>) value) {
+          add(element);
+        }
+      } else if (value instanceof Date) {
+        add(((Date) value).getTime());
+        return;
+      } else {
+        try {
+          crc.update(String.valueOf(value).getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+          // Every JVM supports UTF-8.
+          throw new RuntimeException(ex);
+        }
+      }
+      crc.update(TERMINATOR);
+    }
+
+    public long getValue() {
+      return crc.getValue();
+    }
+  }
+}
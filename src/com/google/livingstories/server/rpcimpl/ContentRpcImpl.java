@@ -17,17 +17,15 @@
 package com.google.livingstories.server.rpcimpl;
 
 import com.google.common.base.Function;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 import com.google.livingstories.client.AssetContentItem;
 import com.google.livingstories.client.BackgroundContentItem;
 import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.ContentItemListDelta;
+import com.google.livingstories.client.ContentItemSummary;
 import com.google.livingstories.client.ContentItemType;
 import com.google.livingstories.client.ContentRpcService;
 import com.google.livingstories.client.DisplayContentItemBundle;
@@ -37,16 +35,17 @@ import com.google.livingstories.client.Importance;
 import com.google.livingstories.client.NarrativeContentItem;
 import com.google.livingstories.client.PlayerContentItem;
 import com.google.livingstories.client.PublishState;
+import com.google.livingstories.client.contentmanager.SearchResults;
 import com.google.livingstories.client.contentmanager.SearchTerms;
 import com.google.livingstories.client.util.GlobalUtil;
 import com.google.livingstories.client.util.SnippetUtil;
 import com.google.livingstories.client.util.dom.JavaNodeAdapter;
 import com.google.livingstories.server.dataservices.entities.BaseContentEntity;
+import com.google.livingstories.server.dataservices.entities.BaseContentEntity.Projection;
 import com.google.livingstories.server.dataservices.entities.LivingStoryEntity;
-import com.google.livingstories.server.dataservices.entities.UserLivingStoryEntity;
 import com.google.livingstories.server.dataservices.impl.DataImplFactory;
 import com.google.livingstories.server.dataservices.impl.PMF;
-import com.google.livingstories.server.util.AlertSender;
+import com.google.livingstories.server.rpcimpl.ContentChangeImpact.Region;
 import com.google.livingstories.server.util.StringUtil;
 import com.google.livingstories.servlet.ExternalServiceKeyChain;
 
@@ -56,14 +55,17 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
@@ -80,10 +82,33 @@ import javax.servlet.http.HttpServletRequest;
 public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcService {
   public static final int CONTENT_ITEM_COUNT_LIMIT = 20;  
   public static final int JUMP_TO_CONTENT_ITEM_CONTEXT_COUNT = 3;
+  public static final int SEARCH_RESULTS_PAGE_SIZE = 50;
   private static final int EMAIL_ALERT_SNIPPET_LENGTH = 500;
   
   private static final Logger logger =
       Logger.getLogger(ContentRpcImpl.class.getCanonicalName());
+
+  // In-flight datastore loads for getContentItemsForLivingStory, keyed by
+  // getContentItemsLoadKey(). Static since several servlets create their own ContentRpcImpl.
+  private static final ConcurrentMap<String, FutureTask<List<BaseContentItem>>>
+      contentItemsLoads = new ConcurrentHashMap<String, FutureTask<List<BaseContentItem>>>();
+
+  // Filter indexes over each story's published content items. An index is rebuilt whenever the
+  // story moves on to a new content generation.
+  private static final ConcurrentMap<Long, StoryContentIndex> storyContentIndexes =
+      new ConcurrentHashMap<Long, StoryContentIndex>();
+
+  // Full-text indexes over each story's content items, drafts included, keyed by
+  // String.valueOf(livingStoryId) since unassigned content has a null story id. Each is checked
+  // against the story's editor content generation before use, and is updated in place when this
+  // instance saves or deletes one of the story's items.
+  private static final ConcurrentMap<String, StorySearchIndex> storySearchIndexes =
+      new ConcurrentHashMap<String, StorySearchIndex>();
+
+  // Name matchers for auto-linking players and concepts, by story id. Checked against
+  // Caches.getAutoLinkVersion() before use, so edits made on other instances are picked up too.
+  private static final ConcurrentMap<Long, VersionedAutoLinker> autoLinkers =
+      new ConcurrentHashMap<Long, VersionedAutoLinker>();
   
   private InternetAddress cachedFromAddress = null;
   private String cachedPublisherName = null;
@@ -97,13 +122,11 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     boolean runAutoLink = contentItem.getLivingStoryId() != null 
         && contentItem.getContentItemType() != ContentItemType.PLAYER
         && !GlobalUtil.isContentEmpty(contentItem.getContent());
-    List<PlayerContentItem> playerContentItems = null;
-    List<BackgroundContentItem> concepts = null;
+    AutoLinkEntitiesInContent autoLinker = null;
     
     try {
       if (runAutoLink) {
-        playerContentItems = getPlayers(contentItem.getLivingStoryId());
-        concepts = getConcepts(contentItem.getLivingStoryId());
+        autoLinker = getAutoLinker(contentItem.getLivingStoryId());
       }
     } catch (Exception e) {
       logger.warning("Skipping auto-linking. Error with retrieving players or concepts."
@@ -115,6 +138,11 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     Transaction tx = null;
     BaseContentEntity contentEntity;
     PublishState oldPublishState = null;
+    Long oldLivingStoryId = null;
+    BaseContentItem oldContentItem = null;
+    // Linked narratives that stop being standalone, before and after the change.
+    List<BaseContentItem> unlinkedNarrativesBefore = Lists.newArrayList();
+    List<BaseContentItem> unlinkedNarrativesAfter = Lists.newArrayList();
     
     Set<Long> newLinkedContentItemSuggestions = null;
     
@@ -122,14 +150,17 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
       if (contentItem.getId() != null) {
         contentEntity = pm.getObjectById(BaseContentEntity.class, contentItem.getId());
         oldPublishState = contentEntity.getPublishState();
+        oldLivingStoryId = contentEntity.getLivingStoryId();
+        // A full item, since the feeds and start page show its summary and body; see
+        // invalidateCache.
+        oldContentItem = contentEntity.toClientObject();
         contentEntity.copyFields(contentItem);
       } else {
         contentEntity = BaseContentEntity.fromClientObject(contentItem);
       }
       
       if (runAutoLink) {
-        newLinkedContentItemSuggestions = 
-            AutoLinkEntitiesInContent.createLinks(contentEntity, playerContentItems, concepts);
+        newLinkedContentItemSuggestions = autoLinker.createLinks(contentEntity);
       }
 
       tx = pm.currentTransaction();
@@ -155,27 +186,45 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
         @SuppressWarnings("unchecked")
         Collection<BaseContentEntity> linkedContentEntities = pm.getObjectsById(oids);
         for (BaseContentEntity linkedContentEntity : linkedContentEntities) {
-          if (linkedContentEntity.getContentItemType() == ContentItemType.NARRATIVE) {
+          if (linkedContentEntity.getContentItemType() == ContentItemType.NARRATIVE
+              && linkedContentEntity.isStandalone()) {
+            unlinkedNarrativesBefore.add(linkedContentEntity.toClientObject(Projection.SUMMARY));
             linkedContentEntity.setIsStandalone(false);
+            unlinkedNarrativesAfter.add(linkedContentEntity.toClientObject(Projection.SUMMARY));
           }
         }
       }
 
       // TODO: may also want to invalidate linked content items if they changed
       // and aren't from the same living story.
-      invalidateCache(contentItem.getLivingStoryId());
+      // A separate copy from the one returned below, which gets the link suggestions added.
+      BaseContentItem newContentItem = contentEntity.toClientObject();
+      if (contentItem.getId() != null
+          && !GlobalUtil.equal(oldLivingStoryId, contentEntity.getLivingStoryId())) {
+        invalidateCache(oldLivingStoryId, oldContentItem, null, true);
+        invalidateCache(contentEntity.getLivingStoryId(), null, newContentItem, true);
+      } else {
+        invalidateCache(contentEntity.getLivingStoryId(), oldContentItem, newContentItem, true);
+      }
     } finally {
       if (tx != null && tx.isActive()) {
         tx.rollback();
       }
       pm.close();
     }
+
+    // The narratives' changes are only written when the persistence manager is closed, and
+    // may drop them from the story's updates even if this item is a draft.
+    for (int i = 0; i < unlinkedNarrativesBefore.size(); i++) {
+      invalidateCache(unlinkedNarrativesAfter.get(i).getLivingStoryId(),
+          unlinkedNarrativesBefore.get(i), unlinkedNarrativesAfter.get(i), false);
+    }
     
     // Send email alerts if an event content item was changed from 'Draft' to 'Published'
     if (contentEntity.getContentItemType() == ContentItemType.EVENT
         && contentEntity.getPublishState() == PublishState.PUBLISHED
         && oldPublishState != null && oldPublishState == PublishState.DRAFT) {
-      sendEmailAlerts((EventContentItem)contentItem);
+      enqueueEmailAlerts((EventContentItem)contentItem);
     }
 
     // We pass suggested new linked content items back to the client by adding their ids to the
@@ -194,15 +243,45 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
   
   @Override
   public List<PlayerContentItem> getUnassignedPlayers() {
-    return getPlayers(null);
+    return getPlayers(null, Projection.FULL);
+  }
+  
+  /**
+   * Returns the auto-linker for the story's players and concepts, building it only if they've
+   * changed since it was last built.
+   */
+  private AutoLinkEntitiesInContent getAutoLinker(Long livingStoryId) {
+    // Read the version before loading, so that a change made during the load is caught next time.
+    String version = Caches.getAutoLinkVersion(livingStoryId);
+    VersionedAutoLinker cached = autoLinkers.get(livingStoryId);
+    if (cached != null && version != null && version.equals(cached.version)) {
+      return cached.autoLinker;
+    }
+    AutoLinkEntitiesInContent autoLinker =
+        new AutoLinkEntitiesInContent(getPlayers(livingStoryId, Projection.SUMMARY),
+            getConcepts(livingStoryId));
+    if (version != null) {
+      autoLinkers.put(livingStoryId, new VersionedAutoLinker(version, autoLinker));
+    }
+    return autoLinker;
+  }
+
+  private static class VersionedAutoLinker {
+    public final String version;
+    public final AutoLinkEntitiesInContent autoLinker;
+
+    public VersionedAutoLinker(String version, AutoLinkEntitiesInContent autoLinker) {
+      this.version = version;
+      this.autoLinker = autoLinker;
+    }
   }
   
-  private List<PlayerContentItem> getPlayers(Long livingStoryId) {
+  private List<PlayerContentItem> getPlayers(Long livingStoryId, Projection projection) {
     List<BaseContentEntity> playerEntities =
         getPublishedContentEntitiesByType(livingStoryId, ContentItemType.PLAYER);
     List<PlayerContentItem> playerContentItems = Lists.newArrayList();
     for (BaseContentEntity playerEntity : playerEntities) {
-      playerContentItems.add((PlayerContentItem)(playerEntity.toClientObject()));
+      playerContentItems.add((PlayerContentItem)(playerEntity.toClientObject(projection)));
     }
     return playerContentItems;
   }
@@ -213,7 +292,8 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     List<BackgroundContentItem> backgroundContentItems = Lists.newArrayList();
     for (BaseContentEntity backgroundEntity : backgroundEntities) {
       if (!GlobalUtil.isContentEmpty(backgroundEntity.getName())) {
-        backgroundContentItems.add((BackgroundContentItem)(backgroundEntity.toClientObject()));
+        backgroundContentItems.add(
+            (BackgroundContentItem)(backgroundEntity.toClientObject(Projection.SUMMARY)));
       }
     }
     return backgroundContentItems;
@@ -240,62 +320,49 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     }
   }
   
-  private void sendEmailAlerts(EventContentItem eventContentItem) {
+  /**
+   * Adds an alert for the event to the email outbox. Only the values that depend on this request
+   * are worked out here; the subscribers are read, and the emails sent, by the outbox.
+   */
+  private void enqueueEmailAlerts(EventContentItem eventContentItem) {
+    // getServletContext() doesn't return a valid result at construction-time, so
+    // we initialize the external properties lazily.
+    if (cachedFromAddress == null && cachedPublisherName == null) {
+      ExternalServiceKeyChain externalKeys = new ExternalServiceKeyChain(getServletContext());
+      cachedPublisherName = externalKeys.getPublisherName();
+      cachedFromAddress = externalKeys.getFromAddress();
+    }
+    if (cachedFromAddress == null) {
+      return;
+    }
+
     PersistenceManager pm = PMF.get().getPersistenceManager();
-    
-    // Get list of users
-    Query query = pm.newQuery(UserLivingStoryEntity.class); 
-    query.setFilter("livingStoryId == livingStoryIdParam && subscribedToEmails == true");
-    query.declareParameters("long livingStoryIdParam");
-    
     try {
-      @SuppressWarnings("unchecked")
-      List<UserLivingStoryEntity> userLivingStoryEntities =
-          (List<UserLivingStoryEntity>) query.execute(eventContentItem.getLivingStoryId());
-      Multimap<String, String> usersByLocale = HashMultimap.create();
-      for (UserLivingStoryEntity entity : userLivingStoryEntities) {
-        usersByLocale.put(entity.getSubscriptionLocale(), entity.getParentEmailAddress());
-      }
+      LivingStoryEntity livingStory = pm.getObjectById(LivingStoryEntity.class,
+          eventContentItem.getLivingStoryId());
+      String baseLspUrl = getBaseServerUrl() + "/lsps/" + livingStory.getUrl();
       
-      if (!usersByLocale.isEmpty()) {
-        // Determine what all the placeholder text should be for the per-locale e-mails.
-
-        // getServletContext() doesn't return a valid result at construction-time, so
-        // we initialize the external properties lazily.
-        if (cachedFromAddress == null && cachedPublisherName == null) {
-          ExternalServiceKeyChain externalKeys = new ExternalServiceKeyChain(getServletContext());
-          cachedPublisherName = externalKeys.getPublisherName();
-          cachedFromAddress = externalKeys.getFromAddress();
-        }
-       
-        LivingStoryEntity livingStory = pm.getObjectById(LivingStoryEntity.class,
-            eventContentItem.getLivingStoryId());
-        String baseLspUrl = getBaseServerUrl() + "/lsps/" + livingStory.getUrl();
-        
-        String eventSummary = eventContentItem.getEventSummary();
-        String eventDetails = eventContentItem.getContent();
-        if (GlobalUtil.isContentEmpty(eventSummary) 
-            && !GlobalUtil.isContentEmpty(eventDetails)) {
-          eventSummary = SnippetUtil.createSnippet(JavaNodeAdapter.fromHtml(eventDetails), 
-              EMAIL_ALERT_SNIPPET_LENGTH);
-        }
-
-        ImmutableMap<String, String> placeholderMap = new ImmutableMap.Builder<String, String>()
-            .put("storyTitle", livingStory.getTitle())
-            .put("updateTitle", eventContentItem.getEventUpdate())
-            .put("publisherName", cachedPublisherName)
-            .put("snippet", StringUtil.stripForExternalSites(eventSummary))
-            .put("linkUrl", baseLspUrl + "#OVERVIEW:false,false,false,false,n,n,n:"
-                + eventContentItem.getId())
-            .put("loginUrl", DataImplFactory.getUserLoginService().createLoginUrl(baseLspUrl))
-            .build();
-       
-        for (String locale : usersByLocale.keySet()) {
-          sendEmailsForLocale(placeholderMap, locale, usersByLocale.get(locale));
-        }
+      String eventSummary = eventContentItem.getEventSummary();
+      String eventDetails = eventContentItem.getContent();
+      if (GlobalUtil.isContentEmpty(eventSummary) 
+          && !GlobalUtil.isContentEmpty(eventDetails)) {
+        eventSummary = SnippetUtil.createSnippet(JavaNodeAdapter.fromHtml(eventDetails), 
+            EMAIL_ALERT_SNIPPET_LENGTH);
       }
+
+      ImmutableMap<String, String> placeholderMap = new ImmutableMap.Builder<String, String>()
+          .put("storyTitle", livingStory.getTitle())
+          .put("updateTitle", eventContentItem.getEventUpdate())
+          .put("publisherName", cachedPublisherName)
+          .put("snippet", StringUtil.stripForExternalSites(eventSummary))
+          .put("linkUrl", baseLspUrl + "#OVERVIEW:false,false,false,false,n,n,n:"
+              + eventContentItem.getId())
+          .put("loginUrl", DataImplFactory.getUserLoginService().createLoginUrl(baseLspUrl))
+          .build();
+
+      EmailAlertOutbox.enqueue(eventContentItem.getLivingStoryId(), eventContentItem.getId(),
+          placeholderMap, cachedFromAddress);
     } finally {
-      query.closeAll();
       pm.close();
     }
   }
@@ -306,74 +373,80 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     return url.substring(0, url.length() - request.getRequestURI().length());
   }
 
-  private void sendEmailsForLocale(
-      Map<String, String> placeholderMap, String localeString, Collection<String> recipients) {
-    // We reconstruct the Locale from the locale string. This ignores the possibility that
-    // a language variant is being specified, a script is being specified, etc.
-    // TODO: fix that.
-    Locale locale = Locale.ENGLISH;
-    if (!localeString.isEmpty()) {
-      String[] splitRes = localeString.split("_");
-      locale = splitRes.length == 1 ? new Locale(splitRes[0])
-          : new Locale(splitRes[0], splitRes[1]);
+  @Override
+  public List<BaseContentItem> getContentItemsForLivingStory(
+      final Long livingStoryId, final boolean onlyPublished) {
+    // Read the generation before loading, so that a change made during the load isn't lost.
+    Long generation = Caches.getLivingStoryContentItemsGeneration(livingStoryId, onlyPublished);
+    List<BaseContentItem> contentItems = generation == null ? null
+        : Caches.getLivingStoryContentItems(livingStoryId, onlyPublished, generation);
+    if (contentItems != null) {
+      return contentItems;
     }
-    
-    ResourceBundle emailBundle = ResourceBundle.getBundle(
-        "com.google.livingstories.server.rpcimpl.emailTemplate", locale);
-
-    String subject = emailBundle.getString("updateEmailSubject")
-        .replace("{0}", placeholderMap.get("storyTitle"));
-
-    // get the template in the .properties file, converting to the format expected by
-    // java.util.Formatter. A simple replaceAll won't suffice here 'cause the source format
-    // is 0-indexed, but the target format is 1-indexed. We use a StringBuffer below rather
-    // than a StringBuilder because Matcher is only compatible with the former.
-    StringBuffer sb = new StringBuffer();
-    Pattern p = Pattern.compile("\\{(\\d+)\\}");
-    Matcher m = p.matcher(emailBundle.getString("updateEmailTemplate"));
-    while (m.find()) {
-      int num = Integer.parseInt(m.group(1));
-      m.appendReplacement(sb, "%" + (num + 1) + "\\$s");
-    }
-    m.appendTail(sb);
-    
-    String template = sb.toString();
-    
-    // Some parts of this template aren't necessary if certain placeholders are blank.
-    // Do some replacement logic to correct this. Note the reluctant quantifiers.
-    String publisherName = placeholderMap.get("publisherName");
-    if (GlobalUtil.isContentEmpty(publisherName)) {
-      template = template.replaceFirst("<span class=\"p_span\".*?</span>", "");
+
+    // On a cache miss, only one thread per (story, onlyPublished, generation) queries the
+    // datastore. Any other thread that misses while that query is running waits for its result
+    // instead. A change to the story moves it on to a new generation, so threads that miss after
+    // the change start a new load rather than waiting for one that may be stale.
+    String loadKey = getContentItemsLoadKey(livingStoryId, onlyPublished, generation);
+    FutureTask<List<BaseContentItem>> load = new FutureTask<List<BaseContentItem>>(
+        new Callable<List<BaseContentItem>>() {
+          public List<BaseContentItem> call() {
+            return loadContentItemsForLivingStory(livingStoryId, onlyPublished);
+          }
+        });
+    FutureTask<List<BaseContentItem>> inFlightLoad =
+        contentItemsLoads.putIfAbsent(loadKey, load);
+    if (inFlightLoad != null) {
+      return waitForLoad(inFlightLoad);
     }
-    String snippet = placeholderMap.get("snippet");
-    if (snippet == null || snippet.isEmpty()) {
-      template = template.replaceFirst("<div class=\"s_div\".*?</div>", "");
+
+    load.run();
+    contentItemsLoads.remove(loadKey, load);
+    contentItems = waitForLoad(load);
+    if (generation != null) {
+      Caches.setLivingStoryContentItems(livingStoryId, onlyPublished, generation, contentItems);
     }
+    return contentItems;
+  }
 
-    // The transformations above may have taken some of these placeholders out of the
-    // template, but that's okay!
-    String body = String.format(template,
-        placeholderMap.get("updateTitle"),
-        publisherName,
-        snippet,
-        placeholderMap.get("linkUrl"),
-        placeholderMap.get("loginUrl"));
+  /**
+   * Returns the changes to the story's list of content items since the version the client last
+   * saw, as summaries. The client fetches full items as it needs them.
+   */
+  @Override
+  public ContentItemListDelta getContentItemListChanges(Long livingStoryId, String sinceVersion) {
+    // Read the generation before loading, so that a change made during the load isn't lost.
+    Long generation = Caches.getEditorContentGeneration(livingStoryId);
+    ContentItemListSnapshot current = generation == null ? null
+        : Caches.getContentItemListSnapshot(livingStoryId, generation);
+    if (current == null) {
+      current = new ContentItemListSnapshot(generation,
+          getContentItemsForLivingStory(livingStoryId, false));
+      if (generation != null) {
+        Caches.setContentItemListSnapshot(livingStoryId, generation, current);
+      }
+    }
 
-    if (cachedFromAddress != null) {
-      AlertSender.sendEmail(cachedFromAddress, recipients, subject, body);
+    ContentItemListSnapshot previous = null;
+    Long previousGeneration = ContentItemListSnapshot.getGeneration(sinceVersion);
+    if (previousGeneration != null) {
+      previous = Caches.getContentItemListSnapshot(livingStoryId, previousGeneration);
+      if (previous != null && !previous.getVersion().equals(sinceVersion)) {
+        // Another instance built a different snapshot for that generation; see
+        // ContentItemListSnapshot.
+        previous = null;
+      }
+    }
+    if (previous != null && sinceVersion.equals(current.getVersion())) {
+      return new ContentItemListDelta(current.getVersion(), false,
+          new ArrayList<ContentItemSummary>(), new ArrayList<Long>());
     }
+    return current.getChangesSince(previous);
   }
-  
-  @SuppressWarnings("unchecked")
-  @Override
-  public synchronized List<BaseContentItem> getContentItemsForLivingStory(
+
+  private List<BaseContentItem> loadContentItemsForLivingStory(
       Long livingStoryId, boolean onlyPublished) {
-    List<BaseContentItem> contentItems =
-        Caches.getLivingStoryContentItems(livingStoryId, onlyPublished);
-    if (contentItems != null) {
-      return contentItems;
-    }
- 
     PersistenceManager pm = PMF.get().getPersistenceManager();
     Query query = pm.newQuery(BaseContentEntity.class);
     query.setFilter("livingStoryId == livingStoryIdParam"
@@ -389,13 +462,47 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
       for (BaseContentEntity result : results) {
         clientContentItems.add(result.toClientObject());
       }
-      Caches.setLivingStoryContentItems(livingStoryId, onlyPublished, clientContentItems);
       return clientContentItems;
     } finally {
       query.closeAll();
       pm.close();
     }
   }
+
+  private static String getContentItemsLoadKey(Long livingStoryId, boolean onlyPublished,
+      Long generation) {
+    return livingStoryId + ":" + onlyPublished + ":" + generation;
+  }
+
+  /**
+   * Waits for a load started by this or another thread to finish, rethrowing any exception
+   * that the load threw.
+   */
+  private static <T> T waitForLoad(Future<T> load) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return load.get();
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new RuntimeException(cause);
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
     
   /**
    * Gets the eventBundle for a given date range within a living story. 
@@ -410,7 +517,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
    * @return an appropriate DisplayContentItemBundle
    */
   @Override
-  public synchronized DisplayContentItemBundle getDisplayContentItemBundle(Long livingStoryId,
+  public DisplayContentItemBundle getDisplayContentItemBundle(Long livingStoryId,
       FilterSpec filterSpec, Long focusedContentItemId, Date cutoff) {
     if (filterSpec.contributorId != null || filterSpec.playerId != null) {
       throw new IllegalArgumentException(
@@ -424,10 +531,16 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
     }
     
     FilterSpec localFilterSpec = new FilterSpec(filterSpec);
+    StoryContentIndex index = getStoryContentIndex(livingStoryId);
     
     BaseContentItem focusedContentItem = null;
     if (focusedContentItemId != null) {
-      focusedContentItem = getContentItem(focusedContentItemId, false);
+      // The focused content item is normally published, and so already in the index. Fall back
+      // to the datastore for anything else.
+      focusedContentItem = index.getContentItem(focusedContentItemId);
+      if (focusedContentItem == null) {
+        focusedContentItem = getContentItem(focusedContentItemId, false);
+      }
       if (focusedContentItem != null) {
         if (adjustFilterSpecForContentItem(localFilterSpec, focusedContentItem)) {
           // If we had to adjust the filter spec to accommodate the focused content item,
@@ -438,32 +551,12 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
       }
     }
     
-    // Some preliminaries. Note that the present implementation just filters all content items for
-    // a story, which could be a bit expensive if there's a cache miss. By and large, though,
-    // we'd expect a lot more cache hits than cache misses, unlike the case with, say,
-    // a twitter "following" feed, which is more likely to be unique to that user.
-    List<BaseContentItem> allContentItems = getContentItemsForLivingStory(livingStoryId, true);
-    
-    Map<Long, BaseContentItem> idToContentItemMap = Maps.newHashMap();
-    List<BaseContentItem> relevantContentItems = Lists.newArrayList();
-    for (BaseContentItem contentItem : allContentItems) {
-      idToContentItemMap.put(contentItem.getId(), contentItem);
-      
-      Date sortKey = contentItem.getDateSortKey();
-      boolean matchesStartDate = (cutoff == null) ||
-          (localFilterSpec.oldestFirst ? !sortKey.before(cutoff) : !sortKey.after(cutoff));
-
-      if (matchesStartDate && localFilterSpec.doesContentItemMatch(contentItem)) {
-        relevantContentItems.add(contentItem);
-      }
-    }
-    sortContentItemList(relevantContentItems, localFilterSpec);
-
-    // Need to get the focused content item from the map instead of using the object directly.
-    // This is because we use indexOf() to find the location of the focused content item in the
-    // list and the original contentItem isn't the same object instance.
-    List<BaseContentItem> coreContentItems = getSublist(relevantContentItems,
-        focusedContentItem == null ? null : idToContentItemMap.get(focusedContentItemId), cutoff);
+    // The index hands back matching content items in display order, starting at the cutoff,
+    // so we only look at as many items as end up on the page.
+    ContentItemPage page = getContentItemPage(
+        index.getMatchingContentItems(localFilterSpec, cutoff),
+        focusedContentItem == null ? null : focusedContentItemId, cutoff);
+    List<BaseContentItem> coreContentItems = page.contentItems;
     Set<Long> linkedContentItemIds = Sets.newHashSet();
     
     for (BaseContentItem contentItem : coreContentItems) {
@@ -476,7 +569,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
 
     Set<BaseContentItem> linkedContentItems = Sets.newHashSet();
     for (Long id : linkedContentItemIds) {
-      BaseContentItem linkedContentItem = idToContentItemMap.get(id);
+      BaseContentItem linkedContentItem = index.getContentItem(id);
       if (linkedContentItem == null) {
         System.err.println("Linked content item with id " + id + " is not found.");
       } else {
@@ -485,7 +578,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
         if (linkedContentItem.getContentItemType() == ContentItemType.NARRATIVE) {
           for (Long linkedToLinkedContentItemId : linkedContentItem.getLinkedContentItemIds()) {
             BaseContentItem linkedToLinkedContentItem =
-                idToContentItemMap.get(linkedToLinkedContentItemId);
+                index.getContentItem(linkedToLinkedContentItemId);
             if (linkedToLinkedContentItem != null) {
               linkedContentItems.add(linkedToLinkedContentItem);
             }
@@ -494,15 +587,30 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
       }
     }
     
-    Date nextDateInSequence = getNextDateInSequence(coreContentItems, relevantContentItems);
-
-    result = new DisplayContentItemBundle(coreContentItems, linkedContentItems, nextDateInSequence,
-        localFilterSpec);
+    result = new DisplayContentItemBundle(coreContentItems, linkedContentItems,
+        page.nextDateInSequence, localFilterSpec);
     Caches.setDisplayContentItemBundle(livingStoryId, filterSpec, focusedContentItemId, cutoff,
         result);
     return result;
   }
 
+  /**
+   * Returns the index over the story's published content items, building it if the story's
+   * content generation has changed since the index was last built. While the index is current,
+   * this doesn't fetch the story's content items at all.
+   */
+  private StoryContentIndex getStoryContentIndex(Long livingStoryId) {
+    // Read the generation before loading, so that a change made during the load isn't lost.
+    Long generation = Caches.getLivingStoryContentGeneration(livingStoryId);
+    StoryContentIndex index = storyContentIndexes.get(livingStoryId);
+    if (index == null || !index.isBuiltFor(generation)) {
+      index = new StoryContentIndex(generation,
+          getContentItemsForLivingStory(livingStoryId, true));
+      storyContentIndexes.put(livingStoryId, index);
+    }
+    return index;
+  }
+
   /**
    * Check if the contentItem matches the filterSpec.  If not, this method adjusts the filter
    * spec so that the contentItem will match.
@@ -538,64 +646,104 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
         filterSpec.oldestFirst ? BaseContentItem.COMPARATOR : BaseContentItem.REVERSE_COMPARATOR);
   }
   
-  private List<BaseContentItem> getSublist(List<BaseContentItem> allContentItems,
-      BaseContentItem focusedContentItem, Date cutoff) {
+  /**
+   * Takes a window of content items from the start of relevantContentItems, which must already
+   * be sorted in display order. Only consumes as much of the iterator as the window needs.
+   * @param focusedContentItemId optional; if set, the window extends to 3 items past this
+   *    content item. Otherwise, the window holds the first 20 content items.
+   */
+  private ContentItemPage getContentItemPage(Iterator<BaseContentItem> relevantContentItems,
+      Long focusedContentItemId, Date cutoff) {
+    List<BaseContentItem> seenContentItems = new ArrayList<BaseContentItem>();
     int contentItemLimit;
-    if (focusedContentItem == null) {
+    if (focusedContentItemId == null) {
       contentItemLimit = CONTENT_ITEM_COUNT_LIMIT;
     } else {
-      contentItemLimit =
-          allContentItems.indexOf(focusedContentItem) + 1 + JUMP_TO_CONTENT_ITEM_CONTEXT_COUNT;
+      int focusedIndex = -1;
+      while (focusedIndex < 0 && relevantContentItems.hasNext()) {
+        BaseContentItem contentItem = relevantContentItems.next();
+        seenContentItems.add(contentItem);
+        if (focusedContentItemId.equals(contentItem.getId())) {
+          focusedIndex = seenContentItems.size() - 1;
+        }
+      }
+      contentItemLimit = focusedIndex + 1 + JUMP_TO_CONTENT_ITEM_CONTEXT_COUNT;
       // If we are not appending content items and there are less than 20 results because of a
       // focussed content item, bump the limit up to 20
       if (cutoff == null && contentItemLimit < CONTENT_ITEM_COUNT_LIMIT) {
         contentItemLimit = CONTENT_ITEM_COUNT_LIMIT;
       }
     }
-    contentItemLimit = Math.min(allContentItems.size(), contentItemLimit);
 
-    while (contentItemLimit < allContentItems.size() - 1) {
-      Date thisContentItemDate = allContentItems.get(contentItemLimit).getDateSortKey();
-      Date nextContentItemDate = allContentItems.get(contentItemLimit + 1).getDateSortKey();
+    // Keep one item beyond the window in hand, both to compare dates across the end of the
+    // window and to report the next date in sequence.
+    fill(seenContentItems, relevantContentItems, contentItemLimit + 2);
+    contentItemLimit = Math.min(seenContentItems.size(), contentItemLimit);
+
+    while (contentItemLimit < seenContentItems.size() - 1) {
+      Date thisContentItemDate = seenContentItems.get(contentItemLimit).getDateSortKey();
+      Date nextContentItemDate = seenContentItems.get(contentItemLimit + 1).getDateSortKey();
       if (!thisContentItemDate.equals(nextContentItemDate)) {
         break;
       }
       contentItemLimit++;
+      fill(seenContentItems, relevantContentItems, contentItemLimit + 2);
     }
     
+    // We return the date of the content item after the last content item in the window
+    // as the 'next date in sequence', which we will use as the cutoff on the next call, when the
+    // user wants more content items.
+    // Very rare corner case:
+    // If the user loads up the page, a content item is added whose date falls between 
+    // the date of the last content item returned and the next date in sequence, and then
+    // the user clicks 'view more', we'll miss displaying that new content item.
+    // We don't really care about this corner case though, since it will almost
+    // never happen.
+    Date nextDateInSequence = contentItemLimit < seenContentItems.size()
+        ? seenContentItems.get(contentItemLimit).getDateSortKey() : null;
+
     // Copy the sublist into a new ArrayList since the sublist() method returns
-    // a view backed by the original list, which includes a bunch of content items we don't
-    // care about.
-    return new ArrayList<BaseContentItem>(allContentItems.subList(0, contentItemLimit));
+    // a view backed by the original list, which includes content items we don't care about.
+    return new ContentItemPage(
+        new ArrayList<BaseContentItem>(seenContentItems.subList(0, contentItemLimit)),
+        nextDateInSequence);
   }
 
-  /**
-   * We return the date of the content item after the last core content item returned
-   * as the 'next date in sequence', which we will use as the startDate in this method
-   * on the next call, when the user wants more content items.
-   * Very rare corner case:
-   * If the user loads up the page, a content item is added whose date falls between 
-   * the date of the last content item returned and the next date in sequence, and then
-   * the user clicks 'view more', we'll miss displaying that new content item.
-   * We don't really care about this corner case though, since it will almost
-   * never happen.
-   */
-  private Date getNextDateInSequence(List<BaseContentItem> coreContentItems,
-      List<BaseContentItem> relevantContentItems) {
-    return coreContentItems.size() < relevantContentItems.size()
-        ? relevantContentItems.get(coreContentItems.size()).getDateSortKey() : null;
+  private static void fill(List<BaseContentItem> contentItems,
+      Iterator<BaseContentItem> source, int targetSize) {
+    while (contentItems.size() < targetSize && source.hasNext()) {
+      contentItems.add(source.next());
+    }
+  }
+
+  private static class ContentItemPage {
+    public final List<BaseContentItem> contentItems;
+    public final Date nextDateInSequence;
+
+    public ContentItemPage(List<BaseContentItem> contentItems, Date nextDateInSequence) {
+      this.contentItems = contentItems;
+      this.nextDateInSequence = nextDateInSequence;
+    }
   }
   
   @Override
-  public synchronized BaseContentItem getContentItem(Long id, boolean getLinkedContentItems) {
+  public BaseContentItem getContentItem(Long id, boolean getLinkedContentItems) {
+    BaseContentItem contentItem = getContentItem(id, Projection.FULL);
+    if (contentItem != null && getLinkedContentItems) {
+      contentItem.setLinkedContentItems(getContentItems(contentItem.getLinkedContentItemIds()));
+    }
+    return contentItem;
+  }
+
+  /**
+   * Returns the content item with the given id, converted with the given projection, or null if
+   * there is no such item.
+   */
+  public BaseContentItem getContentItem(Long id, Projection projection) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
     
     try {
-      BaseContentItem contentItem = pm.getObjectById(BaseContentEntity.class, id).toClientObject();
-      if (getLinkedContentItems) {
-        contentItem.setLinkedContentItems(getContentItems(contentItem.getLinkedContentItemIds()));
-      }
-      return contentItem;
+      return pm.getObjectById(BaseContentEntity.class, id).toClientObject(projection);
     } catch (JDOObjectNotFoundException e) {
       return null;
     } finally {
@@ -605,7 +753,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
   
   @SuppressWarnings("unchecked")
   @Override
-  public synchronized List<BaseContentItem> getContentItems(Collection<Long> ids) {
+  public List<BaseContentItem> getContentItems(Collection<Long> ids) {
     if (ids.isEmpty()) {
       return new ArrayList<BaseContentItem>();
     }
@@ -629,7 +777,7 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
   }
 
   @Override
-  public synchronized DisplayContentItemBundle getRelatedContentItems(
+  public DisplayContentItemBundle getRelatedContentItems(
       Long contentItemId, boolean byContribution, Date cutoff) {
     // translate contentItemId and byContribution into an appropriate FilterSpec, which we use
     // to respond from cache instead of by making fresh queries.
@@ -670,11 +818,10 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
       
       // sort and put a window on the list, get the next date in the sequence
       sortContentItemList(relevantContentItems, filterSpec);
-      List<BaseContentItem> coreContentItems = getSublist(relevantContentItems, null, cutoff); 
-      Date nextDateInSequence = getNextDateInSequence(coreContentItems, relevantContentItems);
+      ContentItemPage page = getContentItemPage(relevantContentItems.iterator(), null, cutoff);
       
-      result = new DisplayContentItemBundle(coreContentItems,
-          Collections.<BaseContentItem>emptySet(), nextDateInSequence, filterSpec);
+      result = new DisplayContentItemBundle(page.contentItems,
+          Collections.<BaseContentItem>emptySet(), page.nextDateInSequence, filterSpec);
       Caches.setDisplayContentItemBundle(null, filterSpec, null, cutoff, result);
       return result;
     } finally {
@@ -684,84 +831,36 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
   }
   
   /**
-   * Performs a content entity query given a set of search filter terms.
-   * 
-   * For all search combinations to be successful, we require the existence
-   * of several indexes:
-   * - LivingStoryId/PublishState/Timestamp (minimum, required fields)
-   * - LivingStoryId/PublishState/Timestamp/ContentItemType
-   * - LivingStoryId/PublishState/Timestamp/ContentItemType/PlayerType
-   * - LivingStoryId/PublishState/Timestamp/ContentItemType/AssetType
-   * - LivingStoryId/PublishState/Timestamp/ContentItemType/NarrativeType
-   * - LivingStoryId/PublishState/Timestamp/Importance/ContentItemType
-   * - LivingStoryId/PublishState/Timestamp/Importance/ContentItemType/PlayerType
-   * - LivingStoryId/PublishState/Timestamp/Importance/ContentItemType/AssetType
-   * - LivingStoryId/PublishState/Timestamp/Importance/ContentItemType/NarrativeType
+   * Searches the content items of searchTerms.livingStoryId, returning a page of results. This
+   * is answered from a full-text index of the story, built from the same cached list of content
+   * items that the content manager uses, so it doesn't query the datastore unless that list has
+   * changed since the index was last built or updated.
    */
   @Override
-  public List<BaseContentItem> executeSearch(SearchTerms searchTerms) {
-    PersistenceManager pm = PMF.get().getPersistenceManager();
-
-    Query query = pm.newQuery(BaseContentEntity.class);
-    
-    StringBuilder queryFilters = new StringBuilder(
-        "livingStoryId == " + String.valueOf(searchTerms.livingStoryId)
-        + " && publishState == '" + searchTerms.publishState.name() + "'");
-    
-    // Optional filter: Date
-    if (searchTerms.beforeDate != null) {
-      queryFilters.append(" && timestamp < beforeDateParam");
-    }
-    if (searchTerms.afterDate != null) {
-      queryFilters.append(" && timestamp >= afterDateParam");
-    }
-    
-    // Optional filter: Importance
-    if (searchTerms.importance != null) {
-      queryFilters.append(" && importance == '" + searchTerms.importance.name() + "'");
-    }
-    
-    // Optional filter: contentItemType
-    if (searchTerms.contentItemType != null) {
-      queryFilters.append( "&& contentItemType == '" + searchTerms.contentItemType.name() + "'");
-    }
-    
-    // Optional filter: content item subtype
-    if (searchTerms.contentItemType == ContentItemType.PLAYER && searchTerms.playerType != null) {
-      queryFilters.append(" && playerType == '" + searchTerms.playerType.name() + "'");
-    } else if (searchTerms.contentItemType == ContentItemType.ASSET
-        && searchTerms.assetType != null) {
-      queryFilters.append(" && assetType == '" + searchTerms.assetType.name() + "'");
-    } else if (searchTerms.contentItemType == ContentItemType.NARRATIVE
-        && searchTerms.narrativeType != null) {
-      queryFilters.append(" && narrativeType == '" + searchTerms.narrativeType.name() + "'");
-    }
-    
-    query.setFilter(queryFilters.toString());
-    query.declareParameters("java.util.Date beforeDateParam, java.util.Date afterDateParam");
-    query.setOrdering("timestamp desc");
+  public SearchResults executeSearch(SearchTerms searchTerms) {
+    return getStorySearchIndex(searchTerms.livingStoryId).search(searchTerms,
+        SEARCH_RESULTS_PAGE_SIZE);
+  }
 
-    try {
-      List<BaseContentItem> clientContentItems = new ArrayList<BaseContentItem>();
-      
-      @SuppressWarnings("unchecked")
-      List<BaseContentEntity> results =
-          (List<BaseContentEntity>) query.execute(searchTerms.beforeDate, searchTerms.afterDate);
-      for (BaseContentEntity result : results) {
-        clientContentItems.add(result.toClientObject());
-      }
-      return clientContentItems;
-    } finally {
-      query.closeAll();
-      pm.close();
+  private StorySearchIndex getStorySearchIndex(Long livingStoryId) {
+    // Read the generation before loading, so that a change made during the load isn't lost.
+    Long generation = Caches.getEditorContentGeneration(livingStoryId);
+    String key = String.valueOf(livingStoryId);
+    StorySearchIndex index = storySearchIndexes.get(key);
+    if (index == null || !index.isBuiltFor(generation)) {
+      index = new StorySearchIndex(generation,
+          getContentItemsForLivingStory(livingStoryId, false));
+      storySearchIndexes.put(key, index);
     }
+    return index;
   }
-  
 
-  
   @Override
   public synchronized void deleteContentItem(final Long id) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
+    Set<Long> contributedLivingStoryIds = Collections.emptySet();
+    Long livingStoryId;
+    BaseContentItem deletedContentItem;
 
     try {
       BaseContentEntity contentEntity = pm.getObjectById(BaseContentEntity.class, id);
@@ -775,124 +874,235 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
 
       // If deleting a contributor as well, update relevant contributor ids too.
       if (contentEntity.getContentItemType() == ContentItemType.PLAYER) {
-        updateContentEntityReferencesHelper(pm, "contributorIds", id,
-            new Function<BaseContentEntity, Void>() {
+        contributedLivingStoryIds = updateContentEntityReferencesHelper(pm,
+            "contributorIds", id, new Function<BaseContentEntity, Void>() {
               public Void apply(BaseContentEntity contentEntity) {
                 contentEntity.removeContributorId(id); return null;
               }
             });
       }
       
-      invalidateCache(contentEntity.getLivingStoryId());
+      livingStoryId = contentEntity.getLivingStoryId();
+      deletedContentItem = contentEntity.toClientObject(Projection.SUMMARY);
       pm.deletePersistent(contentEntity);
     } finally {
       pm.close();
     }
+
+    // The changes are only written when the persistence manager is closed. Only move the stories
+    // on to new generations after that, so that nothing loaded under them can miss the changes.
+    // The contributor counts in these stories have changed, so their aggregates have to be
+    // rebuilt.
+    for (Long contributedLivingStoryId : contributedLivingStoryIds) {
+      invalidateCache(contributedLivingStoryId);
+    }
+    invalidateCache(livingStoryId, deletedContentItem, null, false);
+  }
+  
+  /**
+   * Evicts the cached data that could differ after one content item in the story was saved or
+   * deleted, as worked out by {@link ContentChangeImpact}. If readers can see the change, the
+   * story's aggregates are carried over to the new content generation by applying the change,
+   * rather than being rebuilt from every item in the story.
+   * Likewise, this instance's search index for the story is updated with the saved item rather
+   * than being rebuilt, when the full item is given.
+   *
+   * Summaries leave the long text fields empty, so a change to an update's summary or body only
+   * shows up when full items are given. Summaries are only for changes that leave the text alone.
+   * @param before the item as it was before the change, or null if it was just created
+   * @param after the item as it is after the change, or null if it was deleted
+   * @param fullItems whether before and after are full items rather than summaries. If they're
+   *     summaries, the story's search index is discarded rather than updated.
+   */
+  private void invalidateCache(Long livingStoryId, BaseContentItem before,
+      BaseContentItem after, boolean fullItems) {
+    ContentChangeImpact impact = ContentChangeImpact.analyze(before, after);
+    int evicted = 0;
+
+    if (impact.affects(Region.EDITOR_CONTENT)) {
+      Long previousGeneration = Caches.getEditorContentGeneration(livingStoryId);
+      Caches.clearEditorContentItems(livingStoryId);
+      evicted++;
+
+      // As with the aggregates below, the index is only updated if nothing else changed the
+      // story in the meantime.
+      String key = String.valueOf(livingStoryId);
+      StorySearchIndex index = storySearchIndexes.get(key);
+      Long generation = Caches.getEditorContentGeneration(livingStoryId);
+      boolean indexUpdated = false;
+      if (index != null && previousGeneration != null && generation != null
+          && generation == previousGeneration + 1 && (after == null || fullItems)) {
+        Long contentItemId = before == null ? after.getId() : before.getId();
+        indexUpdated = index.update(previousGeneration, generation, contentItemId, after);
+      }
+      if (index != null && !indexUpdated) {
+        storySearchIndexes.remove(key, index);
+      }
+    }
+
+    if (impact.affects(Region.READER_CONTENT)) {
+      Long previousGeneration = Caches.getLivingStoryContentGeneration(livingStoryId);
+      StoryAggregates aggregates = previousGeneration == null ? null
+          : Caches.getStoryAggregates(livingStoryId, previousGeneration);
+
+      storyContentIndexes.remove(livingStoryId);
+      Caches.clearPublishedContentItems(livingStoryId);
+      evicted += 2;
+
+      if (aggregates != null) {
+        // If anything else changed the story in the meantime, the generation will have moved on
+        // by more than one, and the aggregates are left to be rebuilt. The aggregates replace
+        // what they counted for the item, so this is right even if they already include it.
+        Long generation = Caches.getLivingStoryContentGeneration(livingStoryId);
+        if (generation != null && generation == previousGeneration + 1) {
+          Long contentItemId = before == null ? after.getId() : before.getId();
+          Caches.setStoryAggregates(livingStoryId, generation,
+              aggregates.withItem(contentItemId, isPublished(after) ? after : null));
+        }
+      }
+    }
+
+    if (impact.affects(Region.UPDATES)) {
+      Caches.clearRenderedFeeds(livingStoryId);
+      Caches.clearStartPageBundle();
+      evicted += 2;
+    }
+    if (impact.affects(Region.UNASSIGNED_CONTENT)) {
+      Caches.clearDisplayContentItemBundles(null);
+      evicted++;
+    }
+    if (impact.affects(Region.AUTO_LINK_TARGETS)) {
+      Caches.clearAutoLinkVersion(livingStoryId);
+      evicted++;
+    }
+
+    impact.recordEvictions(evicted);
+    logger.fine("Content change in story " + livingStoryId + " affected " + impact
+        + ", evicting " + evicted + " cache entries");
+  }
+
+  private static boolean isPublished(BaseContentItem contentItem) {
+    return contentItem != null && contentItem.getPublishState() == PublishState.PUBLISHED;
   }
   
+  /**
+   * Clears the cached data derived from the story's content, including its aggregates. This is
+   * only for changes whose before and after items aren't known, which is the case when a deleted
+   * player is removed from the contributors of items in other stories; see deleteContentItem.
+   * Otherwise use {@link #invalidateCache(Long, BaseContentItem, BaseContentItem, boolean)},
+   * which only evicts what the change affects.
+   */
   private void invalidateCache(Long livingStoryId) {
+    storyContentIndexes.remove(livingStoryId);
+    storySearchIndexes.remove(String.valueOf(livingStoryId));
     Caches.clearLivingStoryContentItems(livingStoryId);
-    Caches.clearLivingStoryThemeInfo(livingStoryId);
     Caches.clearStartPageBundle();
   }
   
+  /**
+   * Returns the reference counts over the story's published content items, from the cache if
+   * possible, or else by counting every item.
+   */
+  public StoryAggregates getStoryAggregates(Long livingStoryId) {
+    // Read the generation before loading, so that a change made during the load isn't lost.
+    Long generation = Caches.getLivingStoryContentGeneration(livingStoryId);
+    StoryAggregates aggregates = generation == null ? null
+        : Caches.getStoryAggregates(livingStoryId, generation);
+    if (aggregates == null) {
+      aggregates = StoryAggregates.build(getContentItemsForLivingStory(livingStoryId, true));
+      if (generation != null) {
+        Caches.setStoryAggregates(livingStoryId, generation, aggregates);
+      }
+    }
+    return aggregates;
+  }
+  
   /**
    * Helper method that updates content entities that refer to a content entity soon to be deleted. 
    * @param pm the persistence manager
    * @param relevantField relevant field name for the query
    * @param removeFunc a Function to apply to the results of the query
    * @param id the id of the to-be-deleted content entity
+   * @return the ids of the living stories that the updated content entities belong to
    */
-  private void updateContentEntityReferencesHelper(PersistenceManager pm, String relevantField,
-      Long id, Function<BaseContentEntity, Void> removeFunc) {
+  private Set<Long> updateContentEntityReferencesHelper(PersistenceManager pm,
+      String relevantField, Long id, Function<BaseContentEntity, Void> removeFunc) {
     Query query = pm.newQuery(BaseContentEntity.class);
     query.setFilter(relevantField + " == contentItemIdParam");
     query.declareParameters("java.lang.Long contentItemIdParam");
     try {
       @SuppressWarnings("unchecked")
       List<BaseContentEntity> results = (List<BaseContentEntity>) query.execute(id);
+      Set<Long> livingStoryIds = new HashSet<Long>();
       for (BaseContentEntity result : results) {
         removeFunc.apply(result);
+        livingStoryIds.add(result.getLivingStoryId());
       }
       pm.makePersistentAll(results);
+      return livingStoryIds;
     } finally {
       query.closeAll();
     }
   }
   
-  private List<Query> getUpdateQueries(PersistenceManager pm, Date timeParam, int range) {
-    String commonQueryFilter = "livingStoryId == livingStoryIdParam "
+  /**
+   * Returns a query for the published events in a story, or for its published standalone
+   * narratives, newest first. These are the two kinds of content that count as updates.
+   * @param timeParam if not null, only updates after this time are returned
+   * @param range the maximum number of updates to return, or 0 for no limit
+   */
+  private Query getUpdateQuery(PersistenceManager pm, boolean narratives, Date timeParam,
+      int range) {
+    String filter = "livingStoryId == livingStoryIdParam "
         + "&& publishState == com.google.livingstories.client.PublishState.PUBLISHED "
         + (timeParam == null ? "" : "&& timestamp > timeParam ");
-    
-    Query eventsQuery = pm.newQuery(BaseContentEntity.class);
-    eventsQuery.setFilter(commonQueryFilter +
-        "&& contentItemType == com.google.livingstories.client.ContentItemType.EVENT");
-    eventsQuery.setOrdering("timestamp desc");
-    if (range != 0) {
-      eventsQuery.setRange(0, range);
+    if (narratives) {
+      filter += "&& contentItemType == com.google.livingstories.client.ContentItemType.NARRATIVE "
+          + "&& isStandalone == true";
+    } else {
+      filter += "&& contentItemType == com.google.livingstories.client.ContentItemType.EVENT";
     }
-    eventsQuery.declareParameters("Long livingStoryIdParam" 
-        + (timeParam == null ? "" : ", java.util.Date timeParam"));
     
-    Query narrativesQuery = pm.newQuery(BaseContentEntity.class);
-    narrativesQuery.setFilter(commonQueryFilter +
-        "&& contentItemType == com.google.livingstories.client.ContentItemType.NARRATIVE " +
-        "&& isStandalone == true");
-    narrativesQuery.setOrdering("timestamp desc");
+    Query query = pm.newQuery(BaseContentEntity.class);
+    query.setFilter(filter);
+    query.setOrdering("timestamp desc");
     if (range != 0) {
-      narrativesQuery.setRange(0, range);
+      query.setRange(0, range);
     }
-    narrativesQuery.declareParameters("Long livingStoryIdParam" 
+    query.declareParameters("Long livingStoryIdParam" 
         + (timeParam == null ? "" : ", java.util.Date timeParam"));
-    
-    return ImmutableList.of(eventsQuery, narrativesQuery);
+    return query;
   }
   
+  /**
+   * Answered with a binary search over the story's sorted update timestamps, which are cached
+   * under its content generation. They're taken from the story's content index when they aren't
+   * cached, so this doesn't query the datastore unless the story's items have to be loaded.
+   */
   @Override
-  public synchronized Integer getUpdateCountSinceTime(Long livingStoryId, Date time) {
-    PersistenceManager pm = PMF.get().getPersistenceManager();
-
-    List<Query> updateQueries = getUpdateQueries(pm, time, 0);
-    
-    try {
-      int result = 0;
-      for (Query query : updateQueries) {
-        query.setResult("count(id)");
-        result += (Integer) query.execute(livingStoryId, time);
+  public Integer getUpdateCountSinceTime(Long livingStoryId, Date time) {
+    Long generation = Caches.getLivingStoryContentGeneration(livingStoryId);
+    long[] updateTimes = generation == null ? null
+        : Caches.getUpdateTimes(livingStoryId, generation);
+    if (updateTimes == null) {
+      StoryContentIndex index = getStoryContentIndex(livingStoryId);
+      updateTimes = index.getUpdateTimes();
+      // The index reads the generation itself, so only cache its timestamps if it was built for
+      // the one read here.
+      if (index.isBuiltFor(generation)) {
+        Caches.setUpdateTimes(livingStoryId, generation, updateTimes);
       }
-      return result;
-    } finally {
-      for (Query query : updateQueries) {
-        query.closeAll();
-      }
-      pm.close();
     }
+    return StoryContentIndex.countUpdatesSince(updateTimes, time);
   }
   
+  /**
+   * Returns the published updates in the story after time, newest first. Like
+   * getUpdateCountSinceTime, this is answered from the story's content index.
+   */
   @Override
   public List<BaseContentItem> getUpdatesSinceTime(Long livingStoryId, Date time) {
-    PersistenceManager pm = PMF.get().getPersistenceManager();
-
-    List<Query> updateQueries = getUpdateQueries(pm, time, 0);
-    
-    try {
-      List<BaseContentItem> updates = new ArrayList<BaseContentItem>();
-      for (Query query : updateQueries) {
-        @SuppressWarnings("unchecked")
-        List<BaseContentEntity> results = 
-            (List<BaseContentEntity>) query.execute(livingStoryId, time);
-        for (BaseContentEntity result : results) {
-          updates.add(result.toClientObject());
-        }
-      }
-      return updates;
-    } finally {
-      for (Query query : updateQueries) {
-        query.closeAll();
-      }
-      pm.close();
-    }
+    return getStoryContentIndex(livingStoryId).getUpdatesSince(time);
   }
   
   /**
@@ -901,31 +1111,49 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
    */
   public List<BaseContentItem> getUpdatesForStartPage(Long livingStoryId) {
     PersistenceManager pm = PMF.get().getPersistenceManager();
-    List<Query> updateQueries = getUpdateQueries(pm, null, 3);
     try {
       List<BaseContentItem> updates = new ArrayList<BaseContentItem>();
-      // Get the latest 3 events and latest 3 narratives and then return the latest 3 items
-      // from those 6 because there is no way to do one appengine query for that
-      for (Query query : updateQueries) {
-        @SuppressWarnings("unchecked")
-        List<BaseContentEntity> results = (List<BaseContentEntity>) query.execute(livingStoryId);
-        for (BaseContentEntity result : results) {
-          updates.add(result.toClientObject());
+      for (boolean narratives : new boolean[] {false, true}) {
+        Query query = getUpdateQuery(pm, narratives, null, 3);
+        try {
+          @SuppressWarnings("unchecked")
+          List<BaseContentEntity> results =
+              (List<BaseContentEntity>) query.execute(livingStoryId);
+          for (BaseContentEntity result : results) {
+            updates.add(result.toClientObject(Projection.SUMMARY));
+          }
+        } finally {
+          query.closeAll();
         }
       }
-      Collections.sort(updates, BaseContentItem.REVERSE_COMPARATOR);
-      // Just return the latest 3 updates
-      return new ArrayList<BaseContentItem>(updates.subList(0, Math.min(3, updates.size())));
+      return getLatestUpdatesForStartPage(updates);
     } finally {
-      for (Query query : updateQueries) {
-        query.closeAll();
-      }
       pm.close();
     }
   }
   
+  private static List<BaseContentItem> getLatestUpdatesForStartPage(
+      List<BaseContentItem> updates) {
+    // We got the latest 3 events and latest 3 narratives, and return the latest 3 items
+    // from those 6 because there is no way to do one appengine query for that
+    Collections.sort(updates, BaseContentItem.REVERSE_COMPARATOR);
+    return new ArrayList<BaseContentItem>(updates.subList(0, Math.min(3, updates.size())));
+  }
+  
+  /**
+   * Cached under the story's content generation, so this only queries the datastore once for
+   * each change to the story's published items.
+   */
   @Override
   public List<EventContentItem> getImportantEventsForLivingStory(Long livingStoryId) {
+    // Read the generation before querying, so that a change made during the query isn't lost.
+    Long generation = Caches.getLivingStoryContentGeneration(livingStoryId);
+    List<EventContentItem> cached = generation == null ? null
+        : Caches.getImportantEvents(livingStoryId, generation);
+    if (cached != null) {
+      return cached;
+    }
+
     PersistenceManager pm = PMF.get().getPersistenceManager();
 
     Query query = pm.newQuery(BaseContentEntity.class);
@@ -945,6 +1173,9 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
         events.add(event);
       }
       Collections.sort(events, BaseContentItem.REVERSE_COMPARATOR);
+      if (generation != null) {
+        Caches.setImportantEvents(livingStoryId, generation, events);
+      }
       return events;
     } finally {
       query.closeAll();
@@ -956,9 +1187,18 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
    * This method will return a list of all the players in the living story,
    * sorted by importance.  Our importance ranking is currently based solely
    * on the number of content items in the living story that are linked to each player. 
+   * Cached under the story's content generation, like getImportantEventsForLivingStory.
    */
   @Override
   public List<PlayerContentItem> getImportantPlayersForLivingStory(Long livingStoryId) {
+    // Read the generation before querying, so that a change made during the query isn't lost.
+    Long generation = Caches.getLivingStoryContentGeneration(livingStoryId);
+    List<PlayerContentItem> cached = generation == null ? null
+        : Caches.getImportantPlayers(livingStoryId, generation);
+    if (cached != null) {
+      return cached;
+    }
+
     PersistenceManager pm = PMF.get().getPersistenceManager();
 
     Query query = pm.newQuery(BaseContentEntity.class);
@@ -980,38 +1220,108 @@ public class ContentRpcImpl extends RemoteServiceServlet implements ContentRpcSe
       query.closeAll();
       pm.close();
     }
+    if (generation != null) {
+      Caches.setImportantPlayers(livingStoryId, generation, players);
+    }
     return players;
   }
   
   /**
-   * Returns all the contributors for this living story.
+   * Returns all the contributors for this living story. Contributors that were already looked up
+   * for the story are reused; only new ones are read from the datastore.
    */
   @Override
   public Map<Long, PlayerContentItem> getContributorsByIdForLivingStory(Long livingStoryId) {
-    Map<Long, PlayerContentItem> result = Caches.getContributorsForLivingStory(livingStoryId);
-    if (result != null) {
-      return result;
+    Set<Long> contributorIds = getStoryAggregates(livingStoryId).getContributorIds();
+    String playersVersion = Caches.getAutoLinkVersion(livingStoryId);
+    Map<Long, PlayerContentItem> cached = playersVersion == null ? null
+        : Caches.getContributorsForLivingStory(livingStoryId, playersVersion);
+    if (cached != null && cached.keySet().equals(contributorIds)) {
+      return withoutMisses(cached);
     }
     
-    List<BaseContentItem> allContentItems = getContentItemsForLivingStory(livingStoryId, true);
-    
-    Set<Long> allContributorIds = new HashSet<Long>();
-    for (BaseContentItem contentItem : allContentItems) {
-      allContributorIds.addAll(contentItem.getContributorIds());
+    // Every id that was looked up, with a null value for those that aren't players.
+    Map<Long, PlayerContentItem> lookedUp = new HashMap<Long, PlayerContentItem>();
+    Set<Long> missingContributorIds = new HashSet<Long>();
+    for (Long contributorId : contributorIds) {
+      if (cached != null && cached.containsKey(contributorId)) {
+        lookedUp.put(contributorId, cached.get(contributorId));
+      } else {
+        missingContributorIds.add(contributorId);
+      }
     }
     
-    List<BaseContentItem> contributors = getContentItems(allContributorIds);
-    
-    result = new HashMap<Long, PlayerContentItem>();
-    for (BaseContentItem contributor : contributors) {
+    for (BaseContentItem contributor : getContentItems(missingContributorIds)) {
       if (contributor.getContentItemType() == ContentItemType.PLAYER) {
-        result.put(contributor.getId(), (PlayerContentItem) contributor);
+        lookedUp.put(contributor.getId(), (PlayerContentItem) contributor);
       } else {
         logger.warning("Contributor id " + contributor.getId() + " does not map to a player");
       }
     }
+    for (Long contributorId : missingContributorIds) {
+      if (!lookedUp.containsKey(contributorId)) {
+        lookedUp.put(contributorId, null);
+      }
+    }
 
-    Caches.setContributorsForLivingStory(livingStoryId, result);
-    return result;
+    if (playersVersion != null) {
+      Caches.setContributorsForLivingStory(livingStoryId, playersVersion, lookedUp);
+    }
+    return withoutMisses(lookedUp);
+  }
+
+  private static Map<Long, PlayerContentItem> withoutMisses(
+      Map<Long, PlayerContentItem> lookedUp) {
+    Map<Long, PlayerContentItem> contributors = new HashMap<Long, PlayerContentItem>();
+    for (Map.Entry<Long, PlayerContentItem> entry : lookedUp.entrySet()) {
+      if (entry.getValue() != null) {
+        contributors.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return contributors;
+  }
+
+  // The methods below return what the method of the same name would, but only if it can be
+  // answered from the cache without loading anything, and null otherwise. They're used to fill
+  // in the story page bootstrap, which mustn't hold up the page.
+
+  public DisplayContentItemBundle getCachedDisplayContentItemBundle(Long livingStoryId,
+      FilterSpec filterSpec) {
+    return Caches.getDisplayContentItemBundle(livingStoryId, filterSpec, null, null);
+  }
+
+  public Integer getCachedUpdateCountSinceTime(Long livingStoryId, Date time) {
+    Long generation = Caches.getLivingStoryContentGeneration(livingStoryId);
+    long[] updateTimes = generation == null ? null
+        : Caches.getUpdateTimes(livingStoryId, generation);
+    return updateTimes == null ? null : StoryContentIndex.countUpdatesSince(updateTimes, time);
+  }
+
+  public List<EventContentItem> getCachedImportantEventsForLivingStory(Long livingStoryId) {
+    Long generation = Caches.getLivingStoryContentGeneration(livingStoryId);
+    return generation == null ? null : Caches.getImportantEvents(livingStoryId, generation);
+  }
+
+  public List<PlayerContentItem> getCachedImportantPlayersForLivingStory(Long livingStoryId) {
+    Long generation = Caches.getLivingStoryContentGeneration(livingStoryId);
+    return generation == null ? null : Caches.getImportantPlayers(livingStoryId, generation);
+  }
+
+  public StoryAggregates getCachedStoryAggregates(Long livingStoryId) {
+    Long generation = Caches.getLivingStoryContentGeneration(livingStoryId);
+    return generation == null ? null : Caches.getStoryAggregates(livingStoryId, generation);
+  }
+
+  public Map<Long, PlayerContentItem> getCachedContributorsByIdForLivingStory(
+      Long livingStoryId) {
+    StoryAggregates aggregates = getCachedStoryAggregates(livingStoryId);
+    String playersVersion = Caches.getAutoLinkVersion(livingStoryId);
+    if (aggregates == null || playersVersion == null) {
+      return null;
+    }
+    Map<Long, PlayerContentItem> cached =
+        Caches.getContributorsForLivingStory(livingStoryId, playersVersion);
+    return cached != null && cached.keySet().equals(aggregates.getContributorIds())
+        ? withoutMisses(cached) : null;
   }
 }
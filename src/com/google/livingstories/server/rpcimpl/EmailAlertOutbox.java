@@ -0,0 +1,472 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.rpcimpl;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.labs.taskqueue.QueueFactory;
+import com.google.appengine.api.labs.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.labs.taskqueue.TaskOptions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.TreeMultimap;
+import com.google.livingstories.client.util.GlobalUtil;
+import com.google.livingstories.server.dataservices.entities.EmailAlertJobEntity;
+import com.google.livingstories.server.dataservices.entities.UserLivingStoryEntity;
+import com.google.livingstories.server.dataservices.impl.PMF;
+import com.google.livingstories.server.util.AlertSender;
+import com.google.livingstories.server.util.EmailTemplate;
+
+import org.datanucleus.store.appengine.query.JDOCursorHelper;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+import javax.jdo.Transaction;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Sends email alerts for published events to a story's subscribers, outside of the request that
+ * published the event.
+ *
+ * Publishing an event just stores an {@link EmailAlertJobEntity} and adds a task for it to the
+ * task queue, so the cost to the editor doesn't depend on the number of subscribers. The task is
+ * handled by {@link com.google.livingstories.servlet.EmailAlertServlet}, which calls
+ * {@link #processJob}. That pages through the subscribers with a datastore cursor, sends one
+ * message per subscription locale on each page, and checkpoints the job after every message. A
+ * job that runs out of time re-enqueues itself; one whose messages fail is retried with
+ * exponential backoff, and abandoned after MAX_FAILED_ATTEMPTS. Jobs whose task went missing
+ * are picked up again by {@link #resumeStalledJobs}.
+ *
+ * More than one worker can be started for a job, e.g. by a task retry, a re-enqueued task and
+ * the stalled job sweep, so a worker first claims a lease on the job in a transaction, and
+ * leaves the job alone if another worker holds one. Tasks are also named after the job and the
+ * time of its last update, so that two workers that see the job in the same state can't add two
+ * tasks for it.
+ *
+ * A message that was sent just before its worker died, but before the checkpoint was written,
+ * will be sent again when the job resumes; everything before the last checkpoint won't be.
+ */
+public class EmailAlertOutbox {
+  public static final String WORKER_URL = "/emailAlerts";
+  public static final String JOB_ID_PARAM = "jobId";
+
+  private static final int PAGE_SIZE = 100;
+  // Task queue requests have 30 seconds; leave some margin to write the checkpoint.
+  private static final long TIME_BUDGET_MILLIS = 20000;
+  private static final int MAX_FAILED_ATTEMPTS = 8;
+  private static final long INITIAL_RETRY_DELAY_MILLIS = 60 * 1000;
+  private static final long MAX_RETRY_DELAY_MILLIS = 30 * 60 * 1000;
+  // Must be longer than MAX_RETRY_DELAY_MILLIS plus a run, so that jobs waiting to be retried
+  // aren't mistaken for stalled ones.
+  private static final long STALLED_JOB_MILLIS = 2 * 60 * 60 * 1000;
+  // Longer than a task queue request can run, so that a lease only runs out once the worker
+  // that claimed it is gone.
+  private static final long LEASE_MILLIS = 60 * 1000;
+
+  // Compiled email templates, by subscription locale.
+  private static final ConcurrentMap<String, LocaleTemplates> localeTemplates =
+      new ConcurrentHashMap<String, LocaleTemplates>();
+
+  private static final Logger logger =
+      Logger.getLogger(EmailAlertOutbox.class.getCanonicalName());
+
+  /**
+   * Adds an alert for the given event to the outbox. placeholderMap has the values for the
+   * email template's placeholders, keyed by name.
+   */
+  public static void enqueue(Long livingStoryId, Long contentItemId,
+      Map<String, String> placeholderMap, InternetAddress fromAddress) {
+    EmailAlertJobEntity job = new EmailAlertJobEntity(livingStoryId, contentItemId,
+        new JSONObject(placeholderMap).toString(), fromAddress.toString());
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      pm.makePersistent(job);
+    } finally {
+      pm.close();
+    }
+    try {
+      scheduleJob(job.getId(), job.getLastUpdateTime(), 0);
+    } catch (RuntimeException ex) {
+      // The job is stored, so resumeStalledJobs will get to it eventually.
+      logger.log(Level.WARNING, "Couldn't schedule email alert job " + job.getId(), ex);
+    }
+  }
+
+  /**
+   * Works on the job until it's finished, it fails, or it runs out of time. In the last two
+   * cases, a task is added to carry on later. Does nothing if another worker has the job.
+   */
+  public static void processJob(Long jobId) {
+    String leaseOwner = UUID.randomUUID().toString();
+    if (!claimLease(jobId, leaseOwner)) {
+      return;
+    }
+    Date unfinishedJobUpdateTime;
+    try {
+      unfinishedJobUpdateTime = sendPages(jobId);
+    } finally {
+      releaseLease(jobId, leaseOwner);
+    }
+    // Added after the lease is released, so that the new task's worker can claim it.
+    if (unfinishedJobUpdateTime != null) {
+      scheduleJob(jobId, unfinishedJobUpdateTime, 0);
+    }
+  }
+
+  /**
+   * Sends pages of the job until it's finished, it fails, or it runs out of time. Returns the
+   * job's last update time if it ran out of time, and null otherwise.
+   */
+  private static Date sendPages(Long jobId) {
+    long deadline = System.currentTimeMillis() + TIME_BUDGET_MILLIS;
+    // Each locale's email is rendered once per run, rather than once per page.
+    Map<String, RenderedEmail> emailsByLocale = Maps.newHashMap();
+
+    while (true) {
+      JobPage page = readNextPage(jobId);
+      if (page == null) {
+        return null;
+      }
+
+      for (String locale : page.recipientsByLocale.keySet()) {
+        if (page.sentLocales.contains(locale)) {
+          continue;
+        }
+        RenderedEmail email = emailsByLocale.get(locale);
+        if (email == null) {
+          email = renderEmail(page.placeholderMap, locale);
+          emailsByLocale.put(locale, email);
+        }
+        Collection<String> recipients = page.recipientsByLocale.get(locale);
+        try {
+          AlertSender.sendEmail(page.fromAddress, recipients, email.subject, email.body);
+        } catch (MessagingException ex) {
+          logger.log(Level.WARNING, "Sending email alerts for job " + jobId + " failed", ex);
+          recordFailedAttempt(jobId);
+          return null;
+        }
+        checkpointLocale(jobId, locale, recipients.size());
+      }
+      Date updateTime = advancePage(jobId, page.nextPageCursor);
+
+      if (page.nextPageCursor == null) {
+        return null;
+      }
+      if (System.currentTimeMillis() > deadline) {
+        return updateTime;
+      }
+    }
+  }
+
+  /**
+   * Claims a lease on the job for the given owner, and returns true, unless the job is
+   * finished, no longer exists, or is leased to another worker.
+   */
+  private static boolean claimLease(Long jobId, String leaseOwner) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Transaction tx = null;
+    try {
+      tx = pm.currentTransaction();
+      tx.begin();
+      EmailAlertJobEntity job;
+      try {
+        job = pm.getObjectById(EmailAlertJobEntity.class, jobId);
+      } catch (JDOObjectNotFoundException ex) {
+        return false;
+      }
+      if (job.isFinished() || !job.claimLease(leaseOwner, LEASE_MILLIS)) {
+        return false;
+      }
+      // If another worker claims the job at the same time, one of the commits fails, and that
+      // worker's task is retried; the retry then finds the lease taken.
+      tx.commit();
+      return true;
+    } finally {
+      if (tx != null && tx.isActive()) {
+        tx.rollback();
+      }
+      pm.close();
+    }
+  }
+
+  private static void releaseLease(Long jobId, String leaseOwner) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      pm.getObjectById(EmailAlertJobEntity.class, jobId).releaseLease(leaseOwner);
+    } catch (JDOObjectNotFoundException ex) {
+      // The job was deleted in the meantime.
+    } finally {
+      pm.close();
+    }
+  }
+
+  /**
+   * Reschedules unfinished jobs that haven't made progress for a long time, e.g. because their
+   * task couldn't be added. Returns the number of jobs rescheduled.
+   */
+  public static int resumeStalledJobs() {
+    long stalledBefore = System.currentTimeMillis() - STALLED_JOB_MILLIS;
+    int resumed = 0;
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(EmailAlertJobEntity.class);
+    query.setFilter("finished == false");
+    try {
+      @SuppressWarnings("unchecked")
+      List<EmailAlertJobEntity> jobs = (List<EmailAlertJobEntity>) query.execute();
+      for (EmailAlertJobEntity job : jobs) {
+        if (job.getLastUpdateTime().getTime() < stalledBefore) {
+          // Written back when pm is closed, so the job isn't resumed again on the next sweep.
+          job.touch();
+          scheduleJob(job.getId(), job.getLastUpdateTime(), 0);
+          resumed++;
+        }
+      }
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
+    return resumed;
+  }
+
+  /**
+   * Adds a task to work on the job. jobUpdateTime is the job's last update time, which the task
+   * is named after, so that only one task is added for each state of the job.
+   */
+  private static void scheduleJob(Long jobId, Date jobUpdateTime, long delayMillis) {
+    try {
+      QueueFactory.getDefaultQueue().add(TaskOptions.Builder.url(WORKER_URL)
+          .taskName("emailAlert-" + jobId + "-" + jobUpdateTime.getTime())
+          .param(JOB_ID_PARAM, jobId.toString())
+          .countdownMillis(delayMillis));
+    } catch (TaskAlreadyExistsException ex) {
+      // Another worker has already added a task for the job in this state.
+    }
+  }
+
+  /**
+   * Reads the job and the page of subscribers it's currently on. Returns null if the job is
+   * finished or no longer exists.
+   */
+  private static JobPage readNextPage(Long jobId) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(UserLivingStoryEntity.class);
+    query.setFilter("livingStoryId == livingStoryIdParam && subscribedToEmails == true");
+    query.declareParameters("long livingStoryIdParam");
+
+    try {
+      EmailAlertJobEntity job;
+      try {
+        job = pm.getObjectById(EmailAlertJobEntity.class, jobId);
+      } catch (JDOObjectNotFoundException ex) {
+        return null;
+      }
+      if (job.isFinished()) {
+        return null;
+      }
+
+      JobPage page = new JobPage();
+      page.placeholderMap = parsePlaceholders(job.getPlaceholders());
+      page.fromAddress = new InternetAddress(job.getFromAddress());
+      page.sentLocales = job.getSentPageLocales();
+
+      if (job.getPageCursor() != null) {
+        query.setExtensions(Collections.singletonMap(JDOCursorHelper.CURSOR_EXTENSION,
+            Cursor.fromWebSafeString(job.getPageCursor())));
+      }
+      query.setRange(0, PAGE_SIZE);
+      @SuppressWarnings("unchecked")
+      List<UserLivingStoryEntity> subscribers =
+          (List<UserLivingStoryEntity>) query.execute(job.getLivingStoryId());
+      for (UserLivingStoryEntity subscriber : subscribers) {
+        page.recipientsByLocale.put(subscriber.getSubscriptionLocale(),
+            subscriber.getParentEmailAddress());
+      }
+      page.nextPageCursor = subscribers.size() < PAGE_SIZE ? null
+          : JDOCursorHelper.getCursor(subscribers).toWebSafeString();
+      return page;
+    } catch (AddressException ex) {
+      logger.log(Level.SEVERE, "Bad from address for email alert job " + jobId, ex);
+      return null;
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
+  }
+
+  private static void checkpointLocale(Long jobId, String locale, int recipientCount) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      pm.getObjectById(EmailAlertJobEntity.class, jobId).addSentPageLocale(locale, recipientCount);
+    } finally {
+      pm.close();
+    }
+  }
+
+  /**
+   * Moves the job on to its next page, and returns its new last update time.
+   */
+  private static Date advancePage(Long jobId, String nextPageCursor) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      EmailAlertJobEntity job = pm.getObjectById(EmailAlertJobEntity.class, jobId);
+      job.advancePage(nextPageCursor);
+      if (job.isFinished()) {
+        logger.info("Email alert job " + jobId + " sent to " + job.getSentCount()
+            + " subscribers in " + (new Date().getTime() - job.getCreationTime().getTime())
+            + "ms");
+      }
+      return job.getLastUpdateTime();
+    } finally {
+      pm.close();
+    }
+  }
+
+  private static void recordFailedAttempt(Long jobId) {
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    try {
+      EmailAlertJobEntity job = pm.getObjectById(EmailAlertJobEntity.class, jobId);
+      job.recordFailedAttempt();
+      int failedAttempts = job.getFailedAttempts();
+      if (failedAttempts >= MAX_FAILED_ATTEMPTS) {
+        logger.severe("Giving up on email alert job " + jobId + " after " + failedAttempts
+            + " failed attempts; " + job.getSentCount() + " subscribers were sent the alert");
+        job.abandon();
+      } else {
+        scheduleJob(jobId, job.getLastUpdateTime(), Math.min(MAX_RETRY_DELAY_MILLIS,
+            INITIAL_RETRY_DELAY_MILLIS << (failedAttempts - 1)));
+      }
+    } finally {
+      pm.close();
+    }
+  }
+
+  private static Map<String, String> parsePlaceholders(String json) {
+    Map<String, String> placeholderMap = Maps.newHashMap();
+    try {
+      JSONObject object = new JSONObject(json);
+      for (Iterator<?> it = object.keys(); it.hasNext(); ) {
+        String key = (String) it.next();
+        placeholderMap.put(key, object.isNull(key) ? null : object.getString(key));
+      }
+    } catch (JSONException ex) {
+      throw new RuntimeException(ex);
+    }
+    return placeholderMap;
+  }
+
+  private static RenderedEmail renderEmail(Map<String, String> placeholderMap,
+      String localeString) {
+    LocaleTemplates templates = getLocaleTemplates(localeString);
+    String subject = templates.subject.render(placeholderMap.get("storyTitle"));
+
+    // Some parts of the body aren't necessary if certain placeholders are blank.
+    String publisherName = placeholderMap.get("publisherName");
+    String snippet = placeholderMap.get("snippet");
+    boolean[] includeSections = {
+        !GlobalUtil.isContentEmpty(publisherName),
+        snippet != null && !snippet.isEmpty()
+    };
+    String body = templates.body.render(new String[] {
+        placeholderMap.get("updateTitle"),
+        publisherName,
+        snippet,
+        placeholderMap.get("linkUrl"),
+        placeholderMap.get("loginUrl")
+    }, includeSections);
+
+    return new RenderedEmail(subject, body);
+  }
+
+  /**
+   * Returns the compiled subject and body templates for the locale, compiling them the first
+   * time each locale is used.
+   */
+  private static LocaleTemplates getLocaleTemplates(String localeString) {
+    LocaleTemplates templates = localeTemplates.get(localeString);
+    if (templates != null) {
+      return templates;
+    }
+
+    // We reconstruct the Locale from the locale string. This ignores the possibility that
+    // a language variant is being specified, a script is being specified, etc.
+    // TODO: fix that.
+    Locale locale = Locale.ENGLISH;
+    if (!localeString.isEmpty()) {
+      String[] splitRes = localeString.split("_");
+      locale = splitRes.length == 1 ? new Locale(splitRes[0])
+          : new Locale(splitRes[0], splitRes[1]);
+    }
+
+    ResourceBundle emailBundle = ResourceBundle.getBundle(
+        "com.google.livingstories.server.rpcimpl.emailTemplate", locale);
+    // The optional sections are the publisher name and the snippet, in that order; see
+    // renderEmail. Note the reluctant quantifiers.
+    templates = new LocaleTemplates(
+        EmailTemplate.compile(emailBundle.getString("updateEmailSubject")),
+        EmailTemplate.compile(emailBundle.getString("updateEmailTemplate"),
+            "<span class=\"p_span\".*?</span>", "<div class=\"s_div\".*?</div>"));
+    localeTemplates.putIfAbsent(localeString, templates);
+    return templates;
+  }
+
+  private static class LocaleTemplates {
+    public final EmailTemplate subject;
+    public final EmailTemplate body;
+
+    public LocaleTemplates(EmailTemplate subject, EmailTemplate body) {
+      this.subject = subject;
+      this.body = body;
+    }
+  }
+
+  private static class JobPage {
+    public Map<String, String> placeholderMap;
+    public InternetAddress fromAddress;
+    public List<String> sentLocales;
+    // Sorted by locale, so that a resumed page sends its messages in the same order.
+    public Multimap<String, String> recipientsByLocale = TreeMultimap.create();
+    public String nextPageCursor;
+  }
+
+  private static class RenderedEmail {
+    public final String subject;
+    public final String body;
+
+    public RenderedEmail(String subject, String body) {
+      this.subject = subject;
+      this.body = body;
+    }
+  }
+}
@@ -19,14 +19,12 @@ package com.google.livingstories.server.rpcimpl;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
-import com.google.livingstories.client.AssetContentItem;
-import com.google.livingstories.client.AssetType;
 import com.google.livingstories.client.BaseContentItem;
-import com.google.livingstories.client.ContentItemType;
 import com.google.livingstories.client.ContentItemTypesBundle;
+import com.google.livingstories.client.FilterSpec;
 import com.google.livingstories.client.LivingStory;
+import com.google.livingstories.client.LivingStoryBootstrap;
 import com.google.livingstories.client.LivingStoryRpcService;
-import com.google.livingstories.client.NarrativeContentItem;
 import com.google.livingstories.client.PublishState;
 import com.google.livingstories.client.StartPageBundle;
 import com.google.livingstories.client.Theme;
@@ -65,30 +63,14 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
   @Override
   public synchronized LivingStory createLivingStory(String url, String title) {
     LivingStory story = livingStoryDataService.save(null, url, title, PublishState.DRAFT, "");
-    Caches.clearLivingStories();
     Caches.clearStartPageBundle();
     return story;
   }
   
   @Override
-  public synchronized List<LivingStory> getAllLivingStories(boolean onlyPublished) {
-    List<LivingStory> allLivingStories = Caches.getLivingStories();
-    if (allLivingStories == null) {
-      allLivingStories = livingStoryDataService.retrieveAll(null, true);
-      Caches.setLivingStories(allLivingStories);
-    }
-
-    if (!onlyPublished) {
-      return allLivingStories;
-    } else {
-      List<LivingStory> publishedLivingStories = Lists.newArrayList();
-      for (LivingStory story : allLivingStories) {
-        if (story.getPublishState() == PublishState.PUBLISHED) {
-          publishedLivingStories.add(story);
-        }
-      }
-      return publishedLivingStories;
-    }
+  public List<LivingStory> getAllLivingStories(boolean onlyPublished) {
+    // Served from the story directory cache.
+    return livingStoryDataService.retrieveAll(onlyPublished ? PublishState.PUBLISHED : null, true);
   }
   
   @Override
@@ -110,18 +92,16 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
   public synchronized LivingStory saveLivingStory(long id, String url, String title, 
       PublishState publishState, String summary) {
     LivingStory story = livingStoryDataService.save(id, url, title, publishState, summary);
-    Caches.clearLivingStories();
     Caches.clearStartPageBundle();
+    Caches.clearRenderedFeeds(id);
     return story;
   }
   
   @Override
   public synchronized void deleteLivingStory(long id) {
     livingStoryDataService.delete(id);
-    Caches.clearLivingStories();
     Caches.clearLivingStoryContentItems(id);
     Caches.clearLivingStoryThemes(id);
-    Caches.clearLivingStoryThemeInfo(id);
     Caches.clearStartPageBundle();
   }
 
@@ -144,79 +124,11 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
    * @return a map of ContentItemTypeBundles appropriately filled in.
    */
   @Override
-  public synchronized Map<Long, ContentItemTypesBundle> getThemeInfoForLivingStory(
-      long livingStoryId) {
-    Map<Long, ContentItemTypesBundle> result = Caches.getLivingStoryThemeInfo(livingStoryId); 
-    if (result != null) {
-      return result;
-    }
-
-    result = Maps.newHashMap();
-    ContentItemTypesBundle globalBundle = new ContentItemTypesBundle("");
-    result.put(null, globalBundle);
-
-    // put an entry in the map for each theme, too. Since some themes may have no content items,
-    // we should do this up-front, not lazily.
-    for (Theme theme : getThemesForLivingStory(livingStoryId)) {
-      result.put(theme.getId(), new ContentItemTypesBundle(theme.getName()));
-    }
-    
-    // In principle, we could try to track when we've found every content item type that we care
-    // about, in every possible theme, terminating the loop early if our dance card is completely
-    // filled, but it's such a micro-optimization at this point that it's not worthwhile.
-    List<BaseContentItem> allContentItems =
-        contentRpcService.getContentItemsForLivingStory(livingStoryId, true);
-    
-    for (BaseContentItem contentItem : allContentItems) {
-      if (!addContentItemToTypesBundle(contentItem, globalBundle)) {
-        continue;
-      }
-      
-      for (Long themeId : contentItem.getThemeIds()) {
-        ContentItemTypesBundle themeBundle = result.get(themeId);
-        if (themeBundle == null) {
-          logger.warning("contentItem " + contentItem.getId() + " refers to themeId " + themeId
-              + ", but this theme does not appear to be in the story.");
-        } else {
-          addContentItemToTypesBundle(contentItem, themeBundle);
-        }
-      }
-    }
-
-    Caches.setLivingStoryThemeInfo(livingStoryId, result);
-    return result;
-  }      
-
-  /**
-   * Adds information on contentItem to bundle.
-   * @return false if this is a content item that should be ignored completely. Handy to the caller,
-   * which can then avoid adding contentItem to other, theme-specific types bundles.
-   */
-  private boolean addContentItemToTypesBundle(BaseContentItem contentItem,
-      ContentItemTypesBundle bundle) {
-    ContentItemType contentItemType = contentItem.getContentItemType();
-    
-    // We don't want to show background and reaction items in the filters, so skip those entirely
-    if (contentItemType == ContentItemType.BACKGROUND
-        || contentItemType == ContentItemType.REACTION) {
-      return false;
-    }
-    
-    if (contentItemType == ContentItemType.NARRATIVE
-        && ((NarrativeContentItem)contentItem).isOpinion()) {
-      bundle.opinionAvailable = true;
-    } else {
-      bundle.availableContentItemTypes.add(contentItemType);
-      if (contentItemType == ContentItemType.ASSET) {
-        AssetType assetType = ((AssetContentItem) contentItem).getAssetType();
-        if (assetType == AssetType.DOCUMENT) {
-          assetType = AssetType.LINK;
-        }
-        bundle.availableAssetTypes.add(assetType);
-      }
-    }
-    
-    return true;
+  public Map<Long, ContentItemTypesBundle> getThemeInfoForLivingStory(long livingStoryId) {
+    // The aggregates are kept up to date as content items change, so this doesn't need to look
+    // at every content item in the story.
+    return contentRpcService.getStoryAggregates(livingStoryId).getThemeInfo(
+        getThemesForLivingStory(livingStoryId));
   }
 
   @Override
@@ -229,7 +141,6 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
     Theme result = themeDataService.save(theme);
     // Clear caches
     Caches.clearLivingStoryThemes(theme.getLivingStoryId());
-    Caches.clearLivingStoryThemeInfo(theme.getLivingStoryId());
     return result;
   }
   
@@ -238,41 +149,150 @@ public class LivingStoryRpcImpl extends RemoteServiceServlet implements LivingSt
     themeDataService.delete(id);
     // Clear caches
     Caches.clearLivingStoryThemes(id);
-    Caches.clearLivingStoryThemeInfo(id);
   }
   
+  /**
+   * Returns the published stories, most recently changed first, with the latest updates for
+   * each. The bundle is put together from each story's cached updates, so after a content change
+   * only the changed story is queried again.
+   */
   @Override
   public StartPageBundle getStartPageBundle() {
-    StartPageBundle bundle = Caches.getStartPageBundle();
-    if (bundle == null) {
-      List<LivingStory> unsortedLivingStories = getAllLivingStories(true);
-      Map<Long, List<BaseContentItem>> storyIdToUpdateMap =
-          new HashMap<Long, List<BaseContentItem>>();
-      List<LivingStoryAndLastUpdateTime> livingStoriesAndUpdateTimes = 
-        new ArrayList<LivingStoryAndLastUpdateTime>();
-      // For each living story, get the last 3 updates - the updates are sorted in reverse
-      // chronological order
-      for (LivingStory livingStory : unsortedLivingStories) {
-        List<BaseContentItem> updates =
-            contentRpcService.getUpdatesForStartPage(livingStory.getId());
+    Long generation = Caches.getStartPageGeneration();
+    StartPageBundle bundle = generation == null ? null : Caches.getStartPageBundle(generation);
+    if (bundle != null) {
+      return bundle;
+    }
+
+    List<LivingStory> unsortedLivingStories = getAllLivingStories(true);
+    Map<Long, List<BaseContentItem>> storyIdToUpdateMap =
+        new HashMap<Long, List<BaseContentItem>>();
+    Map<Long, Long> uncachedStoryGenerations = Maps.newLinkedHashMap();
+    for (LivingStory livingStory : unsortedLivingStories) {
+      Long contentGeneration = Caches.getLivingStoryContentGeneration(livingStory.getId());
+      List<BaseContentItem> updates = contentGeneration == null ? null
+          : Caches.getStartPageUpdates(livingStory.getId(), contentGeneration);
+      if (updates == null) {
+        uncachedStoryGenerations.put(livingStory.getId(), contentGeneration);
+      } else {
         storyIdToUpdateMap.put(livingStory.getId(), updates);
-        livingStoriesAndUpdateTimes.add(
-            new LivingStoryAndLastUpdateTime(livingStory,
-                updates.isEmpty() ? null : updates.get(0).getTimestamp()));
       }
-      
-      // After we have the updates for each story, we want to sort them such that the story with
-      // the latest update is first
-      Collections.sort(livingStoriesAndUpdateTimes, LivingStoryAndLastUpdateTime.getComparator());
-      List<LivingStory> sortedLivingStories = new ArrayList<LivingStory>();
-      for (LivingStoryAndLastUpdateTime story : livingStoriesAndUpdateTimes) {
-        sortedLivingStories.add(story.livingStory);
+    }
+
+    for (Map.Entry<Long, Long> entry : uncachedStoryGenerations.entrySet()) {
+      Long livingStoryId = entry.getKey();
+      List<BaseContentItem> updates = contentRpcService.getUpdatesForStartPage(livingStoryId);
+      storyIdToUpdateMap.put(livingStoryId, updates);
+      if (entry.getValue() != null) {
+        Caches.setStartPageUpdates(livingStoryId, entry.getValue(), updates);
       }
-      bundle = new StartPageBundle(sortedLivingStories, storyIdToUpdateMap);
-      Caches.setStartPageBundle(bundle);
+    }
+
+    // The updates for each story are sorted in reverse chronological order. Sort the stories
+    // such that the story with the latest update is first.
+    List<LivingStoryAndLastUpdateTime> livingStoriesAndUpdateTimes = 
+        new ArrayList<LivingStoryAndLastUpdateTime>();
+    for (LivingStory livingStory : unsortedLivingStories) {
+      List<BaseContentItem> updates = storyIdToUpdateMap.get(livingStory.getId());
+      livingStoriesAndUpdateTimes.add(
+          new LivingStoryAndLastUpdateTime(livingStory,
+              updates.isEmpty() ? null : updates.get(0).getTimestamp()));
+    }
+    Collections.sort(livingStoriesAndUpdateTimes, LivingStoryAndLastUpdateTime.getComparator());
+    List<LivingStory> sortedLivingStories = new ArrayList<LivingStory>();
+    for (LivingStoryAndLastUpdateTime story : livingStoriesAndUpdateTimes) {
+      sortedLivingStories.add(story.livingStory);
+    }
+    bundle = new StartPageBundle(sortedLivingStories, storyIdToUpdateMap);
+    if (generation != null) {
+      Caches.setStartPageBundle(generation, bundle);
     }
     return bundle;
   }
+
+  /**
+   * Fills in the results of the story page's startup calls that are already cached, so that
+   * the page is never held up loading them. Results that aren't cached, or that fail, are left
+   * null, for the page to make the call itself. This is only called on the server, to embed the
+   * bootstrap in the story page; it isn't part of the RPC service.
+   * @param initialFilter the filter to return the first page of content items for
+   * @param lastVisitTime the time to count updates since, or null if there's no need to
+   */
+  public LivingStoryBootstrap getLivingStoryBootstrap(final long livingStoryId,
+      final FilterSpec initialFilter, final Date lastVisitTime) {
+    final LivingStoryBootstrap bootstrap =
+        new LivingStoryBootstrap(livingStoryId, initialFilter, lastVisitTime);
+
+    List<BootstrapPart> parts = Lists.newArrayList();
+    parts.add(new BootstrapPart("theme info") {
+      protected void fill() {
+        List<Theme> themes = Caches.getLivingStoryThemes(livingStoryId);
+        StoryAggregates aggregates = contentRpcService.getCachedStoryAggregates(livingStoryId);
+        if (themes != null && aggregates != null) {
+          bootstrap.setThemeInfo(aggregates.getThemeInfo(themes));
+        }
+      }
+    });
+    parts.add(new BootstrapPart("content items") {
+      protected void fill() {
+        bootstrap.setInitialContentItems(contentRpcService.getCachedDisplayContentItemBundle(
+            livingStoryId, initialFilter));
+      }
+    });
+    if (lastVisitTime != null) {
+      parts.add(new BootstrapPart("update count") {
+        protected void fill() {
+          bootstrap.setUpdateCountSinceLastVisit(
+              contentRpcService.getCachedUpdateCountSinceTime(livingStoryId, lastVisitTime));
+        }
+      });
+    }
+    parts.add(new BootstrapPart("important events") {
+      protected void fill() {
+        bootstrap.setImportantEvents(
+            contentRpcService.getCachedImportantEventsForLivingStory(livingStoryId));
+      }
+    });
+    parts.add(new BootstrapPart("important players") {
+      protected void fill() {
+        bootstrap.setImportantPlayers(
+            contentRpcService.getCachedImportantPlayersForLivingStory(livingStoryId));
+      }
+    });
+    parts.add(new BootstrapPart("contributors") {
+      protected void fill() {
+        bootstrap.setContributors(
+            contentRpcService.getCachedContributorsByIdForLivingStory(livingStoryId));
+      }
+    });
+
+    for (BootstrapPart part : parts) {
+      part.fillIfPossible();
+    }
+    return bootstrap;
+  }
+
+  /**
+   * Fills in one part of a bootstrap from the cache.
+   */
+  private abstract static class BootstrapPart {
+    private final String description;
+
+    public BootstrapPart(String description) {
+      this.description = description;
+    }
+
+    protected abstract void fill();
+
+    public void fillIfPossible() {
+      try {
+        fill();
+      } catch (RuntimeException ex) {
+        logger.warning("Couldn't work out " + description + " for the story page bootstrap: "
+            + ex.getMessage());
+      }
+    }
+  }
   
   private static class LivingStoryAndLastUpdateTime {
     public LivingStory livingStory;
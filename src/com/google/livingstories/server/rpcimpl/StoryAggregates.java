@@ -0,0 +1,240 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.rpcimpl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.livingstories.client.AssetContentItem;
+import com.google.livingstories.client.AssetType;
+import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.ContentItemType;
+import com.google.livingstories.client.ContentItemTypesBundle;
+import com.google.livingstories.client.NarrativeContentItem;
+import com.google.livingstories.client.Theme;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reference counts over the published content items of a story, from which the story's theme
+ * info and contributor list are worked out.
+ *
+ * For the story as a whole, and for each theme, this counts the items of each filterable kind:
+ * each content item type, each asset type, and opinion narratives. It also counts the items that
+ * each contributor contributed to. A kind is available in the filters, and a contributor is
+ * listed, as long as its count is above zero.
+ *
+ * Instances are immutable, since they're shared through the cache. Saving or deleting one item
+ * produces a new instance with {@link #withItem}. That copies the counts, so it still takes time
+ * proportional to the number of items in the story, as does writing the new instance to the
+ * cache, but it saves loading and converting every published item in the story as a rebuild
+ * would. The aggregates remember what they counted for each item, so that a change replaces the
+ * item's old contribution rather than subtracting its previous version. That keeps the counts
+ * right even if the aggregates were built from a list that already had the change in it, which
+ * can happen since a save is written before the story's generation moves on.
+ */
+public class StoryAggregates implements Serializable {
+  private static final String OPINION_KIND = "opinion";
+  private static final String ASSET_KIND_PREFIX = "asset:";
+
+  // Theme id (null for the whole story) to kind to count.
+  private final Map<Long, Map<String, Integer>> kindCounts;
+  private final Map<Long, Integer> contributorCounts;
+  // Content item id to what was counted for that item.
+  private final Map<Long, Contribution> contributions;
+
+  private StoryAggregates(Map<Long, Map<String, Integer>> kindCounts,
+      Map<Long, Integer> contributorCounts, Map<Long, Contribution> contributions) {
+    this.kindCounts = kindCounts;
+    this.contributorCounts = contributorCounts;
+    this.contributions = contributions;
+  }
+
+  /**
+   * Counts every item in publishedContentItems.
+   */
+  public static StoryAggregates build(Collection<BaseContentItem> publishedContentItems) {
+    StoryAggregates aggregates = new StoryAggregates(new HashMap<Long, Map<String, Integer>>(),
+        new HashMap<Long, Integer>(), new HashMap<Long, Contribution>());
+    for (BaseContentItem contentItem : publishedContentItems) {
+      aggregates.add(contentItem);
+    }
+    return aggregates;
+  }
+
+  /**
+   * Returns a copy of these aggregates in which the content item with the given id counts as
+   * publishedContentItem, in place of whatever was counted for it before. Pass null if the item
+   * is no longer published, e.g. because it was unpublished or deleted.
+   */
+  public StoryAggregates withItem(Long contentItemId, BaseContentItem publishedContentItem) {
+    // This instance may be shared, so every map is copied before the change is applied.
+    Map<Long, Map<String, Integer>> newKindCounts = Maps.newHashMap();
+    for (Map.Entry<Long, Map<String, Integer>> entry : kindCounts.entrySet()) {
+      newKindCounts.put(entry.getKey(), new HashMap<String, Integer>(entry.getValue()));
+    }
+    StoryAggregates result = new StoryAggregates(newKindCounts,
+        new HashMap<Long, Integer>(contributorCounts),
+        new HashMap<Long, Contribution>(contributions));
+    Contribution previous = result.contributions.remove(contentItemId);
+    if (previous != null) {
+      result.apply(previous, -1);
+    }
+    if (publishedContentItem != null) {
+      result.add(publishedContentItem);
+    }
+    return result;
+  }
+
+  /**
+   * Returns a map from theme id to ContentItemTypesBundle, with a bundle for every theme in
+   * themes and one for the whole story under the null key, as returned by
+   * getThemeInfoForLivingStory.
+   */
+  public Map<Long, ContentItemTypesBundle> getThemeInfo(List<Theme> themes) {
+    Map<Long, ContentItemTypesBundle> result = Maps.newHashMap();
+    result.put(null, getTypesBundle(null, ""));
+    // Themes with no content items still get a bundle. Counts for theme ids that aren't in the
+    // story, e.g. deleted themes, are ignored.
+    for (Theme theme : themes) {
+      result.put(theme.getId(), getTypesBundle(theme.getId(), theme.getName()));
+    }
+    return result;
+  }
+
+  public Set<Long> getContributorIds() {
+    return Collections.unmodifiableSet(contributorCounts.keySet());
+  }
+
+  private ContentItemTypesBundle getTypesBundle(Long themeId, String themeName) {
+    ContentItemTypesBundle bundle = new ContentItemTypesBundle(themeName);
+    Map<String, Integer> counts = kindCounts.get(themeId);
+    if (counts != null) {
+      for (String kind : counts.keySet()) {
+        if (kind.equals(OPINION_KIND)) {
+          bundle.opinionAvailable = true;
+        } else if (kind.startsWith(ASSET_KIND_PREFIX)) {
+          bundle.availableAssetTypes.add(
+              AssetType.valueOf(kind.substring(ASSET_KIND_PREFIX.length())));
+        } else {
+          bundle.availableContentItemTypes.add(ContentItemType.valueOf(kind));
+        }
+      }
+    }
+    return bundle;
+  }
+
+  /**
+   * Counts contentItem, and records what was counted for it. Only used while an instance is
+   * being built.
+   */
+  private void add(BaseContentItem contentItem) {
+    Contribution contribution = new Contribution(getKinds(contentItem),
+        Lists.newArrayList(contentItem.getThemeIds()),
+        Lists.newArrayList(contentItem.getContributorIds()));
+    contributions.put(contentItem.getId(), contribution);
+    apply(contribution, 1);
+  }
+
+  /**
+   * Adds delta to the counts for each kind and contributor in the contribution. Only used while
+   * an instance is being built.
+   */
+  private void apply(Contribution contribution, int delta) {
+    for (Long contributorId : contribution.contributorIds) {
+      addCount(contributorCounts, contributorId, delta);
+    }
+
+    if (contribution.kinds.isEmpty()) {
+      return;
+    }
+    List<Long> themeIds = Lists.newArrayList(contribution.themeIds);
+    themeIds.add(null);
+    for (Long themeId : themeIds) {
+      Map<String, Integer> counts = kindCounts.get(themeId);
+      if (counts == null) {
+        counts = Maps.newHashMap();
+        kindCounts.put(themeId, counts);
+      }
+      for (String kind : contribution.kinds) {
+        addCount(counts, kind, delta);
+      }
+      if (counts.isEmpty()) {
+        kindCounts.remove(themeId);
+      }
+    }
+  }
+
+  /**
+   * Returns the kinds of the content item that the filters care about.
+   */
+  private static List<String> getKinds(BaseContentItem contentItem) {
+    ContentItemType contentItemType = contentItem.getContentItemType();
+
+    // We don't want to show background and reaction items in the filters, so skip those entirely
+    if (contentItemType == ContentItemType.BACKGROUND
+        || contentItemType == ContentItemType.REACTION) {
+      return Collections.emptyList();
+    }
+
+    if (contentItemType == ContentItemType.NARRATIVE
+        && ((NarrativeContentItem) contentItem).isOpinion()) {
+      return Collections.singletonList(OPINION_KIND);
+    }
+    List<String> kinds = Lists.newArrayList(contentItemType.name());
+    if (contentItemType == ContentItemType.ASSET) {
+      AssetType assetType = ((AssetContentItem) contentItem).getAssetType();
+      if (assetType == AssetType.DOCUMENT) {
+        assetType = AssetType.LINK;
+      }
+      if (assetType != null) {
+        kinds.add(ASSET_KIND_PREFIX + assetType.name());
+      }
+    }
+    return kinds;
+  }
+
+  private static <K> void addCount(Map<K, Integer> counts, K key, int delta) {
+    Integer count = counts.get(key);
+    int newCount = (count == null ? 0 : count) + delta;
+    if (newCount > 0) {
+      counts.put(key, newCount);
+    } else {
+      counts.remove(key);
+    }
+  }
+
+  /**
+   * What one content item adds to the counts.
+   */
+  private static class Contribution implements Serializable {
+    public final List<String> kinds;
+    public final List<Long> themeIds;
+    public final List<Long> contributorIds;
+
+    public Contribution(List<String> kinds, List<Long> themeIds, List<Long> contributorIds) {
+      this.kinds = kinds;
+      this.themeIds = themeIds;
+      this.contributorIds = contributorIds;
+    }
+  }
+}
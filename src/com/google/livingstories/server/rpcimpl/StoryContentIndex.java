@@ -0,0 +1,413 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.rpcimpl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.livingstories.client.AssetContentItem;
+import com.google.livingstories.client.AssetType;
+import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.ContentItemType;
+import com.google.livingstories.client.FilterSpec;
+import com.google.livingstories.client.Importance;
+import com.google.livingstories.client.NarrativeContentItem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable index over the published content items of a single living story, used to answer
+ * {@link FilterSpec} queries without scanning and re-sorting every item in the story.
+ *
+ * The items are kept pre-sorted by {@link BaseContentItem#getDateSortKey()} in both directions,
+ * with posting lists (sorted positions into the sorted items) for each theme, content item type,
+ * asset type, high importance, opinion narratives, and top-level display items. A query walks the
+ * shortest posting list that applies to the filter, starting at the cutoff date found by binary
+ * search, and checks the remaining conditions on each candidate. Callers pull only as many
+ * matches as they need for a page.
+ *
+ * The index also keeps the story's updates (events and standalone narratives) sorted by
+ * timestamp, so that the updates since a given time can be counted or listed with a binary search.
+ *
+ * An index is built for one content generation of the story, and is only valid as long as that's
+ * still the story's current generation; see {@link #isBuiltFor}.
+ */
+public class StoryContentIndex {
+  private final Long generation;
+  private final Map<Long, BaseContentItem> idToContentItemMap = Maps.newHashMap();
+  private final SortedView oldestFirstView;
+  private final SortedView newestFirstView;
+  // The story's updates, oldest first, and their timestamps in the same order.
+  private final BaseContentItem[] updates;
+  private final long[] updateTimes;
+
+  /**
+   * @param generation the story's content generation, read before contentItems was loaded, or
+   *     null if it's unknown
+   * @param contentItems the story's published content items
+   */
+  public StoryContentIndex(Long generation, List<BaseContentItem> contentItems) {
+    this.generation = generation;
+    List<BaseContentItem> updateList = Lists.newArrayList();
+    for (BaseContentItem contentItem : contentItems) {
+      idToContentItemMap.put(contentItem.getId(), contentItem);
+      if (isUpdate(contentItem)) {
+        updateList.add(contentItem);
+      }
+    }
+    oldestFirstView = new SortedView(contentItems, BaseContentItem.COMPARATOR, true);
+    newestFirstView = new SortedView(contentItems, BaseContentItem.REVERSE_COMPARATOR, false);
+
+    Collections.sort(updateList, new Comparator<BaseContentItem>() {
+      @Override
+      public int compare(BaseContentItem lhs, BaseContentItem rhs) {
+        return lhs.getTimestamp().compareTo(rhs.getTimestamp());
+      }
+    });
+    updates = updateList.toArray(new BaseContentItem[updateList.size()]);
+    updateTimes = new long[updates.length];
+    for (int i = 0; i < updates.length; i++) {
+      updateTimes[i] = updates[i].getTimestamp().getTime();
+    }
+  }
+
+  /**
+   * Returns true if this index was built for the given content generation. Any change to the
+   * story's published items moves the story on to a new generation, so this tells the caller
+   * whether the index is still current without looking at the items themselves. An index built
+   * when the generation was unknown is never current.
+   */
+  public boolean isBuiltFor(Long currentGeneration) {
+    return generation != null && generation.equals(currentGeneration);
+  }
+
+  public BaseContentItem getContentItem(Long id) {
+    return idToContentItemMap.get(id);
+  }
+
+  /**
+   * Returns the timestamps of the story's updates, oldest first, for use with
+   * {@link #countUpdatesSince}. The array is shared and must not be modified.
+   */
+  public long[] getUpdateTimes() {
+    return updateTimes;
+  }
+
+  /**
+   * Returns the number of updates with timestamps after time. A null time counts every update.
+   */
+  public int getUpdateCountSince(Date time) {
+    return countUpdatesSince(updateTimes, time);
+  }
+
+  /**
+   * Returns the number of timestamps in updateTimes, which must be sorted oldest first, that are
+   * after time. A null time counts every update.
+   */
+  public static int countUpdatesSince(long[] updateTimes, Date time) {
+    return updateTimes.length - getFirstUpdateAfter(updateTimes, time);
+  }
+
+  /**
+   * Returns the updates with timestamps after time, newest first. A null time returns every
+   * update.
+   */
+  public List<BaseContentItem> getUpdatesSince(Date time) {
+    int start = getFirstUpdateAfter(updateTimes, time);
+    List<BaseContentItem> result = new ArrayList<BaseContentItem>(updates.length - start);
+    for (int i = updates.length - 1; i >= start; i--) {
+      result.add(updates[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Binary search for the first position in updateTimes that's after time.
+   */
+  private static int getFirstUpdateAfter(long[] updateTimes, Date time) {
+    if (time == null) {
+      return 0;
+    }
+    long millis = time.getTime();
+    int low = 0;
+    int high = updateTimes.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (updateTimes[mid] <= millis) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Updates are the events and standalone narratives in the story, as counted by the "new
+   * updates" notice and listed in feeds.
+   */
+  private static boolean isUpdate(BaseContentItem contentItem) {
+    if (contentItem.getTimestamp() == null) {
+      // The update queries this replaces never returned these, as they sort on the timestamp.
+      return false;
+    }
+    ContentItemType contentItemType = contentItem.getContentItemType();
+    return contentItemType == ContentItemType.EVENT
+        || (contentItemType == ContentItemType.NARRATIVE
+            && ((NarrativeContentItem) contentItem).isStandalone());
+  }
+
+  /**
+   * Returns the content items that match filterSpec, in the order that filterSpec specifies,
+   * starting from cutoff (inclusive). A null cutoff means there's no bound. Matches are computed
+   * lazily, as the returned iterator is advanced.
+   */
+  public Iterator<BaseContentItem> getMatchingContentItems(FilterSpec filterSpec, Date cutoff) {
+    SortedView view = filterSpec.oldestFirst ? oldestFirstView : newestFirstView;
+    return view.getMatchingContentItems(filterSpec, cutoff);
+  }
+
+  /**
+   * The story's content items in one sort order, plus posting lists into that order.
+   */
+  private static class SortedView {
+    private final BaseContentItem[] sortedContentItems;
+    private final boolean ascending;
+
+    private final int[] topLevelPositions;
+    private final int[] importantPositions;
+    private final int[] opinionPositions;
+    private final Map<ContentItemType, int[]> contentItemTypePositions = Maps.newEnumMap(
+        ContentItemType.class);
+    private final Map<AssetType, int[]> assetTypePositions = Maps.newEnumMap(AssetType.class);
+    private final Map<Long, int[]> themePositions = Maps.newHashMap();
+
+    public SortedView(List<BaseContentItem> contentItems,
+        Comparator<BaseContentItem> comparator, boolean ascending) {
+      // Collections.sort is stable, so items with equal sort keys keep the relative order of the
+      // source list, just as they did when each bundle re-sorted its own matches.
+      List<BaseContentItem> sorted = new ArrayList<BaseContentItem>(contentItems);
+      Collections.sort(sorted, comparator);
+      this.sortedContentItems = sorted.toArray(new BaseContentItem[sorted.size()]);
+      this.ascending = ascending;
+
+      List<Integer> topLevel = Lists.newArrayList();
+      List<Integer> important = Lists.newArrayList();
+      List<Integer> opinion = Lists.newArrayList();
+      Map<ContentItemType, List<Integer>> byContentItemType = Maps.newEnumMap(
+          ContentItemType.class);
+      Map<AssetType, List<Integer>> byAssetType = Maps.newEnumMap(AssetType.class);
+      Map<Long, List<Integer>> byTheme = Maps.newHashMap();
+
+      for (int i = 0; i < sortedContentItems.length; i++) {
+        BaseContentItem contentItem = sortedContentItems[i];
+        ContentItemType contentItemType = contentItem.getContentItemType();
+        if (contentItemType == ContentItemType.BACKGROUND
+            || contentItemType == ContentItemType.REACTION) {
+          // These never match any filter.
+          continue;
+        }
+
+        addPosition(byContentItemType, contentItemType, i);
+        if (contentItem.displayTopLevel()) {
+          topLevel.add(i);
+        }
+        if (contentItem.getImportance() == Importance.HIGH) {
+          important.add(i);
+        }
+        if (contentItemType == ContentItemType.NARRATIVE
+            && ((NarrativeContentItem) contentItem).isOpinion()) {
+          opinion.add(i);
+        }
+        if (contentItemType == ContentItemType.ASSET) {
+          AssetType assetType = ((AssetContentItem) contentItem).getAssetType();
+          addPosition(byAssetType, assetType, i);
+          // The LINK filter also shows documents; see FilterSpec.matchesAssetType.
+          if (assetType == AssetType.DOCUMENT) {
+            addPosition(byAssetType, AssetType.LINK, i);
+          }
+        }
+        for (Long themeId : contentItem.getThemeIds()) {
+          addPosition(byTheme, themeId, i);
+        }
+      }
+
+      topLevelPositions = toArray(topLevel);
+      importantPositions = toArray(important);
+      opinionPositions = toArray(opinion);
+      for (Map.Entry<ContentItemType, List<Integer>> entry : byContentItemType.entrySet()) {
+        contentItemTypePositions.put(entry.getKey(), toArray(entry.getValue()));
+      }
+      for (Map.Entry<AssetType, List<Integer>> entry : byAssetType.entrySet()) {
+        assetTypePositions.put(entry.getKey(), toArray(entry.getValue()));
+      }
+      for (Map.Entry<Long, List<Integer>> entry : byTheme.entrySet()) {
+        themePositions.put(entry.getKey(), toArray(entry.getValue()));
+      }
+    }
+
+    public Iterator<BaseContentItem> getMatchingContentItems(FilterSpec filterSpec, Date cutoff) {
+      int[] postings = getShortestPostingList(filterSpec);
+      int startPosition = cutoff == null ? 0 : getFirstPositionWithinCutoff(cutoff);
+      return new MatchIterator(filterSpec, postings, getFirstPostingIndex(postings, startPosition));
+    }
+
+    /**
+     * Every item that matches filterSpec appears in each of the posting lists chosen here, so
+     * walking the shortest one and checking the full filter on each item finds all matches.
+     */
+    private int[] getShortestPostingList(FilterSpec filterSpec) {
+      List<int[]> candidates = Lists.newArrayList();
+      if (filterSpec.contentItemType == null) {
+        candidates.add(topLevelPositions);
+      } else {
+        candidates.add(getPositions(contentItemTypePositions, filterSpec.contentItemType));
+        if (filterSpec.contentItemType == ContentItemType.ASSET && filterSpec.assetType != null) {
+          candidates.add(getPositions(assetTypePositions, filterSpec.assetType));
+        }
+        if (filterSpec.contentItemType == ContentItemType.NARRATIVE && filterSpec.opinion) {
+          candidates.add(opinionPositions);
+        }
+      }
+      if (filterSpec.themeId != null) {
+        candidates.add(getPositions(themePositions, filterSpec.themeId));
+      }
+      if (filterSpec.importantOnly) {
+        candidates.add(importantPositions);
+      }
+
+      int[] shortest = candidates.get(0);
+      for (int[] candidate : candidates) {
+        if (candidate.length < shortest.length) {
+          shortest = candidate;
+        }
+      }
+      return shortest;
+    }
+
+    /**
+     * Binary search for the first position in sortedContentItems that doesn't sort before
+     * cutoff, in this view's order.
+     */
+    private int getFirstPositionWithinCutoff(Date cutoff) {
+      int low = 0;
+      int high = sortedContentItems.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        Date sortKey = sortedContentItems[mid].getDateSortKey();
+        boolean beforeCutoff = ascending ? sortKey.before(cutoff) : sortKey.after(cutoff);
+        if (beforeCutoff) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * Binary search for the first index in postings whose position is at least startPosition.
+     */
+    private static int getFirstPostingIndex(int[] postings, int startPosition) {
+      int low = 0;
+      int high = postings.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (postings[mid] < startPosition) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    private class MatchIterator implements Iterator<BaseContentItem> {
+      private final FilterSpec filterSpec;
+      private final int[] postings;
+      private int postingIndex;
+      private BaseContentItem next;
+
+      public MatchIterator(FilterSpec filterSpec, int[] postings, int postingIndex) {
+        this.filterSpec = filterSpec;
+        this.postings = postings;
+        this.postingIndex = postingIndex;
+        advance();
+      }
+
+      private void advance() {
+        next = null;
+        while (next == null && postingIndex < postings.length) {
+          BaseContentItem candidate = sortedContentItems[postings[postingIndex++]];
+          if (filterSpec.doesContentItemMatch(candidate)) {
+            next = candidate;
+          }
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public BaseContentItem next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        BaseContentItem result = next;
+        advance();
+        return result;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    }
+  }
+
+  private static final int[] EMPTY_POSITIONS = new int[0];
+
+  private static <K> int[] getPositions(Map<K, int[]> positionMap, K key) {
+    int[] positions = positionMap.get(key);
+    return positions == null ? EMPTY_POSITIONS : positions;
+  }
+
+  private static <K> void addPosition(Map<K, List<Integer>> positionMap, K key, int position) {
+    List<Integer> positions = positionMap.get(key);
+    if (positions == null) {
+      positions = Lists.newArrayList();
+      positionMap.put(key, positions);
+    }
+    positions.add(position);
+  }
+
+  private static int[] toArray(List<Integer> positions) {
+    int[] result = new int[positions.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = positions.get(i);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,498 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.rpcimpl;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.livingstories.client.AssetContentItem;
+import com.google.livingstories.client.BackgroundContentItem;
+import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.ContentItemType;
+import com.google.livingstories.client.EventContentItem;
+import com.google.livingstories.client.NarrativeContentItem;
+import com.google.livingstories.client.PlayerContentItem;
+import com.google.livingstories.client.contentmanager.SearchResults;
+import com.google.livingstories.client.contentmanager.SearchTerms;
+import com.google.livingstories.server.util.StringUtil;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Full-text index over the content items of a single living story, drafts included, used to
+ * answer content manager searches.
+ *
+ * Each item's text is its content plus, depending on its type, its headline, summary, event
+ * update, caption, concept name, or player name and aliases, with html stripped out. The text is
+ * split into lowercase words, and for each word the index keeps a posting list of the items
+ * containing it and how many times. Searches score the items containing any of the query's words
+ * with BM25, drop the ones that don't pass the {@link SearchTerms} filters, and return the best
+ * matches a page at a time.
+ *
+ * Pages are continued with a cursor that holds the sort key of the last result returned, along
+ * with the item count, average item length and word frequencies that the scores were computed
+ * from. Later pages score items with those same statistics, so an item that wasn't changed
+ * between pages keeps its score, and isn't repeated or skipped even if other items were added,
+ * edited or deleted in the meantime. An item that was itself edited between pages may move to
+ * the other side of the cursor.
+ *
+ * Like {@link StoryContentIndex}, an index belongs to one editor content generation of the story,
+ * and is only valid while that's the current one; see {@link #isBuiltFor}. When a single item is
+ * saved or deleted, {@link #update} moves the index on to the next generation by changing that
+ * item's postings, rather than the index being rebuilt from every item in the story. The index is
+ * safe to search and update from several threads.
+ */
+public class StorySearchIndex {
+  // Standard BM25 parameters: how quickly repeated words stop adding to the score, and how much
+  // an item's length counts against it.
+  private static final double K1 = 1.2;
+  private static final double B = 0.75;
+
+  private Long generation;
+  private final Map<Long, Document> documents = Maps.newHashMap();
+  // For each word, the ids of the items containing it and how many times.
+  private final Map<String, Map<Long, Integer>> postingsByWord = Maps.newHashMap();
+  private long totalDocumentLength = 0;
+
+  /**
+   * @param generation the story's editor content generation, read before contentItems was
+   *     loaded, or null if it's unknown
+   * @param contentItems all of the story's content items, drafts included
+   */
+  public StorySearchIndex(Long generation, List<BaseContentItem> contentItems) {
+    this.generation = generation;
+    for (BaseContentItem contentItem : contentItems) {
+      add(contentItem);
+    }
+  }
+
+  /**
+   * Returns true if this index is for the given editor content generation. An index built when
+   * the generation was unknown is never current.
+   */
+  public synchronized boolean isBuiltFor(Long currentGeneration) {
+    return generation != null && generation.equals(currentGeneration);
+  }
+
+  /**
+   * Replaces what the index holds for one content item, and moves the index on to a new
+   * generation. This only applies the change if the index is for previousGeneration, since
+   * otherwise it may be missing other changes.
+   * @param contentItemOrNull the item as it was saved, or null if it was deleted
+   * @return whether the change was applied; if not, the index should be discarded
+   */
+  public synchronized boolean update(Long previousGeneration, Long newGeneration,
+      Long contentItemId, BaseContentItem contentItemOrNull) {
+    if (!isBuiltFor(previousGeneration) || newGeneration == null) {
+      return false;
+    }
+    remove(contentItemId);
+    if (contentItemOrNull != null) {
+      add(contentItemOrNull);
+    }
+    generation = newGeneration;
+    return true;
+  }
+
+  private void add(BaseContentItem contentItem) {
+    remove(contentItem.getId());
+
+    List<String> words = tokenize(getText(contentItem));
+    Map<String, Integer> wordCounts = Maps.newHashMap();
+    for (String word : words) {
+      Integer count = wordCounts.get(word);
+      wordCounts.put(word, count == null ? 1 : count + 1);
+    }
+    documents.put(contentItem.getId(), new Document(contentItem, words.size(), wordCounts));
+    totalDocumentLength += words.size();
+
+    for (Map.Entry<String, Integer> entry : wordCounts.entrySet()) {
+      Map<Long, Integer> postings = postingsByWord.get(entry.getKey());
+      if (postings == null) {
+        postings = Maps.newHashMap();
+        postingsByWord.put(entry.getKey(), postings);
+      }
+      postings.put(contentItem.getId(), entry.getValue());
+    }
+  }
+
+  private void remove(Long contentItemId) {
+    Document document = documents.remove(contentItemId);
+    if (document == null) {
+      return;
+    }
+    totalDocumentLength -= document.length;
+    for (String word : document.wordCounts.keySet()) {
+      Map<Long, Integer> postings = postingsByWord.get(word);
+      postings.remove(contentItemId);
+      if (postings.isEmpty()) {
+        postingsByWord.remove(word);
+      }
+    }
+  }
+
+  /**
+   * Returns up to pageSize items that match searchTerms, continuing from searchTerms.cursor if
+   * it's set.
+   *
+   * @throws IllegalArgumentException if the cursor is malformed
+   */
+  public synchronized SearchResults search(SearchTerms searchTerms, int pageSize) {
+    List<String> queryWords = Lists.newArrayList(Sets.newLinkedHashSet(
+        tokenize(searchTerms.query)));
+    Cursor after = searchTerms.cursor == null ? null
+        : Cursor.parse(searchTerms.cursor, queryWords.size());
+    RankingStats stats = after == null ? getRankingStats(queryWords) : after.stats;
+
+    // Keep the best pageSize + 1 hits after the cursor, with the worst of them at the head of
+    // the queue. The extra hit tells us whether there's another page.
+    PriorityQueue<Hit> best = new PriorityQueue<Hit>(pageSize + 1,
+        Collections.reverseOrder(Hit.ORDER));
+    Hit afterHit = after == null ? null : after.hit;
+    int totalMatchCount = 0;
+
+    if (queryWords.isEmpty()) {
+      for (Document document : documents.values()) {
+        if (matchesFilters(document.contentItem, searchTerms)) {
+          totalMatchCount++;
+          offer(best, new Hit(0, document), afterHit, pageSize);
+        }
+      }
+    } else {
+      for (Map.Entry<Long, double[]> entry : score(queryWords, stats).entrySet()) {
+        Document document = documents.get(entry.getKey());
+        if (matchesFilters(document.contentItem, searchTerms)) {
+          totalMatchCount++;
+          offer(best, new Hit(entry.getValue()[0], document), afterHit, pageSize);
+        }
+      }
+    }
+
+    List<Hit> hits = new ArrayList<Hit>(best);
+    Collections.sort(hits, Hit.ORDER);
+    String nextCursor = null;
+    if (hits.size() > pageSize) {
+      hits = hits.subList(0, pageSize);
+      nextCursor = new Cursor(hits.get(pageSize - 1), stats).toString();
+    }
+    List<BaseContentItem> contentItems = new ArrayList<BaseContentItem>(hits.size());
+    for (Hit hit : hits) {
+      contentItems.add(hit.document.contentItem);
+    }
+    return new SearchResults(contentItems, nextCursor, totalMatchCount);
+  }
+
+  private static void offer(PriorityQueue<Hit> best, Hit hit, Hit after, int pageSize) {
+    if (after != null && Hit.ORDER.compare(hit, after) <= 0) {
+      return;
+    }
+    if (best.size() <= pageSize) {
+      best.add(hit);
+    } else if (Hit.ORDER.compare(hit, best.peek()) < 0) {
+      best.poll();
+      best.add(hit);
+    }
+  }
+
+  private RankingStats getRankingStats(List<String> words) {
+    int[] documentFrequencies = new int[words.size()];
+    for (int i = 0; i < words.size(); i++) {
+      Map<Long, Integer> postings = postingsByWord.get(words.get(i));
+      documentFrequencies[i] = postings == null ? 0 : postings.size();
+    }
+    return new RankingStats(documents.size(),
+        documents.isEmpty() ? 0 : (double) totalDocumentLength / documents.size(),
+        documentFrequencies);
+  }
+
+  /**
+   * Returns the BM25 score of every document containing any of the given words, by id, by
+   * walking each word's posting list. The item count, average length and word frequencies come
+   * from stats rather than the index's current state, so that a cursor's later pages score
+   * unchanged items exactly as the first page did.
+   */
+  private Map<Long, double[]> score(List<String> words, RankingStats stats) {
+    Map<Long, double[]> scores = Maps.newHashMap();
+    for (int i = 0; i < words.size(); i++) {
+      Map<Long, Integer> postings = postingsByWord.get(words.get(i));
+      if (postings == null) {
+        continue;
+      }
+      int documentFrequency = stats.documentFrequencies[i];
+      double idf = Math.log(1 + (stats.documentCount - documentFrequency + 0.5)
+          / (documentFrequency + 0.5));
+      for (Map.Entry<Long, Integer> entry : postings.entrySet()) {
+        int frequency = entry.getValue();
+        double lengthNorm = stats.averageDocumentLength == 0 ? 1
+            : 1 - B + B * documents.get(entry.getKey()).length / stats.averageDocumentLength;
+        double[] score = scores.get(entry.getKey());
+        if (score == null) {
+          score = new double[1];
+          scores.put(entry.getKey(), score);
+        }
+        score[0] += idf * frequency * (K1 + 1) / (frequency + K1 * lengthNorm);
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * The same conditions that the datastore query for a search used to apply.
+   */
+  private static boolean matchesFilters(BaseContentItem contentItem, SearchTerms searchTerms) {
+    if (searchTerms.publishState != null
+        && contentItem.getPublishState() != searchTerms.publishState) {
+      return false;
+    }
+    if (searchTerms.beforeDate != null || searchTerms.afterDate != null) {
+      if (contentItem.getTimestamp() == null
+          || (searchTerms.beforeDate != null
+              && !contentItem.getTimestamp().before(searchTerms.beforeDate))
+          || (searchTerms.afterDate != null
+              && contentItem.getTimestamp().before(searchTerms.afterDate))) {
+        return false;
+      }
+    }
+    if (searchTerms.importance != null && contentItem.getImportance() != searchTerms.importance) {
+      return false;
+    }
+    ContentItemType contentItemType = contentItem.getContentItemType();
+    if (searchTerms.contentItemType == null) {
+      return true;
+    }
+    if (contentItemType != searchTerms.contentItemType) {
+      return false;
+    }
+    switch (contentItemType) {
+      case PLAYER:
+        return searchTerms.playerType == null
+            || ((PlayerContentItem) contentItem).getPlayerType() == searchTerms.playerType;
+      case ASSET:
+        return searchTerms.assetType == null
+            || ((AssetContentItem) contentItem).getAssetType() == searchTerms.assetType;
+      case NARRATIVE:
+        return searchTerms.narrativeType == null
+            || ((NarrativeContentItem) contentItem).getNarrativeType()
+                == searchTerms.narrativeType;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Returns the searchable text of a content item, including html.
+   */
+  private static String getText(BaseContentItem contentItem) {
+    StringBuilder text = new StringBuilder();
+    append(text, contentItem.getContent());
+    switch (contentItem.getContentItemType()) {
+      case EVENT:
+        EventContentItem event = (EventContentItem) contentItem;
+        append(text, event.getEventUpdate());
+        append(text, event.getEventSummary());
+        break;
+      case NARRATIVE:
+        NarrativeContentItem narrative = (NarrativeContentItem) contentItem;
+        append(text, narrative.getHeadline());
+        append(text, narrative.getNarrativeSummary());
+        break;
+      case PLAYER:
+        PlayerContentItem player = (PlayerContentItem) contentItem;
+        append(text, player.getName());
+        for (String alias : player.getAliases()) {
+          append(text, alias);
+        }
+        break;
+      case ASSET:
+        append(text, ((AssetContentItem) contentItem).getCaption());
+        break;
+      case BACKGROUND:
+        append(text, ((BackgroundContentItem) contentItem).getConceptName());
+        break;
+      default:
+        break;
+    }
+    return text.toString();
+  }
+
+  private static void append(StringBuilder text, String field) {
+    if (field != null) {
+      text.append(field).append(' ');
+    }
+  }
+
+  /**
+   * Splits html into lowercase words, a word being a run of letters and digits.
+   */
+  static List<String> tokenize(String html) {
+    List<String> words = Lists.newArrayList();
+    if (html == null) {
+      return words;
+    }
+    String text = StringUtil.stripHtml(html);
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (inWord && start < 0) {
+        start = i;
+      } else if (!inWord && start >= 0) {
+        words.add(text.substring(start, i).toLowerCase());
+        start = -1;
+      }
+    }
+    return words;
+  }
+
+  /**
+   * An indexed item, with its length in words and how often each of its words occurs.
+   */
+  private static class Document {
+    public final BaseContentItem contentItem;
+    public final long time;
+    public final long id;
+    public final int length;
+    public final Map<String, Integer> wordCounts;
+
+    public Document(BaseContentItem contentItem, int length, Map<String, Integer> wordCounts) {
+      this.contentItem = contentItem;
+      this.time = contentItem.getTimestamp() == null
+          ? Long.MIN_VALUE : contentItem.getTimestamp().getTime();
+      this.id = contentItem.getId();
+      this.length = length;
+      this.wordCounts = wordCounts;
+    }
+  }
+
+  /**
+   * The collection statistics that BM25 scores depend on: the number of items, their average
+   * length, and the number of items containing each query word, in query order.
+   */
+  private static class RankingStats {
+    public final int documentCount;
+    public final double averageDocumentLength;
+    public final int[] documentFrequencies;
+
+    public RankingStats(int documentCount, double averageDocumentLength,
+        int[] documentFrequencies) {
+      this.documentCount = documentCount;
+      this.averageDocumentLength = averageDocumentLength;
+      this.documentFrequencies = documentFrequencies;
+    }
+  }
+
+  /**
+   * A matching document and its sort key: best score first, then newest first, then highest id.
+   */
+  private static class Hit {
+    public static final Comparator<Hit> ORDER = new Comparator<Hit>() {
+      @Override
+      public int compare(Hit lhs, Hit rhs) {
+        int result = Double.compare(rhs.score, lhs.score);
+        if (result == 0) {
+          result = rhs.time < lhs.time ? -1 : (rhs.time == lhs.time ? 0 : 1);
+        }
+        if (result == 0) {
+          result = rhs.id < lhs.id ? -1 : (rhs.id == lhs.id ? 0 : 1);
+        }
+        return result;
+      }
+    };
+
+    public final double score;
+    public final long time;
+    public final long id;
+    public final Document document;
+
+    public Hit(double score, Document document) {
+      this(score, document.time, document.id, document);
+    }
+
+    public Hit(double score, long time, long id, Document document) {
+      this.score = score;
+      this.time = time;
+      this.id = id;
+      this.document = document;
+    }
+  }
+
+  /**
+   * Where a page of results ended, and the statistics its scores were computed with. Written as
+   * colon-separated hex numbers: the last hit's score bits, time and id, then the item count,
+   * the average length's bits, and one document frequency per query word.
+   */
+  private static class Cursor {
+    private static final int FIXED_PART_COUNT = 5;
+
+    public final Hit hit;
+    public final RankingStats stats;
+
+    public Cursor(Hit hit, RankingStats stats) {
+      this.hit = hit;
+      this.stats = stats;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder cursor = new StringBuilder();
+      cursor.append(Long.toHexString(Double.doubleToLongBits(hit.score)))
+          .append(':').append(Long.toHexString(hit.time))
+          .append(':').append(Long.toHexString(hit.id))
+          .append(':').append(Integer.toHexString(stats.documentCount))
+          .append(':').append(Long.toHexString(
+              Double.doubleToLongBits(stats.averageDocumentLength)));
+      for (int documentFrequency : stats.documentFrequencies) {
+        cursor.append(':').append(Integer.toHexString(documentFrequency));
+      }
+      return cursor.toString();
+    }
+
+    /**
+     * @param wordCount the number of distinct words in the query the cursor is continuing
+     */
+    public static Cursor parse(String cursor, int wordCount) {
+      String[] parts = cursor.split(":");
+      if (parts.length != FIXED_PART_COUNT + wordCount) {
+        throw new IllegalArgumentException("Malformed search cursor: " + cursor);
+      }
+      try {
+        Hit hit = new Hit(Double.longBitsToDouble(parseHex(parts[0])), parseHex(parts[1]),
+            parseHex(parts[2]), null);
+        int[] documentFrequencies = new int[wordCount];
+        for (int i = 0; i < wordCount; i++) {
+          documentFrequencies[i] = (int) parseHex(parts[FIXED_PART_COUNT + i]);
+        }
+        RankingStats stats = new RankingStats((int) parseHex(parts[3]),
+            Double.longBitsToDouble(parseHex(parts[4])), documentFrequencies);
+        return new Cursor(hit, stats);
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException("Malformed search cursor: " + cursor, ex);
+      }
+    }
+
+    // Long.toHexString writes negative values as unsigned, which Long.parseLong won't read back.
+    private static long parseHex(String hex) {
+      return new BigInteger(hex, 16).longValue();
+    }
+  }
+}
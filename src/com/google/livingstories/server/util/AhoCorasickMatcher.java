@@ -0,0 +1,120 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds every occurrence of a fixed set of strings in a text in a single pass, using the
+ * Aho-Corasick algorithm. Matching is case-sensitive and literal. The automaton is built once,
+ * in the constructor, and is immutable afterwards, so one instance can be shared between threads.
+ */
+public class AhoCorasickMatcher {
+  private final List<String> patterns;
+  private final Node root = new Node();
+
+  public AhoCorasickMatcher(List<String> patterns) {
+    this.patterns = new ArrayList<String>(patterns);
+
+    for (int i = 0; i < this.patterns.size(); i++) {
+      String pattern = this.patterns.get(i);
+      if (pattern.isEmpty()) {
+        continue;
+      }
+      Node node = root;
+      for (int j = 0; j < pattern.length(); j++) {
+        char c = pattern.charAt(j);
+        Node child = node.children.get(c);
+        if (child == null) {
+          child = new Node();
+          node.children.put(c, child);
+        }
+        node = child;
+      }
+      node.patternIndices.add(i);
+    }
+
+    // Breadth-first pass to fill in the failure links (longest proper suffix that is also in the
+    // trie) and output links (nearest node along the failure chain that ends a pattern).
+    LinkedList<Node> queue = new LinkedList<Node>();
+    for (Node child : root.children.values()) {
+      child.failure = root;
+      queue.add(child);
+    }
+    while (!queue.isEmpty()) {
+      Node node = queue.removeFirst();
+      for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+        char c = entry.getKey();
+        Node child = entry.getValue();
+        Node failure = node.failure;
+        while (failure != root && !failure.children.containsKey(c)) {
+          failure = failure.failure;
+        }
+        Node failureChild = failure.children.get(c);
+        child.failure = failureChild == null ? root : failureChild;
+        child.output = child.failure.patternIndices.isEmpty()
+            ? child.failure.output : child.failure;
+        queue.add(child);
+      }
+    }
+  }
+
+  public List<String> getPatterns() {
+    return patterns;
+  }
+
+  /**
+   * Returns, for each pattern passed to the constructor (in the same order), the start offsets
+   * of all its occurrences in text, in increasing order. Occurrences may overlap.
+   */
+  public List<List<Integer>> findAll(String text) {
+    List<List<Integer>> occurrences = new ArrayList<List<Integer>>(patterns.size());
+    for (int i = 0; i < patterns.size(); i++) {
+      occurrences.add(new ArrayList<Integer>(0));
+    }
+
+    Node node = root;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      Node next = node.children.get(c);
+      while (next == null && node != root) {
+        node = node.failure;
+        next = node.children.get(c);
+      }
+      node = next == null ? root : next;
+
+      for (Node match = node.patternIndices.isEmpty() ? node.output : node; match != null;
+          match = match.output) {
+        for (int patternIndex : match.patternIndices) {
+          occurrences.get(patternIndex).add(i - patterns.get(patternIndex).length() + 1);
+        }
+      }
+    }
+    return occurrences;
+  }
+
+  private static class Node {
+    public final Map<Character, Node> children = new HashMap<Character, Node>();
+    public final List<Integer> patternIndices = new ArrayList<Integer>(1);
+    public Node failure;
+    public Node output;
+  }
+}
@@ -18,6 +18,7 @@ package com.google.livingstories.server.util;
 
 import java.util.Collection;
 import java.util.Properties;
+import java.util.logging.Logger;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -34,29 +35,41 @@ import javax.mail.internet.MimeMultipart;
  * Utility class for sending email alerts
  */
 public class AlertSender {
-  public static void sendEmail(InternetAddress fromAddress, Collection<String> recipients, String subject,
-      String msgBody) {
+  private static final Logger logger = Logger.getLogger(AlertSender.class.getCanonicalName());
+  
+  /**
+   * Sends one message to all of the recipients. Recipients with malformed addresses are logged
+   * and skipped. Throws MessagingException if the message couldn't be sent, in which case it
+   * may be retried.
+   */
+  public static void sendEmail(InternetAddress fromAddress, Collection<String> recipients,
+      String subject, String msgBody) throws MessagingException {
     Session session = Session.getDefaultInstance(new Properties(), null);
 
-    try {
-      Message msg = new MimeMessage(session);
-      // Note that the 'from' field may only be set to the currently logged in user,
-      // or to an administrator email addreess.
-      msg.setFrom(fromAddress);
-      for (String recipient : recipients) {
+    Message msg = new MimeMessage(session);
+    // Note that the 'from' field may only be set to the currently logged in user,
+    // or to an administrator email addreess.
+    msg.setFrom(fromAddress);
+    boolean hasRecipients = false;
+    for (String recipient : recipients) {
+      try {
         msg.addRecipient(Message.RecipientType.TO, new InternetAddress(recipient));
+        hasRecipients = true;
+      } catch (AddressException ex) {
+        logger.warning("Skipping malformed alert recipient " + recipient);
       }
-      msg.setSubject(subject);
-      
-      Multipart mp = new MimeMultipart();
-      MimeBodyPart htmlPart = new MimeBodyPart();
-      htmlPart.setContent(msgBody, "text/html");
-      mp.addBodyPart(htmlPart);
-      msg.setContent(mp);
-      
-      Transport.send(msg);
-    } catch (AddressException ignored) {
-    } catch (MessagingException ignored) {
     }
+    if (!hasRecipients) {
+      return;
+    }
+    msg.setSubject(subject);
+    
+    Multipart mp = new MimeMultipart();
+    MimeBodyPart htmlPart = new MimeBodyPart();
+    htmlPart.setContent(msgBody, "text/html");
+    mp.addBodyPart(htmlPart);
+    msg.setContent(mp);
+    
+    Transport.send(msg);
   }
 }
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.util;
+
+import com.google.livingstories.client.BaseContentItem;
+import com.google.livingstories.client.EventContentItem;
+import com.google.livingstories.client.Importance;
+import com.google.livingstories.client.Location;
+import com.google.livingstories.client.NarrativeContentItem;
+import com.google.livingstories.client.NarrativeType;
+import com.google.livingstories.client.PublishState;
+import com.google.livingstories.server.dataservices.entities.BaseContentEntity;
+import com.google.livingstories.server.dataservices.entities.BaseContentEntity.Projection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Measures what it costs to convert content entities to client objects, per 1,000 entities, with
+ * the full projection that every conversion used before, and with the summary projection. For
+ * each, it reports the conversion time and the size of the converted list when serialized, which
+ * is what caching or sending the list costs.
+ *
+ * The entities are events and narratives with long html in each of their long text fields. None
+ * of them has a source item, since fetching one needs the datastore, so this doesn't measure the
+ * datastore gets that the summary projection also skips.
+ *
+ * This isn't run as part of the app. Run it from the compiled classes, e.g.
+ * <pre>
+ *   java -cp war/WEB-INF/classes:war/WEB-INF/lib/* \
+ *       com.google.livingstories.server.util.ContentEntityConversionBenchmark
+ * </pre>
+ * Each configuration is run a few times, and the first runs should be treated as warmup.
+ */
+public class ContentEntityConversionBenchmark {
+  private static final int ENTITY_COUNT = 1000;
+  private static final int LINKS_PER_FIELD = 400;
+  private static final int CONVERSIONS_PER_RUN = 500;
+  private static final int RUNS = 5;
+
+  public static void main(String[] args) throws IOException {
+    List<BaseContentEntity> entities = createEntities();
+    for (int run = 0; run < RUNS; run++) {
+      runConversions(entities, Projection.FULL);
+      runConversions(entities, Projection.SUMMARY);
+    }
+  }
+
+  private static List<BaseContentEntity> createEntities() {
+    StringBuilder html = new StringBuilder();
+    for (int i = 0; i < LINKS_PER_FIELD; i++) {
+      html.append("Some <b>story</b> text with <a href=\"http://example.com/").append(i)
+          .append("\">a link</a>. ");
+    }
+    String text = html.toString();
+
+    List<BaseContentEntity> entities = new ArrayList<BaseContentEntity>(ENTITY_COUNT);
+    for (int i = 0; i < ENTITY_COUNT; i++) {
+      BaseContentItem contentItem;
+      if (i % 2 == 0) {
+        contentItem = new EventContentItem(null, new Date(), new HashSet<Long>(),
+            Importance.MEDIUM, 1L, new Date(), null, "Update " + i, text, text);
+      } else {
+        contentItem = new NarrativeContentItem(null, new Date(), new HashSet<Long>(), text,
+            Importance.MEDIUM, 1L, "Headline " + i, NarrativeType.ANALYSIS, true, new Date(),
+            text);
+      }
+      contentItem.setPublishState(PublishState.PUBLISHED);
+      contentItem.setLocation(new Location(1.0, 2.0, text));
+      contentItem.setThemeIds(new HashSet<Long>());
+      contentItem.setLinkedContentItemIds(new HashSet<Long>());
+      contentItem.setSourceDescription(text);
+      entities.add(BaseContentEntity.fromClientObject(contentItem));
+    }
+    return entities;
+  }
+
+  private static void runConversions(List<BaseContentEntity> entities, Projection projection)
+      throws IOException {
+    List<BaseContentItem> contentItems = null;
+    long start = System.nanoTime();
+    for (int i = 0; i < CONVERSIONS_PER_RUN; i++) {
+      contentItems = new ArrayList<BaseContentItem>(entities.size());
+      for (BaseContentEntity entity : entities) {
+        contentItems.add(entity.toClientObject(projection));
+      }
+    }
+    long elapsedNanos = System.nanoTime() - start;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(contentItems);
+    out.close();
+
+    double perThousand = (double) ENTITY_COUNT / 1000;
+    System.out.printf("%s: %.3f ms per 1,000 entities, %d KB serialized per 1,000 entities%n",
+        projection, elapsedNanos / 1e6 / CONVERSIONS_PER_RUN / perThousand,
+        (long) (bytes.size() / 1024 / perThousand));
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.util;
+
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A message template in {@link java.text.MessageFormat}-like syntax, where {0}, {1}, etc. are
+ * replaced by values, compiled once into a list of literal and placeholder segments so that
+ * rendering is a single pass with no regular expressions.
+ *
+ * A template can also have optional sections, each given as a regular expression matched against
+ * the template source. Text matched by a section's expression is only rendered if the section is
+ * included. Sections must not overlap; a match that overlaps an earlier section is ignored.
+ *
+ * Instances are immutable, so they can be cached and shared between threads.
+ */
+public class EmailTemplate {
+  private static final Pattern PLACEHOLDER_PATTERN = Pattern.compile("\\{(\\d+)\\}");
+  private static final int ALWAYS_INCLUDED = -1;
+
+  private final Segment[] segments;
+  private final int estimatedLength;
+
+  private EmailTemplate(List<Segment> segments, int estimatedLength) {
+    this.segments = segments.toArray(new Segment[segments.size()]);
+    this.estimatedLength = estimatedLength;
+  }
+
+  public static EmailTemplate compile(String source) {
+    return compile(source, new String[0]);
+  }
+
+  /**
+   * @param source the template text
+   * @param optionalSectionRegexes for each optional section, the expression matching its text.
+   *     The first match of each is taken as the section.
+   */
+  public static EmailTemplate compile(String source, String... optionalSectionRegexes) {
+    // For each character of the source, the index of the section it belongs to.
+    int[] sectionAt = new int[source.length()];
+    Arrays.fill(sectionAt, ALWAYS_INCLUDED);
+    for (int i = 0; i < optionalSectionRegexes.length; i++) {
+      Matcher m = Pattern.compile(optionalSectionRegexes[i]).matcher(source);
+      if (m.find() && isUnassigned(sectionAt, m.start(), m.end())) {
+        Arrays.fill(sectionAt, m.start(), m.end(), i);
+      }
+    }
+
+    List<Segment> segments = Lists.newArrayList();
+    Matcher m = PLACEHOLDER_PATTERN.matcher(source);
+    int position = 0;
+    while (m.find()) {
+      addLiterals(segments, source, sectionAt, position, m.start());
+      segments.add(new Segment(null, Integer.parseInt(m.group(1)), sectionAt[m.start()]));
+      position = m.end();
+    }
+    addLiterals(segments, source, sectionAt, position, source.length());
+    return new EmailTemplate(segments, source.length());
+  }
+
+  /**
+   * Renders the template with every optional section included. values[n] replaces {n}; null
+   * values are rendered as "null".
+   */
+  public String render(String... values) {
+    return render(values, null);
+  }
+
+  /**
+   * Renders the template, leaving out the optional sections for which includeSections is false.
+   * A null includeSections includes every section.
+   */
+  public String render(String[] values, boolean[] includeSections) {
+    StringBuilder sb = new StringBuilder(estimatedLength);
+    for (Segment segment : segments) {
+      if (segment.section != ALWAYS_INCLUDED && includeSections != null
+          && !includeSections[segment.section]) {
+        continue;
+      }
+      if (segment.literal != null) {
+        sb.append(segment.literal);
+      } else {
+        sb.append(values[segment.placeholder]);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static boolean isUnassigned(int[] sectionAt, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (sectionAt[i] != ALWAYS_INCLUDED) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the source text between start and end as literal segments, split wherever the section
+   * changes.
+   */
+  private static void addLiterals(List<Segment> segments, String source, int[] sectionAt,
+      int start, int end) {
+    int segmentStart = start;
+    for (int i = start + 1; i <= end; i++) {
+      if (i == end || sectionAt[i] != sectionAt[segmentStart]) {
+        if (i > segmentStart) {
+          segments.add(new Segment(source.substring(segmentStart, i), 0,
+              sectionAt[segmentStart]));
+        }
+        segmentStart = i;
+      }
+    }
+  }
+
+  private static class Segment {
+    // Null for placeholder segments.
+    public final String literal;
+    public final int placeholder;
+    public final int section;
+
+    public Segment(String literal, int placeholder, int section) {
+      this.literal = literal;
+      this.placeholder = placeholder;
+      this.section = section;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.util;
+
+import com.google.livingstories.client.util.GlobalUtil;
+
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the cost of rendering one email alert's subject and body with a compiled
+ * {@link EmailTemplate}, as the alert outbox does, against the way alerts used to be rendered:
+ * rewriting the template's placeholders into {@link java.util.Formatter} syntax with a regular
+ * expression, stripping the empty optional sections with two more, and calling String.format.
+ * Also checks that both produce the same message for every combination of blank publisher and
+ * snippet.
+ *
+ * This isn't run as part of the app. Run it from the compiled classes, e.g.
+ * <pre>
+ *   java -cp war/WEB-INF/classes com.google.livingstories.server.util.EmailTemplateBenchmark
+ * </pre>
+ * Each configuration is run a few times, and the first runs should be treated as warmup.
+ */
+public class EmailTemplateBenchmark {
+  private static final String BUNDLE_NAME =
+      "com.google.livingstories.server.rpcimpl.emailTemplate";
+  private static final String PUBLISHER_SECTION_REGEX = "<span class=\"p_span\".*?</span>";
+  private static final String SNIPPET_SECTION_REGEX = "<div class=\"s_div\".*?</div>";
+  private static final int MESSAGES = 200000;
+  private static final int RUNS = 5;
+
+  private static final String STORY_TITLE = "Health care reform";
+  private static final String UPDATE_TITLE = "Senate passes the bill";
+  private static final String SNIPPET = "The Senate voted 60 to 39 on Thursday morning to pass its "
+      + "version of the bill, after weeks of debate.";
+  private static final String LINK_URL = "http://example.com/lsps/healthcare#OVERVIEW:1234";
+  private static final String LOGIN_URL = "http://example.com/_ah/login?continue=%2Flsps";
+
+  public static void main(String[] args) {
+    ResourceBundle emailBundle = ResourceBundle.getBundle(BUNDLE_NAME, Locale.ENGLISH);
+    String subjectSource = emailBundle.getString("updateEmailSubject");
+    String bodySource = emailBundle.getString("updateEmailTemplate");
+
+    checkSameOutput(subjectSource, bodySource);
+    for (int run = 0; run < RUNS; run++) {
+      runFormatter(subjectSource, bodySource);
+      runCompiled(subjectSource, bodySource);
+    }
+  }
+
+  private static void checkSameOutput(String subjectSource, String bodySource) {
+    EmailTemplate subject = EmailTemplate.compile(subjectSource);
+    EmailTemplate body = EmailTemplate.compile(bodySource, PUBLISHER_SECTION_REGEX,
+        SNIPPET_SECTION_REGEX);
+    String[] publisherNames = {"The Daily Planet", ""};
+    String[] snippets = {SNIPPET, ""};
+    for (String publisherName : publisherNames) {
+      for (String snippet : snippets) {
+        String expected = renderWithFormatter(subjectSource, bodySource, publisherName, snippet);
+        String actual = renderCompiled(subject, body, publisherName, snippet);
+        System.out.println("Publisher " + (publisherName.isEmpty() ? "blank" : "set")
+            + ", snippet " + (snippet.isEmpty() ? "blank" : "set") + ": output matches: "
+            + expected.equals(actual));
+      }
+    }
+  }
+
+  private static void runFormatter(String subjectSource, String bodySource) {
+    long start = System.nanoTime();
+    long length = 0;
+    for (int i = 0; i < MESSAGES; i++) {
+      length += renderWithFormatter(subjectSource, bodySource, getPublisherName(i),
+          getSnippet(i)).length();
+    }
+    report("regex + Formatter", System.nanoTime() - start, length);
+  }
+
+  private static void runCompiled(String subjectSource, String bodySource) {
+    long start = System.nanoTime();
+    // Compiled once per locale by the outbox, so compiling counts against the whole run here.
+    EmailTemplate subject = EmailTemplate.compile(subjectSource);
+    EmailTemplate body = EmailTemplate.compile(bodySource, PUBLISHER_SECTION_REGEX,
+        SNIPPET_SECTION_REGEX);
+    long length = 0;
+    for (int i = 0; i < MESSAGES; i++) {
+      length += renderCompiled(subject, body, getPublisherName(i), getSnippet(i)).length();
+    }
+    report("compiled template", System.nanoTime() - start, length);
+  }
+
+  // Every fourth message has no publisher, and every third no snippet, so both ways of
+  // rendering take each of their branches.
+  private static String getPublisherName(int i) {
+    return i % 4 == 0 ? "" : "The Daily Planet";
+  }
+
+  private static String getSnippet(int i) {
+    return i % 3 == 0 ? "" : SNIPPET;
+  }
+
+  private static void report(String name, long elapsedNanos, long length) {
+    // The total length is printed so that the rendering can't be optimized away.
+    System.out.printf("%s: %.0f ns/message, %d characters rendered%n",
+        name, (double) elapsedNanos / MESSAGES, length);
+  }
+
+  /**
+   * Renders a message the way email alerts used to be rendered, returning the subject and body
+   * joined by a newline.
+   */
+  private static String renderWithFormatter(String subjectSource, String bodySource,
+      String publisherName, String snippet) {
+    String subject = subjectSource.replace("{0}", STORY_TITLE);
+
+    StringBuffer sb = new StringBuffer();
+    Pattern p = Pattern.compile("\\{(\\d+)\\}");
+    Matcher m = p.matcher(bodySource);
+    while (m.find()) {
+      int num = Integer.parseInt(m.group(1));
+      m.appendReplacement(sb, "%" + (num + 1) + "\\$s");
+    }
+    m.appendTail(sb);
+
+    String template = sb.toString();
+    if (GlobalUtil.isContentEmpty(publisherName)) {
+      template = template.replaceFirst(PUBLISHER_SECTION_REGEX, "");
+    }
+    if (snippet == null || snippet.isEmpty()) {
+      template = template.replaceFirst(SNIPPET_SECTION_REGEX, "");
+    }
+    String body = String.format(template, UPDATE_TITLE, publisherName, snippet, LINK_URL,
+        LOGIN_URL);
+    return subject + "\n" + body;
+  }
+
+  /**
+   * Renders a message the way the alert outbox does, returning the subject and body joined by a
+   * newline.
+   */
+  private static String renderCompiled(EmailTemplate subjectTemplate,
+      EmailTemplate bodyTemplate, String publisherName, String snippet) {
+    String subject = subjectTemplate.render(STORY_TITLE);
+    String body = bodyTemplate.render(
+        new String[] {UPDATE_TITLE, publisherName, snippet, LINK_URL, LOGIN_URL},
+        new boolean[] {!GlobalUtil.isContentEmpty(publisherName),
+            snippet != null && !snippet.isEmpty()});
+    return subject + "\n" + body;
+  }
+}
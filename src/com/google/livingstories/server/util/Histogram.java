@@ -0,0 +1,106 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Threadsafe histogram of non-negative values, with a bucket for each power of two. Bucket n
+ * holds the values from 2^(n-1) up to 2^n - 1, and bucket 0 holds zero. Recording a value is a
+ * few atomic increments, so it's cheap enough to do on every cache access.
+ */
+public class Histogram {
+  private static final int BUCKET_COUNT = 64;
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records value. Negative values are recorded as zero.
+   */
+  public void record(long value) {
+    value = Math.max(0, value);
+    buckets.incrementAndGet(Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value)));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long currentMax;
+    while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+      // Another thread changed the max; try again.
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  /**
+   * Returns the count, mean and maximum, upper bounds for the median, 90th and 99th
+   * percentiles, and the count in each non-empty bucket, keyed by the bucket's upper bound.
+   * Values recorded while this runs may be partly included.
+   */
+  public JSONObject toJSON() throws JSONException {
+    long[] snapshot = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      snapshot[i] = buckets.get(i);
+      total += snapshot[i];
+    }
+
+    JSONObject result = new JSONObject();
+    result.put("count", total);
+    result.put("mean", total == 0 ? 0 : sum.get() / total);
+    result.put("max", max.get());
+
+    int percentileIndex = 0;
+    long seen = 0;
+    JSONObject bucketCounts = new JSONObject();
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      if (snapshot[i] == 0) {
+        continue;
+      }
+      seen += snapshot[i];
+      bucketCounts.put(String.valueOf(getUpperBound(i)), snapshot[i]);
+      while (percentileIndex < PERCENTILES.length
+          && seen >= PERCENTILES[percentileIndex] * total) {
+        result.put("p" + Math.round(PERCENTILES[percentileIndex] * 100), getUpperBound(i));
+        percentileIndex++;
+      }
+    }
+    result.put("buckets", bucketCounts);
+    return result;
+  }
+
+  private static long getUpperBound(int bucket) {
+    return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+  }
+}
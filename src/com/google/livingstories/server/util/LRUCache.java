@@ -17,44 +17,285 @@
 package com.google.livingstories.server.util;
 
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Simple implementation of a threadsafe LRU Cache of a fixed size.
+ * Threadsafe LRU cache, bounded by a number of entries and optionally by a total weight, with
+ * optional expiration of entries a fixed time after they were written.
+ *
+ * Keys are spread across a number of independently locked segments, each an access-ordered
+ * LinkedHashMap, so lookups and updates are O(1) and threads working on different segments
+ * don't contend. Each segment gets an equal share of the entry limit, and evicts its own least
+ * recently used entries to stay within it. Small caches use a single segment, so that they evict
+ * in exact LRU order.
+ *
+ * The weight limit applies to the cache as a whole, so that a value can be as heavy as the whole
+ * cache, however many segments there are. When the cache is over the limit, the least recently
+ * used of the segments' least recently used entries is evicted, one at a time, which keeps the
+ * eviction order close to LRU across segments. A value heavier than the whole limit isn't cached.
+ *
+ * Instances are serializable as long as their keys, values and weigher are.
  */
-public class LRUCache<K,V> implements Serializable {
-  private Map<K, V> cache = new HashMap<K, V>();
-  private LinkedList<K> cacheKeys = new LinkedList<K>();
-  private int maxSize;
-  
+public class LRUCache<K, V> implements Serializable {
+  /**
+   * Computes the weight of a cache value, e.g. its approximate size in bytes.
+   */
+  public interface Weigher<V> extends Serializable {
+    long weigh(V value);
+  }
+
+  private static final int DEFAULT_CONCURRENCY_LEVEL = 8;
+  // Don't split caches up so finely that LRU order within a segment becomes meaningless.
+  private static final int MIN_ENTRIES_PER_SEGMENT = 16;
+
+  private final Segment<K, V>[] segments;
+  private final int segmentMask;
+  private final long maxWeight;
+  private final long expireAfterWriteMillis;
+  private final Weigher<? super V> weigher;
+
+  private final AtomicLong totalWeight = new AtomicLong();
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * Creates a cache that holds at most maxSize entries, which never expire.
+   */
   public LRUCache(int maxSize) {
-    this.maxSize = maxSize;
-  }
-  
-  public synchronized V get(K key) {
-    V value = cache.get(key);
-    if (value != null) {
-      // Access successful, refresh the key value
-      cacheKeys.remove(key);
-      cacheKeys.push(key);
-    }
-    return value;
-  }
-  
-  public synchronized void put(K key, V value) {
-    if (get(key) != null) {
-      return;
-    } else {
-      if (cacheKeys.size() == maxSize) {
-        // Cache is at the maximum size.  Remove the least recently used
-        // cache value.
-        K lruKey = cacheKeys.removeLast();
-        cache.remove(lruKey);        
-      }
-      cacheKeys.push(key);
-      cache.put(key, value);
+    this(maxSize, 0, 0, null);
+  }
+
+  /**
+   * @param maxSize the maximum number of entries in the cache
+   * @param maxWeight the maximum total weight of the values in the cache, as computed by
+   *     weigher. This is also the most that a single value can weigh. 0 means no limit.
+   * @param expireAfterWriteMillis how long after being written an entry expires. 0 means
+   *     entries never expire.
+   * @param weigher computes the weight of each value. Null if maxWeight is 0.
+   */
+  @SuppressWarnings("unchecked")
+  public LRUCache(int maxSize, long maxWeight, long expireAfterWriteMillis,
+      Weigher<? super V> weigher) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    }
+    if (maxWeight > 0 && weigher == null) {
+      throw new IllegalArgumentException("A weigher is required when maxWeight is set");
+    }
+    this.maxWeight = Math.max(0, maxWeight);
+    this.expireAfterWriteMillis = expireAfterWriteMillis;
+    this.weigher = maxWeight > 0 ? weigher : null;
+
+    int segmentCount = 1;
+    while (segmentCount < DEFAULT_CONCURRENCY_LEVEL
+        && maxSize / (segmentCount * 2) >= MIN_ENTRIES_PER_SEGMENT) {
+      segmentCount *= 2;
+    }
+    segmentMask = segmentCount - 1;
+    segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      // Hand out any remainder to the first segments, so the totals add up exactly.
+      segments[i] = new Segment<K, V>(
+          maxSize / segmentCount + (i < maxSize % segmentCount ? 1 : 0));
+    }
+  }
+
+  public V get(K key) {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      Entry<V> entry = segment.map.get(key);
+      if (entry != null && isExpired(entry)) {
+        removeEntry(segment, key);
+        evictionCount.incrementAndGet();
+        entry = null;
+      }
+      if (entry == null) {
+        missCount.incrementAndGet();
+        return null;
+      }
+      hitCount.incrementAndGet();
+      entry.lastAccessNanos = System.nanoTime();
+      return entry.value;
+    }
+  }
+
+  /**
+   * Adds value to the cache, replacing any existing value for key. A value that is heavier
+   * than the cache's whole weight limit is not cached at all.
+   */
+  public void put(K key, V value) {
+    long weight = weigher == null ? 0 : weigher.weigh(value);
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      removeEntry(segment, key);
+      if (maxWeight > 0 && weight > maxWeight) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      segment.map.put(key, new Entry<V>(value, weight, now, System.nanoTime()));
+      totalWeight.addAndGet(weight);
+
+      // The map is in access order, so the iterator starts with the least recently used entry.
+      Iterator<Map.Entry<K, Entry<V>>> it = segment.map.entrySet().iterator();
+      while (segment.map.size() > segment.maxSize && it.hasNext()) {
+        Entry<V> evicted = it.next().getValue();
+        it.remove();
+        totalWeight.addAndGet(-evicted.weight);
+        evictionCount.incrementAndGet();
+      }
+    }
+    if (maxWeight > 0) {
+      evictToWeightLimit();
+    }
+  }
+
+  public void remove(K key) {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      removeEntry(segment, key);
+    }
+  }
+
+  public void clear() {
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        for (Entry<V> entry : segment.map.values()) {
+          totalWeight.addAndGet(-entry.weight);
+        }
+        segment.map.clear();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of entries in the cache, including any that have expired but haven't
+   * been removed yet.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        size += segment.map.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Returns the total weight of the values in the cache.
+   */
+  public long getTotalWeight() {
+    return totalWeight.get();
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the number of entries removed to stay within the size and weight limits, or
+   * because they expired.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * Evicts entries until the cache is within its weight limit, each time picking the least
+   * recently used of the segments' least recently used entries. Only one segment is locked at a
+   * time, so this can't deadlock with other threads doing the same.
+   */
+  private void evictToWeightLimit() {
+    while (totalWeight.get() > maxWeight) {
+      Segment<K, V> oldestSegment = null;
+      long oldestAccessNanos = 0;
+      for (Segment<K, V> segment : segments) {
+        synchronized (segment) {
+          Entry<V> eldest = segment.getEldest();
+          if (eldest != null
+              && (oldestSegment == null || eldest.lastAccessNanos - oldestAccessNanos < 0)) {
+            oldestSegment = segment;
+            oldestAccessNanos = eldest.lastAccessNanos;
+          }
+        }
+      }
+      if (oldestSegment == null) {
+        return;
+      }
+      synchronized (oldestSegment) {
+        // Another thread may have used or evicted that entry in the meantime; evicting whatever
+        // is now least recently used in the segment is close enough.
+        Iterator<Map.Entry<K, Entry<V>>> it = oldestSegment.map.entrySet().iterator();
+        if (it.hasNext() && totalWeight.get() > maxWeight) {
+          Entry<V> evicted = it.next().getValue();
+          it.remove();
+          totalWeight.addAndGet(-evicted.weight);
+          evictionCount.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private void removeEntry(Segment<K, V> segment, K key) {
+    Entry<V> previous = segment.map.remove(key);
+    if (previous != null) {
+      totalWeight.addAndGet(-previous.weight);
+    }
+  }
+
+  private Segment<K, V> segmentFor(K key) {
+    // Spread the hash bits, so that keys whose hashes differ only in the high bits don't all
+    // end up in one segment.
+    int hash = key == null ? 0 : key.hashCode();
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    return segments[hash & segmentMask];
+  }
+
+  private boolean isExpired(Entry<V> entry) {
+    return expireAfterWriteMillis > 0
+        && System.currentTimeMillis() - entry.writeTimeMillis >= expireAfterWriteMillis;
+  }
+
+  private static class Segment<K, V> implements Serializable {
+    public final LinkedHashMap<K, Entry<V>> map =
+        new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+    public final int maxSize;
+
+    public Segment(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the least recently used entry, without counting this as a use, or null if the
+     * segment is empty.
+     */
+    public Entry<V> getEldest() {
+      Iterator<Entry<V>> it = map.values().iterator();
+      return it.hasNext() ? it.next() : null;
+    }
+  }
+
+  private static class Entry<V> implements Serializable {
+    public final V value;
+    public final long weight;
+    public final long writeTimeMillis;
+    // Only read and written with the entry's segment locked.
+    public long lastAccessNanos;
+
+    public Entry(V value, long weight, long writeTimeMillis, long lastAccessNanos) {
+      this.value = value;
+      this.weight = weight;
+      this.writeTimeMillis = writeTimeMillis;
+      this.lastAccessNanos = lastAccessNanos;
     }
   }
 }
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures {@link LRUCache} throughput under a mixed get/put load from several threads, set up
+ * the way the near cache uses it: a weight-bounded cache of values with skewed popularity. Also
+ * checks that a value heavier than a segment's share of the weight limit is still cached.
+ *
+ * This isn't run as part of the app. Run it from the compiled classes, e.g.
+ * <pre>
+ *   java -cp war/WEB-INF/classes com.google.livingstories.server.util.LRUCacheBenchmark [threads]
+ * </pre>
+ * Each configuration is run a few times, and the first runs should be treated as warmup.
+ */
+public class LRUCacheBenchmark {
+  private static final int MAX_ENTRIES = 10000;
+  private static final long MAX_WEIGHT = 16 * 1024 * 1024;
+  private static final int KEY_COUNT = 20000;
+  private static final int OPERATIONS_PER_THREAD = 2000000;
+  // One operation in this many is a put; the rest are gets.
+  private static final int PUT_INTERVAL = 10;
+  private static final int RUNS = 5;
+
+  public static void main(String[] args) throws InterruptedException {
+    int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+
+    checkLargeValueIsCached();
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      for (int run = 0; run < RUNS; run++) {
+        runMixedLoad(threads);
+      }
+    }
+  }
+
+  private static void checkLargeValueIsCached() {
+    LRUCache<String, byte[]> cache = newCache();
+    byte[] largeValue = new byte[(int) (MAX_WEIGHT / 4)];
+    for (int i = 0; i < 1000; i++) {
+      cache.put("small" + i, new byte[1024]);
+    }
+    cache.put("large", largeValue);
+    System.out.println("Value of " + largeValue.length + " bytes cached: "
+        + (cache.get("large") == largeValue) + ", total weight " + cache.getTotalWeight()
+        + " of " + MAX_WEIGHT);
+  }
+
+  private static void runMixedLoad(int threadCount) throws InterruptedException {
+    final LRUCache<String, byte[]> cache = newCache();
+    final String[] keys = new String[KEY_COUNT];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      keys[i] = "key:" + i;
+    }
+
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < threadCount; t++) {
+      final long seed = t;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          Random random = new Random(seed);
+          for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+            // Squaring a uniform value skews lookups towards the low keys, so that some entries
+            // are hot and the rest compete for the remaining space.
+            double uniform = random.nextDouble();
+            String key = keys[(int) (uniform * uniform * KEY_COUNT)];
+            if (i % PUT_INTERVAL == 0) {
+              cache.put(key, new byte[256 + random.nextInt(4096)]);
+            } else {
+              cache.get(key);
+            }
+          }
+        }
+      });
+    }
+
+    long start = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsedNanos = System.nanoTime() - start;
+
+    long operations = (long) threadCount * OPERATIONS_PER_THREAD;
+    long lookups = cache.getHitCount() + cache.getMissCount();
+    System.out.printf("%d threads: %.0f ns/op per thread, %.1f Mops/s, hit rate %.1f%%,"
+        + " %d entries, %d bytes, %d evictions%n",
+        threadCount, (double) elapsedNanos / operations * threadCount,
+        operations * 1000.0 / elapsedNanos, 100.0 * cache.getHitCount() / lookups,
+        cache.size(), cache.getTotalWeight(), cache.getEvictionCount());
+  }
+
+  private static LRUCache<String, byte[]> newCache() {
+    return new LRUCache<String, byte[]>(MAX_ENTRIES, MAX_WEIGHT, 0,
+        new LRUCache.Weigher<byte[]>() {
+          @Override
+          public long weigh(byte[] value) {
+            return value.length;
+          }
+        });
+  }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of named counters, histograms and gauges, used to see how the server's
+ * caches are behaving. Names are dotted paths, e.g. "cache.memcache.userState.hits".
+ *
+ * Metrics are kept in memory, so they only cover the requests handled by this instance since it
+ * started or since the last reset.
+ */
+public class MetricsRegistry {
+  /**
+   * A value that's read when the metrics are reported, rather than recorded as things happen.
+   */
+  public interface Gauge {
+    long getValue();
+  }
+
+  private static final ConcurrentMap<String, AtomicLong> counters =
+      new ConcurrentHashMap<String, AtomicLong>();
+  private static final ConcurrentMap<String, Histogram> histograms =
+      new ConcurrentHashMap<String, Histogram>();
+  private static final ConcurrentMap<String, Gauge> gauges =
+      new ConcurrentHashMap<String, Gauge>();
+
+  /**
+   * Returns the counter with the given name, creating it if necessary. Callers on hot paths
+   * should hold on to the result rather than looking it up every time.
+   */
+  public static AtomicLong counter(String name) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = counters.putIfAbsent(name, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * Returns the histogram with the given name, creating it if necessary.
+   */
+  public static Histogram histogram(String name) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      Histogram newHistogram = new Histogram();
+      histogram = histograms.putIfAbsent(name, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Registers gauge under name, replacing any gauge already registered there.
+   */
+  public static void registerGauge(String name, Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /**
+   * Zeroes every counter and histogram. Gauges aren't affected.
+   */
+  public static void reset() {
+    for (AtomicLong counter : counters.values()) {
+      counter.set(0);
+    }
+    for (Histogram histogram : histograms.values()) {
+      histogram.reset();
+    }
+  }
+
+  /**
+   * Returns every metric, as objects mapping names to values under "counters", "histograms"
+   * and "gauges".
+   */
+  public static JSONObject toJSON() throws JSONException {
+    JSONObject result = new JSONObject();
+
+    JSONObject counterValues = new JSONObject();
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      counterValues.put(entry.getKey(), entry.getValue().get());
+    }
+    result.put("counters", counterValues);
+
+    JSONObject histogramValues = new JSONObject();
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      histogramValues.put(entry.getKey(), entry.getValue().toJSON());
+    }
+    result.put("histograms", histogramValues);
+
+    JSONObject gaugeValues = new JSONObject();
+    for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+      gaugeValues.put(entry.getKey(), entry.getValue().getValue());
+    }
+    result.put("gauges", gaugeValues);
+
+    return result;
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The serialized bytes of a feed, in both plain and gzipped form, along with the validators
+ * that are sent with it. Cached by FeedServlet, so that feed polls don't need to query or
+ * render anything.
+ */
+public class RenderedFeed implements Serializable {
+  private Long livingStoryId;
+  private Long generation;
+  private byte[] content;
+  private byte[] gzippedContent;
+  private String etag;
+  private long lastModified;
+  private long renderTime;
+
+  /**
+   * @param livingStoryId the story that the feed is for
+   * @param generation the story's feed generation when the feed was rendered; see
+   *     Caches.getRenderedFeedGeneration
+   * @param content the serialized feed
+   * @param previous the previously cached rendering of the same feed, or null. If its content
+   *     is the same, its last modified time is kept.
+   */
+  public RenderedFeed(Long livingStoryId, Long generation, byte[] content,
+      RenderedFeed previous) {
+    this.livingStoryId = livingStoryId;
+    this.generation = generation;
+    this.content = content;
+    this.gzippedContent = gzip(content);
+    this.etag = "\"" + md5Hex(content) + "\"";
+    this.renderTime = System.currentTimeMillis();
+    if (previous != null && previous.etag.equals(etag)) {
+      this.lastModified = previous.lastModified;
+    } else {
+      // HTTP dates only have a resolution of seconds.
+      this.lastModified = renderTime / 1000 * 1000;
+    }
+  }
+
+  public Long getLivingStoryId() {
+    return livingStoryId;
+  }
+
+  public Long getGeneration() {
+    return generation;
+  }
+
+  public byte[] getContent() {
+    return content;
+  }
+
+  public byte[] getGzippedContent() {
+    return gzippedContent;
+  }
+
+  /**
+   * Returns the strong entity tag of the uncompressed content, including the quotes.
+   */
+  public String getEtag() {
+    return etag;
+  }
+
+  /**
+   * Returns the entity tag of the gzipped content, which is a different representation and so
+   * needs a tag of its own.
+   */
+  public String getGzippedEtag() {
+    return etag.substring(0, etag.length() - 1) + "-gzip\"";
+  }
+
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  public long getRenderTime() {
+    return renderTime;
+  }
+
+  private static byte[] gzip(byte[] content) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 4);
+      GZIPOutputStream out = new GZIPOutputStream(bytes);
+      out.write(content);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException ex) {
+      // Can't happen when writing to memory.
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static String md5Hex(byte[] content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+      StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+        sb.append(Character.forDigit(b & 0xf, 16));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+}
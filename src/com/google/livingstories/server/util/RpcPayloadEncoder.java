@@ -0,0 +1,64 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.server.util;
+
+import com.google.gwt.user.client.rpc.SerializationException;
+import com.google.gwt.user.server.rpc.SerializationPolicy;
+import com.google.gwt.user.server.rpc.impl.ServerSerializationStreamWriter;
+
+/**
+ * Encodes objects in the GWT-RPC wire format, so that they can be embedded in a page and read
+ * on the client with the SerializationStreamFactory of a service that returns their type, rather
+ * than being fetched with an RPC.
+ */
+public class RpcPayloadEncoder {
+  /**
+   * The server only writes these payloads, never reads them, and the client can only read types
+   * that its service proxy was compiled with, so there's nothing for a policy to protect here.
+   */
+  private static final SerializationPolicy WRITE_ONLY_POLICY = new SerializationPolicy() {
+    @Override
+    public boolean shouldDeserializeFields(Class<?> clazz) {
+      return false;
+    }
+
+    @Override
+    public boolean shouldSerializeFields(Class<?> clazz) {
+      return clazz != null && clazz != Object.class;
+    }
+
+    @Override
+    public void validateDeserialize(Class<?> clazz) throws SerializationException {
+      throw new SerializationException("Payloads are never read on the server");
+    }
+
+    @Override
+    public void validateSerialize(Class<?> clazz) {
+    }
+  };
+
+  /**
+   * Returns value encoded as an object of the given type, in the form expected by
+   * SerializationStreamFactory.createStreamReader.
+   */
+  public static String encode(Object value, Class<?> type) throws SerializationException {
+    ServerSerializationStreamWriter writer = new ServerSerializationStreamWriter(WRITE_ONLY_POLICY);
+    writer.prepareToWrite();
+    writer.serializeValue(value, type);
+    return writer.toString();
+  }
+}
@@ -72,4 +72,18 @@ public class StringUtil {
   public static String stripForExternalSites(String content) {
     return stripJsLinks(stripTimelineTags(content));
   }
+
+  private static final Pattern TAG_OR_ENTITY_PATTERN = Pattern.compile(
+      "<[^>]*>|&#?[a-z0-9]+;", Pattern.CASE_INSENSITIVE);
+
+  /**
+   * Returns the text of an html fragment, with tags and character references replaced by spaces.
+   * Meant for indexing words, not for display.
+   */
+  public static String stripHtml(String content) {
+    if (content == null) {
+      return null;
+    }
+    return TAG_OR_ENTITY_PATTERN.matcher(content).replaceAll(" ");
+  }
 }
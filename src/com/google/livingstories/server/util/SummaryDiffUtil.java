@@ -18,6 +18,8 @@ package com.google.livingstories.server.util;
 
 import com.google.common.collect.Lists;
 import com.google.livingstories.client.LivingStory;
+import com.google.livingstories.client.LivingStory.Summary;
+import com.google.livingstories.server.rpcimpl.Caches;
 
 import name.neil.fraser.plaintext.diff_match_patch;
 import name.neil.fraser.plaintext.diff_match_patch.Diff;
@@ -41,7 +43,8 @@ import java.util.regex.Pattern;
 /**
  * Utility class that creates html for a diffed living story summary based on the
  * supplied last visit time.  Assumes that all interesting text is in
- * paragraph tags, and ignores everything else.
+ * paragraph tags, and ignores everything else.  Diffed summaries are cached by the
+ * timestamps of the two revisions involved.
  */
 public class SummaryDiffUtil {
   private static final String HIGHLIGHT_CLASS = "summaryHighlights";
@@ -57,13 +60,73 @@ public class SummaryDiffUtil {
       return livingStory.getSummary();
     }
 
-    String currentRevisionString = livingStory.getSummary();
-    String lastRevisionString = livingStory.getLastSummaryRevisionBeforeTime(lastVisitTime);
+    List<Summary> revisions = livingStory.getSummaryRevisions();
+    Summary currentRevision = revisions.get(revisions.size() - 1);
+    Summary lastSeenRevision = null;
+    for (Summary revision : revisions) {
+      if (revision.getTimestamp().before(lastVisitTime)) {
+        lastSeenRevision = revision;
+      } else {
+        break;
+      }
+    }
+    return getDiffedSummary(livingStory, currentRevision, lastSeenRevision);
+  }
+
+  /**
+   * Diffs the latest summary revision of the story against each of the up to revisionCount
+   * revisions before it, so that returning visitors get highlighted summaries from the cache.
+   * Meant to be called when a new revision is saved.
+   */
+  public static void precomputeDiffedSummaries(LivingStory livingStory, int revisionCount) {
+    List<Summary> revisions = livingStory.getSummaryRevisions();
+    int current = revisions.size() - 1;
+    for (int i = current - 1; i >= Math.max(0, current - revisionCount); i--) {
+      getDiffedSummary(livingStory, revisions.get(current), revisions.get(i));
+    }
+  }
+
+  /**
+   * Returns the current revision with the paragraphs that changed since lastSeenRevision
+   * highlighted. A null lastSeenRevision means that the visitor hasn't seen any revision.
+   * Summary revisions are never modified once saved, so the result depends only on the
+   * timestamps of the two revisions, and is cached by them.
+   */
+  private static String getDiffedSummary(LivingStory livingStory, Summary currentRevision,
+      Summary lastSeenRevision) {
+    String currentRevisionString = currentRevision.getContent();
+    String lastRevisionString = lastSeenRevision == null ? "" : lastSeenRevision.getContent();
     if (currentRevisionString.equals(lastRevisionString)) {
       return currentRevisionString;
     }
-    
-    // Ok, the revisions are different.  Start by parsing the HTML
+
+    Date currentRevisionTime = currentRevision.getTimestamp();
+    Date lastSeenRevisionTime = lastSeenRevision == null ? null : lastSeenRevision.getTimestamp();
+    String diffedSummary = Caches.getDiffedSummary(
+        livingStory.getId(), currentRevisionTime, lastSeenRevisionTime);
+    if (diffedSummary == null) {
+      diffedSummary = diffRevisions(currentRevisionString, lastRevisionString);
+      if (diffedSummary == null) {
+        // Something went terribly wrong; this shouldn't happen.
+        // Just return the current revision without doing any diffing or parsing.
+        logger.warning("Failed to get diffed summary HTML for living story "
+            + livingStory.getUrl() + " and revision timestamp "
+            + (lastSeenRevisionTime == null ? "none"
+                : DateFormat.getDateTimeInstance().format(lastSeenRevisionTime)));
+        return currentRevisionString;
+      }
+      Caches.setDiffedSummary(
+          livingStory.getId(), currentRevisionTime, lastSeenRevisionTime, diffedSummary);
+    }
+    return diffedSummary;
+  }
+
+  /**
+   * Returns the html of currentRevisionString with changed paragraphs highlighted, or null if
+   * the html couldn't be processed.
+   */
+  private static String diffRevisions(String currentRevisionString, String lastRevisionString) {
+    // Start by parsing the HTML
     Tidy tidy = new Tidy();
     Document currentRevision = tidy.parseDOM(new StringReader(currentRevisionString), null);
     Document lastSeenRevision = tidy.parseDOM(new StringReader(lastRevisionString), null);
@@ -127,17 +190,10 @@ public class SummaryDiffUtil {
     ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
     tidy.pprint(currentRevision, outputStream);
     Matcher matcher = BODY_CONTENT_PATTERN.matcher(outputStream.toString());
-    if (matcher.matches()) {
-      return matcher.group(1);
-    } else {
-      // Something went terribly wrong; this shouldn't happen.
-      // Just return the current revision without doing any diffing or parsing.
-      logger.warning("Failed to get diffed summary HTML for living story " + livingStory.getUrl()
-          + " and timestamp " + DateFormat.getDateTimeInstance().format(lastVisitTime));
-      return livingStory.getSummary();
-    }
+    return matcher.matches() ? matcher.group(1) : null;
   }
 
+
   // Need this because Node.getTextContent() is not implemented by JTidy's DOM
   // implementation.
   private static String getTextContent(Node node) {
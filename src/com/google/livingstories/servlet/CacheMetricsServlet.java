@@ -0,0 +1,48 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.servlet;
+
+import com.google.livingstories.server.util.MetricsRegistry;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Returns this instance's cache metrics as JSON. Pass reset=true to zero the counters and
+ * histograms after they're returned. Metrics only show up once the code recording them has run,
+ * so a freshly started instance may report very little.
+ */
+public class CacheMetricsServlet extends HttpServlet {
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    try {
+      String json = MetricsRegistry.toJSON().toString(2);
+      if (Boolean.parseBoolean(req.getParameter("reset"))) {
+        MetricsRegistry.reset();
+      }
+      resp.setContentType("application/json");
+      resp.getWriter().append(json);
+    } catch (JSONException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+}
@@ -16,18 +16,25 @@
 
 package com.google.livingstories.servlet;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.livingstories.server.dataservices.entities.BaseContentEntity;
 import com.google.livingstories.server.dataservices.entities.JSONSerializable;
 import com.google.livingstories.server.dataservices.entities.LivingStoryEntity;
 import com.google.livingstories.server.dataservices.entities.ThemeEntity;
 import com.google.livingstories.server.dataservices.impl.PMF;
 
+import org.datanucleus.store.appengine.query.JDOCursorHelper;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import javax.jdo.Extent;
 import javax.jdo.PersistenceManager;
@@ -39,11 +46,55 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Exports data from the appengine datastore into a json-formatted text file.
  * This works in both local and prod instances.
+ * 
+ * By default, the whole export is built as a single JSON document. Large datastores should be
+ * exported with the streaming mode instead, by requesting /export?format=jsonl. This pages
+ * through the entities with datastore cursors and writes each one as a line of the form
+ * {"kind": "BaseContentEntity", "entity": {...}} as soon as it's read, so memory use doesn't
+ * depend on the size of the datastore. Other parameters in streaming mode:
+ * - gzip=true compresses the output, which is then sent as a .jsonl.gz attachment.
+ * - cursor=[checkpoint] resumes an export from a checkpoint.
+ * 
+ * A {"checkpoint": "..."} line is written after every page of entities. If the request runs
+ * out of time, or the download is interrupted, everything after the last checkpoint line should
+ * be discarded and the export resumed from that checkpoint. The last line of a complete export
+ * is {"done": true}.
  */
 public class DataExportServlet extends HttpServlet {
+  private static final String STREAMING_FORMAT = "jsonl";
+  private static final int PAGE_SIZE = 100;
+  // Leave a margin before the 30 second appengine request deadline.
+  private static final long STREAMING_TIME_LIMIT_MILLIS = 20000;
+
+  /**
+   * The sequence of queries that make up a streaming export. The order matches the
+   * single-document export: living stories and themes first, then content entities without
+   * living stories, followed by content entities with living stories.
+   */
+  private enum ExportPhase {
+    LIVING_STORIES(LivingStoryEntity.class, null),
+    THEMES(ThemeEntity.class, null),
+    CONTENT_WITHOUT_LIVING_STORY(BaseContentEntity.class, "livingStoryId == null"),
+    // Cursors can't be used with != filters, so this is expressed as an inequality instead.
+    // Living story ids are always positive.
+    CONTENT_WITH_LIVING_STORY(BaseContentEntity.class, "livingStoryId > 0");
+
+    private final Class<? extends JSONSerializable> entityClass;
+    private final String filter;
+
+    private ExportPhase(Class<? extends JSONSerializable> entityClass, String filter) {
+      this.entityClass = entityClass;
+      this.filter = filter;
+    }
+  }
   
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (STREAMING_FORMAT.equals(req.getParameter("format"))) {
+      streamExport(req, resp);
+      return;
+    }
+    
     PersistenceManager pm = PMF.get().getPersistenceManager();
 
     try {
@@ -69,6 +120,132 @@ public class DataExportServlet extends HttpServlet {
     }
   }
   
+  private void streamExport(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    long deadline = System.currentTimeMillis() + STREAMING_TIME_LIMIT_MILLIS;
+    Checkpoint checkpoint = Checkpoint.fromString(req.getParameter("cursor"));
+    
+    boolean gzip = "true".equals(req.getParameter("gzip"));
+    if (gzip) {
+      resp.setContentType("application/x-gzip");
+      resp.setHeader("Content-Disposition", "attachment; filename=export.jsonl.gz");
+    } else {
+      resp.setContentType("application/x-json-stream; charset=UTF-8");
+    }
+    OutputStream out = resp.getOutputStream();
+    GZIPOutputStream gzipOut = null;
+    if (gzip) {
+      gzipOut = new GZIPOutputStream(out);
+      out = gzipOut;
+    }
+    Writer writer = new OutputStreamWriter(out, "UTF-8");
+    
+    try {
+      while (checkpoint != null && System.currentTimeMillis() < deadline) {
+        checkpoint = writePage(writer, checkpoint);
+        JSONObject checkpointLine = new JSONObject();
+        if (checkpoint == null) {
+          checkpointLine.put("done", true);
+        } else {
+          checkpointLine.put("checkpoint", checkpoint.toString());
+        }
+        writeLine(writer, checkpointLine);
+        // Push each page out to the client, rather than letting the response buffer grow.
+        writer.flush();
+      }
+    } catch (JSONException ex) {
+      throw new RuntimeException(ex);
+    }
+    
+    writer.flush();
+    if (gzipOut != null) {
+      gzipOut.finish();
+    }
+  }
+  
+  /**
+   * Writes out the page of entities that starts at checkpoint, and returns the checkpoint to
+   * continue from, or null if the export is complete.
+   */
+  private Checkpoint writePage(Writer writer, Checkpoint checkpoint)
+      throws IOException, JSONException {
+    ExportPhase phase = checkpoint.phase;
+    // Use a new persistence manager for each page, so that the entities read aren't held onto
+    // for the rest of the export.
+    PersistenceManager pm = PMF.get().getPersistenceManager();
+    Query query = pm.newQuery(phase.entityClass);
+    if (phase.filter != null) {
+      query.setFilter(phase.filter);
+    }
+    if (checkpoint.cursor != null) {
+      query.setExtensions(
+          Collections.singletonMap(JDOCursorHelper.CURSOR_EXTENSION, checkpoint.cursor));
+    }
+    query.setRange(0, PAGE_SIZE);
+    
+    try {
+      @SuppressWarnings("unchecked")
+      List<JSONSerializable> entities = (List<JSONSerializable>) query.execute();
+      for (JSONSerializable entity : entities) {
+        JSONObject line = new JSONObject();
+        line.put("kind", phase.entityClass.getSimpleName());
+        line.put("entity", entity.toJSON());
+        writeLine(writer, line);
+      }
+      
+      if (entities.size() == PAGE_SIZE) {
+        return new Checkpoint(phase, JDOCursorHelper.getCursor(entities));
+      }
+      ExportPhase[] phases = ExportPhase.values();
+      int nextPhase = phase.ordinal() + 1;
+      return nextPhase < phases.length ? new Checkpoint(phases[nextPhase], null) : null;
+    } finally {
+      query.closeAll();
+      pm.close();
+    }
+  }
+  
+  private static void writeLine(Writer writer, JSONObject line) throws IOException {
+    writer.write(line.toString());
+    writer.write('\n');
+  }
+  
+  /**
+   * A position in a streaming export: the query being read, and the datastore cursor within it.
+   * A null cursor means the start of the query. The string form is [phase]:[cursor].
+   */
+  private static class Checkpoint {
+    public final ExportPhase phase;
+    public final Cursor cursor;
+    
+    public Checkpoint(ExportPhase phase, Cursor cursor) {
+      this.phase = phase;
+      this.cursor = cursor;
+    }
+    
+    /**
+     * Parses a checkpoint from its string form. A null or empty string means the start of the
+     * export.
+     */
+    public static Checkpoint fromString(String checkpoint) {
+      if (checkpoint == null || checkpoint.isEmpty()) {
+        return new Checkpoint(ExportPhase.values()[0], null);
+      }
+      int separator = checkpoint.indexOf(':');
+      if (separator < 0) {
+        throw new IllegalArgumentException("Invalid export checkpoint: " + checkpoint);
+      }
+      ExportPhase phase = ExportPhase.valueOf(checkpoint.substring(0, separator));
+      String cursor = checkpoint.substring(separator + 1);
+      return new Checkpoint(phase, cursor.isEmpty() ? null : Cursor.fromWebSafeString(cursor));
+    }
+    
+    @Override
+    public String toString() {
+      return phase.name() + ":" + (cursor == null ? "" : cursor.toWebSafeString());
+    }
+  }
+  
   private <T extends JSONSerializable> void addJSON(
       JSONObject result, Class<T> entityClass, PersistenceManager pm) {
     Extent<T> entities = pm.getExtent(entityClass);
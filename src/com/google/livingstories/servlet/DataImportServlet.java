@@ -18,7 +18,6 @@ package com.google.livingstories.servlet;
 
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -35,25 +34,30 @@ import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.apache.commons.fileupload.util.Streams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 import javax.jdo.Extent;
 import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -62,16 +66,28 @@ import javax.servlet.http.HttpServletResponse;
  * Servlet that imports JSON data from a file into the appengine datastore.
  * This uses persistent, static values, so ensure that only one person is importing at a time!
  * 
+ * The file can be either the single JSON document written by /export, or the JSON lines
+ * written by /export?format=jsonl, optionally gzipped. JSON lines files are parsed a line at a
+ * time as they're uploaded, so only the entities themselves are held in memory.
+ * 
+ * The import then runs as a pipeline of steps: delete the existing data, create the living
+ * stories, themes and content entities in batches, and finally rewrite the references between
+ * content entities, which can only be translated once every content entity has its new id.
+ * Old ids are translated to new ones through a single {@link IdTranslationTable}.
+ * 
  * To overcome the timeout issue, the system will:
  * 1. Accept an input file from a page that uses an ajax file uploader.
  * 2. Begin processing the data, checking the time periodically.
  * 3. If the timeout is approaching, stop what we're doing and post the status
  *    back to the request page.
  * 4. The input page will then issue another request if the run state is still 'running'.
+ * 
+ * If the 'dryRun' field is set, the file is parsed and its references are checked, but the
+ * datastore isn't touched.
  */
 public class DataImportServlet extends HttpServlet {
-  private static final long TIMEOUT_MILLIS = 2000; // 2 seconds
-  private static final int SHARD_COUNT = 5;
+  private static final long TIMEOUT_MILLIS = 20000; // 20 seconds
+  private static final int BATCH_SIZE = 100;
   
   private static final Pattern goToContentItemPattern =
       Pattern.compile("(goToContentItem\\()(\\d+)");
@@ -82,6 +98,9 @@ public class DataImportServlet extends HttpServlet {
   private static final Pattern showSourcePopupPattern =
       Pattern.compile("(showSourcePopup\\()[\"'].+?[\"'],\\s*(\\d+)");
   private static final Pattern contentItemIdPattern = Pattern.compile("(contentItemId=\")(\\d+)");
+  private static final List<Pattern> inlineContentItemIdPatterns = ImmutableList.of(
+      goToContentItemPattern, lightboxPattern, showContentItemPopupPattern,
+      showSourcePopupPattern, contentItemIdPattern);
   
   public static List<Class<? extends HasSerializableLivingStoryId>> EXPORTED_ENTITY_CLASSES = 
     ImmutableList.<Class<? extends HasSerializableLivingStoryId>>of(
@@ -89,39 +108,15 @@ public class DataImportServlet extends HttpServlet {
         ThemeEntity.class,
         BaseContentEntity.class);
 
-
-  private static final Map<Class<?>, Function<JSONObject, String>> identifierFunctionMap =
-      new ImmutableMap.Builder<Class<?>, Function<JSONObject, String>>()
-          .put(LivingStoryEntity.class, createIdentifierFunction("id"))
-          .put(ThemeEntity.class, createIdentifierFunction("id"))
-          .put(BaseContentEntity.class, createIdentifierFunction("id"))
-          .build();
-
-  private static Function<JSONObject, String> createIdentifierFunction(final String parameterName) {
-    return new Function<JSONObject, String>() {
-      @Override
-      public String apply(JSONObject object) {
-        return object.optString(parameterName);
-      }
-    };
-  }
-
   private enum RunState {
     RUNNING, FINISHED, ERROR;
   }
   
-  private static JSONObject inputData;
   private static String message;
   private static RunState runState = RunState.FINISHED;
   private static long startTime;
   
-  private static List<PersistenceManager> pms;
-  private static Map<Integer, List<JSONSerializable>> shardedEntities;
-  private static List<Function<Void, Boolean>> workQueue;
-
-  private static Map<String, LivingStoryEntity> livingStoryMap;
-  private static Map<String, ThemeEntity> themeMap;
-  private static Map<String, BaseContentEntity> contentMap;
+  private static ImportJob job;
 
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -137,20 +132,22 @@ public class DataImportServlet extends HttpServlet {
     if (req.getContentType().contains("multipart/form-data")) {
       try {
         ServletFileUpload upload = new ServletFileUpload();
-        JSONObject data = null;
+        ImportData data = null;
         boolean override = false;
+        boolean dryRun = false;
         FileItemIterator iter = upload.getItemIterator(req);
         while (iter.hasNext()) {
           FileItemStream item = iter.next();
           if (item.getFieldName().equals("override")) {
             override = true;
+          } else if (item.getFieldName().equals("dryRun")) {
+            dryRun = true;
           } else if (item.getFieldName().equals("data")) {
-            data = new JSONObject(Streams.asString(item.openStream()));
+            data = parse(item.openStream());
           }
         }
         checkRunState(override);
-        inputData = data; 
-        setUp();
+        job = new ImportJob(data, dryRun);
       } catch (FileUploadException ex) {
         throw new RuntimeException(ex);
       } catch (JSONException ex) {
@@ -168,7 +165,7 @@ public class DataImportServlet extends HttpServlet {
       runState = RunState.ERROR;
     } finally {
       if (runState != RunState.RUNNING) {
-        tearDown();
+        job = null;
       }
       Caches.clearAll();
     }
@@ -188,53 +185,29 @@ public class DataImportServlet extends HttpServlet {
     runState = RunState.RUNNING;
   }
   
-  private void setUp() {
-    pms = Lists.newArrayListWithCapacity(SHARD_COUNT);
-    shardedEntities = Maps.newHashMap();
-    for (int i = 0; i < SHARD_COUNT; i++) {
-      pms.add(PMF.get().getPersistenceManager());
-      shardedEntities.put(i, Lists.<JSONSerializable>newArrayList());
-    }
-    
-    livingStoryMap = Maps.newHashMap();
-    themeMap = Maps.newHashMap();
-    contentMap = Maps.newHashMap();
-
-    workQueue = Lists.newArrayList();
-    workQueue.add(new DeleteAllDataFunction());
-    workQueue.add(new CreateEntitiesFunction<LivingStoryEntity>(
-        LivingStoryEntity.class, livingStoryMap));
-    workQueue.add(new CreateEntitiesFunction<ThemeEntity>(ThemeEntity.class, themeMap));
-    workQueue.add(new CreateEntitiesFunction<BaseContentEntity>(
-        BaseContentEntity.class, contentMap));
-    workQueue.add(new MapIdsFunction());
-    workQueue.add(new MapContentEntityIdsFunction());
-    workQueue.add(new MapContentEntityInlineIdsFunction());
-    workQueue.add(new MapLivingStoryInlineIdsFunction());
-    workQueue.add(new ClosePMsFuction());
-    workQueue.add(new RemoveUnusedContributorsFunction());
-  }
-  
+  /**
+   * Runs as many steps of the current job as fit in this request.
+   */
   private void process() {
-    if (workQueue.isEmpty()) {
-      runState = RunState.FINISHED;
-    } else {
-      Function<Void, Boolean> task = workQueue.get(0);
+    if (job == null) {
+      throw new IllegalStateException("No import is in progress.");
+    }
+    while (!job.workQueue.isEmpty()) {
+      Function<Void, Boolean> task = job.workQueue.get(0);
       boolean timedOut = task.apply(null);
-      if (!timedOut) {
-        workQueue.remove(0);
+      if (timedOut) {
+        return;
+      }
+      job.workQueue.remove(0);
+      if (timeout() && !job.workQueue.isEmpty()) {
+        return;
       }
     }
-  }
-  
-  private void tearDown() {
-    pms = null;
-    shardedEntities = null;
-    inputData = null;
-    workQueue = null;
-    livingStoryMap = null;
-    themeMap = null;
-    contentMap = null;
+    if (!job.dryRun) {
+      message = "Imported " + job.data.getEntityCount() + " entities. "
+          + job.getThroughputMessage();
+    }
+    runState = RunState.FINISHED;
   }
 
   private boolean timeout() {
@@ -242,257 +215,506 @@ public class DataImportServlet extends HttpServlet {
   }
   
   /**
-   * Deletes all data in the datastore
+   * Reads the entities in an import file. Gzipped files are detected by their header.
    */
-  private class DeleteAllDataFunction implements Function<Void, Boolean> {
-    public Boolean apply(Void ignore) {
-      message = "Deleting entities";
-      
-      // We don't care which pm we use to delete data with, so just use the first.
-      PersistenceManager pm = pms.get(0);
-      for (Class<? extends JSONSerializable> entityClass : EXPORTED_ENTITY_CLASSES) {
-        Extent<? extends JSONSerializable> extent = pm.getExtent(entityClass);
-        Iterator<? extends JSONSerializable> iter = extent.iterator();
-        while (iter.hasNext()) {
-          pm.deletePersistent(iter.next());
-          if (timeout()) {
-            return true;
+  private ImportData parse(InputStream in) throws IOException, JSONException {
+    long parseStartTime = System.currentTimeMillis();
+    in = new BufferedInputStream(in);
+    in.mark(2);
+    boolean gzipped = in.read() == 0x1f && in.read() == 0x8b;
+    in.reset();
+    if (gzipped) {
+      in = new GZIPInputStream(in);
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    
+    ImportData data = new ImportData();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      JSONObject object = new JSONObject(line);
+      if (object.has("kind")) {
+        // A JSON lines entity.
+        data.add(object.getString("kind"), object.getJSONObject("entity"));
+      } else if (!object.has("checkpoint") && !object.has("done")) {
+        // A whole export document, which holds an array of entities for each kind.
+        for (Class<? extends JSONSerializable> entityClass : EXPORTED_ENTITY_CLASSES) {
+          // if the export was for story-specific data, some entity classes won't be mentioned.
+          JSONArray json = object.optJSONArray(entityClass.getSimpleName());
+          for (int i = 0; json != null && i < json.length(); i++) {
+            data.add(entityClass.getSimpleName(), json.getJSONObject(i));
           }
         }
       }
-      return false;
     }
+    data.parseMillis = System.currentTimeMillis() - parseStartTime;
+    return data;
   }
   
   /**
-   * Creates datastore entities given the JSON data, a persistence manager,
-   * and an entity class to create.
-   * Returns a map of old entity ids to the created entities.
-   * This map will be used by code later on to translate old entity id references
-   * to the new ones in other objects.
+   * The entities in an import file, grouped by kind, along with the ids that they had in the
+   * exported datastore.
+   */
+  private static class ImportData {
+    public final EntityGroup<LivingStoryEntity> livingStories =
+        new EntityGroup<LivingStoryEntity>(LivingStoryEntity.class);
+    public final EntityGroup<ThemeEntity> themes = new EntityGroup<ThemeEntity>(ThemeEntity.class);
+    public final EntityGroup<BaseContentEntity> contentEntities =
+        new EntityGroup<BaseContentEntity>(BaseContentEntity.class);
+    public long parseMillis;
+    
+    public void add(String kind, JSONObject object) throws JSONException {
+      if (kind.equals(livingStories.entityClass.getSimpleName())) {
+        livingStories.add(object);
+      } else if (kind.equals(themes.entityClass.getSimpleName())) {
+        themes.add(object);
+      } else if (kind.equals(contentEntities.entityClass.getSimpleName())) {
+        contentEntities.add(object);
+      } else {
+        throw new IllegalArgumentException("Unknown entity kind: " + kind);
+      }
+    }
+    
+    public int getEntityCount() {
+      return livingStories.size() + themes.size() + contentEntities.size();
+    }
+  }
+  
+  /**
+   * Entities of one kind, in file order, with their old ids in a parallel list.
    * 
-   * Note that this method uses reflection to access a static 'fromJSON' method
+   * Note that this class uses reflection to access a static 'fromJSON' method
    * on the JSONSerializable object.  Interfaces can't define static methods,
    * so it is up to the user to ensure that this method is defined for all entities.
    */
-  private class CreateEntitiesFunction<T extends JSONSerializable>
-      implements Function<Void, Boolean> {
-    private static final int BATCH_SIZE = 20;
-    
-    private Class<T> entityClass;
-    private Map<String, T> entityMap;
-    private int startValue = 0;
+  private static class EntityGroup<T extends JSONSerializable> {
+    public final Class<T> entityClass;
+    public final List<T> entities = Lists.newArrayList();
+    public final List<Long> oldIds = Lists.newArrayList();
     
-    public CreateEntitiesFunction(Class<T> entityClass, Map<String, T> entityMap) {
+    public EntityGroup(Class<T> entityClass) {
       this.entityClass = entityClass;
-      this.entityMap = entityMap;
     }
     
-    public Boolean apply(Void ignore) {
-      message = "Creating entities";
-      boolean timedOut = false;
-      for (int i = 0; i < SHARD_COUNT; i++) {
-        shardedEntities.get(i).clear();
-      }
-      
+    public void add(JSONObject object) throws JSONException {
       try {
-        JSONArray json;
-        try {
-          json = inputData.getJSONArray(entityClass.getSimpleName());
-        } catch (JSONException allowable) {
-          // if the export was for story-specific data, some entity classes won't be mentioned.
-          return false;
-        }
-        for (int i = startValue; i < json.length(); i++) {
-          if (timeout() || i > startValue + BATCH_SIZE) {
-            startValue = i;
-            timedOut = true;
-            break;
-          }
-          JSONObject object = json.getJSONObject(i);
-          try {
-            @SuppressWarnings("unchecked")
-            T entityToAdd =
-              (T) entityClass.getMethod("fromJSON", JSONObject.class).invoke(null, object);
-            entityMap.put(identifierFunctionMap.get(entityClass).apply(object), entityToAdd);
-            shardedEntities.get(i % SHARD_COUNT).add(entityToAdd);
-          } catch (NoSuchMethodException ex) {
-            throw new RuntimeException(ex);
-          } catch (InvocationTargetException ex) {
-            throw new RuntimeException(ex);
-          } catch (IllegalAccessException ex) {
-            throw new RuntimeException(ex);
+        entities.add(entityClass.cast(
+            entityClass.getMethod("fromJSON", JSONObject.class).invoke(null, object)));
+      } catch (NoSuchMethodException ex) {
+        throw new RuntimeException(ex);
+      } catch (InvocationTargetException ex) {
+        throw new RuntimeException(ex);
+      } catch (IllegalAccessException ex) {
+        throw new RuntimeException(ex);
+      }
+      oldIds.add(object.has("id") ? object.getLong("id") : null);
+    }
+    
+    public int size() {
+      return entities.size();
+    }
+  }
+  
+  /**
+   * Maps the ids that entities had in the exported datastore to the ids they were given on
+   * import, for every kind of entity.
+   */
+  private static class IdTranslationTable {
+    private final Map<Class<?>, Map<Long, Long>> newIds = Maps.newHashMap();
+    
+    public void put(Class<?> entityClass, Long oldId, Long newId) {
+      Map<Long, Long> idMap = newIds.get(entityClass);
+      if (idMap == null) {
+        idMap = Maps.newHashMap();
+        newIds.put(entityClass, idMap);
+      }
+      idMap.put(oldId, newId);
+    }
+    
+    /**
+     * Returns the new id for oldId, or null if no entity with that id was imported.
+     */
+    public Long get(Class<?> entityClass, Long oldId) {
+      Map<Long, Long> idMap = newIds.get(entityClass);
+      return idMap == null || oldId == null ? null : idMap.get(oldId);
+    }
+    
+    /**
+     * Returns the new ids for oldIds, leaving out ids of entities that weren't imported.
+     */
+    public Set<Long> getAll(Class<?> entityClass, Collection<Long> oldIds) {
+      Set<Long> result = Sets.newHashSet();
+      if (oldIds != null) {
+        for (Long oldId : oldIds) {
+          Long newId = get(entityClass, oldId);
+          if (newId != null) {
+            result.add(newId);
           }
         }
-      } catch (JSONException ex) {
-        throw new RuntimeException(ex);
       }
-      
-      // Shard the entities across multiple persistence managers.  This helps
-      // later on when we update the entities; we can thus save a fraction of the
-      // datastore in each request.
-      for (int i = 0; i < SHARD_COUNT; i++) {
-        pms.get(i).makePersistentAll(shardedEntities.get(i));
+      return result;
+    }
+  }
+  
+  /**
+   * The state of an import, which is kept between requests.
+   */
+  private class ImportJob {
+    public final ImportData data;
+    public final boolean dryRun;
+    public final IdTranslationTable idTable = new IdTranslationTable();
+    public final List<Function<Void, Boolean>> workQueue = Lists.newArrayList();
+    public final long jobStartTime = System.currentTimeMillis();
+    public int entitiesWritten = 0;
+    
+    public ImportJob(ImportData data, boolean dryRun) {
+      if (data == null) {
+        throw new IllegalArgumentException("No import file was uploaded.");
       }
-      return timedOut;
+      this.data = data;
+      this.dryRun = dryRun;
+      if (dryRun) {
+        workQueue.add(new ValidateFunction());
+      } else {
+        workQueue.add(new DeleteAllDataFunction());
+        workQueue.add(new CreateEntitiesFunction<LivingStoryEntity>(data.livingStories));
+        workQueue.add(new CreateEntitiesFunction<ThemeEntity>(data.themes));
+        workQueue.add(new CreateEntitiesFunction<BaseContentEntity>(data.contentEntities));
+        workQueue.add(new LinkContentEntitiesFunction());
+        workQueue.add(new LinkLivingStoriesFunction());
+        workQueue.add(new RemoveUnusedContributorsFunction());
+      }
+    }
+    
+    public String getThroughputMessage() {
+      long elapsedMillis = Math.max(1, System.currentTimeMillis() - jobStartTime);
+      return "Parsed the file in " + data.parseMillis + " ms, then wrote " + entitiesWritten
+          + " entities in " + elapsedMillis + " ms (" + (entitiesWritten * 1000L / elapsedMillis)
+          + " entities/sec).";
     }
   }
-
+  
   /**
-   * Maps the old entity ids to the new ones.
+   * Checks that the references between the entities in the file can all be resolved, without
+   * writing anything to the datastore.
    */
-  private class MapIdsFunction implements Function<Void, Boolean> {
+  private class ValidateFunction implements Function<Void, Boolean> {
     public Boolean apply(Void ignore) {
-      message = "Mapping IDs";
-
-      for (ThemeEntity theme : themeMap.values()) {
-        theme.setLivingStoryId(livingStoryMap.get(theme.getLivingStoryId().toString()).getId());
+      ImportData data = job.data;
+      // Map every id to itself, so that references can be checked with the same code that
+      // translates them in a real import.
+      IdTranslationTable idTable = job.idTable;
+      addIdentityMappings(idTable, data.livingStories);
+      addIdentityMappings(idTable, data.themes);
+      addIdentityMappings(idTable, data.contentEntities);
+      
+      int missingReferences = 0;
+      for (ThemeEntity theme : data.themes.entities) {
+        if (idTable.get(LivingStoryEntity.class, theme.getLivingStoryId()) == null) {
+          missingReferences++;
+        }
       }
+      for (BaseContentEntity contentEntity : data.contentEntities.entities) {
+        if (contentEntity.getLivingStoryId() != null && idTable.get(
+            LivingStoryEntity.class, contentEntity.getLivingStoryId()) == null) {
+          missingReferences++;
+        }
+        missingReferences += countMissing(idTable, ThemeEntity.class, contentEntity.getThemeIds());
+        missingReferences += countMissing(idTable, BaseContentEntity.class,
+            contentEntity.getContributorIds());
+        missingReferences += countMissing(idTable, BaseContentEntity.class,
+            contentEntity.getLinkedContentEntityIds());
+      }
+      
+      message = "Dry run: parsed " + data.livingStories.size() + " living stories, "
+          + data.themes.size() + " themes and " + data.contentEntities.size()
+          + " content entities in " + data.parseMillis + " ms ("
+          + (data.getEntityCount() * 1000L / Math.max(1, data.parseMillis)) + " entities/sec). "
+          + missingReferences + " references point to entities that aren't in the file, and "
+          + "would be dropped. Nothing was written.";
       return false;
     }
+    
+    private <T extends JSONSerializable> void addIdentityMappings(IdTranslationTable idTable,
+        EntityGroup<T> group) {
+      for (Long oldId : group.oldIds) {
+        idTable.put(group.entityClass, oldId, oldId);
+      }
+    }
+    
+    private int countMissing(IdTranslationTable idTable, Class<?> entityClass, Set<Long> ids) {
+      return ids == null ? 0 : ids.size() - idTable.getAll(entityClass, ids).size();
+    }
   }
   
   /**
-   * Maps the old content entity ids to the new ones
+   * Deletes all data in the datastore, a batch at a time.
    */
-  private class MapContentEntityIdsFunction implements Function<Void, Boolean> {
-    private Iterator<BaseContentEntity> iter = null;
-    
-    @Override
-    public Boolean apply(Void arg0) {
-      message = "Mapping content entity IDs";
+  private class DeleteAllDataFunction implements Function<Void, Boolean> {
+    public Boolean apply(Void ignore) {
+      message = "Deleting entities";
       
-      if (iter == null) {
-        iter = contentMap.values().iterator();
-      }
-      // Map all the ids in the BaseContentEntity objects to the new ones
-      while (iter.hasNext()) {
-        BaseContentEntity contentEntity = iter.next();
-        // Living Story ids
-        if (contentEntity.getLivingStoryId() != null) {
-          LivingStoryEntity livingStory =
-              livingStoryMap.get(contentEntity.getLivingStoryId().toString());
-          if (livingStory != null) {
-            contentEntity.setLivingStoryId(livingStory.getId());
-          }
-        }
-        
-        // Theme ids
-        Set<Long> themeIds = Sets.newHashSet();
-        for (Long themeId : contentEntity.getThemeIds()) {
-          ThemeEntity theme = themeMap.get(themeId.toString());
-          if (theme != null) {
-            themeIds.add(theme.getId());
+      for (Class<? extends JSONSerializable> entityClass : EXPORTED_ENTITY_CLASSES) {
+        boolean deletedAll = false;
+        while (!deletedAll) {
+          if (timeout()) {
+            return true;
           }
-        }
-        contentEntity.setThemeIds(themeIds);
-        
-        // Contributor ids
-        Set<Long> contributorIds = Sets.newHashSet();
-        for (Long contributorId : contentEntity.getContributorIds()) {
-          BaseContentEntity user = contentMap.get(contributorId.toString());
-          if (user != null) {
-            contributorIds.add(user.getId());
+          PersistenceManager pm = PMF.get().getPersistenceManager();
+          Query query = pm.newQuery(entityClass);
+          query.setRange(0, BATCH_SIZE);
+          try {
+            List<?> entities = (List<?>) query.execute();
+            deletedAll = entities.size() < BATCH_SIZE;
+            pm.deletePersistentAll(entities);
+          } finally {
+            query.closeAll();
+            pm.close();
           }
         }
-        contentEntity.setContributorIds(contributorIds);
-        
-        // Linked content entity ids
-        Set<Long> linkedContentEntityIds = Sets.newHashSet();
-        for (Long linkedContentEntityId : contentEntity.getLinkedContentEntityIds()) {
-          BaseContentEntity linkedContentEntity = contentMap.get(linkedContentEntityId.toString());
-          if (linkedContentEntity != null) {
-            linkedContentEntityIds.add(linkedContentEntity.getId());
-          }
+      }
+      return false;
+    }
+  }
+  
+  /**
+   * Saves the entities of one kind to the datastore in batches, and records the new id of each
+   * one in the id translation table. References to entities of kinds that were created earlier
+   * are translated before saving.
+   */
+  private class CreateEntitiesFunction<T extends JSONSerializable>
+      implements Function<Void, Boolean> {
+    private final EntityGroup<T> group;
+    private int startValue = 0;
+    
+    public CreateEntitiesFunction(EntityGroup<T> group) {
+      this.group = group;
+    }
+    
+    public Boolean apply(Void ignore) {
+      String kind = group.entityClass.getSimpleName();
+      while (startValue < group.size()) {
+        message = "Creating " + kind + " entities: " + startValue + " of " + group.size() + ". "
+            + job.getThroughputMessage();
+        if (timeout()) {
+          return true;
         }
-        contentEntity.setLinkedContentEntityIds(linkedContentEntityIds);
-        
-        // Photo content entity id
-        if (contentEntity.getContentItemType() == ContentItemType.PLAYER
-            && contentEntity.getPhotoContentEntityId() != null) {
-          BaseContentEntity photoContentEntity =
-              contentMap.get(contentEntity.getPhotoContentEntityId().toString());
-          if (photoContentEntity != null) {
-            contentEntity.setPhotoContentEntityId(photoContentEntity.getId());
-          } else {
-            contentEntity.setPhotoContentEntityId(null);
-          }
+        int endValue = Math.min(startValue + BATCH_SIZE, group.size());
+        List<T> batch = group.entities.subList(startValue, endValue);
+        for (T entity : batch) {
+          translateParentIds(entity);
         }
         
-        // Parent player content entity id
-        if (contentEntity.getContentItemType() == ContentItemType.PLAYER
-            && contentEntity.getParentPlayerContentEntityId() != null) {
-          BaseContentEntity playerParentEntity =
-              contentMap.get(contentEntity.getParentPlayerContentEntityId().toString());
-          if (playerParentEntity == null) {
-            contentEntity.setParentPlayerContentEntityId(null);
-          } else {
-            contentEntity.setParentPlayerContentEntityId(playerParentEntity.getId());
-          }
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        try {
+          pm.makePersistentAll(batch);
+        } finally {
+          pm.close();
         }
-        
-        if (timeout()) {
-          return true;
+        for (int i = startValue; i < endValue; i++) {
+          job.idTable.put(group.entityClass, group.oldIds.get(i), getId(group.entities.get(i)));
         }
+        job.entitiesWritten += batch.size();
+        startValue = endValue;
       }
       return false;
     }
+    
+    private Long getId(T entity) {
+      if (entity instanceof LivingStoryEntity) {
+        return ((LivingStoryEntity) entity).getId();
+      } else if (entity instanceof ThemeEntity) {
+        return ((ThemeEntity) entity).getId();
+      } else {
+        return ((BaseContentEntity) entity).getId();
+      }
+    }
+    
+    /**
+     * Translates references to living stories and themes, which have been created by the time
+     * the entities that refer to them are. References that can't be translated are left as
+     * they are.
+     */
+    private void translateParentIds(T entity) {
+      IdTranslationTable idTable = job.idTable;
+      if (entity instanceof ThemeEntity) {
+        ThemeEntity theme = (ThemeEntity) entity;
+        Long livingStoryId = idTable.get(LivingStoryEntity.class, theme.getLivingStoryId());
+        if (livingStoryId != null) {
+          theme.setLivingStoryId(livingStoryId);
+        }
+      } else if (entity instanceof BaseContentEntity) {
+        BaseContentEntity contentEntity = (BaseContentEntity) entity;
+        Long livingStoryId =
+            idTable.get(LivingStoryEntity.class, contentEntity.getLivingStoryId());
+        if (livingStoryId != null) {
+          contentEntity.setLivingStoryId(livingStoryId);
+        }
+        contentEntity.setThemeIds(idTable.getAll(ThemeEntity.class, contentEntity.getThemeIds()));
+      }
+    }
   }
   
   /**
-   * Maps content entity ids in inline links in rich content fields to the right
-   * values. 
+   * Translates the references between content entities, including content entity ids in inline
+   * links in rich content fields. Only the entities that actually refer to other content
+   * entities are loaded and saved again.
    */
-  private class MapContentEntityInlineIdsFunction implements Function<Void, Boolean> {
-    private Iterator<BaseContentEntity> iter = null;
+  private class LinkContentEntitiesFunction implements Function<Void, Boolean> {
+    private int startValue = 0;
     
     public Boolean apply(Void ignore) {
-      message = "Mapping content entity inline IDs";
-
-      if (iter == null) {
-        iter = contentMap.values().iterator();
-      }
-      while (iter.hasNext()) {
-        BaseContentEntity contentEntity = iter.next();
-        contentEntity.setContent(matchAll(contentEntity.getContent()));
-        if (contentEntity.getContentItemType() == ContentItemType.ASSET) {
-          contentEntity.setCaption(matchAll(contentEntity.getCaption()));
-        } else if (contentEntity.getContentItemType() == ContentItemType.EVENT) {
-          contentEntity.setEventUpdate(matchAll(contentEntity.getEventUpdate()));
-          contentEntity.setEventSummary(matchAll(contentEntity.getEventSummary()));
-        }
+      List<BaseContentEntity> entities = job.data.contentEntities.entities;
+      while (startValue < entities.size()) {
+        message = "Mapping content entity IDs: " + startValue + " of " + entities.size() + ". "
+            + job.getThroughputMessage();
         if (timeout()) {
           return true;
         }
+        int endValue = Math.min(startValue + BATCH_SIZE, entities.size());
+        List<Long> idsToUpdate = Lists.newArrayList();
+        for (BaseContentEntity contentEntity : entities.subList(startValue, endValue)) {
+          // Translating the in-memory copy tells us whether the stored entity needs updating.
+          if (translateContentEntityIds(contentEntity)) {
+            idsToUpdate.add(contentEntity.getId());
+          }
+        }
+        
+        if (!idsToUpdate.isEmpty()) {
+          PersistenceManager pm = PMF.get().getPersistenceManager();
+          try {
+            for (Long id : idsToUpdate) {
+              // Changes are written when the persistence manager is closed.
+              translateContentEntityIds(pm.getObjectById(BaseContentEntity.class, id));
+            }
+          } finally {
+            pm.close();
+          }
+          job.entitiesWritten += idsToUpdate.size();
+        }
+        startValue = endValue;
       }
       return false;
     }
     
+    /**
+     * Translates the content entity references in contentEntity, and returns whether any of
+     * them changed.
+     */
+    private boolean translateContentEntityIds(BaseContentEntity contentEntity) {
+      IdTranslationTable idTable = job.idTable;
+      boolean changed = false;
+      
+      // Contributor ids
+      Set<Long> contributorIds = contentEntity.getContributorIds();
+      if (contributorIds != null && !contributorIds.isEmpty()) {
+        contentEntity.setContributorIds(idTable.getAll(BaseContentEntity.class, contributorIds));
+        changed = true;
+      }
+      
+      // Linked content entity ids
+      Set<Long> linkedContentEntityIds = contentEntity.getLinkedContentEntityIds();
+      if (linkedContentEntityIds != null && !linkedContentEntityIds.isEmpty()) {
+        contentEntity.setLinkedContentEntityIds(
+            idTable.getAll(BaseContentEntity.class, linkedContentEntityIds));
+        changed = true;
+      }
+      
+      if (contentEntity.getContentItemType() == ContentItemType.PLAYER) {
+        // Photo content entity id
+        if (contentEntity.getPhotoContentEntityId() != null) {
+          contentEntity.setPhotoContentEntityId(
+              idTable.get(BaseContentEntity.class, contentEntity.getPhotoContentEntityId()));
+          changed = true;
+        }
+        // Parent player content entity id
+        if (contentEntity.getParentPlayerContentEntityId() != null) {
+          contentEntity.setParentPlayerContentEntityId(idTable.get(
+              BaseContentEntity.class, contentEntity.getParentPlayerContentEntityId()));
+          changed = true;
+        }
+      }
+      
+      // Inline links in rich content fields
+      String content = contentEntity.getContent();
+      String translatedContent = matchAll(content);
+      if (!equal(content, translatedContent)) {
+        contentEntity.setContent(translatedContent);
+        changed = true;
+      }
+      if (contentEntity.getContentItemType() == ContentItemType.ASSET) {
+        String caption = contentEntity.getCaption();
+        String translatedCaption = matchAll(caption);
+        if (!equal(caption, translatedCaption)) {
+          contentEntity.setCaption(translatedCaption);
+          changed = true;
+        }
+      } else if (contentEntity.getContentItemType() == ContentItemType.EVENT) {
+        String eventUpdate = contentEntity.getEventUpdate();
+        String translatedEventUpdate = matchAll(eventUpdate);
+        if (!equal(eventUpdate, translatedEventUpdate)) {
+          contentEntity.setEventUpdate(translatedEventUpdate);
+          changed = true;
+        }
+        String eventSummary = contentEntity.getEventSummary();
+        String translatedEventSummary = matchAll(eventSummary);
+        if (!equal(eventSummary, translatedEventSummary)) {
+          contentEntity.setEventSummary(translatedEventSummary);
+          changed = true;
+        }
+      }
+      return changed;
+    }
   }
 
   /**
-   * Maps living story ids in inline links in the story summary to the right values. 
+   * Maps content entity ids in inline links in the story summaries to the right values.
    */
-  private class MapLivingStoryInlineIdsFunction implements Function<Void, Boolean> {
+  private class LinkLivingStoriesFunction implements Function<Void, Boolean> {
     public Boolean apply(Void ignore) {
       message = "Mapping living story inline IDs";
 
-      for (LivingStoryEntity livingStory : livingStoryMap.values()) {
-        for (LivingStoryEntity.Summary revision : livingStory.getAllSummaryRevisions()) {
-          revision.setContent(matchAll(revision.getContent()));
+      List<Long> idsToUpdate = Lists.newArrayList();
+      for (LivingStoryEntity livingStory : job.data.livingStories.entities) {
+        if (translateSummaryIds(livingStory)) {
+          idsToUpdate.add(livingStory.getId());
+        }
+      }
+      if (!idsToUpdate.isEmpty()) {
+        PersistenceManager pm = PMF.get().getPersistenceManager();
+        try {
+          for (Long id : idsToUpdate) {
+            translateSummaryIds(pm.getObjectById(LivingStoryEntity.class, id));
+          }
+        } finally {
+          pm.close();
         }
+        job.entitiesWritten += idsToUpdate.size();
       }
       return false;
     }
+    
+    private boolean translateSummaryIds(LivingStoryEntity livingStory) {
+      boolean changed = false;
+      for (LivingStoryEntity.Summary revision : livingStory.getAllSummaryRevisions()) {
+        String content = revision.getContent();
+        String translatedContent = matchAll(content);
+        if (!equal(content, translatedContent)) {
+          revision.setContent(translatedContent);
+          changed = true;
+        }
+      }
+      return changed;
+    }
   }
   
   private String matchAll(String content) {
     if (content != null) {
-      content = doMatch(content, goToContentItemPattern);
-      content = doMatch(content, lightboxPattern);
-      content = doMatch(content, showContentItemPopupPattern);
-      content = doMatch(content, showSourcePopupPattern);
-      content = doMatch(content, contentItemIdPattern);
+      for (Pattern pattern : inlineContentItemIdPatterns) {
+        content = doMatch(content, pattern);
+      }
     }
     return content;
   }
@@ -501,9 +723,14 @@ public class DataImportServlet extends HttpServlet {
     Matcher matcher = pattern.matcher(content);
     StringBuffer sb = new StringBuffer();
     while (matcher.find()) {
-      String id = matcher.group(2);
-      if (contentMap.containsKey(id)) {
-        matcher.appendReplacement(sb, "$1" + contentMap.get(id).getId());
+      Long newId = null;
+      try {
+        newId = job.idTable.get(BaseContentEntity.class, Long.valueOf(matcher.group(2)));
+      } catch (NumberFormatException ex) {
+        // Too long to be an id, so leave it alone.
+      }
+      if (newId != null) {
+        matcher.appendReplacement(sb, "$1" + newId);
       } else {
         matcher.appendReplacement(sb, "$0");
       }
@@ -512,23 +739,8 @@ public class DataImportServlet extends HttpServlet {
     return sb.toString();
   }
   
-  /**
-   * Closes the persistence managers one by one, causing the entities in each one
-   * to be persisted to the datastore. 
-   */
-  private class ClosePMsFuction implements Function<Void, Boolean> {
-    public Boolean apply(Void ignore) {
-      message = "Saving entities";
-
-      while (!pms.isEmpty()) {
-        pms.get(0).close();
-        pms.remove(0);
-        if (timeout()) {
-          return true;
-        }
-      }
-      return false;
-    }
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
   }
   
   /**
@@ -572,11 +784,13 @@ public class DataImportServlet extends HttpServlet {
         }
   
         // Delete all unassigned content entities that weren't in the used set
+        List<BaseContentEntity> unusedContentEntities = Lists.newArrayList();
         for (BaseContentEntity unassignedContentEntity : allUnassignedContentEntities) {
           if (!allUsedUnassignedIds.contains(unassignedContentEntity.getId())) {
-            pm.deletePersistent(unassignedContentEntity);
+            unusedContentEntities.add(unassignedContentEntity);
           }
         }
+        pm.deletePersistentAll(unusedContentEntities);
       } finally {
         pm.close();
       }
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.servlet;
+
+import com.google.livingstories.server.rpcimpl.EmailAlertOutbox;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Worker for the email alert outbox; see {@link EmailAlertOutbox}. POSTs come from the task
+ * queue and work on one job each. GETs come from cron, and reschedule any jobs that have stalled.
+ */
+public class EmailAlertServlet extends HttpServlet {
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String jobId = req.getParameter(EmailAlertOutbox.JOB_ID_PARAM);
+    if (jobId == null) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing job id");
+      return;
+    }
+    // Failures to send are retried by the outbox itself, so this only returns an error (and has
+    // the task queue retry the task) if something unexpected goes wrong.
+    EmailAlertOutbox.processJob(Long.valueOf(jobId));
+  }
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    int resumed = EmailAlertOutbox.resumeStalledJobs();
+    resp.getWriter().append("Resumed " + resumed + " stalled email alert jobs");
+  }
+}
@@ -27,8 +27,10 @@ import com.google.livingstories.client.NarrativeContentItem;
 import com.google.livingstories.client.util.GlobalUtil;
 import com.google.livingstories.client.util.SnippetUtil;
 import com.google.livingstories.client.util.dom.JavaNodeAdapter;
+import com.google.livingstories.server.rpcimpl.Caches;
 import com.google.livingstories.server.rpcimpl.ContentRpcImpl;
 import com.google.livingstories.server.rpcimpl.LivingStoryRpcImpl;
+import com.google.livingstories.server.util.RenderedFeed;
 import com.google.livingstories.server.util.StringUtil;
 
 import com.sun.syndication.feed.synd.SyndContent;
@@ -51,11 +53,15 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Servlet to serve rss feeds for living stories
+ * 
+ * Rendered feeds are cached per story and feed type until the story's content changes, and are
+ * served with validators, so that pollers that already have the current feed get a 304.
  */
 public class FeedServlet extends HttpServlet {
   private static final String DEFAULT_FEED_TYPE = "rss_2.0";
   private static final long MILLIS_PER_DAY = 1000 * 60 * 60 * 24;
   private static final int MAXIMUM_SNIPPET_LENGTH = 500;
+  private static final long MAX_RENDERED_FEED_AGE_MILLIS = 1000 * 60 * 60;
   
   private LivingStoryRpcService livingStoryService;
   private ContentRpcService contentService;
@@ -72,30 +78,89 @@ public class FeedServlet extends HttpServlet {
       feedType = DEFAULT_FEED_TYPE;
     }
     
-    SyndFeed feed = getFeed(req);
-    if (feed == null) {
+    // Entry links are built from the request url, so it's part of the cache key too.
+    String feedUrl = req.getRequestURL() + "?type=" + feedType;
+    RenderedFeed cachedFeed = Caches.getRenderedFeed(feedUrl);
+    if (cachedFeed != null && isCurrent(cachedFeed)) {
+      writeFeed(req, resp, cachedFeed);
+      return;
+    }
+    
+    // Get the path info, minus the leading slash.
+    String lspUrl = req.getPathInfo().substring(1);
+    LivingStory livingStory = livingStoryService.getLivingStoryByUrl(lspUrl);
+    if (livingStory == null) {
       resp.sendError(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
+    // Read the generation before rendering, so that a change made while rendering is caught.
+    Long generation = Caches.getRenderedFeedGeneration(livingStory.getId());
+    
+    SyndFeed feed = getFeed(req, livingStory);
     feed.setFeedType(feedType);
-    resp.setContentType("application/xml; charset=utf-8");
     SyndFeedOutput output = new SyndFeedOutput();
+    RenderedFeed renderedFeed;
     try {
-      output.output(feed, resp.getWriter());
+      renderedFeed = new RenderedFeed(livingStory.getId(), generation,
+          output.outputString(feed).getBytes("UTF-8"), cachedFeed);
     } catch (FeedException ex) {
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Could not generate feed");
+      return;
     }
+    if (generation != null) {
+      Caches.setRenderedFeed(feedUrl, renderedFeed);
+    }
+    writeFeed(req, resp, renderedFeed);
   }
-
-  private SyndFeed getFeed(HttpServletRequest req) {
-    // Get the path info, minus the leading slash.
-    String lspUrl = req.getPathInfo().substring(1);
-    Date twoWeeksAgo = new Date(new Date().getTime() - 14 * MILLIS_PER_DAY);
+  
+  /**
+   * Returns whether nothing in the story has changed since feed was rendered. Feeds are also
+   * re-rendered periodically, so that old updates drop out of them.
+   */
+  private boolean isCurrent(RenderedFeed feed) {
+    return System.currentTimeMillis() - feed.getRenderTime() < MAX_RENDERED_FEED_AGE_MILLIS
+        && feed.getGeneration().equals(Caches.getRenderedFeedGeneration(feed.getLivingStoryId()));
+  }
+  
+  /**
+   * Writes feed to the response, gzipped if the client accepts that, or just a 304 if the
+   * client's copy is still current.
+   */
+  private void writeFeed(HttpServletRequest req, HttpServletResponse resp, RenderedFeed feed)
+      throws IOException {
+    String acceptEncoding = req.getHeader("Accept-Encoding");
+    boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
     
-    LivingStory livingStory = livingStoryService.getLivingStoryByUrl(lspUrl);
-    if (livingStory == null) {
-      return null;
+    resp.setHeader("ETag", gzip ? feed.getGzippedEtag() : feed.getEtag());
+    resp.setDateHeader("Last-Modified", feed.getLastModified());
+    resp.setHeader("Vary", "Accept-Encoding");
+    
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    boolean notModified;
+    if (ifNoneMatch != null) {
+      // Either representation of the same content is good enough for the client.
+      notModified = ifNoneMatch.contains(feed.getEtag())
+          || ifNoneMatch.contains(feed.getGzippedEtag()) || ifNoneMatch.trim().equals("*");
+    } else {
+      long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+      notModified = ifModifiedSince >= 0 && feed.getLastModified() <= ifModifiedSince;
+    }
+    if (notModified) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    
+    byte[] content = gzip ? feed.getGzippedContent() : feed.getContent();
+    resp.setContentType("application/xml; charset=utf-8");
+    if (gzip) {
+      resp.setHeader("Content-Encoding", "gzip");
     }
+    resp.setContentLength(content.length);
+    resp.getOutputStream().write(content);
+  }
+
+  private SyndFeed getFeed(HttpServletRequest req, LivingStory livingStory) {
+    Date twoWeeksAgo = new Date(new Date().getTime() - 14 * MILLIS_PER_DAY);
     
     List<BaseContentItem> updates = contentService.getUpdatesSinceTime(
         livingStory.getId(), twoWeeksAgo);
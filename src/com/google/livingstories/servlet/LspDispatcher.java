@@ -16,19 +16,27 @@
 
 package com.google.livingstories.servlet;
 
+import com.google.gwt.user.client.rpc.SerializationException;
 import com.google.gxp.base.GxpContext;
 import com.google.livingstories.client.FilterSpec;
 import com.google.livingstories.client.LivingStory;
+import com.google.livingstories.client.LivingStoryBootstrap;
 import com.google.livingstories.client.PublishState;
 import com.google.livingstories.client.util.Constants;
 import com.google.livingstories.gxps.LivingStoryHtml;
 import com.google.livingstories.server.dataservices.LivingStoryDataService;
 import com.google.livingstories.server.dataservices.UserDataService;
 import com.google.livingstories.server.dataservices.UserLoginService;
+import com.google.livingstories.server.dataservices.UserState;
 import com.google.livingstories.server.dataservices.impl.DataImplFactory;
+import com.google.livingstories.server.rpcimpl.LivingStoryRpcImpl;
+import com.google.livingstories.server.util.RpcPayloadEncoder;
+import com.google.livingstories.server.util.SummaryDiffUtil;
 
 import java.io.IOException;
 import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
@@ -39,14 +47,18 @@ import javax.servlet.http.HttpServletResponse;
  * Servlet to serve the new version of the lsp page.
  */
 public class LspDispatcher extends HttpServlet {
+  private static final Logger logger = Logger.getLogger(LspDispatcher.class.getCanonicalName());
+
   protected LivingStoryDataService livingStoryDataService;
   protected UserLoginService userLoginService;
   protected UserDataService userDataService;
+  protected LivingStoryRpcImpl livingStoryService;
 
   public LspDispatcher() {
     this.livingStoryDataService = DataImplFactory.getLivingStoryService();
     this.userLoginService = DataImplFactory.getUserLoginService();
     this.userDataService = DataImplFactory.getUserDataService();
+    this.livingStoryService = new LivingStoryRpcImpl();
   }
 
   @Override
@@ -66,9 +78,10 @@ public class LspDispatcher extends HttpServlet {
 
     String loggedInUser = userLoginService.getUserId();
     if (loggedInUser != null) {
-      lastVisitTime = userDataService.getLastVisitTimeForStory(loggedInUser, livingStoryId);
-      subscribedToEmails = userDataService.isUserSubscribedToEmails(loggedInUser, livingStoryId);
-      defaultView = userDataService.getDefaultStoryView(loggedInUser);
+      UserState userState = userDataService.getUserState(loggedInUser);
+      lastVisitTime = userState.getLastVisitTimeForStory(livingStoryId);
+      subscribedToEmails = userState.isSubscribedToEmails(livingStoryId);
+      defaultView = userState.getDefaultStoryView();
     }
 
     if (lastVisitTime == null) {
@@ -97,6 +110,19 @@ public class LspDispatcher extends HttpServlet {
       livingStory = livingStoryDataService.retrieveById(livingStoryId, false);
     }
     
+    // Usually served from the cache, since new summary revisions are diffed when they're saved.
+    String summary = SummaryDiffUtil.getDiffedSummary(livingStory, lastVisitTime);
+    
+    // Embed whatever the page would otherwise fetch as soon as it loads that's already cached.
+    FilterSpec initialFilter = defaultView == null ? new FilterSpec() : defaultView;
+    String bootstrap = null;
+    try {
+      bootstrap = RpcPayloadEncoder.encode(livingStoryService.getLivingStoryBootstrap(
+          livingStoryId, initialFilter, lastVisitTime), LivingStoryBootstrap.class);
+    } catch (SerializationException ex) {
+      logger.log(Level.WARNING, "Couldn't encode the story page bootstrap", ex);
+    }
+    
     ExternalServiceKeyChain keyChain = new ExternalServiceKeyChain(getServletContext());
     
     String currentUrl = req.getRequestURI();
@@ -111,13 +137,15 @@ public class LspDispatcher extends HttpServlet {
         userLoginService.createLogoutUrl(currentUrl),
         getSubscriptionUrl(livingStoryId, lspUrl),
         lastVisitTime,
+        summary,
         subscribedToEmails,
         defaultView,
         keyChain.getFriendConnectSiteId(req.getServerName()),
         keyChain.getMapsKey(),
         keyChain.getAnalyticsAccountId(),
         keyChain.getLogoFileLocation(),
-        livingStoryDataService.retrieveAll(PublishState.PUBLISHED, true));
+        livingStoryDataService.retrieveAll(PublishState.PUBLISHED, true),
+        bootstrap);
     
     // After the page has been created, update the stored value for the time the user
     // last visited the page to the current value
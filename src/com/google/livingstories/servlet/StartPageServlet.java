@@ -20,6 +20,7 @@ import com.google.gxp.base.GxpContext;
 import com.google.livingstories.gxps.StartPageHtml;
 import com.google.livingstories.server.dataservices.UserDataService;
 import com.google.livingstories.server.dataservices.UserLoginService;
+import com.google.livingstories.server.dataservices.UserState;
 import com.google.livingstories.server.dataservices.impl.DataImplFactory;
 
 import org.json.JSONException;
@@ -52,12 +53,14 @@ public class StartPageServlet extends HttpServlet {
     String loggedInUser = userLoginService.getUserId();
     
     JSONObject lastVisitTimes = new JSONObject();
+    UserState userState = null;
     if (loggedInUser != null) {
+      userState = userDataService.getUserState(loggedInUser);
       // Note: the date format that will be transferred via JSON should match with the date format
       // being used in {@link StartPage} which parses it. In particular, the timezone must be
       // included in the date being transferred.
       DateFormat dateFormatter = new SimpleDateFormat("MMMMM d, yyyy HH:mm:ss aaa ZZZZ");
-      Map<Long, Date> allStoryMap = userDataService.getAllLastVisitTimes(loggedInUser);
+      Map<Long, Date> allStoryMap = userState.getAllLastVisitTimes();
       for (Map.Entry<Long, Date> entry : allStoryMap.entrySet()) {
         if (entry.getValue() != null) {
           try {
@@ -79,7 +82,7 @@ public class StartPageServlet extends HttpServlet {
         userLoginService.createLoginUrl(currentUrl),
         userLoginService.createLogoutUrl(currentUrl),
         lastVisitTimes,
-        loggedInUser == null ? null : userDataService.getDefaultStoryView(loggedInUser),
+        userState == null ? null : userState.getDefaultStoryView(),
         externalProperties.getLogoFileLocation(),
         externalProperties.getAnalyticsAccountId());
   }
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS-IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.livingstories.servlet;
+
+import com.google.livingstories.server.dataservices.impl.UserDataServiceImpl;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Worker that writes batches of buffered story visits to the datastore; see
+ * {@link UserDataServiceImpl}. POSTs come from the task queue, which retries the batch if this
+ * throws.
+ */
+public class VisitDataServlet extends HttpServlet {
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String[] visits = req.getParameterValues(UserDataServiceImpl.VISIT_PARAM);
+    if (visits == null) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing visits");
+      return;
+    }
+    UserDataServiceImpl.writeVisits(visits);
+  }
+}